@@ -8,6 +8,8 @@ import org.springframework.util.unit.DataSize;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 
 /***
@@ -25,12 +27,52 @@ public class FileStorageProperties {
     private DataSize maxFileSize; // Handle values like 10MB natively
     private String originalImagePath; // path for storing original images
     private String optimizedImagePath; // Path for storing optimized images
+    private String quarantineImagePath; // Path for inputs that timed out during processing
+    private String derivativeImagePath; // Path for the on-demand render cache
+    private String packImagePath; // Path for pack segments when storage-backend is pack
+    private String storageBackend = "local"; // local: a file per image; pack: small optimized files appended to segments
+    private int indexScanParallelism; // Threads reading file attributes for the startup index scan, 0 = 2 per core (min 4)
+    private int shardDepth = 2; // Directory levels under original/optimized, two hex digits each (ab/cd/<uuid>.jpg), 0 = flat
+    private int migrationParallelism; // Threads moving files into the current layout, 0 = 2 per core (min 4)
+    private Duration migrationUnlinkGrace = Duration.ofSeconds(10); // Old paths stay linked this long after a move, for requests in flight
+    private boolean migrateOnStartup; // Move files left in another layout in the background once the app is up
+    private boolean contentAddressed; // Store identical uploads once, named by SHA-256, and reuse their processing results
+    private List<String> disks = new ArrayList<>(); // Mount points to stripe original/ and optimized/ across; empty = everything under storagePath
+    private DataSize diskMinFreeSpace = DataSize.ofGigabytes(1); // A disk with less free space takes no new files
+    private Duration diskCheckInterval = Duration.ofSeconds(10); // How often free space and health of the disks are checked
+
+    /**
+     * Stat calls block on I/O rather than use CPU, so the scan runs wider than the core count by default
+     * @return number of threads for the startup index scan
+     */
+    public int getEffectiveIndexScanParallelism(){
+        return indexScanParallelism > 0
+                ? indexScanParallelism
+                : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return number of threads for a layout migration
+     */
+    public int getEffectiveMigrationParallelism(){
+        return migrationParallelism > 0
+                ? migrationParallelism
+                : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    }
 
     // Derived property for absolute path
     public Path getFullStoragepath(){
         return Paths.get(storagePath).toAbsolutePath().normalize();
     }
 
+    /**
+     * Gets the data disks files are striped across, each holding its own original and optimized directories
+     * @return absolute mount points in configuration order, empty when everything lives under storagePath
+     */
+    public List<Path> getDiskPaths(){
+        return disks.stream().map(disk -> Paths.get(disk).toAbsolutePath().normalize()).toList();
+    }
+
     /**
      * Gets the full absolute path for storing original images
      * @return Path object for original images storage
@@ -47,4 +89,34 @@ public class FileStorageProperties {
                 Paths.get(storagePath, "optimized").toAbsolutePath().normalize();
     }
 
+    /**
+     * Gets the full absolute path where inputs that hung the processing pipeline are kept for inspection
+     * @return Path object for quarantined images
+     */
+    public Path getQuarantineStoragePath(){
+        return quarantineImagePath != null?
+                Paths.get(quarantineImagePath).toAbsolutePath().normalize():
+                Paths.get(storagePath, "quarantine").toAbsolutePath().normalize();
+    }
+
+    /**
+     * Gets the full absolute path of the pack segments (see PackFileStorageServiceImpl)
+     * @return Path object for pack segments
+     */
+    public Path getPackStoragePath(){
+        return packImagePath != null?
+                Paths.get(packImagePath).toAbsolutePath().normalize():
+                Paths.get(storagePath, "packs").toAbsolutePath().normalize();
+    }
+
+    /**
+     * Gets the full absolute path of the derivative cache used by the render endpoint
+     * @return Path object for cached derivatives
+     */
+    public Path getDerivativeStoragePath(){
+        return derivativeImagePath != null?
+                Paths.get(derivativeImagePath).toAbsolutePath().normalize():
+                Paths.get(storagePath, "derivatives").toAbsolutePath().normalize();
+    }
+
 }
@@ -0,0 +1,42 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Configuration properties for decode admission control
+ * Maps to the 'image.processing.admission' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.admission")
+public class ImageAdmissionProperties {
+
+    /**
+     * Total memory all in-flight decodes may claim at once.
+     * Uploads wait for budget instead of decoding in parallel and running the JVM out of heap
+     */
+    private DataSize memoryBudget = DataSize.ofMegabytes(512);
+
+    /**
+     * Hard pixel limit (width x height). Anything above is rejected as a decompression bomb
+     * Default is 100 megapixels
+     */
+    private long maxPixels = 100_000_000L;
+
+    // Bytes a single decoded pixel occupies (4 for ARGB/RGBA frames)
+    private int bytesPerPixel = 4;
+
+    /**
+     * How many full-size pixel buffers are alive at the same time during processing
+     * (native frame + BufferedImage + converted output frame)
+     */
+    private int decodeStages = 3;
+
+    // How long an upload may wait for budget before optimization is skipped
+    private Duration acquireTimeout = Duration.ofSeconds(30);
+}
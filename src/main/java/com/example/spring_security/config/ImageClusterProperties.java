@@ -0,0 +1,48 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for cluster mode (see PeerCluster): nodes with their own disks that fetch the files
+ * they don't have from the node owning them. Maps to the 'image.cluster' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.cluster")
+public class ImageClusterProperties {
+
+    // Off by default: a single node serves what it stores
+    private boolean enabled = false;
+
+    // This node's base URL as the other nodes reach it, e.g. http://10.0.0.1:8080, context path included;
+    // must be one of peers
+    private String selfUrl;
+
+    /**
+     * Base URLs of every node, this one included, the same list on each. Files are owned by a consistent-hash
+     * ring over them, so adding a node only moves ownership of its share of names
+     */
+    private List<String> peers = new ArrayList<>();
+
+    // Keep fetched files in the render cache (bounded by its budget); otherwise each request streams from the owner
+    // to the client without buffering
+    private boolean cacheFetched = true;
+
+    // Fetched files larger than this, or sent without a Content-Length, are refused
+    private DataSize maxFetchSize = DataSize.ofMegabytes(10);
+
+    private Duration connectTimeout = Duration.ofSeconds(1);
+
+    // Whole fetch, headers and body
+    private Duration requestTimeout = Duration.ofSeconds(10);
+
+    // A name no other node had is not asked for again this long, so missing alternates cost one round of requests
+    private Duration missTtl = Duration.ofSeconds(30);
+}
@@ -0,0 +1,32 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Configuration properties for routing decodes and lossless encodes between codec backends (see CodecSelector)
+ * Maps to the 'image.processing.codecs' section in application.yaml.
+ * The thresholds are what CodecCalibrationBenchmark measures on the target machine and writes to
+ * config/codec-calibration.yaml, which overrides these defaults when present
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.codecs")
+public class ImageCodecProperties {
+
+    // Route small images to ImageIO; off sends everything through FFmpeg
+    private boolean autoSelect = true;
+
+    // Per format (jpg, png): images up to this many pixels are decoded with ImageIO, larger ones with FFmpeg
+    private Map<String, Long> imageioDecodeMaxPixels = new LinkedHashMap<>(Map.of(
+            "jpg", 65_536L,
+            "png", 4_000_000L));
+
+    // Per format (png): images up to this many pixels are encoded with ImageIO, larger ones with FFmpeg
+    private Map<String, Long> imageioEncodeMaxPixels = new LinkedHashMap<>(Map.of(
+            "png", 0L));
+}
@@ -0,0 +1,25 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Configuration properties for the per-thread processing contexts (see ProcessingContexts)
+ * Maps to the 'image.processing.contexts' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.contexts")
+public class ImageContextProperties {
+
+    // Whether worker threads keep their codec objects and scratch buffers between tasks
+    private boolean enabled = true;
+
+    /**
+     * Scratch buffers above this size are allocated for the call and dropped afterwards,
+     * so one huge image doesn't pin its buffers on a worker for the rest of its life
+     */
+    private DataSize maxRetainedScratch = DataSize.ofMegabytes(16);
+}
@@ -0,0 +1,63 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Configuration properties for the image optimization thread pool
+ * Maps to the 'image.processing.executor' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.executor")
+public class ImageExecutorProperties {
+
+    // Workers kept alive at all times (0 = half the available cores, at least 2)
+    private int coreSize = 0;
+    // Upper bound of workers once the queue is full (0 = same as coreSize)
+    private int maxSize = 0;
+    /**
+     * Optimization tasks allowed to wait for a worker.
+     * Once this is full, new uploads are rejected instead of queueing without limit
+     */
+    private int queueCapacity = 50;
+    // Idle time before workers above coreSize are retired
+    private Duration keepAlive = Duration.ofSeconds(60);
+    // What happens to a task when both workers and queue are saturated
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.SERVICE_UNAVAILABLE;
+    // Value of the Retry-After header sent with a rejection
+    private Duration retryAfter = Duration.ofSeconds(5);
+    // How long shutdown waits for queued and running tasks to drain
+    private Duration shutdownTimeout = Duration.ofSeconds(30);
+
+    public int resolveCoreSize(){
+        return coreSize > 0 ? coreSize : Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public int resolveMaxSize(){
+        return Math.max(resolveCoreSize(), maxSize);
+    }
+
+    public enum RejectionPolicy {
+        // Reject with 503 Service Unavailable
+        SERVICE_UNAVAILABLE(HttpStatus.SERVICE_UNAVAILABLE),
+        // Reject with 429 Too Many Requests
+        TOO_MANY_REQUESTS(HttpStatus.TOO_MANY_REQUESTS),
+        // Run the task on the uploading thread (no rejection, but no latency bound either)
+        CALLER_RUNS(null);
+
+        private final HttpStatus status;
+
+        RejectionPolicy(HttpStatus status){
+            this.status = status;
+        }
+
+        public HttpStatus getStatus(){
+            return status;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for the alternate encodings (WebP, AVIF) written next to every stored image
+ * Maps to the 'image.processing.alternate-formats' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.alternate-formats")
+public class ImageFormatProperties {
+
+    // Whether alternate encodings are generated at upload time
+    private boolean enabled = true;
+
+    /**
+     * Formats to generate ("webp", "avif").
+     * Formats whose encoder is missing from the bundled FFmpeg build are skipped
+     */
+    private List<String> formats = new ArrayList<>(List.of("webp"));
+
+    /**
+     * Formats to transcode animated GIFs into ("webp", "mp4").
+     * MP4 is muted H.264 and is only served to clients that explicitly accept video/mp4
+     */
+    private List<String> animatedFormats = new ArrayList<>(List.of("webp"));
+
+    // WebP quality (0.0 - 1.0)
+    private float webpQuality = 0.8f;
+
+    // AVIF constant rate factor (0 - 63, lower is better quality)
+    private int avifCrf = 32;
+
+    // libaom speed preset (0 - 8, higher is faster)
+    private int avifSpeed = 6;
+
+    // MP4 target bitrate in bits per second for every pixel of the frame area
+    private double mp4BitsPerPixel = 2.0;
+}
@@ -0,0 +1,28 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Configuration properties for the off-heap cache of frequently served files (see HotImageCache)
+ * Maps to the 'image.serving.hot-cache' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.serving.hot-cache")
+public class ImageHotCacheProperties {
+
+    // Off by default: it only pays off when a small set of files takes most of the downloads
+    private boolean enabled = false;
+
+    // Total direct memory for cached bytes, allocated a slab at a time as the cache fills
+    private DataSize budget = DataSize.ofMegabytes(256);
+
+    // Larger files are always served from disk
+    private DataSize maxFileSize = DataSize.ofKilobytes(512);
+
+    // Unit of allocation; each slab is carved into chunks of one size class. At least max-file-size
+    private DataSize slabSize = DataSize.ofMegabytes(4);
+}
@@ -0,0 +1,30 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration properties for how JPEG outputs are written
+ * Maps to the 'image.processing.jpeg' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.jpeg")
+public class ImageJpegProperties {
+
+    // Progressive scans: a blurry full-size preview shows up after the first few KB
+    private boolean progressive = true;
+
+    // Build Huffman tables from the image instead of the standard ones (smaller, slightly slower to encode)
+    private boolean optimizeHuffman = true;
+
+    /**
+     * Rotate/flip the pixels according to the source's EXIF orientation.
+     * Outputs never carry EXIF, so without this a rotated phone photo would be served sideways
+     */
+    private boolean applyOrientation = true;
+
+    // Mark outputs as sRGB with a minimal EXIF ColorSpace tag (~50 bytes) instead of no color information
+    private boolean srgbTag = true;
+}
@@ -0,0 +1,147 @@
+package com.example.spring_security.config;
+
+import com.example.spring_security.exception.ImageProcessingRejectedException;
+import com.example.spring_security.service.ProcessingContexts;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the managed thread pool image optimization runs on.
+ * The queue is bounded so a burst of uploads gets rejected early instead of growing memory,
+ * and Spring drains the pool on shutdown so redeploys don't leave workers behind
+ */
+@Configuration
+public class ImageOptimizationExecutorConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageOptimizationExecutorConfig.class);
+
+    @Bean
+    public ThreadPoolTaskExecutor imageOptimizationExecutor(ImageExecutorProperties properties, MeterRegistry meterRegistry,
+                                                            ProcessingContexts contexts){
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        // Every worker keeps its codec objects and scratch buffers until it exits (idle timeout or shutdown)
+        CustomizableThreadFactory names = new CustomizableThreadFactory("image-opt-");
+        executor.setThreadFactory(task -> names.newThread(contexts.bind(task)));
+        executor.setCorePoolSize(properties.resolveCoreSize());
+        executor.setMaxPoolSize(properties.resolveMaxSize());
+        executor.setQueueCapacity(properties.getQueueCapacity());
+        executor.setKeepAliveSeconds((int) properties.getKeepAlive().toSeconds());
+        executor.setRejectedExecutionHandler(rejectionHandler(properties));
+        executor.setTaskDecorator(latencyRecorder(meterRegistry));
+
+        // Graceful drain: stop accepting work, let queued and running tasks finish
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationMillis(properties.getShutdownTimeout().toMillis());
+        executor.initialize();
+
+        ThreadPoolExecutor pool = executor.getThreadPoolExecutor();
+        Gauge.builder("image.optimization.queue.depth", pool, p -> p.getQueue().size())
+                .description("Optimization tasks waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("image.optimization.queue.remaining", pool, p -> p.getQueue().remainingCapacity())
+                .description("Free slots in the optimization queue")
+                .register(meterRegistry);
+        Gauge.builder("image.optimization.workers.active", pool, ThreadPoolExecutor::getActiveCount)
+                .description("Workers currently optimizing an image")
+                .register(meterRegistry);
+        Gauge.builder("image.optimization.workers.pool", pool, ThreadPoolExecutor::getPoolSize)
+                .description("Workers currently alive in the optimization pool")
+                .register(meterRegistry);
+
+        logger.info("Image optimization pool: core={}, max={}, queue={}, rejection={}",
+                properties.resolveCoreSize(), properties.resolveMaxSize(),
+                properties.getQueueCapacity(), properties.getRejectionPolicy());
+        return executor;
+    }
+
+    /**
+     * Pool the tiles of very large images run on (see Resampler), and the deflate bands of large PNGs (see
+     * PngOptimizer).
+     * Separate from the optimization pool: a tile never waits for an upload, and an upload's worker
+     * just blocks until its tiles are done
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool imageTilePool(ImageTilingProperties properties, ProcessingContexts contexts){
+        AtomicInteger counter = new AtomicInteger();
+        // Tile workers hold a context too (row buffers), released when the pool retires the thread
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool){
+                @Override
+                protected void onStart(){
+                    super.onStart();
+                    contexts.attach();
+                }
+
+                @Override
+                protected void onTermination(Throwable exception){
+                    try{
+                        contexts.detach();
+                    } finally {
+                        super.onTermination(exception);
+                    }
+                }
+            };
+            thread.setName("image-tile-" + counter.incrementAndGet());
+            return thread;
+        };
+        logger.info("Image tile pool: parallelism={}, tiling {} above {} pixels", properties.resolveParallelism(),
+                properties.isEnabled() ? "enabled" : "disabled", properties.getPixelThreshold());
+        return new ForkJoinPool(properties.resolveParallelism(), factory, null, false);
+    }
+
+    private RejectedExecutionHandler rejectionHandler(ImageExecutorProperties properties){
+        ImageExecutorProperties.RejectionPolicy policy = properties.getRejectionPolicy();
+        if (policy == ImageExecutorProperties.RejectionPolicy.CALLER_RUNS){
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+
+        return (task, pool) -> {
+            logger.warn("Image optimization pool saturated (active={}, queued={}), rejecting task with {}",
+                    pool.getActiveCount(), pool.getQueue().size(), policy.getStatus());
+            throw new ImageProcessingRejectedException(
+                    "Image processing is at capacity, please retry later",
+                    policy.getStatus(),
+                    properties.getRetryAfter());
+        };
+    }
+
+    /**
+     * Wraps every task so we can record how long it sat in the queue and how long it took overall
+     */
+    private TaskDecorator latencyRecorder(MeterRegistry meterRegistry){
+        Timer queueWait = Timer.builder("image.optimization.task.queue-wait")
+                .description("Time optimization tasks spent waiting for a worker")
+                .register(meterRegistry);
+        Timer latency = Timer.builder("image.optimization.task.latency")
+                .description("Time from submission to completion of an optimization task")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+
+        return task -> {
+            long submitted = System.nanoTime();
+            return () -> {
+                queueWait.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                try{
+                    task.run();
+                } finally {
+                    latency.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                }
+            };
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Configuration properties for the pack-file store (see PackFileStorageServiceImpl), used when
+ * image.storage-backend is pack. Maps to the 'image.pack' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.pack")
+public class ImagePackProperties {
+
+    // Size of a segment file, preallocated and mapped into memory; at most 1GB
+    private DataSize segmentSize = DataSize.ofMegabytes(256);
+
+    // Optimized files up to this size are packed, larger ones and all originals stay files of their own
+    private DataSize maxFileSize = DataSize.ofMegabytes(1);
+
+    // A sealed segment is compacted once this share of its bytes belongs to deleted or replaced files
+    private double compactionThreshold = 0.4;
+
+    // How often to look for segments to compact
+    private Duration compactionInterval = Duration.ofMinutes(5);
+
+    // A compacted segment is deleted this long after its files were copied, for responses still sending from it
+    private Duration segmentDeleteGrace = Duration.ofMinutes(1);
+}
@@ -0,0 +1,34 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Configuration properties for the lossless PNG optimizer
+ * Maps to the 'image.processing.png' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.png")
+public class ImagePngProperties {
+
+    // Whether PNGs are re-encoded losslessly as PNG (instead of being left as they are)
+    private boolean enabled = true;
+
+    // Use an indexed palette when the image has at most 256 distinct colors
+    private boolean palette = true;
+
+    // zlib level (0 - 9) for the image data
+    private int deflateLevel = 9;
+
+    /**
+     * Raw pixel data above this size is filtered and deflated in parallel bands.
+     * Each band restarts the deflate window, which costs a little compression, so small images stay sequential
+     */
+    private DataSize parallelThreshold = DataSize.ofMegabytes(2);
+
+    // Approximate raw size of one parallel band
+    private DataSize bandSize = DataSize.ofKilobytes(512);
+}
@@ -0,0 +1,46 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Configuration properties for the per-image quality search used when compressing JPEGs
+ * Maps to the 'image.processing.quality' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.quality")
+public class ImageQualityProperties {
+
+    // Search a quality per image; when false every image uses image.processing.compression-quality
+    private boolean adaptive = true;
+
+    // What the search has to satisfy
+    private Target target = Target.MIN_SSIM;
+
+    // MAX_BYTES: the highest quality whose output fits in this size
+    private DataSize maxBytes = DataSize.ofKilobytes(500);
+
+    // MIN_SSIM: the lowest quality that still scores at least this against the source (0.0 - 1.0)
+    private double minSsim = 0.95;
+
+    // Search bounds (0.0 - 1.0)
+    private float minQuality = 0.4f;
+    private float maxQuality = 0.95f;
+
+    // Hard cap on trial encodes per image
+    private int maxIterations = 6;
+
+    // Stop once the bounds are closer than this
+    private float tolerance = 0.03f;
+
+    // Longest side of the sampled copies SSIM is computed on
+    private int ssimMaxDimension = 512;
+
+    public enum Target {
+        MAX_BYTES,
+        MIN_SSIM
+    }
+}
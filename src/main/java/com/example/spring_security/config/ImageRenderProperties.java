@@ -0,0 +1,50 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for the on-demand render endpoint and its derivative cache
+ * Maps to the 'image.processing.render' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.render")
+public class ImageRenderProperties {
+
+    /**
+     * Requested widths/heights are snapped up to the next value of this grid,
+     * so arbitrary sizes can't be used to fill the cache with near-duplicates
+     */
+    private List<Integer> dimensionGrid = new ArrayList<>(List.of(64, 128, 160, 240, 320, 480, 640, 800, 1080, 1280, 1600, 2000));
+
+    // Requested quality is snapped to the nearest of these steps
+    private List<Float> qualitySteps = new ArrayList<>(List.of(0.5f, 0.6f, 0.7f, 0.8f, 0.9f));
+
+    // Output formats a client may ask for ("jpg", "png", "webp", "avif")
+    private List<String> formats = new ArrayList<>(List.of("jpg", "png", "webp"));
+
+    // Quality used when the request doesn't specify one
+    private float defaultQuality = 0.8f;
+
+    /**
+     * Distinct renders of one image the cache holds at once; requests for more are refused until some are evicted.
+     * The grid alone still allows thousands per image, and the endpoint may be open to anonymous callers
+     */
+    private int maxVariantsPerImage = 32;
+
+    // Disk space the derivative cache may use before least recently used entries are evicted
+    private DataSize cacheBudget = DataSize.ofGigabytes(1);
+
+    // Eviction brings the cache down to this fraction of the budget, so it doesn't evict on every insert
+    private double evictionLowWatermark = 0.9;
+
+    // How often the background eviction checks the cache size
+    private Duration evictionInterval = Duration.ofSeconds(30);
+}
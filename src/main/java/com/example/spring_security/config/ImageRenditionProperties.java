@@ -0,0 +1,44 @@
+package com.example.spring_security.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for the fixed set of renditions generated for every upload
+ * Maps to the 'image.processing.renditions' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.renditions")
+public class ImageRenditionProperties {
+
+    // Whether renditions are generated at upload time
+    private boolean enabled = true;
+
+    /**
+     * Rendition sizes, each bounded by its longer side.
+     * Sizes the source is already smaller than are skipped (we never upscale)
+     */
+    private List<Size> sizes = new ArrayList<>(List.of(
+            new Size("thumbnail", 160),
+            new Size("small", 480),
+            new Size("medium", 1080),
+            new Size("full", 2000)
+    ));
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Size {
+        // Name clients select the rendition by (e.g. "thumbnail")
+        private String name;
+        // Longest side in pixels
+        private int maxDimension;
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.spring_security.config;
+
+import com.example.spring_security.service.ResampleFilter;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration properties for downscaling (resize, renditions, renders)
+ * Maps to the 'image.processing.resample' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.resample")
+public class ImageResampleProperties {
+
+    // LANCZOS3 (sharpest) or MITCHELL (softer, less ringing)
+    private ResampleFilter filter = ResampleFilter.LANCZOS3;
+
+    /**
+     * Use SIMD kernels (jdk.incubator.vector).
+     * Only takes effect when the JVM runs with --add-modules jdk.incubator.vector, otherwise the scalar kernels are used
+     */
+    private boolean vectorize = true;
+
+    // Kernel weight tables kept for reuse, one per (filter, source size, target size)
+    private int weightCacheSize = 64;
+}
@@ -0,0 +1,45 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Configuration properties for intermediate processing output (see ScratchSpace)
+ * Maps to the 'image.processing.scratch' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.scratch")
+public class ImageScratchProperties {
+
+    /**
+     * Directory for spilled buffers and encoder outputs that need a real file (AVIF, MP4, renditions).
+     * Each instance works in a subdirectory of its own, removed on shutdown; those of instances that are gone
+     * are removed on startup, so instances may share it
+     */
+    private String directory;
+
+    // Encoded outputs up to this size stay on the heap, larger ones spill to the scratch directory
+    private DataSize inMemoryThreshold = DataSize.ofMegabytes(16);
+
+    // Total size of the scratch directory; processing that would need more fails and the original is kept
+    private DataSize maxSize = DataSize.ofGigabytes(1);
+
+    // Scratch files older than this are considered leaked and removed by the background sweep
+    private Duration maxAge = Duration.ofMinutes(30);
+
+    // How often the background sweep runs
+    private Duration sweepInterval = Duration.ofMinutes(5);
+
+    public Path getScratchPath(){
+        return directory != null
+                ? Paths.get(directory).toAbsolutePath().normalize()
+                : Paths.get(System.getProperty("java.io.tmpdir"), "image-scratch").toAbsolutePath().normalize();
+    }
+}
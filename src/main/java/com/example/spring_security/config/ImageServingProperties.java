@@ -0,0 +1,30 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Configuration properties for serving stored files (see StoredFileServer)
+ * Maps to the 'image.serving' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.serving")
+public class ImageServingProperties {
+
+    // Stored names are random and never reused, so clients may keep a file for as long as they like
+    private Duration maxAge = Duration.ofDays(365);
+
+    /**
+     * Bodies from this size on are handed to the connector's sendfile, smaller ones are written directly.
+     * Below ~48KB the extra round through the poller costs more than the copy it saves (Tomcat's own default)
+     */
+    private DataSize sendfileMinSize = DataSize.ofKilobytes(48);
+
+    // Requests with more ranges than this (or overlapping ranges adding up to more than the file) get the whole file
+    private int maxRanges = 16;
+}
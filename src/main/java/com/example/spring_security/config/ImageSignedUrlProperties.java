@@ -0,0 +1,42 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Configuration properties for expiring signed file URLs (see FileUrlSigner and SignedFileServlet)
+ * Maps to the 'image.serving.signed-urls' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.serving.signed-urls")
+public class ImageSignedUrlProperties {
+
+    /**
+     * Base64 HMAC-SHA256 key, at least 32 bytes. Shared by every instance that serves signed URLs.
+     * When empty a random key is generated at startup, so URLs stop working after a restart
+     */
+    private String secretKey;
+
+    // How long a signed URL stays valid
+    private Duration ttl = Duration.ofHours(1);
+
+    /**
+     * Expiry times are rounded up to a multiple of this, so the same file gets the same URL for this long
+     * and browsers and CDNs can reuse what they cached for it. URLs live between ttl and ttl + this
+     */
+    private Duration expiryGranularity = Duration.ofMinutes(5);
+
+    // Served outside the DispatcherServlet and the security filter chain
+    private String pathPrefix = "/signed/files";
+
+    /**
+     * Require authentication on the unsigned file routes (/api/v1/images/files/**, original and render), so
+     * anonymous clients only get images through signed URLs. Off, signed URLs are for caching and sharing only:
+     * the same files are public under their plain URLs
+     */
+    private boolean required = false;
+}
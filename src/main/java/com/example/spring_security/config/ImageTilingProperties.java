@@ -0,0 +1,31 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration properties for splitting very large images across cores
+ * Maps to the 'image.processing.tiling' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.tiling")
+public class ImageTilingProperties {
+
+    // Whether large images are resampled in parallel tiles
+    private boolean enabled = true;
+
+    // Source images with at least this many pixels are tiled (default 16 megapixels)
+    private long pixelThreshold = 16_000_000L;
+
+    // Worker threads of the tile pool (0 = available cores)
+    private int parallelism = 0;
+
+    // Smallest band of output rows worth its own task; every band re-reads the source rows it overlaps
+    private int minRowsPerTile = 64;
+
+    public int resolveParallelism(){
+        return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.spring_security.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Configuration properties for processing deadlines
+ * Maps to the 'image.processing.watchdog' section in application.yaml
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "image.processing.watchdog")
+public class ImageWatchdogProperties {
+
+    // Opening the file and reading its header
+    private Duration probeTimeout = Duration.ofSeconds(5);
+    // Demuxing and decoding the frame (FFmpegFrameGrabber.grabImage)
+    private Duration decodeTimeout = Duration.ofSeconds(15);
+    /**
+     * Scaling and encoding the output (FFmpegFrameRecorder). Checked between steps (each trial encode, rendition
+     * and alternate): a native encode call in progress isn't interrupted, it runs to the end and the stage
+     * fails after it, so the stage can take this plus one encode. taskTimeout bounds what the uploader waits
+     */
+    private Duration encodeTimeout = Duration.ofSeconds(15);
+    // Streaming every frame of an animation into its WebP/MP4 alternates
+    private Duration transcodeTimeout = Duration.ofSeconds(30);
+    /**
+     * Upper bound for a whole optimization task as seen by the uploader, from when a worker starts it with its
+     * decode memory granted. If a worker is stuck in native code past this, the upload continues with the original
+     * file. A task that waits this long to start (queue, decode memory) is withdrawn and the upload rejected
+     */
+    private Duration taskTimeout = Duration.ofSeconds(45);
+}
@@ -88,15 +88,10 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
             }
         } catch (Exception e) {
             // Log exception but don't throw it
-            logger.error("JWT token validation failed: {}",  e.getMessage(), e);
-
-            // Send 401 Unauthorized response
-            // instead of a blank response it will return an expired JSON response
-            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-            response.setContentType("application/json");
-            response.getWriter().write("{\"error\": \"Token expired or invalid\"}");
-            response.getWriter().flush();
-            return;
+            logger.warn("JWT token validation failed: {}",  e.getMessage());
+
+            // Continue unauthenticated: public routes still answer, protected ones get the chain's 401
+            SecurityContextHolder.clearContext();
         }
 
         // continue filterchain
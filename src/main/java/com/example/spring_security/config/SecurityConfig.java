@@ -3,6 +3,7 @@ package com.example.spring_security.config;
 import com.example.spring_security.repository.UserRepository;
 import com.example.spring_security.service.JwtService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -12,6 +13,7 @@ import org.springframework.security.authentication.dao.DaoAuthenticationProvider
 import org.springframework.security.config.annotation.authentication.configuration.AuthenticationConfiguration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityCustomizer;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -30,6 +32,7 @@ public class SecurityConfig {
 
     private final UserRepository userRepository;
     private final JwtService jwtService;  // Inject JwtService instead of the filter
+    private final ImageSignedUrlProperties signedUrlProperties;
 
     @Bean
     public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception{
@@ -43,18 +46,25 @@ public class SecurityConfig {
                     configuration.setAllowedHeaders(List.of("*"));
                     return configuration;
                 }))
-                .authorizeHttpRequests(auth -> auth
-                        // everyone can access this endpoint for authentication
-                        .requestMatchers("/api/v1/auth/**").permitAll()
-                        .requestMatchers("/api/v1/posts").permitAll()
-                        .requestMatchers(HttpMethod.GET, "/api/v1/images/**").permitAll() // Allow GET for images
-                        .requestMatchers("/api/v1/images/**").authenticated() // required Auth
-                        // Admins can access these endpoints
-                        .requestMatchers("/admin/**").hasRole("ADMIN")
-                        // Users can access these
-                        .requestMatchers("/user/**").hasRole("USER")
-                        .anyRequest().authenticated()
-                )
+                .authorizeHttpRequests(auth -> {
+                    // everyone can access this endpoint for authentication
+                    auth.requestMatchers("/api/v1/auth/**").permitAll()
+                            .requestMatchers("/api/v1/posts").permitAll()
+                            // Handing out a link that works without authentication needs authentication
+                            .requestMatchers(HttpMethod.GET, "/api/v1/images/*/signed-url").authenticated();
+                    if (signedUrlProperties.isRequired()) {
+                        // Anonymous clients only get files through signed URLs
+                        auth.requestMatchers(HttpMethod.GET, "/api/v1/images/files/**",
+                                "/api/v1/images/*/original", "/api/v1/images/*/render").authenticated();
+                    }
+                    auth.requestMatchers(HttpMethod.GET, "/api/v1/images/**").permitAll() // Allow GET for images
+                            .requestMatchers("/api/v1/images/**").authenticated() // required Auth
+                            // Admins can access these endpoints
+                            .requestMatchers("/admin/**").hasRole("ADMIN")
+                            // Users can access these
+                            .requestMatchers("/user/**").hasRole("USER")
+                            .anyRequest().authenticated();
+                })
                 .sessionManagement(session -> session
                         .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
                 )
@@ -68,6 +78,27 @@ public class SecurityConfig {
         return new JwtAuthenticationFilter(jwtService, userDetailsService());
     }
 
+    /**
+     * Spring Boot registers every Filter bean with the servlet container as well, which ran the JWT filter
+     * a second time outside the security chain, on every path. It only belongs in the chain above
+     */
+    @Bean
+    public FilterRegistrationBean<JwtAuthenticationFilter> jwtAuthenticationFilterRegistration(
+            JwtAuthenticationFilter filter) {
+        FilterRegistrationBean<JwtAuthenticationFilter> registration = new FilterRegistrationBean<>(filter);
+        registration.setEnabled(false);
+        return registration;
+    }
+
+    /**
+     * Signed file URLs carry their own authorization (see SignedFileServlet); skipping the chain there means
+     * a stale bearer header can't turn a valid link into a 401
+     */
+    @Bean
+    public WebSecurityCustomizer signedUrlSecurityCustomizer() {
+        return web -> web.ignoring().requestMatchers(signedUrlProperties.getPathPrefix() + "/**");
+    }
+
     @Bean
     public AuthenticationProvider authenticationProvider() {
         DaoAuthenticationProvider authenticationProvider = new DaoAuthenticationProvider();
@@ -0,0 +1,31 @@
+package com.example.spring_security.config;
+
+import com.example.spring_security.controller.SignedFileServlet;
+import com.example.spring_security.service.FileUrlSigner;
+import com.example.spring_security.service.ImageVariantResolver;
+import com.example.spring_security.service.StoredFileServer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Mounts SignedFileServlet next to the DispatcherServlet. SecurityConfig keeps the security filter chain off
+ * the same path, so a signed URL is checked by its signature alone
+ */
+@Configuration
+@RequiredArgsConstructor
+public class SignedUrlConfig {
+
+    private final ImageSignedUrlProperties properties;
+
+    @Bean
+    public ServletRegistrationBean<SignedFileServlet> signedFileServlet(
+            FileUrlSigner signer, ImageVariantResolver variantResolver, StoredFileServer fileServer){
+        ServletRegistrationBean<SignedFileServlet> registration = new ServletRegistrationBean<>(
+                new SignedFileServlet(signer, variantResolver, fileServer), properties.getPathPrefix() + "/*");
+        registration.setName("signedFileServlet");
+        registration.setLoadOnStartup(1);
+        return registration;
+    }
+}
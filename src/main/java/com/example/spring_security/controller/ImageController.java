@@ -3,12 +3,19 @@ package com.example.spring_security.controller;
 import com.example.spring_security.dto.ImageDetailsResponse;
 import com.example.spring_security.dto.ImageResponse;
 import com.example.spring_security.dto.ImageUploadRequest;
+import com.example.spring_security.dto.SignedUrlResponse;
 import com.example.spring_security.service.FileStorageService;
+import com.example.spring_security.service.ImageRenderService;
 import com.example.spring_security.service.ImageService;
+import com.example.spring_security.service.ImageVariantResolver;
+import com.example.spring_security.service.StoredFileServer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -21,6 +28,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -32,6 +40,9 @@ public class ImageController {
     private static final Logger logger = LoggerFactory.getLogger(ImageController.class);
     private final ImageService imageService;
     private final FileStorageService fileStorageService;
+    private final ImageRenderService imageRenderService;
+    private final ImageVariantResolver variantResolver;
+    private final StoredFileServer fileServer;
 
     // create a new image (authenticated users only)
     @PostMapping
@@ -40,9 +51,41 @@ public class ImageController {
             @RequestParam(value = "request", required = false)ImageUploadRequest request,
             @RequestParam("file") MultipartFile file
             )throws IOException{
-        UUID postId = null;
+        UUID postId = postIdOf(request);
+
+        logger.info("Creating a new file image entry: {} with optimized preferences: {}",
+                file.getOriginalFilename(), request != null ? request:"default");
+
+        return ResponseEntity
+                .status(HttpStatus.CREATED)
+                .body(imageService.createImage(postId, file, request));
+    }
 
-        // Extract postID from Request if available, otherwise try and get from param
+    /**
+     * Create a new image from a raw body, e.g. `POST /api/v1/images?postId=...` with `Content-Type: image/jpeg`.
+     * Nothing is buffered first as with the multipart upload: the body is written once, straight to its place in
+     * storage, and a body that is too large or not an image is refused after its first bytes.
+     * The options are query parameters; the Content-Type only routes here, the format is read from the content
+     */
+    @PostMapping(consumes = {"image/*", MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<ImageResponse> createImageFromBody(
+            @ModelAttribute ImageUploadRequest request,
+            @RequestParam(value = "filename", required = false) String filename,
+            HttpServletRequest servletRequest
+    ) throws IOException {
+        UUID postId = postIdOf(request);
+        logger.info("Streaming a new image entry: {} ({} bytes declared)", filename, servletRequest.getContentLengthLong());
+
+        return ResponseEntity
+                .status(HttpStatus.CREATED)
+                .body(imageService.createImage(postId, servletRequest.getInputStream(),
+                        servletRequest.getContentLengthLong(), filename, request));
+    }
+
+    // Extract postID from Request if available
+    private static UUID postIdOf(ImageUploadRequest request){
+        UUID postId = null;
         if (request != null && request.postId() != null){
             try{
                 postId = UUID.fromString(request.postId());
@@ -53,13 +96,7 @@ public class ImageController {
         if (postId == null){
             throw new IllegalArgumentException("Post Id is required");
         }
-
-        logger.info("Creating a new file image entry: {} with optimized preferences: {}",
-                file.getOriginalFilename(), request != null ? request:"default");
-
-        return ResponseEntity
-                .status(HttpStatus.CREATED)
-                .body(imageService.createImage(postId, file, request));
+        return postId;
     }
 
     // Get image by ID (public endpoint)
@@ -101,40 +138,39 @@ public class ImageController {
      *      or downloads an image
      * @param filename whatever value is passed in the file name part of the URL, capture it and pass it as
      *                 a String argument
-     * @return Response entity that is the image
+     * @param accept the client's Accept header, used to pick a WebP/AVIF encoding when one is stored
+     * The response is written directly: conditional and Range requests are answered, and the bytes go out
+     *      through sendfile rather than the heap
      *
      * This method makes the image file viewable and downloadable via URL
      */
     @GetMapping("/files/{filename:.+}") // allows dots in the path variable
-    public ResponseEntity<Resource> serveFile(@PathVariable String filename){
+    public void serveFile(
+            @PathVariable String filename,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
         logger.info("Attempting to download file{}" , filename);
         /**
-         * Go to disk and load this file as a Spring `Resource`(basically something you can send back in a HTTP response)
+         * Go to disk and load this file (or a smaller WebP/AVIF encoding of it, if the client accepts one)
+         * as a Spring `Resource`(basically something you can send back in a HTTP response)
          * It relies on the `FileStorageImpl` class that actually reads from the `/uploads/...` folder
          */
         try {
-            Resource resource = fileStorageService.loadFile(filename);
-
-            /**
-             * Try to figure out what kind of file this is
-             * If it can't guess, it falls back to `application/octet-stream` which just means
-             *      "some binary file we don't recognize"
-             */
-            String contentType = Optional.ofNullable(
-                    URLConnection.guessContentTypeFromName(resource.getFilename())
-            ).orElse("application/octet-stream");
-            logger.info("Guessed content{} for file{}", contentType, filename);
+            ImageVariantResolver.ServedFile served = variantResolver.resolve(filename, accept);
+            logger.info("Resolved content{} for file{}", served.contentType(), filename);
 
             /**
-             * This builds the actual HTTP response
-             *      - Status 200 OK ✅
-             *      - sets the Content-type header based on the file
+             * This writes the actual HTTP response
+             *      - Status 200 OK ✅ (206 for Range requests, 304 if the client's copy is current)
+             *      - sets the Content-type header based on the chosen encoding
+             *      - Vary: Accept so caches keep the encodings apart
+             *      - ETag, Last-Modified and a one year immutable Cache-Control
              *      - It attaches the file bytes as the response body
              *
              */
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .body(resource);
+            fileServer.serve(served, request, response);
         } catch (Exception e) {
             logger.info("Failed to serve file{}", filename);
             throw e;
@@ -154,6 +190,41 @@ public class ImageController {
         return ResponseEntity.ok(imageService.getImageDetails(id));
     }
 
+    /**
+     * Render an image on demand, e.g. `GET /api/v1/images/{id}/render?w=300&fmt=jpg&q=0.7`
+     * Parameters are snapped to a fixed grid and the result is cached on disk,
+     * so repeated or concurrent requests for the same variant only transform once
+     */
+    @GetMapping("/{id}/render")
+    public ResponseEntity<Resource> renderImage(
+            @PathVariable UUID id,
+            @RequestParam(value = "w", required = false) Integer width,
+            @RequestParam(value = "h", required = false) Integer height,
+            @RequestParam(value = "fmt", required = false) String format,
+            @RequestParam(value = "q", required = false) Float quality
+    ) throws IOException {
+        logger.info("Rendering image {} (w={}, h={}, fmt={}, q={})", id, width, height, format, quality);
+        ImageRenderService.RenderedImage rendered = imageRenderService.render(id, width, height, format, quality);
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(rendered.contentType()))
+                .cacheControl(CacheControl.maxAge(Duration.ofHours(1)).cachePublic())
+                .body(rendered.resource());
+    }
+
+    /**
+     * Get an expiring link to an image that works without authentication, e.g. for an `<img>` tag or a CDN.
+     * The link is served outside the security chain and can be cached until it expires
+     */
+    @GetMapping("/{id}/signed-url")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<SignedUrlResponse> getSignedUrl(@PathVariable UUID id){
+        logger.info("Signing URL for image with ID: {}", id);
+        ImageResponse image = imageService.getImageById(id);
+        String fileName = Path.of(image.filePath()).getFileName().toString();
+        return ResponseEntity.ok(fileStorageService.getSignedFileUrl(fileName));
+    }
+
     /**
      * Get the original unoptimized version of an image
      */
@@ -170,12 +241,12 @@ public class ImageController {
         String originalFileName = Path.of(originalFilePath).getFileName().toString();
 
         try{
-            // Load the resource
-            Resource resource = fileStorageService.loadFile(originalFileName);
+            // Load the resource, from the node that stored it in cluster mode
+            Resource resource = variantResolver.loadFile(originalFileName);
 
             // Determine content type
-            String contentType = Optional.of(
-                    URLConnection.guessContentTypeFromName(resource.getFilename())
+            String contentType = Optional.ofNullable(
+                    URLConnection.guessContentTypeFromName(originalFileName)
             ).orElse("application/octet-stream");
 
             // Set content disposition for browser download
@@ -191,20 +262,17 @@ public class ImageController {
     }
 
     // Endpoint to serve files from the original directory
-    @GetMapping("/files/original/{filename:.+")
-    public ResponseEntity<Resource> serveOriginalFile(@PathVariable String filename){
+    @GetMapping("/files/original/{filename:.+}")
+    public void serveOriginalFile(
+            @PathVariable String filename,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
         logger.info("Attempting to download original file: {}", filename);
 
         try{
-            Resource resource = fileStorageService.loadFile(filename);
-
-            String contentType = Optional.ofNullable(
-                    URLConnection.guessContentTypeFromName(resource.getFilename())
-            ).orElse("application/octet-stream");
-
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .body(resource);
+            fileServer.serve(variantResolver.resolve(filename, accept), request, response);
         }catch (Exception e){
             logger.error("Failed to serve original file: {}", filename, e);
             throw e;
@@ -213,21 +281,16 @@ public class ImageController {
 
     // ENdpoint to serve files from the optimized directory
     @GetMapping("/files/optimized/{filename:.+}")
-    public ResponseEntity<Resource> serveOptimizedFile(
-            @PathVariable String filename
-    ){
+    public void serveOptimizedFile(
+            @PathVariable String filename,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
         logger.info("Attempting to download optimized file: {}", filename);
 
         try{
-            Resource resource = fileStorageService.loadFile(filename);
-
-            String contentType = Optional.ofNullable(
-                    URLConnection.guessContentTypeFromName(resource.getFilename())
-            ).orElse("application/octet-stream");
-
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .body(resource);
+            fileServer.serve(variantResolver.resolve(filename, accept), request, response);
         }catch (Exception e){
             logger.error("Failed to serve optimized file: {}", filename);
             throw e;
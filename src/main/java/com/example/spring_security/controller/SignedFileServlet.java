@@ -0,0 +1,90 @@
+package com.example.spring_security.controller;
+
+import com.example.spring_security.exception.FileNotFoundException;
+import com.example.spring_security.exception.PeerUnavailableException;
+import com.example.spring_security.service.FileUrlSigner;
+import com.example.spring_security.service.ImageVariantResolver;
+import com.example.spring_security.service.PeerCluster;
+import com.example.spring_security.service.StoredFileServer;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Serves signed file URLs ({prefix}/{expires}/{signature}/{fileName}, see FileUrlSigner).
+ * A plain servlet rather than a controller: no DispatcherServlet, no security filter chain, no database.
+ * The URL itself is the authorization, so private images are served like static files and can be cached
+ * by browsers and CDNs until the URL expires.
+ * Also how cluster nodes fetch files from each other (see PeerCluster): a peer's request is answered from this
+ * node's storage only, never passed on.
+ * Registered in SignedUrlConfig
+ */
+public class SignedFileServlet extends HttpServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(SignedFileServlet.class);
+
+    private final transient FileUrlSigner signer;
+    private final transient ImageVariantResolver variantResolver;
+    private final transient StoredFileServer fileServer;
+
+    public SignedFileServlet(FileUrlSigner signer, ImageVariantResolver variantResolver, StoredFileServer fileServer){
+        this.signer = signer;
+        this.variantResolver = variantResolver;
+        this.fileServer = fileServer;
+    }
+
+    // HttpServlet answers HEAD through this too, StoredFileServer leaves the body out
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // /{expires}/{signature}/{fileName}
+        String path = request.getPathInfo();
+        String[] parts = path == null ? new String[0] : path.split("/", 4);
+        if (parts.length != 4 || parts[3].isEmpty() || parts[3].contains("/")){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long expires;
+        try{
+            expires = Long.parseLong(parts[1]);
+        }catch (NumberFormatException e){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String fileName = parts[3];
+        if (!signer.isValid(fileName, expires, parts[2])){
+            logger.debug("Rejected signed URL for {}: bad signature", fileName);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        Duration remaining = Duration.between(Instant.now(), Instant.ofEpochSecond(expires));
+        if (remaining.isNegative() || remaining.isZero()){
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "URL expired");
+            return;
+        }
+
+        boolean fromPeer = request.getHeader(PeerCluster.PEER_HEADER) != null;
+        ImageVariantResolver.ServedFile served;
+        try{
+            served = variantResolver.resolve(fileName, request.getHeader(HttpHeaders.ACCEPT), !fromPeer);
+        }catch (FileNotFoundException e){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }catch (PeerUnavailableException e){
+            // The file is on another node that is down: not this node's fault, and worth retrying
+            response.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+            return;
+        }
+        if (fromPeer){
+            // Last-Modified has second precision, the ETag needs the milliseconds
+            response.setHeader(PeerCluster.LAST_MODIFIED_HEADER, Long.toString(served.file().lastModified()));
+        }
+        fileServer.serve(served, remaining, request, response);
+    }
+}
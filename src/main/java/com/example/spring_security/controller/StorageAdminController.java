@@ -0,0 +1,64 @@
+package com.example.spring_security.controller;
+
+import com.example.spring_security.dto.PackMigrationStatus;
+import com.example.spring_security.dto.ShardMigrationStatus;
+import com.example.spring_security.service.PackMigrationService;
+import com.example.spring_security.service.ShardMigrationService;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+// Storage maintenance, admins only (see SecurityConfig)
+@RestController
+@RequestMapping("admin/storage")
+@RequiredArgsConstructor
+public class StorageAdminController {
+    private static final Logger logger = LoggerFactory.getLogger(StorageAdminController.class);
+    private final ShardMigrationService shardMigrationService;
+    // Only there when image.storage-backend is pack
+    private final ObjectProvider<PackMigrationService> packMigrationService;
+
+    /**
+     * Start moving stored files into the configured shard layout. Runs in the background while files keep
+     * being served; starting it again while it runs just returns the progress
+     */
+    @PostMapping("/shard-migration")
+    public ResponseEntity<ShardMigrationStatus> startShardMigration(){
+        logger.info("Starting shard migration");
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(shardMigrationService.start());
+    }
+
+    // Progress of the current or last migration
+    @GetMapping("/shard-migration")
+    public ResponseEntity<ShardMigrationStatus> getShardMigration(){
+        return ResponseEntity.ok(shardMigrationService.status());
+    }
+
+    /**
+     * Start packing the small optimized files into the pack store, in the background while they keep being served.
+     * 404 unless the pack backend is selected
+     */
+    @PostMapping("/pack-migration")
+    public ResponseEntity<PackMigrationStatus> startPackMigration(){
+        PackMigrationService service = packMigrationService.getIfAvailable();
+        if (service == null){
+            return ResponseEntity.notFound().build();
+        }
+        logger.info("Starting pack migration");
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(service.start());
+    }
+
+    // Progress of the current or last pack migration
+    @GetMapping("/pack-migration")
+    public ResponseEntity<PackMigrationStatus> getPackMigration(){
+        PackMigrationService service = packMigrationService.getIfAvailable();
+        return service == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(service.status());
+    }
+}
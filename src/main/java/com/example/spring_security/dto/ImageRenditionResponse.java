@@ -0,0 +1,22 @@
+package com.example.spring_security.dto;
+
+import com.example.spring_security.entities.ImageRendition;
+
+public record ImageRenditionResponse(
+        String name,
+        int width,
+        int height,
+        Long fileSize,
+        String filePath
+) {
+    // conversion method from ImageRendition entity to DTO
+    public static ImageRenditionResponse fromRendition(ImageRendition rendition){
+        return new ImageRenditionResponse(
+                rendition.getName(),
+                rendition.getWidth(),
+                rendition.getHeight(),
+                rendition.getFileSize(),
+                rendition.getFilePath()
+        );
+    }
+}
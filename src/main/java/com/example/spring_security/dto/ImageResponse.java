@@ -3,6 +3,7 @@ package com.example.spring_security.dto;
 import com.example.spring_security.entities.Image;
 
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.UUID;
 
 public record ImageResponse(
@@ -14,8 +15,11 @@ public record ImageResponse(
         String originalFilePath,
         String originalFileSize,
         boolean optimized,
+        Float compressionQuality,
         LocalDateTime uploadedAt,
-        UUID postId
+        UUID postId,
+        // Smaller variants, smallest first, so clients can pick the first one that's big enough
+        List<ImageRenditionResponse> renditions
 ) {
     // conversion method from Image entity to DTO
     public static ImageResponse fromImage(Image image){
@@ -28,8 +32,13 @@ public record ImageResponse(
                 image.getOriginalFilePath(),
                 image.getOriginalFileSize(),
                 image.isOptimized(),
+                image.getCompressionQuality(),
                 image.getUploadedAt(),
-                image.getPost() != null ? image.getPost().getId() : null
+                image.getPost() != null ? image.getPost().getId() : null,
+                image.getRenditions() != null ?
+                        image.getRenditions().stream()
+                                .map(ImageRenditionResponse::fromRendition)
+                                .toList() : List.of()
         );
     }
 }
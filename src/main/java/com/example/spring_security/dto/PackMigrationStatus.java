@@ -0,0 +1,16 @@
+package com.example.spring_security.dto;
+
+import java.time.Instant;
+
+// Progress of packing the local optimized files into pack segments
+public record PackMigrationStatus(
+        String state, // IDLE, RUNNING, COMPLETED or FAILED
+        long scanned, // files looked at
+        long packed,
+        long alreadyPacked, // packed by an earlier or interrupted run, or stored since; only the local copy was removed
+        long tooLarge, // over image.pack.max-file-size, left as files of their own
+        long failed,
+        Instant startedAt,
+        Instant finishedAt
+) {
+}
@@ -0,0 +1,19 @@
+package com.example.spring_security.dto;
+
+import java.time.Instant;
+
+// Progress of moving stored files into the current shard layout on their owner disks
+public record ShardMigrationStatus(
+        String state, // IDLE, RUNNING, COMPLETED or FAILED
+        int shardDepth,
+        int disks,
+        long scanned, // files looked at
+        long moved,
+        long alreadyMigrated, // a copy was in place already (e.g. from an interrupted run), only the old path was removed
+        long conflicts, // a different file already holds the target path, left alone
+        long deferred, // the owner disk is full or failing, left for a later run
+        long failed,
+        Instant startedAt,
+        Instant finishedAt
+) {
+}
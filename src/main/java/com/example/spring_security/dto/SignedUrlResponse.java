@@ -0,0 +1,10 @@
+package com.example.spring_security.dto;
+
+import java.time.Instant;
+
+// A time-limited link to a stored file that works without authentication
+public record SignedUrlResponse(
+        String url,
+        Instant expiresAt
+) {
+}
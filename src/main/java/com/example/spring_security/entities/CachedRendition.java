@@ -0,0 +1,29 @@
+package com.example.spring_security.entities;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.*;
+
+/**
+ * A rendition recorded with a cached optimization result, copied into every image that reuses it
+ */
+@Embeddable
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class CachedRendition {
+
+    @Column(nullable = false)
+    private String name;
+    @Column(nullable = false)
+    private int width;
+    @Column(nullable = false)
+    private int height;
+    @Column(nullable = false)
+    private Long fileSize;
+    // URL path to the rendition
+    @Column(nullable = false)
+    private String filePath;
+}
@@ -0,0 +1,36 @@
+package com.example.spring_security.entities;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * An original upload stored once under its content hash, however many images were uploaded with the same bytes.
+ * The reference count is maintained by ContentBlobRepository's native queries only, the file goes when it drops to 0
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "content_blobs")
+public class ContentBlob {
+
+    // SHA-256 of the content, hex
+    @Id
+    @Column(length = 64)
+    private String contentHash;
+
+    // Stored name in the original location (hash plus the first upload's extension)
+    @Column(nullable = false)
+    private String fileName;
+    @Column(nullable = false)
+    private long fileSize;
+    // Images referencing the blob
+    @Column(nullable = false)
+    private int refCount;
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+}
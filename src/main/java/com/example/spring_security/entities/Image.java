@@ -4,6 +4,8 @@ import jakarta.persistence.*;
 import lombok.*;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 @Entity
@@ -34,18 +36,39 @@ public class Image {
     private String originalFileSize;
     @Column(nullable = false)
     private boolean optimized;
+    // JPEG quality the optimized file was encoded with (null if it wasn't re-encoded lossily)
+    @Column(nullable = true)
+    private Float compressionQuality;
     @Column(nullable = false)
     private LocalDateTime uploadedAt;
+    // SHA-256 of the original when stored content-addressed; the files are then shared with identical uploads
+    @Column(nullable = true, length = 64)
+    private String contentHash;
+    // Processing settings the shared files were made with (see OptimizationResultCache)
+    @Column(nullable = true, length = 64)
+    private String settingsKey;
 
     // Many Images can belong to one post
     @ManyToOne(fetch = FetchType.LAZY) // so that fetching the image metadata doesn't inadvertently load the entire post object
     @JoinColumn(name = "post_id")
     private Post post;
 
+    // Downscaled variants generated from the same upload
+    @OneToMany(mappedBy = "image", cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.LAZY)
+    @OrderBy("width ASC")
+    @Builder.Default
+    private List<ImageRendition> renditions = new ArrayList<>();
+
     // This sets uploadedAt automatically
     @PrePersist
     protected void onCreate(){
         uploadedAt = LocalDateTime.now();
     }
 
+    // Helper method that adds a rendition to this image
+    public void addRendition(ImageRendition rendition){
+        renditions.add(rendition);
+        rendition.setImage(this);
+    }
+
 }
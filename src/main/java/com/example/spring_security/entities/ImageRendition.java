@@ -0,0 +1,40 @@
+package com.example.spring_security.entities;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.util.UUID;
+
+/**
+ * A downscaled variant of an {@link Image} (thumbnail, small, medium, ...)
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "image_renditions")
+public class ImageRendition {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(nullable = false)
+    private String name;
+    @Column(nullable = false)
+    private int width;
+    @Column(nullable = false)
+    private int height;
+    @Column(nullable = false)
+    private Long fileSize;
+    // URL path to the rendition
+    @Column(nullable = false)
+    private String filePath;
+
+    // Many renditions belong to one image
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "image_id", nullable = false)
+    private Image image;
+}
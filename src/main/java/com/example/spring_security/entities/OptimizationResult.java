@@ -0,0 +1,61 @@
+package com.example.spring_security.entities;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * What the processing pipeline made of some content with some settings: the served file and the renditions.
+ * Images uploaded with the same bytes and settings share these files instead of running the pipeline again.
+ * The row is created empty when the first such upload starts processing and filled in before its transaction
+ * commits, unless a step of the pipeline failed: that upload keeps its files to itself and drops its reference, so
+ * the next identical upload processes again. The reference count is maintained by OptimizationResultRepository's
+ * native queries only
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "optimization_results",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"content_hash", "settings_key"}))
+public class OptimizationResult {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(nullable = false, length = 64)
+    private String contentHash;
+    // Hash of the processing options and settings the files were made with
+    @Column(nullable = false, length = 64)
+    private String settingsKey;
+
+    // URL path to the served file: the optimized file, or the original if optimizing didn't pay off
+    @Column(nullable = true)
+    private String filePath;
+    @Column(nullable = true)
+    private Long fileSize;
+    @Column(nullable = false)
+    private boolean optimized;
+    @Column(nullable = true)
+    private Float compressionQuality;
+    // Images using the result
+    @Column(nullable = false, insertable = false, updatable = false)
+    private int refCount;
+
+    @ElementCollection(fetch = FetchType.LAZY)
+    @CollectionTable(name = "optimization_result_renditions", joinColumns = @JoinColumn(name = "result_id"))
+    @OrderBy("width ASC")
+    @Builder.Default
+    private List<CachedRendition> renditions = new ArrayList<>();
+
+    // False until the upload that created the row has stored its files
+    public boolean isComplete(){
+        return filePath != null;
+    }
+}
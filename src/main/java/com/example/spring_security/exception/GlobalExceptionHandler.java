@@ -2,6 +2,7 @@ package com.example.spring_security.exception;
 
 import com.example.spring_security.config.ErrorResponse;
 import jakarta.persistence.EntityNotFoundException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -37,6 +38,31 @@ public class GlobalExceptionHandler {
         return  ResponseEntity.status(HttpStatus.NOT_FOUND).body(err);
     }
 
+    @ExceptionHandler(PeerUnavailableException.class)
+    public ResponseEntity<ErrorResponse> handlePeerUnavailable(
+            PeerUnavailableException ex, WebRequest request
+    ){
+        ErrorResponse err = new ErrorResponse(
+                LocalDateTime.now(),
+                ex.getMessage(),
+                request.getDescription(false)
+        );
+        return ResponseEntity.status(HttpStatus.BAD_GATEWAY).body(err);
+    }
+
+    @ExceptionHandler(NotOwnerException.class)
+    public ResponseEntity<ErrorResponse> handleNotOwner(
+            NotOwnerException ex, WebRequest request
+    ){
+        ErrorResponse err = new ErrorResponse(
+                LocalDateTime.now(),
+                ex.getMessage(),
+                request.getDescription(false)
+        );
+        // 421 Misdirected Request, which HttpStatus doesn't name
+        return ResponseEntity.status(421).body(err);
+    }
+
     @ExceptionHandler(FileStorageException.class)
     public ResponseEntity<ErrorResponse> handleStorage(
             FileStorageException ex, WebRequest request
@@ -48,6 +74,20 @@ public class GlobalExceptionHandler {
         );
         return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(err);
     }
+    @ExceptionHandler(ImageProcessingRejectedException.class)
+    public ResponseEntity<ErrorResponse> handleProcessingRejected(
+            ImageProcessingRejectedException ex, WebRequest request
+    ){
+        ErrorResponse err = new ErrorResponse(
+                LocalDateTime.now(),
+                ex.getMessage(),
+                request.getDescription(false)
+        );
+        return ResponseEntity.status(ex.getStatus())
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter().toSeconds()))
+                .body(err);
+    }
+
     @ExceptionHandler(EntityNotFoundException.class)
     public ResponseEntity<ErrorResponse> handleEntityNotFound(
             EntityNotFoundException ex, WebRequest request
@@ -0,0 +1,28 @@
+package com.example.spring_security.exception;
+
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+
+/**
+ * Thrown when the optimization pool is saturated and an upload can't be queued
+ */
+public class ImageProcessingRejectedException extends RuntimeException {
+
+    private final HttpStatus status;
+    private final Duration retryAfter;
+
+    public ImageProcessingRejectedException(String message, HttpStatus status, Duration retryAfter){
+        super(message);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public HttpStatus getStatus(){
+        return status;
+    }
+
+    public Duration getRetryAfter(){
+        return retryAfter;
+    }
+}
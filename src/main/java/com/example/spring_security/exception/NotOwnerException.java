@@ -0,0 +1,11 @@
+package com.example.spring_security.exception;
+
+/**
+ * Thrown in cluster mode when a request would change an image whose files are stored on another node, the only
+ * one that can delete them. Answered with 421 Misdirected Request, the message naming that node
+ */
+public class NotOwnerException extends RuntimeException {
+    public NotOwnerException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.spring_security.exception;
+
+/**
+ * Thrown in cluster mode when a file lives on another node and no node that may hold it can be reached.
+ * Answered with 502 Bad Gateway: the request was fine, the node it depends on failed
+ */
+public class PeerUnavailableException extends FileStorageException {
+
+    public PeerUnavailableException(String message, Throwable cause){
+        super(message, cause);
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.spring_security.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an image processing stage runs past its deadline
+ * It is an IOException so existing fallbacks (serve the original) apply unchanged
+ */
+public class ProcessingTimeoutException extends IOException {
+
+    private final String stage;
+
+    public ProcessingTimeoutException(String stage, String message){
+        super(message);
+        this.stage = stage;
+    }
+
+    public ProcessingTimeoutException(String stage, String message, Throwable cause){
+        super(message, cause);
+        this.stage = stage;
+    }
+
+    public String getStage(){
+        return stage;
+    }
+}
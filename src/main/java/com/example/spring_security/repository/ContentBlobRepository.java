@@ -0,0 +1,45 @@
+package com.example.spring_security.repository;
+
+import com.example.spring_security.entities.ContentBlob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface ContentBlobRepository extends JpaRepository<ContentBlob, String> {
+
+    // Takes a reference, creating the row for new content. The row stays locked until the transaction ends
+    @Modifying
+    @Query(value = """
+            INSERT INTO content_blobs (content_hash, file_name, file_size, ref_count, created_at)
+            VALUES (:hash, :fileName, :fileSize, 1, now())
+            ON CONFLICT (content_hash) DO UPDATE SET ref_count = content_blobs.ref_count + 1
+            """, nativeQuery = true)
+    void acquire(@Param("hash") String contentHash, @Param("fileName") String fileName, @Param("fileSize") long fileSize);
+
+    @Modifying
+    @Query(value = "UPDATE content_blobs SET ref_count = ref_count - 1 WHERE content_hash = :hash AND ref_count > 0",
+            nativeQuery = true)
+    int release(@Param("hash") String contentHash);
+
+    // Locks the row, creating it unreferenced if there is none (an upload that stored the file rolled back)
+    @Modifying
+    @Query(value = """
+            INSERT INTO content_blobs (content_hash, file_name, file_size, ref_count, created_at)
+            VALUES (:hash, :fileName, 0, 0, now())
+            ON CONFLICT (content_hash) DO UPDATE SET ref_count = content_blobs.ref_count
+            """, nativeQuery = true)
+    void lock(@Param("hash") String contentHash, @Param("fileName") String fileName);
+
+    @Modifying
+    @Query(value = "DELETE FROM content_blobs WHERE content_hash = :hash AND ref_count = 0", nativeQuery = true)
+    int deleteUnreferenced(@Param("hash") String contentHash);
+
+    // Read with SQL rather than through the persistence context, which may hold a copy from before an update above
+    @Query(value = "SELECT file_name FROM content_blobs WHERE content_hash = :hash", nativeQuery = true)
+    Optional<String> findFileName(@Param("hash") String contentHash);
+}
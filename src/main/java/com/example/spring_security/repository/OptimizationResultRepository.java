@@ -0,0 +1,42 @@
+package com.example.spring_security.repository;
+
+import com.example.spring_security.entities.OptimizationResult;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface OptimizationResultRepository extends JpaRepository<OptimizationResult, UUID> {
+
+    /**
+     * Takes a reference, creating an empty row if the content hasn't been processed with these settings.
+     * The row stays locked until the transaction ends, so a concurrent identical upload waits for the result
+     */
+    @Modifying
+    @Query(value = """
+            INSERT INTO optimization_results (id, content_hash, settings_key, optimized, ref_count)
+            VALUES (gen_random_uuid(), :hash, :settingsKey, false, 1)
+            ON CONFLICT (content_hash, settings_key) DO UPDATE SET ref_count = optimization_results.ref_count + 1
+            """, nativeQuery = true)
+    void acquire(@Param("hash") String contentHash, @Param("settingsKey") String settingsKey);
+
+    @Modifying
+    @Query(value = """
+            UPDATE optimization_results SET ref_count = ref_count - 1
+            WHERE content_hash = :hash AND settings_key = :settingsKey AND ref_count > 0
+            """, nativeQuery = true)
+    int release(@Param("hash") String contentHash, @Param("settingsKey") String settingsKey);
+
+    Optional<OptimizationResult> findByContentHashAndSettingsKey(String contentHash, String settingsKey);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT r FROM OptimizationResult r WHERE r.contentHash = :hash AND r.settingsKey = :settingsKey")
+    Optional<OptimizationResult> findForUpdate(@Param("hash") String contentHash, @Param("settingsKey") String settingsKey);
+}
@@ -0,0 +1,276 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageQualityProperties;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Chooses an encode quality per image instead of one global value.
+ * Binary-searches the quality range until the output meets the configured target: a maximum byte size
+ * (highest quality that fits) or a minimum SSIM against the source (lowest quality that still scores high enough).
+ * SSIM is computed on luma, on copies sampled down to a small grid, and the number of trial encodes is capped
+ */
+@Service
+public class AdaptiveQualityEncoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveQualityEncoder.class);
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+    private static final int WINDOW = 8;
+
+    private final ImageQualityProperties properties;
+    private final DistributionSummary chosenQuality;
+    private final DistributionSummary iterations;
+    private final ProcessingContexts contexts;
+    private final ScratchSpace scratch;
+
+    public AdaptiveQualityEncoder(ImageQualityProperties properties, MeterRegistry meterRegistry,
+                                  ProcessingContexts contexts, ScratchSpace scratch){
+        this.properties = properties;
+        this.contexts = contexts;
+        this.scratch = scratch;
+        this.chosenQuality = DistributionSummary.builder("image.quality.chosen")
+                .description("Encode quality picked per image")
+                .register(meterRegistry);
+        this.iterations = DistributionSummary.builder("image.quality.iterations")
+                .description("Trial encodes needed to pick the quality")
+                .register(meterRegistry);
+    }
+
+    public boolean isAdaptive(){
+        return properties.isAdaptive();
+    }
+
+    /**
+     * Search the quality for an image
+     *
+     * @param image the pixels to encode
+     * @param suffix extension of the encoded format, e.g. ".jpg"
+     * @param encoder writes the image at a given quality; its output must be readable by ImageIO
+     * @return the encoded image at the chosen quality, in memory unless it spilled
+     * @throws IOException if encoding fails
+     */
+    public Encoded encode(BufferedImage image, String suffix, QualityEncoder encoder) throws IOException {
+        boolean bytesTarget = properties.getTarget() == ImageQualityProperties.Target.MAX_BYTES;
+        int factor = sampleFactor(image);
+        double[] reference = bytesTarget ? null : sampledLuma(image, factor);
+
+        float lo = properties.getMinQuality();
+        float hi = properties.getMaxQuality();
+        // The first trial is the cheap extreme: max quality often already fits, min quality often already looks fine
+        float quality = bytesTarget ? hi : lo;
+        Encoded best = null;
+        int trials = 0;
+
+        while (trials < properties.getMaxIterations()){
+            Encoded candidate = trial(image, quality, suffix, encoder, reference, factor);
+            trials++;
+            boolean meets = bytesTarget
+                    ? candidate.output.size() <= properties.getMaxBytes().toBytes()
+                    : candidate.ssim >= properties.getMinSsim();
+
+            if (meets){
+                discard(best);
+                best = candidate;
+                // bytes: try higher; ssim: try lower
+                if (bytesTarget) lo = quality; else hi = quality;
+            } else {
+                discard(candidate);
+                if (bytesTarget) hi = quality; else lo = quality;
+            }
+
+            boolean boundaryHit = trials == 1 && meets;
+            if (boundaryHit || hi - lo <= properties.getTolerance()){
+                break;
+            }
+            quality = Math.round((lo + hi) / 2 * 100) / 100f;
+        }
+
+        boolean targetMet = best != null;
+        if (best == null){
+            // Nothing met the target within the bounds, settle on the bound closest to it
+            float fallback = bytesTarget ? properties.getMinQuality() : properties.getMaxQuality();
+            best = trial(image, fallback, suffix, encoder, reference, factor);
+            trials++;
+        }
+
+        chosenQuality.record(best.quality);
+        iterations.record(trials);
+        logger.info("Chose quality {} after {} trials ({} bytes{}, target {} {})", best.quality, trials,
+                best.output.size(), bytesTarget ? "" : String.format(", ssim %.4f", best.ssim),
+                bytesTarget ? properties.getMaxBytes() : properties.getMinSsim(), targetMet ? "met" : "not met");
+        return best;
+    }
+
+    /**
+     * Encode once at a fixed quality (explicit per-upload quality, or adaptive search disabled)
+     */
+    public Encoded encodeFixed(BufferedImage image, float quality, String suffix, QualityEncoder encoder) throws IOException {
+        // Trial encodes never touch the disk unless they outgrow the in-memory threshold
+        ImageBuffer out = scratch.newBuffer(suffix);
+        try(OutputStream sink = out.output()){
+            encoder.encode(image, sink, quality);
+        } catch (IOException | RuntimeException e){
+            out.close();
+            throw e;
+        }
+        return new Encoded(out, quality, Double.NaN);
+    }
+
+    private Encoded trial(BufferedImage image, float quality, String suffix, QualityEncoder encoder,
+                          double[] reference, int factor) throws IOException {
+        Encoded encoded = encodeFixed(image, quality, suffix, encoder);
+        if (reference == null){
+            return encoded;
+        }
+        try{
+            double[] candidate = readSampledLuma(encoded.output, factor, image.getWidth(), image.getHeight());
+            double score = ssim(reference, candidate, ceilDiv(image.getWidth(), factor), ceilDiv(image.getHeight(), factor));
+            return new Encoded(encoded.output, quality, score);
+        } catch (IOException | RuntimeException e){
+            encoded.output.close();
+            throw e;
+        }
+    }
+
+    private static void discard(Encoded encoded){
+        if (encoded != null){
+            encoded.output.close();
+        }
+    }
+
+    private int sampleFactor(BufferedImage image){
+        int longSide = Math.max(image.getWidth(), image.getHeight());
+        return Math.max(1, ceilDiv(longSide, Math.max(WINDOW, properties.getSsimMaxDimension())));
+    }
+
+    // Point sampling (every factor-th pixel) so the source and the decoded candidate sample the exact same pixels
+    private static double[] sampledLuma(BufferedImage image, int factor){
+        int w = ceilDiv(image.getWidth(), factor);
+        int h = ceilDiv(image.getHeight(), factor);
+        double[] luma = new double[w * h];
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < h; y++){
+            image.getRGB(0, y * factor, image.getWidth(), 1, row, 0, image.getWidth());
+            for (int x = 0; x < w; x++){
+                luma[y * w + x] = luma(row[x * factor]);
+            }
+        }
+        return luma;
+    }
+
+    // Decodes the candidate with ImageIO source subsampling, which never materializes the full-size image
+    private double[] readSampledLuma(ImageBuffer encoded, int factor, int width, int height) throws IOException {
+        // A memory-cached stream, ImageIO's default for plain streams is a cache file in java.io.tmpdir
+        try(ProcessingContext context = contexts.acquire();
+            InputStream raw = encoded.inputStream();
+            ImageInputStream in = new MemoryCacheImageInputStream(raw)){
+            // Trials are JPEGs in practice, they reuse the worker's reader instead of a lookup per trial
+            ImageReader reader = context.jpegReader();
+            boolean reused = reader.getOriginatingProvider().canDecodeInput(in);
+            if (!reused){
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()){
+                    throw new IOException("No reader for trial encode " + encoded.suffix());
+                }
+                reader = readers.next();
+            }
+            try{
+                reader.setInput(in);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                BufferedImage sampled = reader.read(0, param);
+                int w = ceilDiv(width, factor);
+                int h = ceilDiv(height, factor);
+                if (sampled.getWidth() != w || sampled.getHeight() != h){
+                    throw new IOException("Trial encode has unexpected dimensions " + sampled.getWidth() + "x" + sampled.getHeight());
+                }
+                return sampledLuma(sampled, 1);
+            } finally {
+                if (reused){
+                    reader.reset();
+                } else {
+                    reader.dispose();
+                }
+            }
+        }
+    }
+
+    private static double luma(int rgb){
+        return 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+    }
+
+    /**
+     * Mean SSIM over 8x8 windows with a stride of 4
+     */
+    static double ssim(double[] a, double[] b, int width, int height){
+        if (width < WINDOW || height < WINDOW){
+            return globalSsim(a, b, 0, 0, width, height, width);
+        }
+        double total = 0;
+        int windows = 0;
+        for (int y = 0; y + WINDOW <= height; y += WINDOW / 2){
+            for (int x = 0; x + WINDOW <= width; x += WINDOW / 2){
+                total += globalSsim(a, b, x, y, WINDOW, WINDOW, width);
+                windows++;
+            }
+        }
+        return total / windows;
+    }
+
+    private static double globalSsim(double[] a, double[] b, int x0, int y0, int w, int h, int stride){
+        int n = w * h;
+        double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+        for (int y = y0; y < y0 + h; y++){
+            for (int x = x0; x < x0 + w; x++){
+                double va = a[y * stride + x];
+                double vb = b[y * stride + x];
+                sumA += va;
+                sumB += vb;
+                sumAA += va * va;
+                sumBB += vb * vb;
+                sumAB += va * vb;
+            }
+        }
+        double meanA = sumA / n;
+        double meanB = sumB / n;
+        double varA = sumAA / n - meanA * meanA;
+        double varB = sumBB / n - meanB * meanB;
+        double cov = sumAB / n - meanA * meanB;
+        return ((2 * meanA * meanB + C1) * (2 * cov + C2))
+                / ((meanA * meanA + meanB * meanB + C1) * (varA + varB + C2));
+    }
+
+    private static int ceilDiv(int a, int b){
+        return (a + b - 1) / b;
+    }
+
+    @FunctionalInterface
+    public interface QualityEncoder {
+        void encode(BufferedImage image, OutputStream out, float quality) throws IOException;
+    }
+
+    /**
+     * An encoded output
+     *
+     * @param output the encoded bytes; the caller owns them and closes the buffer
+     * @param quality the quality it was encoded with
+     * @param ssim its score against the source, NaN if not measured
+     */
+    public record Encoded(ImageBuffer output, float quality, double ssim) {
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.spring_security.service;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A codec implementation single-frame decodes and lossless encodes can be routed to (see CodecSelector).
+ * Formats are lower-case extensions without the dot ("jpg", "png", "gif").
+ * Decoded images are TYPE_3BYTE_BGR, or TYPE_4BYTE_ABGR when the alpha channel is kept, with the pixels as stored:
+ * the caller applies the JPEG orientation, and the JPEG's color profile unless the backend does
+ */
+public interface CodecBackend {
+
+    /**
+     * @return the name used in configuration, logs and metrics
+     */
+    String name();
+
+    boolean canDecode(String format);
+
+    boolean canEncode(String format);
+
+    /**
+     * @return true if decoded JPEGs come out in sRGB, converted from the ICC profile they embed
+     */
+    default boolean appliesColorProfile(){
+        return false;
+    }
+
+    /**
+     * Read the image dimensions without decoding the pixels
+     *
+     * @return the stored width and height, or null if this backend can't read the header
+     */
+    Dimension probe(InputStream in, String format) throws IOException;
+
+    /**
+     * Decode the first frame
+     *
+     * @param in the encoded image; the caller closes it
+     * @param keepAlpha TYPE_4BYTE_ABGR instead of TYPE_3BYTE_BGR
+     * @return the pixels, or null if this backend can't handle this particular file (the caller tries another one)
+     * @throws IOException if the image is unreadable
+     */
+    BufferedImage decode(InputStream in, String format, boolean keepAlpha) throws IOException;
+
+    /**
+     * Write the image losslessly in the given format
+     *
+     * @param out the sink; left open
+     */
+    void encode(BufferedImage image, String format, OutputStream out) throws IOException;
+}
@@ -0,0 +1,87 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageCodecProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes each decode and lossless encode to a codec backend by format and pixel count.
+ * Small images go to ImageIO, where FFmpeg's per-call setup would cost more than the work itself;
+ * large ones and everything ImageIO can't handle go to FFmpeg.
+ * The crossover points are configuration, measured per machine by CodecCalibrationBenchmark
+ */
+@Service
+public class CodecSelector {
+
+    private final ImageCodecProperties properties;
+    private final FFmpegCodecBackend ffmpeg;
+    private final ImageIOCodecBackend imageIO;
+    private final MeterRegistry meterRegistry;
+
+    public CodecSelector(ImageCodecProperties properties, FFmpegCodecBackend ffmpeg, ImageIOCodecBackend imageIO,
+                         MeterRegistry meterRegistry){
+        this.properties = properties;
+        this.ffmpeg = ffmpeg;
+        this.imageIO = imageIO;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @param format lower-case extension without the dot
+     * @param pixels width * height of the image
+     * @return the backend to decode it with
+     */
+    public CodecBackend decoderFor(String format, long pixels){
+        return select("decode", format, pixels, properties.getImageioDecodeMaxPixels(), imageIO.canDecode(format));
+    }
+
+    /**
+     * @param format lower-case extension without the dot
+     * @param pixels width * height of the image
+     * @return the backend to encode it with
+     */
+    public CodecBackend encoderFor(String format, long pixels){
+        return select("encode", format, pixels, properties.getImageioEncodeMaxPixels(), imageIO.canEncode(format));
+    }
+
+    /**
+     * @return the backend that handles whatever the others can't
+     */
+    public CodecBackend fallback(){
+        return ffmpeg;
+    }
+
+    /**
+     * Backends to read the dimensions with, in order. ImageIO only parses the header,
+     * FFmpeg opens and probes the stream, so ImageIO goes first wherever it can read the format
+     */
+    public List<CodecBackend> probeOrder(String format){
+        return imageIO.canDecode(format) ? List.of(imageIO, ffmpeg) : List.of(ffmpeg);
+    }
+
+    /**
+     * @return true if a decode of this format would depend on the pixel count, i.e. is worth probing for
+     */
+    public boolean needsPixelCount(String format){
+        return properties.isAutoSelect() && imageIO.canDecode(format)
+                && properties.getImageioDecodeMaxPixels().getOrDefault(format, 0L) > 0;
+    }
+
+    private CodecBackend select(String operation, String format, long pixels, Map<String, Long> thresholds,
+                                boolean supported){
+        boolean small = properties.isAutoSelect() && supported && pixels <= thresholds.getOrDefault(format, 0L);
+        CodecBackend backend = small ? imageIO : ffmpeg;
+        Counter.builder("image.codec.selected")
+                .description("Decodes and encodes routed to each codec backend")
+                .tag("backend", backend.name())
+                .tag("operation", operation)
+                .tag("format", format)
+                .register(meterRegistry)
+                .increment();
+        return backend;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.repository.ContentBlobRepository;
+import jakarta.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * Content-addressed storage of original uploads: each distinct content is stored once, named by its SHA-256,
+ * and reference counted in the content_blobs table. The file is deleted when the last image using it is.
+ * <p>
+ * Storing takes the reference (locking the row) before the file is moved into place, and a reclaim deletes the
+ * file while holding the same lock, so an upload can never find a file that a concurrent delete is about to remove
+ */
+@Service
+public class ContentBlobStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentBlobStore.class);
+
+    private final ContentBlobRepository repository;
+    private final FileStorageService fileStorageService;
+    private final ImageVariantResolver variantResolver;
+    // Reclaims run after the transaction that dropped the reference, in one of their own
+    private final TransactionTemplate reclaimTransaction;
+
+    public ContentBlobStore(ContentBlobRepository repository, FileStorageService fileStorageService,
+                            ImageVariantResolver variantResolver, PlatformTransactionManager transactionManager){
+        this.repository = repository;
+        this.fileStorageService = fileStorageService;
+        this.variantResolver = variantResolver;
+        this.reclaimTransaction = new TransactionTemplate(transactionManager);
+        this.reclaimTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * A stored original and the hash it is stored under
+     */
+    public record StoredBlob(String contentHash, String fileName) {
+    }
+
+    /**
+     * Stores the upload unless identical content is stored already, and takes a reference to it.
+     * The reference is part of the caller's transaction; if that rolls back, a file stored for it is reclaimed
+     *
+     * @param file the upload
+     * @return the stored original, possibly one uploaded earlier under another extension
+     */
+    @Transactional
+    public StoredBlob store(MultipartFile file){
+        try(StagedFile staged = fileStorageService.stageOriginalFile(file)){
+            return storeStaged(staged);
+        }
+    }
+
+    /**
+     * As above, for an upload staged already, e.g. streamed in before the caller's transaction began.
+     * The staged file is moved into place or left for the caller to close
+     */
+    @Transactional
+    public StoredBlob store(StagedFile staged){
+        return storeStaged(staged);
+    }
+
+    private StoredBlob storeStaged(StagedFile staged){
+        repository.acquire(staged.contentHash(), staged.fileName(), staged.size());
+        String fileName = repository.findFileName(staged.contentHash()).orElseThrow();
+        TransactionHooks.afterRollback(() -> reclaim(staged.contentHash(), fileName));
+        fileStorageService.storeOriginalFile(staged, fileName);
+        return new StoredBlob(staged.contentHash(), fileName);
+    }
+
+    /**
+     * Drops a reference; the file and the alternates encoded from it are deleted after the caller's transaction
+     * commits, if no image references the content by then
+     */
+    @Transactional
+    public void release(String contentHash, String fileName){
+        repository.release(contentHash);
+        TransactionHooks.afterCompletion(() -> reclaim(contentHash, fileName));
+    }
+
+    private void reclaim(String contentHash, String fileName){
+        try{
+            reclaimTransaction.executeWithoutResult(status -> {
+                repository.lock(contentHash, fileName);
+                if (repository.deleteUnreferenced(contentHash) > 0){
+                    // Still locked: an upload of the same content waits, then finds no row and stores its copy
+                    fileStorageService.deleteFile(fileName);
+                    variantResolver.alternateNames(fileName).forEach(fileStorageService::deleteFile);
+                    logger.debug("Reclaimed unreferenced blob {}", fileName);
+                }
+            });
+        }catch (RuntimeException e){
+            // The row stays at 0 and the next release or rollback of this content retries
+            logger.warn("Failed to reclaim blob {}: {}", fileName, e.getMessage());
+        }
+    }
+}
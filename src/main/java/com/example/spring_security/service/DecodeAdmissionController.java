@@ -0,0 +1,209 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageAdmissionProperties;
+import com.example.spring_security.exception.FileValidationException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control in front of {@link ImageProcessingService#process(File)}.
+ * Every decode has to claim its estimated memory (width x height x bytes per pixel x stages)
+ * from a global budget before it is allowed to run, so concurrent uploads queue up instead of
+ * decoding gigabytes of pixels at once.
+ */
+@Service
+public class DecodeAdmissionController {
+
+    private static final Logger logger = LoggerFactory.getLogger(DecodeAdmissionController.class);
+
+    // The semaphore counts KiB so budgets of several GB still fit into an int
+    private static final long PERMIT_UNIT = 1024;
+
+    private final ImageAdmissionProperties properties;
+    private final Semaphore budget;
+    private final int totalPermits;
+
+    private final Timer waitTimer;
+    private final Counter bombCounter;
+    private final Counter timeoutCounter;
+
+    public DecodeAdmissionController(ImageAdmissionProperties properties, MeterRegistry meterRegistry){
+        this.properties = properties;
+        this.totalPermits = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, properties.getMemoryBudget().toBytes() / PERMIT_UNIT));
+        // Fair, so a large image is not starved by a stream of small ones
+        this.budget = new Semaphore(totalPermits, true);
+
+        Gauge.builder("image.decode.budget.total", () -> (double) totalPermits * PERMIT_UNIT)
+                .baseUnit("bytes")
+                .description("Memory budget available to concurrent image decodes")
+                .register(meterRegistry);
+        Gauge.builder("image.decode.budget.used", budget,
+                        s -> (double) (totalPermits - s.availablePermits()) * PERMIT_UNIT)
+                .baseUnit("bytes")
+                .description("Memory currently claimed by in-flight image decodes")
+                .register(meterRegistry);
+        Gauge.builder("image.decode.budget.waiting", budget, Semaphore::getQueueLength)
+                .description("Decodes waiting for memory budget")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("image.decode.budget.wait")
+                .description("Time spent waiting for decode memory budget")
+                .register(meterRegistry);
+        this.bombCounter = Counter.builder("image.decode.rejected")
+                .tag("reason", "pixel-limit")
+                .register(meterRegistry);
+        this.timeoutCounter = Counter.builder("image.decode.rejected")
+                .tag("reason", "budget-timeout")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Probes the image header and claims decode memory for it, blocking until enough budget is free
+     *
+     * @param inputFile the image about to be decoded
+     * @return a permit that must be closed once processing is finished
+     * @throws FileValidationException if the image exceeds the hard pixel limit
+     * @throws IOException if the dimensions can't be read or the budget wasn't granted in time
+     */
+    public DecodePermit admit(File inputFile) throws IOException {
+        int[] dimensions = probeDimensions(inputFile);
+        long pixels = (long) dimensions[0] * dimensions[1];
+
+        if (pixels > properties.getMaxPixels()){
+            bombCounter.increment();
+            logger.warn("Rejecting {}: {}x{} ({} pixels) exceeds the limit of {} pixels",
+                    inputFile.getName(), dimensions[0], dimensions[1], pixels, properties.getMaxPixels());
+            throw new FileValidationException("Image dimensions " + dimensions[0] + "x" + dimensions[1]
+                    + " exceed the maximum of " + properties.getMaxPixels() + " pixels");
+        }
+
+        long estimate = estimateBytes(dimensions[0], dimensions[1]);
+        int permits = toPermits(estimate);
+        return acquire(inputFile.getName(), permits);
+    }
+
+    /**
+     * Claims extra working memory from the same budget without waiting, e.g. scratch buffers for parallel tiles
+     * of an image that already holds its decode permit
+     *
+     * @param bytes memory to claim
+     * @param label what the memory is for, for logging
+     * @return a permit that must be closed once the memory is released, or null if the budget can't cover it right now
+     */
+    public DecodePermit tryReserve(long bytes, String label){
+        if ((bytes + PERMIT_UNIT - 1) / PERMIT_UNIT > totalPermits){
+            return null;
+        }
+        int permits = toPermits(bytes);
+        if (!budget.tryAcquire(permits)){
+            logger.debug("No budget free for {} bytes of {}", permits * PERMIT_UNIT, label);
+            return null;
+        }
+        return new DecodePermit(permits);
+    }
+
+    /**
+     * Estimated peak memory for decoding and processing an image of the given size
+     */
+    public long estimateBytes(int width, int height){
+        return (long) width * height * properties.getBytesPerPixel() * properties.getDecodeStages();
+    }
+
+    private DecodePermit acquire(String label, int permits) throws IOException {
+        long waitStart = System.nanoTime();
+        boolean acquired;
+        try{
+            acquired = budget.tryAcquire(permits, properties.getAcquireTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for decode memory budget", e);
+        } finally {
+            waitTimer.record(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+        }
+
+        if (!acquired){
+            timeoutCounter.increment();
+            throw new IOException("Timed out waiting for " + permits * PERMIT_UNIT + " bytes of decode memory for " + label);
+        }
+
+        logger.debug("Admitted {} with {} bytes of decode budget ({} bytes still free)",
+                label, permits * PERMIT_UNIT, (long) budget.availablePermits() * PERMIT_UNIT);
+        return new DecodePermit(permits);
+    }
+
+    // Oversized (but still legal) images are clamped to the whole budget so they run alone rather than never
+    private int toPermits(long bytes){
+        long permits = (bytes + PERMIT_UNIT - 1) / PERMIT_UNIT;
+        return (int) Math.max(1, Math.min(permits, totalPermits));
+    }
+
+    /**
+     * Reads width and height from the image header without decoding pixel data.
+     * Falls back to FFmpeg for formats ImageIO has no reader for
+     */
+    private int[] probeDimensions(File inputFile) throws IOException {
+        try(ImageInputStream in = ImageIO.createImageInputStream(inputFile)){
+            if (in != null){
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (readers.hasNext()){
+                    ImageReader reader = readers.next();
+                    try{
+                        reader.setInput(in, true, true);
+                        return new int[]{reader.getWidth(0), reader.getHeight(0)};
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        }
+
+        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)){
+            grabber.start();
+            int[] dimensions = {grabber.getImageWidth(), grabber.getImageHeight()};
+            grabber.stop();
+            return dimensions;
+        } catch (FrameGrabber.Exception e){
+            throw new IOException("Failed to probe image dimensions", e);
+        }
+    }
+
+    /**
+     * A claim on the decode memory budget. Closing it returns the memory exactly once
+     */
+    public final class DecodePermit implements AutoCloseable {
+        private final int permits;
+        private boolean released;
+
+        private DecodePermit(int permits){
+            this.permits = permits;
+        }
+
+        public long bytes(){
+            return permits * PERMIT_UNIT;
+        }
+
+        @Override
+        public synchronized void close(){
+            if (!released){
+                released = true;
+                budget.release(permits);
+            }
+        }
+    }
+}
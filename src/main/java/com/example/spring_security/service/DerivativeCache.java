@@ -0,0 +1,253 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.config.ImageRenderProperties;
+import com.example.spring_security.exception.FileStorageException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache for on-demand renders, and for files fetched from their owner node in cluster mode.
+ * Entries are bounded by a byte budget and evicted least-recently-used by a background task,
+ * and concurrent requests for the same key share a single transform
+ */
+@Service
+public class DerivativeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DerivativeCache.class);
+
+    private final Path cacheLocation;
+    private final ImageRenderProperties properties;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    // Logical clock for recency, cheaper and more stable than wall-clock time
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "derivative-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter coalesced;
+    private final Counter evictions;
+
+    public DerivativeCache(FileStorageProperties storageProperties, ImageRenderProperties properties,
+                           MeterRegistry meterRegistry){
+        this.cacheLocation = storageProperties.getDerivativeStoragePath();
+        this.properties = properties;
+        try{
+            Files.createDirectories(cacheLocation);
+        } catch (IOException ex){
+            throw new FileStorageException("Could not initialize derivative cache directory", ex);
+        }
+        loadExistingEntries();
+
+        Gauge.builder("image.derivatives.cache.size", totalBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("image.derivatives.cache.entries", entries, Map::size)
+                .register(meterRegistry);
+        this.hits = Counter.builder("image.derivatives.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("image.derivatives.cache.requests").tag("result", "miss").register(meterRegistry);
+        this.coalesced = Counter.builder("image.derivatives.cache.requests").tag("result", "coalesced").register(meterRegistry);
+        this.evictions = Counter.builder("image.derivatives.cache.evictions").register(meterRegistry);
+
+        long interval = properties.getEvictionInterval().toMillis();
+        evictor.scheduleWithFixedDelay(this::evictIfOverBudget, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the cached derivative for the key, producing it if needed.
+     * Only one producer runs per key; concurrent callers wait for its result
+     *
+     * @param key cache key, used as the file name (must be a plain file name)
+     * @param producer creates the derivative in a temporary file
+     * @return path of the cached derivative
+     * @throws IOException if the producer fails
+     */
+    public Path getOrCreate(String key, DerivativeProducer producer) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null && Files.exists(entry.path)){
+            entry.lastAccess = clock.incrementAndGet();
+            hits.increment();
+            return entry.path;
+        }
+
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null){
+            coalesced.increment();
+            return await(existing);
+        }
+
+        misses.increment();
+        try{
+            Path cached = store(key, producer.produce());
+            mine.complete(cached);
+            return cached;
+        } catch (IOException | RuntimeException e){
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return true if the key is cached or being produced
+     */
+    public boolean contains(String key){
+        return entries.containsKey(key) || inFlight.containsKey(key);
+    }
+
+    /**
+     * Counts the keys, cached or being produced, that start with the prefix; a scan of the whole cache
+     */
+    public int count(String prefix){
+        return (int) (entries.keySet().stream().filter(key -> key.startsWith(prefix)).count()
+                + inFlight.keySet().stream().filter(key -> key.startsWith(prefix)).count());
+    }
+
+    private Path await(CompletableFuture<Path> future) throws IOException {
+        try{
+            return future.join();
+        } catch (CompletionException e){
+            if (e.getCause() instanceof IOException io){
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException re){
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    private Path store(String key, File produced) throws IOException {
+        Path target = cacheLocation.resolve(key).normalize();
+        if (!target.getParent().equals(cacheLocation)){
+            throw new FileStorageException("Cannot store derivative outside cache directory");
+        }
+        try{
+            Files.move(produced.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            // Temp dir on another file system, fall back to a copy
+            Files.copy(produced.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(produced.toPath());
+        }
+
+        long size = Files.size(target);
+        Entry previous = entries.put(key, new Entry(target, size, clock.incrementAndGet()));
+        totalBytes.addAndGet(size - (previous != null ? previous.size : 0));
+
+        if (totalBytes.get() > properties.getCacheBudget().toBytes()){
+            // Over budget: evict in the background rather than on the request thread
+            evictor.execute(this::evictIfOverBudget);
+        }
+        return target;
+    }
+
+    /**
+     * Deletes least recently used entries until the cache is below the low watermark
+     */
+    void evictIfOverBudget(){
+        long budget = properties.getCacheBudget().toBytes();
+        if (totalBytes.get() <= budget || !evicting.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            long target = (long) (budget * properties.getEvictionLowWatermark());
+            List<Map.Entry<String, Entry>> candidates = entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().lastAccess))
+                    .toList();
+            int evicted = 0;
+            for (Map.Entry<String, Entry> candidate : candidates){
+                if (totalBytes.get() <= target){
+                    break;
+                }
+                if (entries.remove(candidate.getKey(), candidate.getValue())){
+                    totalBytes.addAndGet(-candidate.getValue().size);
+                    Files.deleteIfExists(candidate.getValue().path);
+                    evictions.increment();
+                    evicted++;
+                }
+            }
+            logger.info("Evicted {} derivatives, cache now {} bytes (budget {})", evicted, totalBytes.get(), budget);
+        } catch (IOException e){
+            logger.error("Derivative cache eviction failed", e);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    // Rebuild the in-memory view from disk so the budget survives restarts
+    private void loadExistingEntries(){
+        try(Stream<Path> files = Files.list(cacheLocation)){
+            files.filter(Files::isRegularFile).forEach(path -> {
+                try{
+                    long size = Files.size(path);
+                    entries.put(path.getFileName().toString(),
+                            new Entry(path, size, Files.getLastModifiedTime(path).toMillis()));
+                    totalBytes.addAndGet(size);
+                } catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+            // Continue the logical clock after the restored timestamps
+            entries.values().stream().mapToLong(e -> e.lastAccess).max().ifPresent(clock::set);
+        } catch (IOException | UncheckedIOException e){
+            logger.warn("Could not scan derivative cache directory {}", cacheLocation, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        evictor.shutdownNow();
+    }
+
+    @FunctionalInterface
+    public interface DerivativeProducer {
+        File produce() throws IOException;
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final long size;
+        private volatile long lastAccess;
+
+        private Entry(Path path, long size, long lastAccess){
+            this.path = path;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.spring_security.service;
+
+import lombok.RequiredArgsConstructor;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.springframework.stereotype.Service;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Native codecs through JavaCV. Every call opens a format context and probes the stream, a fixed cost
+ * that dominates small images, but libjpeg-turbo and the native PNG encoder win on large ones
+ */
+@Service
+@RequiredArgsConstructor
+public class FFmpegCodecBackend implements CodecBackend {
+
+    private static final Set<String> DECODABLE = Set.of("jpg", "png", "gif");
+
+    private final ProcessingContexts contexts;
+
+    @Override
+    public String name(){
+        return "ffmpeg";
+    }
+
+    @Override
+    public boolean canDecode(String format){
+        return DECODABLE.contains(format);
+    }
+
+    @Override
+    public boolean canEncode(String format){
+        return "png".equals(format);
+    }
+
+    @Override
+    public Dimension probe(InputStream in, String format) throws IOException {
+        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(in)){
+            grabber.start();
+            Dimension size = new Dimension(grabber.getImageWidth(), grabber.getImageHeight());
+            grabber.stop();
+            return size;
+        }
+    }
+
+    @Override
+    public BufferedImage decode(InputStream in, String format, boolean keepAlpha) throws IOException {
+        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(in)){
+            if (keepAlpha){
+                // ABGR bytes map straight onto TYPE_4BYTE_ABGR in Java2DFrameConverter
+                grabber.setPixelFormat(avutil.AV_PIX_FMT_ABGR);
+            }
+            grabber.start();
+            Frame frame = grabber.grabImage();
+            if (frame == null){
+                throw new IOException("No image frame in the input");
+            }
+            // A converter of its own: the image outlives this call, a reused converter would overwrite it
+            BufferedImage image = new Java2DFrameConverter().getBufferedImage(frame);
+            grabber.stop();
+            return image;
+        }
+    }
+
+    @Override
+    public void encode(BufferedImage image, String format, OutputStream out) throws IOException {
+        if (!canEncode(format)){
+            throw new IOException("No " + name() + " encoder for " + format);
+        }
+        BufferedImage source = toRecordable(image);
+        boolean alpha = source.getType() == BufferedImage.TYPE_4BYTE_ABGR;
+        try(FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(out, source.getWidth(), source.getHeight())){
+            // The plain "png" muxer needs a file name, image2pipe writes the same bytes to a stream
+            recorder.setFormat("image2pipe");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_PNG);
+            recorder.setPixelFormat(alpha ? avutil.AV_PIX_FMT_RGBA : avutil.AV_PIX_FMT_RGB24);
+            recorder.start();
+            record(recorder, source);
+            recorder.stop();
+        }
+    }
+
+    // The frame goes to the recorder right away, so the worker's converter (and its native frame) can be reused
+    void record(FFmpegFrameRecorder recorder, BufferedImage image) throws FrameRecorder.Exception {
+        try(ProcessingContext context = contexts.acquire()){
+            recorder.record(context.frameConverter().convert(image), pixelFormatOf(image));
+        }
+    }
+
+    // The recorder only understands interleaved byte rasters; redraw anything else (INT_RGB, indexed, ...)
+    static BufferedImage toRecordable(BufferedImage image){
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+                || type == BufferedImage.TYPE_BYTE_GRAY){
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    private static int pixelFormatOf(BufferedImage image){
+        return switch (image.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR -> avutil.AV_PIX_FMT_ABGR;
+            case BufferedImage.TYPE_BYTE_GRAY -> avutil.AV_PIX_FMT_GRAY8;
+            default -> avutil.AV_PIX_FMT_BGR24;
+        };
+    }
+}
@@ -1,8 +1,13 @@
 package com.example.spring_security.service;
 
+import com.example.spring_security.config.ImageFormatProperties;
+import com.example.spring_security.config.ImagePngProperties;
 import com.example.spring_security.config.ImageProcessingProperties;
+import com.example.spring_security.config.ImageRenditionProperties;
+import com.example.spring_security.config.ImageWatchdogProperties;
 import lombok.RequiredArgsConstructor;
 import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacv.*;
 import org.bytedeco.javacv.Frame;
 import org.slf4j.Logger;
@@ -11,11 +16,24 @@ import org.springframework.stereotype.Service;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import javax.imageio.ImageIO;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * FFmpeg-backed implementation of ImageProcessingService
@@ -26,6 +44,20 @@ import java.time.Instant;
 public class FFmpegImageProcessingServiceImpl implements ImageProcessingService{
 
     private final ImageProcessingProperties properties;
+    private final ImageWatchdogProperties timeouts;
+    private final ProcessingWatchdog watchdog;
+    private final ImageFormatProperties formatProperties;
+    private final ImagePngProperties pngProperties;
+    private final PngOptimizer pngOptimizer;
+    private final AdaptiveQualityEncoder qualityEncoder;
+    private final JpegOutputStage jpegOutput;
+    private final Resampler resampler;
+    private final ProcessingContexts contexts;
+    private final ScratchSpace scratch;
+    private final CodecSelector codecs;
+    private final FFmpegCodecBackend ffmpeg;
+    // Encoder lookups are native calls, remember the answer per format
+    private final Map<String, Boolean> encoderAvailability = new ConcurrentHashMap<>();
     private static final Logger logger = LoggerFactory.getLogger(FFmpegImageProcessingServiceImpl.class);
 
     /**
@@ -33,7 +65,7 @@ public class FFmpegImageProcessingServiceImpl implements ImageProcessingService{
      * Only resized if the original image exceeds the maximu dimensions.
      *
      * @param inputFile the original image on disk
-     * @return a new file pointing to the resized image
+     * @return a new file pointing to the resized image (in the scratch directory)
      * @throws IOException on read/write errors
      */
     @Override
@@ -42,80 +74,143 @@ public class FFmpegImageProcessingServiceImpl implements ImageProcessingService{
         if (!validateInputFile(inputFile)){
             return inputFile;
         }
+        if (isAnimated(inputFile)){
+            // Grabbing one frame would flatten the animation, see transcodeAnimation
+            logger.debug("Skipping resize for animated image: {}", inputFile.getName());
+            return inputFile;
+        }
 
         Instant start = Instant.now();
-        logger.debug("Starting image resize for file: {}", inputFile.getName());
-        /**
-         * FFmpegFrameGrabber opens the image file as a singe-frame video stream
-         */
-        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)){
-
-            // start the grabber
-            grabber.start();
-
-            // 1. Read original dimensions
-            int origW = grabber.getImageWidth();
-            int origH = grabber.getImageHeight();
-            logger.debug("Original dimensions: {}x{}", origW, origH);
-
-            // 2. Compute scale factor (never upscale-ratio <= 1)
-            double widthRatio = properties.getMaxWidth() / (double) origW;
-            double heightRatio = properties.getMaxHeight() / (double) origH;
-            double ratio = Math.min(Math.min(widthRatio, heightRatio), 1.0);
+        BufferedImage scaled = scaleToLimits(inputFile, probeSize(inputFile));
+        if (scaled == null){
+            return inputFile;
+        }
+        return toScratchFile(encodeResized(scaled, inputFile, start), "resized-");
+    }
 
-            //  Skip resize if no scaling needed (image is already smaller than max dimensions)
-            if (ratio == 1.0){
-                logger.debug("Image already within size limits, skipping resize");
-                grabber.stop();
-                return inputFile;
-            }
+    /**
+     * Decode and scale down into maxWidth x maxHeight, keeping the result in memory
+     *
+     * @param inputFile the original image on disk
+     * @param storedSize its dimensions as stored (before orientation)
+     * @return the scaled pixels, or null if the image is already within the limits
+     * @throws IOException on read errors
+     */
+    private BufferedImage scaleToLimits(File inputFile, Dimension storedSize) throws IOException {
+        logger.debug("Starting image resize for file: {}", inputFile.getName());
+        // The limits apply to the upright image
+        int orientation = isJpeg(inputFile) ? jpegOutput.orientationOf(inputFile) : 1;
 
-            int newW = (int) (origW * ratio);
-            int newH = (int) (origH * ratio);
-            logger.debug("New dimensions: {}x{} (scale ratio: {})", newW, newH, ratio);
+        // 1. Read original dimensions
+        int origW = JpegOutputStage.isTransposed(orientation) ? storedSize.height : storedSize.width;
+        int origH = JpegOutputStage.isTransposed(orientation) ? storedSize.width : storedSize.height;
+        logger.debug("Original dimensions: {}x{}", origW, origH);
 
+        // 2. Compute scale factor (never upscale-ratio <= 1)
+        double widthRatio = properties.getMaxWidth() / (double) origW;
+        double heightRatio = properties.getMaxHeight() / (double) origH;
+        double ratio = Math.min(Math.min(widthRatio, heightRatio), 1.0);
 
-            // 3. Grab a single frame (static image)
-            Frame frame = grabber.grabImage();
+        //  Skip resize if no scaling needed (image is already smaller than max dimensions)
+        if (ratio == 1.0){
+            logger.debug("Image already within size limits, skipping resize");
+            return null;
+        }
 
-            // 4. Convert to BufferedImage for easy Java2D resizing
-            Java2DFrameConverter converter = new Java2DFrameConverter();
-            BufferedImage src = converter.getBufferedImage(frame);
+        int newW = (int) (origW * ratio);
+        int newH = (int) (origH * ratio);
+        logger.debug("New dimensions: {}x{} (scale ratio: {})", newW, newH, ratio);
 
-            // 5. Draw scaled image
-            BufferedImage scaled = new BufferedImage(newW, newH, src.getType());
-            Graphics2D g = scaled.createGraphics();
-            // Use bilinear interpolation for better quality resizing
-            g.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION,
-                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.drawImage(src, 0, 0, newW, newH, null);
-            g.dispose();
+        // 3. Decode the (upright) pixels; PNGs keep transparency, resized PNGs are written back as PNG
+        BufferedImage src = decodeFrame(inputFile, isPng(inputFile), (long) storedSize.width * storedSize.height);
 
-            grabber.stop();
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", inputFile.getName(), timeouts.getEncodeTimeout());
+        try{
+            // 4. Scale with the separable Lanczos/Mitchell resampler (a single bilinear draw aliases at large ratios)
+            BufferedImage scaled = resampler.resize(src, newW, newH);
+            encode.check();
+            return scaled;
+        } finally {
+            encode.close();
+        }
+    }
 
-            // 6. Write the scaled image back out FFmpegFrameRecorder
-            File out = Files.createTempFile("resized-", getFileExtension(inputFile)).toFile();
-            try(FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(out, newW, newH)){
-                String format = getFileExtension(inputFile).replace(".", "");
-                recorder.setFormat(format);
-                if ("jpg".equals(format) || "jpeg".equals(format)){
-                    recorder.setVideoCodec(avcodec.AV_CODEC_ID_MJPEG); // MJPEG for JPEG files
-                    recorder.setVideoQuality(properties.getCompressionQuality());
-                } else {
-                    // For other formats (like PNG), try to maintain quality
+    /**
+     * Write scaled pixels back out in the input's format: JPEGs through the JPEG output stage and PNGs
+     * through the selected codec backend, both into memory; anything else with FFmpegFrameRecorder into a scratch file
+     *
+     * @param scaled the resized pixels
+     * @param inputFile the image they were decoded from
+     * @param start when processing of the image started, for the log
+     * @return the encoded image
+     * @throws IOException on write errors
+     */
+    private ImageBuffer encodeResized(BufferedImage scaled, File inputFile, Instant start) throws IOException {
+        String suffix = getFileExtension(inputFile);
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", inputFile.getName(), timeouts.getEncodeTimeout());
+        ImageBuffer out = null;
+        try{
+            if (isJpeg(inputFile)){
+                out = scratch.newBuffer(suffix);
+                try(OutputStream sink = out.output()){
+                    jpegOutput.write(scaled, sink, properties.getCompressionQuality());
+                }
+            } else if (isPng(inputFile)){
+                out = scratch.newBuffer(suffix);
+                try(OutputStream sink = out.output()){
+                    encodeLossless(scaled, "png", sink);
+                }
+            } else {
+                File file = scratch.newFile("resized-", suffix, inputFile.length());
+                try(FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file, scaled.getWidth(), scaled.getHeight())){
+                    recorder.setFormat(suffix.replace(".", ""));
+                    // For other formats, try to maintain quality
                     recorder.setVideoQuality(1.0);
+                    recorder.start();
+                    ffmpeg.record(recorder, scaled);
+                    recorder.stop();
+                } catch (IOException | RuntimeException e){
+                    file.delete();
+                    throw e;
                 }
-
-                recorder.start();
-                recorder.record(converter.convert(scaled));
-                recorder.stop();
+                out = ImageBuffer.adopt(scratch, file, suffix);
+            }
+            encode.check();
+            long duration = Duration.between(start, Instant.now()).toMillis();
+            logger.info("Image resize completed in {} ms: {} -> {}x{} ({} bytes)",
+                    duration, inputFile.getName(), scaled.getWidth(), scaled.getHeight(), out.size());
+            return out;
+        } catch (IOException e){
+            if (out != null){
+                out.close();
             }
-                long duration = Duration.between(start, Instant.now()).toMillis();
-                logger.info("Image resize completed in {} ms: {} -> {}", duration, inputFile.getName(), out.getName());
-                return out;
-        } catch (FrameGrabber.Exception | FrameRecorder.Exception e){
             logger.error("Failed to resize image: {}", inputFile.getName(), e);
-            throw new IOException("Image resize failed", e);
+            throw encode.translate(new IOException("Image resize failed", e));
+        } catch (RuntimeException e){
+            if (out != null){
+                out.close();
+            }
+            throw e;
+        } finally {
+            encode.close();
+        }
+    }
+
+    /**
+     * Materialize a buffer for the File-based API
+     *
+     * @return a scratch file holding the content; the caller deletes it
+     */
+    private File toScratchFile(ImageBuffer buffer, String prefix) throws IOException {
+        try(buffer){
+            File file = scratch.newFile(prefix, buffer.suffix(), buffer.size());
+            try{
+                buffer.moveTo(file.toPath());
+            } catch (IOException e){
+                file.delete();
+                throw e;
+            }
+            return file;
         }
     }
 
@@ -171,134 +266,843 @@ public class FFmpegImageProcessingServiceImpl implements ImageProcessingService{
 
     /**
      * Compress JPEG quality if file > compressionThreshold
-     * For nonJPEG files, converts to JPEG for compression
+     * PNGs are re-encoded losslessly as PNG (see PngOptimizer), animated GIFs are left alone,
+     * other nonJPEG files are converted to JPEG
      *
      * @param inputFile the original (or already resized)
-     * @return File pointing to image
+     * @return File pointing to image (in the scratch directory if it was compressed)
      * @throws IOException for read/write errors
      */
     @Override
     public File compress(File inputFile) throws IOException {
+        ProcessingResult result = compress(inputFile, ProcessingOptions.defaults());
+        return result.isChanged() ? toScratchFile(result.output(), "compressed-") : inputFile;
+    }
+
+    /**
+     * Compress with per-upload options.
+     * The JPEG quality is the one requested in the options, otherwise it is searched per image
+     * (see AdaptiveQualityEncoder), otherwise the configured compressionQuality
+     *
+     * @param inputFile the original (or already resized)
+     * @param options per-upload preferences
+     * @return the compressed image and the quality it was encoded with
+     * @throws IOException for read/write errors
+     */
+    private ProcessingResult compress(File inputFile, ProcessingOptions options) throws IOException {
         // Fix: Validate the input file and return early if not valid
         if (!validateInputFile(inputFile)){
-            return inputFile;
+            return ProcessingResult.unchanged();
         }
 
-        // skip compression if below threshold
-        if (inputFile.length() <= properties.getCompressionThreshold().toBytes()){
+        // skip compression if below threshold, unless the uploader asked for it
+        if (!options.force() && inputFile.length() <= properties.getCompressionThreshold().toBytes()){
             logger.debug("File size {} bytes is below compression threshold of {} bytes, skipping compression",
                     inputFile.length(), properties.getCompressionThreshold().toBytes());
-            return inputFile;
+            return ProcessingResult.unchanged();
         }
         
-        Instant start = Instant.now();
+        if (isPng(inputFile) && pngProperties.isEnabled()){
+            return compressPng(inputFile);
+        }
+        if (isAnimated(inputFile)){
+            logger.debug("Skipping compression for animated image: {}", inputFile.getName());
+            return ProcessingResult.unchanged();
+        }
+
         logger.debug("Starting image compression for file: {} (size: {} bytes)", inputFile.getName(), inputFile.length());
         
-        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)){
-            grabber.start();
-
-            // grab static image frame
-            Frame frame = grabber.grabImage();
-            Java2DFrameConverter converter = new Java2DFrameConverter();
-            BufferedImage img = converter.getBufferedImage(frame);
-
-            int w = img.getWidth();
-            int h = img.getHeight();
+        // grab static image frame
+        BufferedImage img = decodeFrame(inputFile);
+        return compressPixels(img, inputFile, inputFile.length(), options);
+    }
 
-            grabber.stop();
+    /**
+     * The same choices as compress(File, ProcessingOptions), for pixels that are already decoded (and resized)
+     *
+     * @param image the pixels to encode
+     * @param inputFile the image they came from, for its format and name
+     * @param inputSize the encoded size to compare against
+     * @param options per-upload preferences
+     */
+    private ProcessingResult compressPixels(BufferedImage image, File inputFile, long inputSize,
+                                            ProcessingOptions options) throws IOException {
+        if (isPng(inputFile) && pngProperties.isEnabled()){
+            return optimizePng(image, inputFile.getName(), inputSize);
+        }
 
-            // Preparing output files
-            File output = Files.createTempFile("compressed-", ".jpg").toFile();
-            try(FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output, w, h)){
-                recorder.setFormat("jpg");
-                recorder.setVideoCodec(avcodec.AV_CODEC_ID_MJPEG);
-                recorder.setFrameRate(1);
-                
-                // This is the key setting for compression quality
-                recorder.setVideoQuality(properties.getCompressionQuality());
-                
-                
-                recorder.start();
-                recorder.record(converter.convert(img));
-                recorder.stop();
+        Instant start = Instant.now();
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", inputFile.getName(), timeouts.getEncodeTimeout());
+        AdaptiveQualityEncoder.Encoded encoded = null;
+        try{
+            if (options.quality() != null){
+                encoded = qualityEncoder.encodeFixed(image, options.quality(), ".jpg", jpegOutput::write);
+            } else if (qualityEncoder.isAdaptive()){
+                encoded = qualityEncoder.encode(image, ".jpg", (pixels, out, quality) -> {
+                    // every trial encode counts against the same deadline
+                    encode.check();
+                    jpegOutput.write(pixels, out, quality);
+                });
+            } else {
+                encoded = qualityEncoder.encodeFixed(image, properties.getCompressionQuality(), ".jpg", jpegOutput::write);
             }
+            encode.check();
+            ImageBuffer output = encoded.output();
             long duration = Duration.between(start, Instant.now()).toMillis();
-            double compressionRatio = (double) inputFile.length() / output.length();
+            double compressionRatio = (double) inputSize / output.size();
 
-            logger.info("Image compressed in {} ms: {} -> {} bytes ({}x smaller)",
-                    duration, inputFile.length(), output.length(),
+            logger.info("Image compressed in {} ms at quality {}: {} -> {} bytes ({}x smaller)",
+                    duration, encoded.quality(), inputSize, output.size(),
                     String.format("%.2f", compressionRatio));
 
-            return output;
+            return new ProcessingResult(output, encoded.quality());
 
-        } catch (FrameGrabber.Exception | FrameRecorder.Exception e){
+        } catch (IOException e){
+            if (encoded != null){
+                encoded.output().close();
+            }
             logger.error("Failed to compress image: {}", inputFile.getName(), e);
-            throw new IOException("Image compression failed", e);
+            throw encode.translate(e);
+        } catch (RuntimeException e){
+            if (encoded != null){
+                encoded.output().close();
+            }
+            throw e;
+        } finally {
+            encode.close();
         }
     }
 
+    /**
+     * Lossless path for PNGs: keeps the format (and transparency) and only stores the pixels more compactly
+     *
+     * @param inputFile the PNG to optimize
+     * @return the optimized PNG, or unchanged if it couldn't be made smaller
+     * @throws IOException for read/write errors
+     */
+    private ProcessingResult compressPng(File inputFile) throws IOException {
+        BufferedImage image = decodePng(inputFile);
+        if (image == null){
+            logger.info("Keeping 16-bit PNG {} as is, reducing it to 8 bits would lose precision", inputFile.getName());
+            return ProcessingResult.unchanged();
+        }
+        return optimizePng(image, inputFile.getName(), inputFile.length());
+    }
+
+    /**
+     * @param sizeToBeat the encoded size the optimized PNG has to be smaller than
+     * @return the optimized PNG, or unchanged if it isn't smaller
+     */
+    private ProcessingResult optimizePng(BufferedImage image, String name, long sizeToBeat) throws IOException {
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", name, timeouts.getEncodeTimeout());
+        ImageBuffer output = null;
+        try{
+            output = pngOptimizer.optimize(image, name, sizeToBeat);
+            encode.check();
+            return output == null ? ProcessingResult.unchanged() : new ProcessingResult(output, null);
+        } catch (IOException e){
+            if (output != null){
+                output.close();
+            }
+            logger.error("Failed to optimize PNG: {}", name, e);
+            throw encode.translate(e);
+        } catch (RuntimeException e){
+            if (output != null){
+                output.close();
+            }
+            throw e;
+        } finally {
+            encode.close();
+        }
+    }
+
+    /**
+     * Decode a PNG with its alpha channel.
+     * 16-bit PNGs are read with ImageIO instead, FFmpeg would already have dropped the low bytes
+     * and we couldn't tell whether reducing them is lossless
+     *
+     * @return the pixels, or null for a 16-bit PNG that can't be reduced to 8 bits losslessly
+     */
+    private BufferedImage decodePng(File inputFile) throws IOException {
+        if (PngOptimizer.readBitDepth(inputFile) != 16){
+            return decodeFrame(inputFile, true);
+        }
+
+        ProcessingWatchdog.Deadline decode = watchdog.start("decode", inputFile.getName(), timeouts.getDecodeTimeout());
+        try(InputStream in = decode.guard(new FileInputStream(inputFile))){
+            BufferedImage wide = ImageIO.read(in);
+            decode.check();
+            if (wide == null){
+                throw new IOException("Unreadable PNG: " + inputFile.getName());
+            }
+            return pngOptimizer.reduceSixteenBit(wide);
+        } catch (IOException e){
+            throw decode.translate(e);
+        } finally {
+            decode.close();
+        }
+    }
     /**
      * Run resize then compress according to thresholds.
      * This is the main entry point for image optimization
      *
      * @param inputFile the original upload
-     * @return File
+     * @return File (in the scratch directory if it was processed)
      * @throws IOException for read/write operations
      */
 
     @Override
     public File process(File inputFile) throws IOException {
+        ProcessingResult result = process(inputFile, ProcessingOptions.defaults());
+        return result.isChanged() ? toScratchFile(result.output(), "processed-") : inputFile;
+    }
+
+    @Override
+    public ProcessingResult process(File inputFile, ProcessingOptions options) throws IOException {
         if (!validateInputFile(inputFile)){
             logger.warn("Skipping image processing for invalid file: {}", inputFile);
-            return inputFile;
+            return ProcessingResult.unchanged();
+        }
+
+        if (isAnimated(inputFile)){
+            // Animations keep their GIF as the primary file and get WebP/MP4 alternates instead
+            logger.info("Skipping single-frame processing for animated image {}", inputFile.getName());
+            return ProcessingResult.unchanged();
         }
 
         Instant startTime = Instant.now();
         logger.info("Starting image processing for file {} ({} bytes)",
                 inputFile.getName(), inputFile.length());
 
-        File current = inputFile;
-        boolean modified = false;
-
 
         // 1: Resize if either dimension exceeds its max
-        try(FFmpegFrameGrabber check = new FFmpegFrameGrabber(current)){
-            check.start();
-            if (check.getImageWidth() > properties.getMaxWidth() ||
-            check.getImageHeight() > properties.getMaxHeight()){
-                File resized = resize(current);
-                if (!resized.equals(current)){
-                    current = resized;
-                    modified = true;
-                }
-            }
-            check.stop();
-        } catch (FrameGrabber.Exception e){
-            throw new IOException("Failed to inspect image dimensions", e);
-        }
+        Dimension storedSize = probeSize(inputFile);
+        boolean transposed = isJpeg(inputFile) && JpegOutputStage.isTransposed(jpegOutput.orientationOf(inputFile));
+        int width = transposed ? storedSize.height : storedSize.width;
+        int height = transposed ? storedSize.width : storedSize.height;
+        boolean needsResize = width > properties.getMaxWidth() || height > properties.getMaxHeight();
 
-        // 2: Compress if file size is above threshold
-        if (current.length() > properties.getCompressionThreshold().toBytes()){
-            File compressed = compress(current);
-            if (!compressed.equals(current) && modified){
-                // clean up intermediate file if both resize and compress happened
-                current.delete();
+        // The scaled pixels stay in memory, compressing them below doesn't decode the resized encode again
+        BufferedImage scaled = needsResize ? scaleToLimits(inputFile, storedSize) : null;
+        ProcessingResult result = ProcessingResult.unchanged();
+        try{
+            long size = inputFile.length();
+            if (scaled != null){
+                result = new ProcessingResult(encodeResized(scaled, inputFile, startTime), null);
+                size = result.output().size();
             }
-            if (!current.delete()) {
-                logger.warn("Failed to delete intermediate file: {}", current.getAbsolutePath());
+
+            // 2: Compress if the (resized) size is above threshold
+            if (options.force() || size > properties.getCompressionThreshold().toBytes()){
+                ProcessingResult compressed = scaled != null
+                        ? compressPixels(scaled, inputFile, size, options)
+                        : compress(inputFile, options);
+                if (compressed.isChanged()){
+                    // drop the intermediate resize output if both resize and compress happened
+                    result.close();
+                    result = compressed;
+                }
             }
-            current = compressed;
-            modified = true;
+        } catch (IOException | RuntimeException e){
+            result.close();
+            throw e;
         }
 
         long totalDuration = Duration.between(startTime, Instant.now()).toMillis();
-        if (modified){
-            double sizeReduction = (double) inputFile.length() / current.length();
+        if (result.isChanged()){
+            double sizeReduction = (double) inputFile.length() / result.output().size();
             logger.info("Image processing completed in {} ms. Size reduction: {}x ({} -> {} bytes)",
-                    totalDuration, String.format("%.2f", sizeReduction), inputFile.length(), current.length());
+                    totalDuration, String.format("%.2f", sizeReduction), inputFile.length(), result.output().size());
         } else{
             logger.info("no image processing was needed, completed check in {} ms", totalDuration);
         }
-        return current;
+        return result;
+    }
+
+    /**
+     * Decode once, then cascade downscales from the largest rendition to the smallest
+     *
+     * @param inputFile the original upload
+     * @param sizes the rendition sizes to produce
+     * @return the generated renditions, largest first
+     * @throws IOException for read/write operations
+     */
+    @Override
+    public List<RenditionResult> createRenditions(File inputFile, List<ImageRenditionProperties.Size> sizes,
+                                                  List<String> alternateFormats) throws IOException {
+        if (!validateInputFile(inputFile) || sizes == null || sizes.isEmpty()){
+            return List.of();
+        }
+        if (isAnimated(inputFile)){
+            return createAnimatedRenditions(inputFile, sizes);
+        }
+
+        Instant start = Instant.now();
+        boolean jpeg = isJpeg(inputFile);
+        BufferedImage current = decodeFrame(inputFile, !jpeg);
+        int sourceLongSide = Math.max(current.getWidth(), current.getHeight());
+        // GIF renditions are written as PNG so transparency survives
+        String format = jpeg ? "jpg" : "png";
+        List<String> alternates = usableFormats(alternateFormats);
+
+        List<ImageRenditionProperties.Size> ordered = sizes.stream()
+                .filter(size -> size.getMaxDimension() < sourceLongSide)
+                .sorted(Comparator.comparingInt(ImageRenditionProperties.Size::getMaxDimension).reversed())
+                .toList();
+
+        List<RenditionResult> results = new ArrayList<>();
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", inputFile.getName(), timeouts.getEncodeTimeout());
+        try{
+            for (ImageRenditionProperties.Size size : ordered){
+                double ratio = size.getMaxDimension() / (double) Math.max(current.getWidth(), current.getHeight());
+                int w = Math.max(1, (int) Math.round(current.getWidth() * ratio));
+                int h = Math.max(1, (int) Math.round(current.getHeight() * ratio));
+
+                // Scale from the previous (larger) rendition rather than the full-size source
+                current = resampler.resize(current, w, h);
+                encode.check();
+
+                File out = scratch.newFile("rendition-" + size.getName() + "-", "." + format, inputFile.length());
+                // Add it before encoding so a failure below still cleans the file up
+                Map<String, File> encoded = new LinkedHashMap<>();
+                results.add(new RenditionResult(size.getName(), out, w, h, encoded));
+                encodeFrame(current, out, format, properties.getCompressionQuality());
+                encodeAlternateSet(current, out, "rendition-" + size.getName() + "-", alternates, encoded, encode);
+            }
+            encode.check();
+        } catch (FrameRecorder.Exception e){
+            results.forEach(RenditionResult::deleteFiles);
+            logger.error("Failed to create renditions for image: {}", inputFile.getName(), e);
+            throw encode.translate(new IOException("Rendition generation failed", e));
+        } catch (IOException e){
+            results.forEach(RenditionResult::deleteFiles);
+            throw e;
+        } finally {
+            encode.close();
+        }
+
+        logger.info("Created {} renditions for {} in {} ms", results.size(), inputFile.getName(),
+                Duration.between(start, Instant.now()).toMillis());
+        return results;
+    }
+
+    @Override
+    public File render(File inputFile, int maxWidth, int maxHeight, String format, float quality) throws IOException {
+        if ("webp".equals(format) && isAnimated(inputFile)){
+            return renderAnimation(inputFile, maxWidth, maxHeight, quality);
+        }
+        if (isAlternateFormat(format) && !isEncoderAvailable(encoderName(format))){
+            throw new IOException("No encoder available for format " + format);
+        }
+        Instant start = Instant.now();
+        BufferedImage src = decodeFrame(inputFile, !"jpg".equals(format) && !isJpeg(inputFile));
+
+        // Fit inside the requested box, 0 means "no limit" for that side; never upscale
+        double widthRatio = maxWidth > 0 ? maxWidth / (double) src.getWidth() : 1.0;
+        double heightRatio = maxHeight > 0 ? maxHeight / (double) src.getHeight() : 1.0;
+        double ratio = Math.min(Math.min(widthRatio, heightRatio), 1.0);
+        int w = Math.max(1, (int) Math.round(src.getWidth() * ratio));
+        int h = Math.max(1, (int) Math.round(src.getHeight() * ratio));
+
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", inputFile.getName(), timeouts.getEncodeTimeout());
+        try{
+            BufferedImage scaled = ratio < 1.0 ? resampler.resize(src, w, h) : src;
+            encode.check();
+            File out = scratch.newFile("render-", "." + format, inputFile.length());
+            if (isAlternateFormat(format)){
+                // The requested quality, on libwebp's 0-100 scale; AVIF keeps its CRF
+                encodeAlternate(scaled, out, format, Math.min(1f, Math.max(0f, quality)));
+            } else {
+                encodeFrame(scaled, out, format, quality);
+            }
+            encode.check();
+            logger.debug("Rendered {} at {}x{} {} q={} in {} ms", inputFile.getName(), w, h, format, quality,
+                    Duration.between(start, Instant.now()).toMillis());
+            return out;
+        } catch (IOException e){
+            logger.error("Failed to render image: {}", inputFile.getName(), e);
+            throw encode.translate(new IOException("Image render failed", e));
+        } finally {
+            encode.close();
+        }
+    }
+
+    /**
+     * Decode once and write each requested alternate encoding at the same dimensions
+     *
+     * @param inputFile the image to re-encode (usually the optimized file)
+     * @param formats the alternate formats to produce
+     * @return format to temporary file; formats without an available encoder are left out
+     * @throws IOException on read/write errors
+     */
+    @Override
+    public Map<String, File> encodeAlternates(File inputFile, List<String> formats) throws IOException {
+        List<String> usable = usableFormats(formats);
+        if (!validateInputFile(inputFile) || usable.isEmpty()){
+            return Map.of();
+        }
+
+        Instant start = Instant.now();
+        BufferedImage image = decodeFrame(inputFile, !isJpeg(inputFile));
+        Map<String, File> alternates = new LinkedHashMap<>();
+        ProcessingWatchdog.Deadline encode = watchdog.start("encode", inputFile.getName(), timeouts.getEncodeTimeout());
+        try{
+            encodeAlternateSet(image, inputFile, "alternate-", usable, alternates, encode);
+            encode.check();
+        } catch (FrameRecorder.Exception e){
+            alternates.values().forEach(File::delete);
+            logger.error("Failed to encode alternates for image: {}", inputFile.getName(), e);
+            throw encode.translate(new IOException("Alternate encoding failed", e));
+        } catch (IOException e){
+            alternates.values().forEach(File::delete);
+            throw e;
+        } finally {
+            encode.close();
+        }
+
+        if (properties.isEnableDetailedLogging()){
+            alternates.forEach((format, file) -> logger.debug("Alternate {} for {}: {} -> {} bytes",
+                    format, inputFile.getName(), inputFile.length(), file.length()));
+        }
+        logger.info("Encoded {} alternates for {} in {} ms", alternates.keySet(), inputFile.getName(),
+                Duration.between(start, Instant.now()).toMillis());
+        return alternates;
+    }
+
+    /**
+     * Only GIFs can be animated here; their block headers are read, nothing is decoded (see GifFrames)
+     */
+    @Override
+    public boolean isAnimated(File inputFile) throws IOException {
+        if (inputFile == null || !inputFile.isFile() || !isGif(inputFile)){
+            return false;
+        }
+        return GifFrames.isAnimated(inputFile.toPath());
+    }
+
+    /**
+     * One pass over the frames, each decoded frame is handed to every recorder and then dropped.
+     * The recorders scale frames into the configured max box, and GIF frame delays are kept as timestamps
+     */
+    @Override
+    public Map<String, File> transcodeAnimation(File inputFile, List<String> formats) throws IOException {
+        List<String> usable = formats == null ? List.of() : formats.stream()
+                .map(format -> format.toLowerCase(Locale.ROOT))
+                .filter(format -> "webp".equals(format) || "mp4".equals(format))
+                .filter(format -> isEncoderAvailable(animationEncoderName(format)))
+                .distinct()
+                .toList();
+        if (!validateInputFile(inputFile) || usable.isEmpty()){
+            return Map.of();
+        }
+
+        Instant start = Instant.now();
+        Map<String, File> outputs = new LinkedHashMap<>();
+        int frames = recordFrames(inputFile, (width, height) -> {
+            double ratio = Math.min(Math.min(properties.getMaxWidth() / (double) width,
+                    properties.getMaxHeight() / (double) height), 1.0);
+            int w = Math.max(1, (int) (width * ratio));
+            int h = Math.max(1, (int) (height * ratio));
+            List<FFmpegFrameRecorder> recorders = new ArrayList<>();
+            for (String format : usable){
+                File out = scratch.newFile("animated-", "." + format, inputFile.length());
+                outputs.put(format, out);
+                recorders.add(animationRecorder(out, format, w, h, formatProperties.getWebpQuality()));
+            }
+            return recorders;
+        }, () -> outputs.values().forEach(File::delete));
+
+        outputs.entrySet().removeIf(entry -> {
+            if (entry.getValue().length() < inputFile.length()){
+                return false;
+            }
+            logger.debug("Dropping {} transcode of {}: {} bytes is not smaller than {} bytes", entry.getKey(),
+                    inputFile.getName(), entry.getValue().length(), inputFile.length());
+            entry.getValue().delete();
+            return true;
+        });
+        logger.info("Transcoded {} frames of {} in {} ms: {} bytes -> {}", frames, inputFile.getName(),
+                Duration.between(start, Instant.now()).toMillis(), inputFile.length(),
+                outputs.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue().length()).toList());
+        return outputs;
+    }
+
+    /**
+     * Renditions of an animation are animated WebP, every size recorded in the same pass over the frames.
+     * Without an animated WebP encoder there are none, and clients get the GIF itself rather than a still of its
+     * first frame
+     */
+    private List<RenditionResult> createAnimatedRenditions(File inputFile, List<ImageRenditionProperties.Size> sizes)
+            throws IOException {
+        if (!isEncoderAvailable(animationEncoderName("webp"))){
+            logger.info("No animated WebP encoder, {} gets no renditions", inputFile.getName());
+            return List.of();
+        }
+        Instant start = Instant.now();
+        List<RenditionResult> results = new ArrayList<>();
+        recordFrames(inputFile, (width, height) -> {
+            int longSide = Math.max(width, height);
+            List<FFmpegFrameRecorder> recorders = new ArrayList<>();
+            for (ImageRenditionProperties.Size size : sizes.stream()
+                    .filter(size -> size.getMaxDimension() < longSide)
+                    .sorted(Comparator.comparingInt(ImageRenditionProperties.Size::getMaxDimension).reversed())
+                    .toList()){
+                double ratio = size.getMaxDimension() / (double) longSide;
+                int w = Math.max(1, (int) Math.round(width * ratio));
+                int h = Math.max(1, (int) Math.round(height * ratio));
+                File out = scratch.newFile("rendition-" + size.getName() + "-", ".webp", inputFile.length());
+                results.add(new RenditionResult(size.getName(), out, w, h, Map.of()));
+                recorders.add(animationRecorder(out, "webp", w, h, formatProperties.getWebpQuality()));
+            }
+            return recorders;
+        }, () -> results.forEach(RenditionResult::deleteFiles));
+
+        logger.info("Created {} animated renditions for {} in {} ms", results.size(), inputFile.getName(),
+                Duration.between(start, Instant.now()).toMillis());
+        return results;
+    }
+
+    // An animation rendered as animated WebP, fit inside the box like a still; never upscaled
+    private File renderAnimation(File inputFile, int maxWidth, int maxHeight, float quality) throws IOException {
+        if (!isEncoderAvailable(animationEncoderName("webp"))){
+            throw new IOException("No encoder available for animated webp");
+        }
+        File[] out = new File[1];
+        recordFrames(inputFile, (width, height) -> {
+            double widthRatio = maxWidth > 0 ? maxWidth / (double) width : 1.0;
+            double heightRatio = maxHeight > 0 ? maxHeight / (double) height : 1.0;
+            double ratio = Math.min(Math.min(widthRatio, heightRatio), 1.0);
+            out[0] = scratch.newFile("render-", ".webp", inputFile.length());
+            return List.of(animationRecorder(out[0], "webp",
+                    Math.max(1, (int) Math.round(width * ratio)), Math.max(1, (int) Math.round(height * ratio)),
+                    Math.min(1f, Math.max(0f, quality))));
+        }, () -> {
+            if (out[0] != null){
+                out[0].delete();
+            }
+        });
+        return out[0];
+    }
+
+    /**
+     * Decodes every frame of an animation once and records it with each of the recorders, under the transcode
+     * deadline, which is checked between frames
+     *
+     * @param recorders creates the (not yet started) recorders from the animation's dimensions
+     * @param cleanup deletes what the recorders wrote, run if the pass fails
+     * @return the number of frames
+     */
+    private int recordFrames(File inputFile, AnimationRecorders recorders, Runnable cleanup) throws IOException {
+        List<FFmpegFrameRecorder> started = new ArrayList<>();
+        int frames = 0;
+        ProcessingWatchdog.Deadline transcode = watchdog.start("transcode", inputFile.getName(), timeouts.getTranscodeTimeout());
+        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(transcode.guard(new FileInputStream(inputFile)))){
+            // RGBA keeps GIF transparency for WebP, the MP4 encoder simply ignores alpha
+            grabber.setPixelFormat(avutil.AV_PIX_FMT_RGBA);
+            grabber.start();
+
+            for (FFmpegFrameRecorder recorder : recorders.create(grabber.getImageWidth(), grabber.getImageHeight())){
+                started.add(recorder);
+                recorder.start();
+            }
+
+            Frame frame;
+            while ((frame = grabber.grabImage()) != null){
+                long timestamp = grabber.getTimestamp();
+                for (FFmpegFrameRecorder recorder : started){
+                    // Zero-delay GIF frames would repeat a timestamp, keep them strictly increasing
+                    if (timestamp > recorder.getTimestamp()){
+                        recorder.setTimestamp(timestamp);
+                    }
+                    recorder.record(frame, avutil.AV_PIX_FMT_RGBA);
+                }
+                frames++;
+                transcode.check();
+            }
+            for (FFmpegFrameRecorder recorder : started){
+                recorder.stop();
+            }
+            grabber.stop();
+            transcode.check();
+            return frames;
+        } catch (FrameGrabber.Exception | FrameRecorder.Exception e){
+            cleanup.run();
+            logger.error("Failed to transcode animation: {}", inputFile.getName(), e);
+            throw transcode.translate(new IOException("Animation transcode failed", e));
+        } catch (IOException | RuntimeException e){
+            cleanup.run();
+            throw e;
+        } finally {
+            for (FFmpegFrameRecorder recorder : started){
+                try{
+                    recorder.close();
+                } catch (FrameRecorder.Exception e){
+                    logger.warn("Failed to release recorder for {}", inputFile.getName(), e);
+                }
+            }
+            transcode.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface AnimationRecorders {
+        List<FFmpegFrameRecorder> create(int width, int height) throws IOException;
+    }
+
+    /**
+     * Animated WebP loops forever like a GIF; MP4 is muted H.264 with even dimensions and the index up front
+     *
+     * @param webpQuality 0.0 - 1.0, for WebP only
+     */
+    private FFmpegFrameRecorder animationRecorder(File out, String format, int width, int height, float webpQuality){
+        boolean mp4 = "mp4".equals(format);
+        // 4:2:0 chroma needs even dimensions
+        int w = mp4 ? Math.max(2, width & ~1) : width;
+        int h = mp4 ? Math.max(2, height & ~1) : height;
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(out, w, h, 0);
+        recorder.setFormat(format);
+        recorder.setVideoCodecName(animationEncoderName(format));
+        // GIF delays are in 1/100 s
+        recorder.setFrameRate(100);
+        if (mp4){
+            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            recorder.setVideoBitrate((int) Math.max(100_000, w * (long) h * formatProperties.getMp4BitsPerPixel()));
+            recorder.setOption("movflags", "+faststart");
+        } else {
+            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUVA420P);
+            recorder.setVideoOption("quality", String.valueOf(Math.round(webpQuality * 100)));
+            recorder.setOption("loop", "0");
+        }
+        return recorder;
+    }
+
+    /**
+     * Encodes the image in every format, registering each temp file before it is written so callers can clean up.
+     * Alternates that come out no smaller than the primary file are dropped, serving them would only cost bytes
+     */
+    private void encodeAlternateSet(BufferedImage image, File primary, String prefix, List<String> formats,
+                                    Map<String, File> into, ProcessingWatchdog.Deadline deadline)
+            throws IOException {
+        for (String format : formats){
+            // The AVIF muxer has no alpha plane support here, keep transparent images on WebP
+            if ("avif".equals(format) && hasTransparency(image)){
+                continue;
+            }
+            File out = scratch.newFile(prefix, "." + format, primary.length());
+            into.put(format, out);
+            encodeAlternate(image, out, format, formatProperties.getWebpQuality());
+            deadline.check();
+            if (out.length() >= primary.length()){
+                logger.debug("Dropping {} alternate of {}: {} bytes is not smaller than {} bytes",
+                        format, primary.getName(), out.length(), primary.length());
+                into.remove(format);
+                out.delete();
+            }
+        }
+    }
+
+    private List<String> usableFormats(List<String> formats){
+        if (formats == null){
+            return List.of();
+        }
+        return formats.stream()
+                .map(format -> format.toLowerCase(Locale.ROOT))
+                .filter(this::isAlternateFormat)
+                .filter(format -> isEncoderAvailable(encoderName(format)))
+                .distinct()
+                .toList();
+    }
+
+    private boolean isAlternateFormat(String format){
+        return "webp".equals(format) || "avif".equals(format);
+    }
+
+    private boolean isEncoderAvailable(String encoder){
+        return encoderAvailability.computeIfAbsent(encoder, e -> {
+            boolean available = avcodec.avcodec_find_encoder_by_name(e) != null;
+            if (!available){
+                logger.warn("Encoder {} is not available in this FFmpeg build, skipping its output", e);
+            }
+            return available;
+        });
+    }
+
+    private static String encoderName(String format){
+        return "avif".equals(format) ? "libaom-av1" : "libwebp";
+    }
+
+    private static String animationEncoderName(String format){
+        return "mp4".equals(format) ? "libopenh264" : "libwebp_anim";
+    }
+
+    private boolean isGif(File inputFile){
+        return ".gif".equals(getFileExtension(inputFile).toLowerCase(Locale.ROOT));
+    }
+
+    private boolean isPng(File inputFile){
+        return ".png".equals(getFileExtension(inputFile).toLowerCase(Locale.ROOT));
+    }
+
+    private boolean isJpeg(File inputFile){
+        return getFileExtension(inputFile).toLowerCase(Locale.ROOT).matches("\\.(jpe?g)");
+    }
+
+    // Codec backends name formats by extension without the dot, "jpeg" is "jpg"
+    private String formatOf(File inputFile){
+        return isJpeg(inputFile) ? "jpg" : getFileExtension(inputFile).toLowerCase(Locale.ROOT).replace(".", "");
+    }
+
+    /**
+     * Decode the first frame of the file into a BufferedImage, under the decode deadline
+     */
+    private BufferedImage decodeFrame(File inputFile) throws IOException {
+        return decodeFrame(inputFile, false);
+    }
+
+    /**
+     * Decode the first frame, optionally keeping the alpha channel (TYPE_4BYTE_ABGR instead of TYPE_3BYTE_BGR)
+     */
+    private BufferedImage decodeFrame(File inputFile, boolean keepAlpha) throws IOException {
+        // The header is only read when the pixel count can change the backend
+        long pixels = codecs.needsPixelCount(formatOf(inputFile)) ? pixelCount(probeSize(inputFile)) : Long.MAX_VALUE;
+        return decodeFrame(inputFile, keepAlpha, pixels);
+    }
+
+    /**
+     * Decode with the backend selected for the format and size, falling back to FFmpeg for files it can't handle
+     */
+    private BufferedImage decodeFrame(File inputFile, boolean keepAlpha, long pixels) throws IOException {
+        String format = formatOf(inputFile);
+        CodecBackend backend = codecs.decoderFor(format, pixels);
+        ProcessingWatchdog.Deadline decode = watchdog.start("decode", inputFile.getName(), timeouts.getDecodeTimeout());
+        try{
+            BufferedImage image = decodeWith(backend, inputFile, format, keepAlpha, decode);
+            if (image == null){
+                logger.debug("{} can't decode {}, using {}", backend.name(), inputFile.getName(), codecs.fallback().name());
+                backend = codecs.fallback();
+                image = decodeWith(backend, inputFile, format, keepAlpha, decode);
+            }
+            decode.check();
+            if (!isJpeg(inputFile)){
+                return image;
+            }
+            // Outputs carry no EXIF or ICC, so the orientation and the color profile have to be in the pixels
+            image = jpegOutput.orient(image, inputFile);
+            return backend.appliesColorProfile() ? image : jpegOutput.toSrgb(image, inputFile);
+        } catch (IOException e){
+            logger.error("Failed to decode image: {}", inputFile.getName(), e);
+            throw decode.translate(new IOException("Image decode failed", e));
+        } finally {
+            decode.close();
+        }
+    }
+
+    // It reads through a guarded stream so the watchdog can abort a decode that hangs
+    private BufferedImage decodeWith(CodecBackend backend, File inputFile, String format, boolean keepAlpha,
+                                     ProcessingWatchdog.Deadline decode) throws IOException {
+        try(InputStream in = decode.guard(new FileInputStream(inputFile))){
+            return backend.decode(in, format, keepAlpha);
+        }
+    }
+
+    /**
+     * Read the stored dimensions (before orientation) from the header, under the probe deadline
+     */
+    private Dimension probeSize(File inputFile) throws IOException {
+        String format = formatOf(inputFile);
+        ProcessingWatchdog.Deadline probe = watchdog.start("probe", inputFile.getName(), timeouts.getProbeTimeout());
+        try{
+            for (CodecBackend backend : codecs.probeOrder(format)){
+                try(InputStream in = probe.guard(new FileInputStream(inputFile))){
+                    Dimension size = backend.probe(in, format);
+                    if (size != null){
+                        probe.check();
+                        return size;
+                    }
+                }
+            }
+            throw new IOException("No codec could read the header");
+        } catch (IOException e){
+            throw probe.translate(new IOException("Failed to inspect image dimensions", e));
+        } finally {
+            probe.close();
+        }
+    }
+
+    private static long pixelCount(Dimension size){
+        return (long) size.width * size.height;
+    }
+
+    /**
+     * Write a lossless still (PNG) with the backend selected for its size
+     */
+    private void encodeLossless(BufferedImage image, String format, OutputStream out) throws IOException {
+        codecs.encoderFor(format, (long) image.getWidth() * image.getHeight()).encode(image, format, out);
+    }
+
+    /**
+     * Write a single frame: JPEGs through the JPEG output stage, PNGs with the backend selected for their size
+     */
+    private void encodeFrame(BufferedImage image, File out, String format, float quality) throws IOException {
+        if ("jpg".equals(format)){
+            jpegOutput.write(image, out, quality);
+            return;
+        }
+        try(OutputStream sink = new BufferedOutputStream(new FileOutputStream(out))){
+            encodeLossless(image, format, sink);
+        }
+    }
+
+    /**
+     * Write a single WebP or AVIF still with the bundled libwebp / libaom encoders
+     *
+     * @param webpQuality 0.0 - 1.0, for WebP only
+     */
+    private void encodeAlternate(BufferedImage image, File out, String format, float webpQuality)
+            throws FrameRecorder.Exception {
+        BufferedImage source = FFmpegCodecBackend.toRecordable(image);
+        boolean alpha = hasTransparency(source);
+        try(FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(out, source.getWidth(), source.getHeight())){
+            recorder.setFormat(format);
+            recorder.setFrameRate(1);
+            recorder.setVideoCodecName(encoderName(format));
+            if ("avif".equals(format)){
+                recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+                recorder.setVideoOption("crf", String.valueOf(formatProperties.getAvifCrf()));
+                recorder.setVideoOption("cpu-used", String.valueOf(formatProperties.getAvifSpeed()));
+                recorder.setVideoOption("still-picture", "1");
+            } else {
+                recorder.setPixelFormat(alpha ? avutil.AV_PIX_FMT_YUVA420P : avutil.AV_PIX_FMT_YUV420P);
+                recorder.setVideoOption("quality", String.valueOf(Math.round(webpQuality * 100)));
+            }
+            recorder.start();
+            ffmpeg.record(recorder, source);
+            recorder.stop();
+        }
+    }
+
+    // True if any pixel is not fully opaque; scans the raster directly for ABGR images
+    private static boolean hasTransparency(BufferedImage image){
+        if (!image.getColorModel().hasAlpha()){
+            return false;
+        }
+        if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR
+                && image.getRaster().getDataBuffer() instanceof DataBufferByte buffer){
+            byte[] data = buffer.getData();
+            for (int i = 0; i < data.length; i += 4){
+                if (data[i] != (byte) 0xFF){
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int y = 0; y < image.getHeight(); y++){
+            for (int x = 0; x < image.getWidth(); x++){
+                if ((image.getRGB(x, y) >>> 24) != 0xFF){
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 }
@@ -1,9 +1,11 @@
 package com.example.spring_security.service;
 
+import com.example.spring_security.dto.SignedUrlResponse;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
+import java.io.InputStream;
 
 /***
  * This is a core abstraction that defines what operations your file storage layer must support
@@ -18,6 +20,12 @@ public interface FileStorageService {
     // Loads the file as a Resource (e.g. for streaming or download)
     Resource loadFile(String filename);
 
+    // Where the file is, with its size, modification time and content type, without touching the disk when indexed
+    StoredFile describeFile(String filename);
+
+    // The file as a file of its own, for decoders that need a path (a temporary copy if it is packed); close when done
+    LocalFile localFile(String filename);
+
     // Deletes the file physically from storage
     boolean deleteFile(String fileName);
 
@@ -26,10 +34,31 @@ public interface FileStorageService {
 
     String storeOriginalFile(MultipartFile file);
 
+    // Streams the upload through SHA-256 into a temporary file, for content-addressed storage
+    StagedFile stageOriginalFile(MultipartFile file);
+
+    // Streams content into the original location under a new unique name, failing as soon as it passes maxSize
+    String storeOriginalFile(InputStream content, String extension, long maxSize);
+
+    // As stageOriginalFile, from a stream, failing as soon as it passes maxSize
+    StagedFile stageOriginalFile(InputStream content, String extension, long maxSize);
+
+    // Moves a staged upload into the original location under the given name, unless a file is stored there already
+    String storeOriginalFile(StagedFile staged, String fileName);
+
     String storeOptimizedFile(File file);
 
+    // Moves a processed image into the optimized location under a new unique name, releasing the buffer
+    String storeOptimizedFile(ImageBuffer buffer);
+
+    // Stores the file in the optimized location under the given name (alternate encodings share the primary's base name)
+    String storeOptimizedFile(File file, String fileName);
+
     String getOriginalFileUrl(String fileName);
 
     String getOptimizedFileUrl(String fileName);
 
+    // An expiring URL that serves the file without authentication, for images that aren't public
+    SignedUrlResponse getSignedFileUrl(String fileName);
+
 }
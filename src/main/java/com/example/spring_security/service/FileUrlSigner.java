@@ -0,0 +1,91 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageSignedUrlProperties;
+import com.example.spring_security.dto.SignedUrlResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Signs and checks expiring file URLs of the form {prefix}/{expires}/{signature}/{fileName}.
+ * The signature is an HMAC-SHA256 over the expiry and the file name, truncated to 128 bits,
+ * so a URL can't be pointed at another file or kept alive past its expiry
+ */
+@Service
+public class FileUrlSigner {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileUrlSigner.class);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_BYTES = 16;
+
+    private final ImageSignedUrlProperties properties;
+    // Mac isn't thread safe; cloning an initialized one is much cheaper than Mac.getInstance + init per call
+    private final Mac prototype;
+
+    public FileUrlSigner(ImageSignedUrlProperties properties){
+        this.properties = properties;
+        byte[] key;
+        if (properties.getSecretKey() == null || properties.getSecretKey().isBlank()){
+            logger.warn("No signing key configured for signed file URLs, using a random one: "
+                    + "URLs won't survive a restart or work across instances");
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = Base64.getDecoder().decode(properties.getSecretKey());
+            if (key.length < 32){
+                throw new IllegalStateException("Signed URL key must be at least 32 bytes");
+            }
+        }
+        try{
+            this.prototype = Mac.getInstance(ALGORITHM);
+            prototype.init(new SecretKeySpec(key, ALGORITHM));
+        }catch (GeneralSecurityException e){
+            throw new IllegalStateException("HMAC-SHA256 unavailable", e);
+        }
+    }
+
+    /**
+     * @param fileName the stored file name
+     * @return a URL for the file valid for the configured ttl (rounded up to the expiry granularity)
+     */
+    public SignedUrlResponse sign(String fileName){
+        long granularity = Math.max(1, properties.getExpiryGranularity().toSeconds());
+        long expires = Instant.now().plus(properties.getTtl()).getEpochSecond();
+        expires = (expires + granularity - 1) / granularity * granularity;
+        String url = properties.getPathPrefix() + "/" + expires + "/" + signature(fileName, expires) + "/" + fileName;
+        return new SignedUrlResponse(url, Instant.ofEpochSecond(expires));
+    }
+
+    /**
+     * Constant-time check of a URL's signature. Expiry is checked separately, by the caller
+     *
+     * @param expires epoch seconds from the URL
+     * @param signature the signature from the URL
+     */
+    public boolean isValid(String fileName, long expires, String signature){
+        byte[] expected = signature(fileName, expires).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String signature(String fileName, long expires){
+        Mac mac;
+        try{
+            mac = (Mac) prototype.clone();
+        }catch (CloneNotSupportedException e){
+            throw new IllegalStateException("HMAC provider doesn't support cloning", e);
+        }
+        // The expiry is all digits, so the first newline separates the parts and no two pairs sign the same bytes
+        byte[] digest = mac.doFinal((expires + "\n" + fileName).getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, SIGNATURE_BYTES));
+    }
+}
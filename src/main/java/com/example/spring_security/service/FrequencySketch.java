@@ -0,0 +1,84 @@
+package com.example.spring_security.service;
+
+/**
+ * Approximate access counts for the hot cache's admission policy (TinyLFU): a count-min sketch of 4-bit counters,
+ * four per key, all halved every sample period so old popularity fades.
+ * Updated without locking; under contention an increment can get lost, which only makes an estimate slightly low
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int samplePeriod;
+    private int additions;
+
+    /**
+     * @param expectedEntries about how many keys the cache holds; the sketch tracks ten times that many accesses
+     *                        before aging
+     */
+    FrequencySketch(int expectedEntries){
+        int size = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.samplePeriod = 10 * size;
+    }
+
+    /**
+     * @return the estimated number of recent accesses, 0 - 15
+     */
+    int frequency(Object key){
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++){
+            long word = table[indexOf(hash, i)];
+            frequency = Math.min(frequency, (int) ((word >>> offsetOf(hash, i)) & 0xF));
+        }
+        return frequency;
+    }
+
+    void increment(Object key){
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++){
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            long word = table[index];
+            if (((word >>> offset) & 0xF) != 0xF){
+                table[index] = word + (1L << offset);
+                added = true;
+            }
+        }
+        if (added && ++additions >= samplePeriod){
+            reset();
+        }
+    }
+
+    // Halve every counter, keeping relative popularity while letting yesterday's favourites fall out
+    private void reset(){
+        for (int i = 0; i < table.length; i++){
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i){
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    // Which of the 16 counters in the word, a different nibble of the hash per function
+    private static int offsetOf(int hash, int i){
+        return ((hash >>> (i << 3)) & 0xF) << 2;
+    }
+
+    private static int spread(int hash){
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
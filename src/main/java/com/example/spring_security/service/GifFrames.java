@@ -0,0 +1,85 @@
+package com.example.spring_security.service;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Counts a GIF's frames by walking its block structure (GIF89a spec): image descriptors are counted, color
+ * tables, extensions and LZW data are skipped by their lengths, so nothing is decoded and memory use doesn't
+ * depend on the canvas size. Cheap enough for the request thread
+ */
+final class GifFrames {
+
+    private static final int HEADER_SIZE = 13;
+    private static final int IMAGE_DESCRIPTOR = 0x2C;
+    private static final int EXTENSION = 0x21;
+    // Left, top, width, height (2 bytes each) and the packed fields
+    private static final int DESCRIPTOR_SIZE = 9;
+
+    private GifFrames(){
+    }
+
+    /**
+     * @return true if the file is a GIF with more than one image; false for anything else, a truncated file included
+     * @throws IOException if the file can't be read
+     */
+    static boolean isAnimated(Path file) throws IOException {
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(file))){
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (header.length < HEADER_SIZE || !new String(header, 0, 4, StandardCharsets.US_ASCII).equals("GIF8")){
+                return false;
+            }
+            // Logical screen descriptor: a global color table follows if its flag is set
+            skipColorTable(in, header[10]);
+            int frames = 0;
+            while (true){
+                int block = in.read();
+                if (block == IMAGE_DESCRIPTOR){
+                    if (++frames > 1){
+                        return true;
+                    }
+                    byte[] descriptor = in.readNBytes(DESCRIPTOR_SIZE);
+                    if (descriptor.length < DESCRIPTOR_SIZE){
+                        return false;
+                    }
+                    skipColorTable(in, descriptor[8]);
+                    // LZW minimum code size, then the image data
+                    in.skipNBytes(1);
+                    skipSubBlocks(in);
+                } else if (block == EXTENSION){
+                    // Label, then the extension's data (graphic control, NETSCAPE looping, comments...)
+                    in.skipNBytes(1);
+                    skipSubBlocks(in);
+                } else {
+                    // Trailer, end of file, or not a block we know
+                    return false;
+                }
+            }
+        }catch (EOFException e){
+            return false;
+        }
+    }
+
+    // Color tables are 3 * 2^(size + 1) bytes, present if the top bit of the packed fields is set
+    private static void skipColorTable(InputStream in, byte packed) throws IOException {
+        if ((packed & 0x80) != 0){
+            in.skipNBytes(3L << ((packed & 0x07) + 1));
+        }
+    }
+
+    // Data sub-blocks: a length byte and that many bytes, up to a zero length
+    private static void skipSubBlocks(InputStream in) throws IOException {
+        int length;
+        while ((length = in.read()) > 0){
+            in.skipNBytes(length);
+        }
+        if (length < 0){
+            throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.spring_security.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consistent-hash ring over members with stable keys (a disk's mount path, a node's base URL), flattened into
+ * a table of 65536 slots so the owner of a stored file name is one array read. A member added to the list only
+ * takes its share of slots over from the others, and the order members are listed in doesn't matter.
+ * Names hash without their extension, so a file's alternate encodings have the same owner
+ */
+final class HashRing {
+
+    private static final int SLOTS = 1 << 16;
+
+    private final int members;
+    // Virtual node positions, sorted, and the member each belongs to
+    private final long[] ring;
+    private final int[] ringMembers;
+    // The member owning each slot: the first virtual node at or after the slot's start
+    private final int[] slots = new int[SLOTS];
+
+    /**
+     * @param keys one per member, in the order owner() reports members by
+     * @param virtualNodes points per member; more spread the slots more evenly
+     */
+    HashRing(List<String> keys, int virtualNodes){
+        if (keys.isEmpty()){
+            throw new IllegalArgumentException("A ring needs at least one member");
+        }
+        this.members = keys.size();
+        long[][] nodes = new long[keys.size() * virtualNodes][];
+        int n = 0;
+        for (int member = 0; member < keys.size(); member++){
+            for (int v = 0; v < virtualNodes; v++){
+                nodes[n++] = new long[]{position(keys.get(member) + "#" + v), member};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+        this.ring = new long[nodes.length];
+        this.ringMembers = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++){
+            ring[i] = nodes[i][0];
+            ringMembers[i] = (int) nodes[i][1];
+        }
+        for (int slot = 0; slot < SLOTS; slot++){
+            slots[slot] = ringMembers[successor(slot)];
+        }
+    }
+
+    /**
+     * @return index of the member the name belongs to
+     */
+    int owner(String fileName){
+        return slots[slot(fileName)];
+    }
+
+    /**
+     * @return every member in ring order from the name's slot, its owner first: where it goes if the owner can't
+     */
+    List<Integer> preference(String fileName){
+        if (members == 1){
+            return List.of(0);
+        }
+        Set<Integer> preference = new LinkedHashSet<>();
+        int start = successor(slot(fileName));
+        for (int i = 0; i < ring.length && preference.size() < members; i++){
+            preference.add(ringMembers[(start + i) % ring.length]);
+        }
+        return new ArrayList<>(preference);
+    }
+
+    // Index of the first virtual node at or after the slot's start, wrapping round
+    private int successor(int slot){
+        long start = (long) slot << 16;
+        int index = Arrays.binarySearch(ring, start);
+        if (index < 0){
+            index = -index - 1;
+        }
+        return index == ring.length ? 0 : index;
+    }
+
+    // Bytes 4-5 of the name digest: independent of the shard directories, which take the first bytes
+    private static int slot(String fileName){
+        byte[] digest = ShardLayout.nameDigest(fileName);
+        return ((digest[4] & 0xff) << 8) | (digest[5] & 0xff);
+    }
+
+    // A point on the ring, 0 to 2^32 - 1
+    private static long position(String key){
+        try{
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return Integer.toUnsignedLong(ByteBuffer.wrap(digest).getInt());
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageHotCacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Off-heap copies of the most requested small files, so the few images that take most of the downloads
+ * (avatars, front-page posts) don't depend on the page cache that large originals keep flushing.
+ *
+ * Memory is direct ByteBuffer slabs, taken one at a time up to the budget and carved into chunks of one size class
+ * (memcached style), so cached bytes never move and the heap never sees them. A full size class evicts by CLOCK,
+ * and a new file only replaces the victim if the TinyLFU sketch says it is requested more often:
+ * a burst of one-off downloads can't flush the files that are popular all day.
+ * Slabs stay with the size class that first took them
+ */
+@Service
+public class HotImageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotImageCache.class);
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    // Chunk sizes grow by this factor per size class, the most a chunk can waste is about a fifth of it
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final boolean enabled;
+    private final long maxFileSize;
+    private final int slabSize;
+    private final List<SizeClass> sizeClasses = new ArrayList<>();
+    private final FrequencySketch sketch;
+    // Written under the lock, read without it
+    private final Map<Path, CachedFile> entries = new ConcurrentHashMap<>();
+    // Guards slab allocation, size class state and changes to entries
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private int maxSlabs;
+    private int slabs;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter bytesServed;
+    private final Counter admissions;
+    private final Counter rejections;
+    private final Counter evictions;
+
+    public HotImageCache(ImageHotCacheProperties properties, MeterRegistry meterRegistry){
+        this.enabled = properties.isEnabled();
+        this.maxFileSize = properties.getMaxFileSize().toBytes();
+        this.slabSize = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(properties.getSlabSize().toBytes(), maxFileSize));
+        this.maxSlabs = (int) (properties.getBudget().toBytes() / slabSize);
+
+        long chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < maxFileSize){
+            sizeClasses.add(new SizeClass((int) chunkSize));
+            // Rounded to whole kilobytes so chunks stay aligned
+            chunkSize = ((long) (chunkSize * GROWTH_FACTOR) + 1023) & ~1023L;
+        }
+        sizeClasses.add(new SizeClass((int) Math.max(maxFileSize, MIN_CHUNK_SIZE)));
+        // Sized for the budget filled with the smallest files: one long (16 counters) per file
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, properties.getBudget().toBytes() / MIN_CHUNK_SIZE));
+
+        this.hits = requests(meterRegistry, "hit");
+        this.misses = requests(meterRegistry, "miss");
+        this.bytesServed = Counter.builder("image.hotcache.served")
+                .description("Bytes sent to clients from the hot cache instead of disk")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.admissions = admissions(meterRegistry, "admitted");
+        this.rejections = admissions(meterRegistry, "rejected");
+        this.evictions = Counter.builder("image.hotcache.evictions")
+                .description("Files evicted to make room for more frequently requested ones")
+                .register(meterRegistry);
+        Gauge.builder("image.hotcache.hit.ratio", this, HotImageCache::hitRatio)
+                .description("Share of cacheable requests answered from memory")
+                .register(meterRegistry);
+        Gauge.builder("image.hotcache.size", cachedBytes, AtomicLong::get)
+                .description("Bytes of file content held in the hot cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("image.hotcache.allocated", this, cache -> (double) cache.slabs * cache.slabSize)
+                .description("Direct memory taken by hot cache slabs")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("image.hotcache.entries", entries, Map::size)
+                .description("Files held in the hot cache")
+                .register(meterRegistry);
+
+        if (enabled){
+            logger.info("Hot image cache: {} MB budget, files up to {} KB, {} size classes",
+                    properties.getBudget().toMegabytes(), maxFileSize / 1024, sizeClasses.size());
+        }
+    }
+
+    /**
+     * Look the file up, and on a miss try to admit it. Files over the size limit aren't counted as requests
+     *
+     * @return the cached bytes, to be closed once written; null to serve the file from disk
+     */
+    public CachedFile acquire(StoredFile file){
+        // Packed files are in mapped memory already, and share their segment's path
+        if (!enabled || file.packed() || file.size() == 0 || file.size() > maxFileSize){
+            return null;
+        }
+        sketch.increment(file.path());
+        CachedFile cached = entries.get(file.path());
+        if (cached != null && cached.matches(file) && cached.retain()){
+            cached.referenced = true;
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        if (cached != null && !cached.matches(file)){
+            invalidate(file.path());
+        }
+        return admit(file);
+    }
+
+    /**
+     * Drop a file (deleted, or replaced on disk). Clients still writing it out finish from the old bytes
+     */
+    public void invalidate(Path path){
+        if (!enabled){
+            return;
+        }
+        lock.lock();
+        try{
+            CachedFile cached = entries.get(path);
+            if (cached != null){
+                remove(cached);
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private CachedFile admit(StoredFile file){
+        SizeClass sizeClass = sizeClassFor(file.size());
+        CachedFile candidate;
+        lock.lock();
+        try{
+            ByteBuffer chunk = allocate(sizeClass);
+            if (chunk == null){
+                CachedFile victim = sizeClass.victim();
+                if (victim == null || sketch.frequency(file.path()) <= sketch.frequency(victim.path)){
+                    rejections.increment();
+                    return null;
+                }
+                remove(victim);
+                evictions.increment();
+                chunk = sizeClass.free.poll();
+                if (chunk == null){
+                    // A client took the victim between the check and the removal; its chunk comes back after
+                    rejections.increment();
+                    return null;
+                }
+            }
+            candidate = new CachedFile(file, sizeClass, chunk);
+        }finally {
+            lock.unlock();
+        }
+
+        // Read outside the lock, straight into direct memory
+        try(FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ)){
+            ByteBuffer target = candidate.chunk.duplicate().limit((int) file.size());
+            while (target.hasRemaining()){
+                if (channel.read(target, target.position()) < 0){
+                    throw new EOFException("File shorter than indexed: " + file.path());
+                }
+            }
+        }catch (IOException e){
+            logger.debug("Not caching {}: {}", file.path(), e.toString());
+            candidate.close();
+            return null;
+        }
+
+        lock.lock();
+        try{
+            if (entries.putIfAbsent(file.path(), candidate) == null){
+                // The cache's own reference, next to the caller's
+                candidate.refs.incrementAndGet();
+                sizeClass.add(candidate);
+                cachedBytes.addAndGet(candidate.size);
+                admissions.increment();
+            }
+            // Otherwise another request cached it first, this copy is freed once the caller is done with it
+        }finally {
+            lock.unlock();
+        }
+        return candidate;
+    }
+
+    // A free chunk of the class, carving a new slab while the budget allows. Lock held
+    private ByteBuffer allocate(SizeClass sizeClass){
+        ByteBuffer chunk = sizeClass.free.poll();
+        if (chunk != null || slabs >= maxSlabs){
+            return chunk;
+        }
+        ByteBuffer slab;
+        try{
+            slab = ByteBuffer.allocateDirect(slabSize);
+        }catch (OutOfMemoryError e){
+            // -XX:MaxDirectMemorySize is below the budget; stop growing rather than fail requests
+            logger.warn("Hot image cache capped at {} slabs: {}", slabs, e.getMessage());
+            maxSlabs = slabs;
+            return null;
+        }
+        slabs++;
+        for (int offset = 0; offset + sizeClass.chunkSize <= slabSize; offset += sizeClass.chunkSize){
+            sizeClass.free.add(slab.slice(offset, sizeClass.chunkSize));
+        }
+        return sizeClass.free.poll();
+    }
+
+    // Lock held
+    private void remove(CachedFile cached){
+        entries.remove(cached.path, cached);
+        cached.sizeClass.remove(cached);
+        cachedBytes.addAndGet(-cached.size);
+        cached.close();
+    }
+
+    private void free(CachedFile cached){
+        lock.lock();
+        try{
+            cached.sizeClass.free.add(cached.chunk);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private SizeClass sizeClassFor(long size){
+        for (SizeClass sizeClass : sizeClasses){
+            if (size <= sizeClass.chunkSize){
+                return sizeClass;
+            }
+        }
+        throw new IllegalArgumentException("File larger than the biggest chunk: " + size);
+    }
+
+    private double hitRatio(){
+        double requests = hits.count() + misses.count();
+        return requests == 0 ? 0 : hits.count() / requests;
+    }
+
+    private static Counter requests(MeterRegistry meterRegistry, String result){
+        return Counter.builder("image.hotcache.requests")
+                .description("Requests for files small enough for the hot cache")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static Counter admissions(MeterRegistry meterRegistry, String result){
+        return Counter.builder("image.hotcache.admissions")
+                .description("Cache misses the admission policy let in or kept out")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * A cached file's bytes, reference counted so eviction never hands out a chunk a client is still reading
+     */
+    public final class CachedFile implements AutoCloseable {
+
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final SizeClass sizeClass;
+        private final ByteBuffer chunk;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        // CLOCK bit, set on every hit and cleared as the hand passes
+        private volatile boolean referenced;
+        // Position in the size class's entry list. Lock held
+        private int slot = -1;
+
+        private CachedFile(StoredFile file, SizeClass sizeClass, ByteBuffer chunk){
+            this.path = file.path();
+            this.size = file.size();
+            this.lastModified = file.lastModified();
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+        }
+
+        /**
+         * Write part of the file to the client
+         *
+         * @param start offset of the first byte
+         * @param count number of bytes
+         */
+        public void writeTo(WritableByteChannel out, long start, long count) throws IOException {
+            ByteBuffer bytes = chunk.slice((int) start, (int) count);
+            while (bytes.hasRemaining()){
+                out.write(bytes);
+            }
+            bytesServed.increment(count);
+        }
+
+        @Override
+        public void close(){
+            if (refs.decrementAndGet() == 0){
+                free(this);
+            }
+        }
+
+        private boolean matches(StoredFile file){
+            return size == file.size() && lastModified == file.lastModified();
+        }
+
+        // Fails once the last reference is gone and the chunk may already hold another file
+        private boolean retain(){
+            for (;;){
+                int current = refs.get();
+                if (current == 0){
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)){
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Chunks of one size, with the files in them in CLOCK order. Lock held for everything
+     */
+    private static final class SizeClass {
+
+        private final int chunkSize;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final List<CachedFile> cached = new ArrayList<>();
+        private int hand;
+
+        private SizeClass(int chunkSize){
+            this.chunkSize = chunkSize;
+        }
+
+        private void add(CachedFile file){
+            file.slot = cached.size();
+            cached.add(file);
+        }
+
+        private void remove(CachedFile file){
+            if (file.slot < 0){
+                return;
+            }
+            CachedFile last = cached.remove(cached.size() - 1);
+            if (last != file){
+                cached.set(file.slot, last);
+                last.slot = file.slot;
+            }
+            file.slot = -1;
+        }
+
+        /**
+         * The first file the hand finds without its referenced bit, skipping files a client is writing out
+         * (their chunk wouldn't come free). Null if two sweeps find none
+         */
+        private CachedFile victim(){
+            for (int i = 0; i < 2 * cached.size(); i++){
+                if (hand >= cached.size()){
+                    hand = 0;
+                }
+                CachedFile file = cached.get(hand);
+                if (!file.referenced && file.refs.get() == 1){
+                    return file;
+                }
+                file.referenced = false;
+                hand++;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.spring_security.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Encoded image bytes produced by the pipeline.
+ * They stay on the heap up to the scratch in-memory threshold and spill to a scratch file beyond it,
+ * so small and medium outputs never touch the disk until they are moved into storage.
+ * Written once through output(), then read any number of times; close() releases the bytes or the spill file.
+ * Not thread-safe, a buffer belongs to the task that produced it
+ */
+public final class ImageBuffer implements AutoCloseable {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final ScratchSpace scratch;
+    private final String suffix;
+    private final long threshold;
+
+    private byte[] bytes = new byte[0];
+    private File spill;
+    private OutputStream spillOut;
+    private long size;
+    // Size at which a growing spill checks the scratch cap again
+    private long nextCapacityCheck;
+    // Scratch bytes reserved for the spill file, given back when it goes
+    private long reserved;
+    private boolean released;
+
+    ImageBuffer(ScratchSpace scratch, String suffix, long threshold){
+        this.scratch = scratch;
+        this.suffix = suffix;
+        // Heap content is a single array
+        this.threshold = Math.min(threshold, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Wrap a scratch file an encoder wrote directly (formats whose muxer needs a seekable file).
+     * The buffer takes ownership, and its reservation, and deletes it on close
+     */
+    static ImageBuffer adopt(ScratchSpace scratch, File file, String suffix){
+        ImageBuffer buffer = new ImageBuffer(scratch, suffix, 0);
+        buffer.spill = file;
+        buffer.size = file.length();
+        return buffer;
+    }
+
+    /**
+     * @return file extension of the content, including the dot
+     */
+    public String suffix(){
+        return suffix;
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public long size(){
+        return size;
+    }
+
+    public boolean isInMemory(){
+        return spill == null;
+    }
+
+    /**
+     * @return the sink to write the encoded image to; closing it finishes the write, not the buffer
+     */
+    public OutputStream output(){
+        checkOpen();
+        return new OutputStream(){
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                append(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (spillOut != null){
+                    spillOut.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (spillOut != null){
+                    spillOut.close();
+                    spillOut = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a stream over the content
+     */
+    public InputStream inputStream() throws IOException {
+        checkOpen();
+        return spill == null ? new ByteArrayInputStream(bytes, 0, (int) size) : Files.newInputStream(spill.toPath());
+    }
+
+    /**
+     * @return a read-only view of the content: the heap bytes, or the spill file mapped into memory
+     */
+    public ByteBuffer byteBuffer() throws IOException {
+        checkOpen();
+        if (spill == null){
+            return ByteBuffer.wrap(bytes, 0, (int) size).slice().asReadOnlyBuffer();
+        }
+        try(FileChannel channel = FileChannel.open(spill.toPath(), StandardOpenOption.READ)){
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Write the content to its final location: heap bytes are written once, a spill file is moved
+     * (a rename when storage and scratch share a file system). The buffer is released afterwards
+     *
+     * @param target the destination, replaced if it exists
+     */
+    public void moveTo(Path target) throws IOException {
+        checkOpen();
+        if (spill == null){
+            try(OutputStream out = Files.newOutputStream(target)){
+                out.write(bytes, 0, (int) size);
+            }
+        } else {
+            Files.move(spill.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            scratch.release(spill.toPath());
+            spill = null;
+        }
+        close();
+    }
+
+    @Override
+    public void close(){
+        if (released){
+            return;
+        }
+        released = true;
+        bytes = null;
+        try{
+            if (spillOut != null){
+                spillOut.close();
+            }
+        } catch (IOException e){
+            // Deleting it anyway
+        }
+        if (spill != null){
+            spill.delete();
+            scratch.release(spill.toPath());
+            spill = null;
+        }
+        reserved = 0;
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (spill == null && size + len > threshold){
+            spill = scratch.spill(suffix, size + len);
+            reserved = size + len;
+            spillOut = new BufferedOutputStream(new FileOutputStream(spill), INITIAL_CAPACITY);
+            spillOut.write(bytes, 0, (int) size);
+            bytes = new byte[0];
+            nextCapacityCheck = size + threshold;
+        }
+        if (spill != null){
+            if (spillOut == null){
+                throw new IOException("Buffer was already written");
+            }
+            spillOut.write(b, off, len);
+            size += len;
+            if (size >= nextCapacityCheck){
+                // Spills grow after the cap was checked; look again every threshold bytes
+                spillOut.flush();
+                scratch.reserve(spill.toPath(), size - reserved);
+                reserved = size;
+                nextCapacityCheck = size + threshold;
+            }
+            return;
+        }
+        int needed = (int) size + len;
+        if (needed > bytes.length){
+            int capacity = (int) Math.min(threshold, Math.max(needed, Math.max(INITIAL_CAPACITY, bytes.length * 2L)));
+            bytes = Arrays.copyOf(bytes, capacity);
+        }
+        System.arraycopy(b, off, bytes, (int) size, len);
+        size += len;
+    }
+
+    private void checkOpen(){
+        if (released){
+            throw new IllegalStateException("Image buffer was already released");
+        }
+    }
+}
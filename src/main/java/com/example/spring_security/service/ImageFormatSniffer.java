@@ -0,0 +1,82 @@
+package com.example.spring_security.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Tells an image's real format from its first bytes, so uploads are validated by content rather than by the
+ * Content-Type the client chose to send
+ */
+public final class ImageFormatSniffer {
+
+    // Enough for every signature below: RIFF....WEBP and ....ftypavif both end at byte 12
+    public static final int HEADER_SIZE = 12;
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] GIF87 = "GIF87a".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GIF89 = "GIF89a".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RIFF = "RIFF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WEBP = "WEBP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FTYP = "ftyp".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AVIF = "avif".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AVIS = "avis".getBytes(StandardCharsets.US_ASCII);
+
+    // Stored under these extensions, which is what the content type is derived from when the file is served
+    private static final Map<String, String> EXTENSIONS = Map.of(
+            "image/jpeg", ".jpg",
+            "image/png", ".png",
+            "image/gif", ".gif",
+            "image/webp", ".webp",
+            "image/avif", ".avif"
+    );
+
+    private ImageFormatSniffer(){
+    }
+
+    /**
+     * @param header the first bytes of the file, up to HEADER_SIZE
+     * @param length how many of them were read
+     * @return the content type, or null if the bytes are not an image format we know
+     */
+    public static String contentTypeOf(byte[] header, int length){
+        int available = Math.min(length, header.length);
+        if (startsWith(header, available, 0, JPEG)){
+            return "image/jpeg";
+        }
+        if (startsWith(header, available, 0, PNG)){
+            return "image/png";
+        }
+        if (startsWith(header, available, 0, GIF87) || startsWith(header, available, 0, GIF89)){
+            return "image/gif";
+        }
+        if (startsWith(header, available, 0, RIFF) && startsWith(header, available, 8, WEBP)){
+            return "image/webp";
+        }
+        // ISO-BMFF: box size, then the ftyp box with the major brand
+        if (startsWith(header, available, 4, FTYP)
+                && (startsWith(header, available, 8, AVIF) || startsWith(header, available, 8, AVIS))){
+            return "image/avif";
+        }
+        return null;
+    }
+
+    /**
+     * @return the extension files of the content type are stored under, with the dot
+     */
+    public static String extensionOf(String contentType){
+        return EXTENSIONS.getOrDefault(contentType, "");
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int offset, byte[] signature){
+        if (length < offset + signature.length){
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++){
+            if (bytes[offset + i] != signature[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.spring_security.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The JDK's own codecs. No native setup per call, which makes them the faster choice for small images.
+ * GIFs stay on FFmpeg: ImageIO returns a GIF's first frame at its own size rather than composed onto the canvas.
+ * Files ImageIO can't represent (CMYK JPEGs and the like) are handed back to the caller to decode elsewhere
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageIOCodecBackend implements CodecBackend {
+
+    private static final Set<String> DECODABLE = Set.of("jpg", "png");
+
+    private final ProcessingContexts contexts;
+
+    @Override
+    public String name(){
+        return "imageio";
+    }
+
+    @Override
+    public boolean canDecode(String format){
+        return DECODABLE.contains(format);
+    }
+
+    @Override
+    public boolean canEncode(String format){
+        return "png".equals(format);
+    }
+
+    // The JPEG reader converts from an embedded profile itself, a file whose profile it can't use fails over to FFmpeg
+    @Override
+    public boolean appliesColorProfile(){
+        return true;
+    }
+
+    @Override
+    public Dimension probe(InputStream in, String format) throws IOException {
+        if (!canDecode(format)){
+            return null;
+        }
+        try(ImageInputStream stream = new MemoryCacheImageInputStream(in);
+            ProcessingContext context = contexts.acquire()){
+            ImageReader reader = reader(context, format);
+            try{
+                reader.setInput(stream, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } catch (IIOException e){
+                return null;
+            } finally {
+                release(reader, format);
+            }
+        }
+    }
+
+    @Override
+    public BufferedImage decode(InputStream in, String format, boolean keepAlpha) throws IOException {
+        if (!canDecode(format)){
+            return null;
+        }
+        BufferedImage image;
+        try(ImageInputStream stream = new MemoryCacheImageInputStream(in);
+            ProcessingContext context = contexts.acquire()){
+            ImageReader reader = reader(context, format);
+            try{
+                reader.setInput(stream, true, true);
+                image = reader.read(0);
+            } catch (IIOException e){
+                // Unsupported color space or a file ImageIO is stricter about than FFmpeg
+                return null;
+            } finally {
+                release(reader, format);
+            }
+        }
+        return normalize(image, keepAlpha);
+    }
+
+    @Override
+    public void encode(BufferedImage image, String format, OutputStream out) throws IOException {
+        if (!canEncode(format)){
+            throw new IOException("No " + name() + " encoder for " + format);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try(ImageOutputStream stream = new MemoryCacheImageOutputStream(out)){
+            // The default (quality 0.5) deflates at level 4, up to several times larger than FFmpeg's output on flat
+            // images; quality 0.3 is level 6, zlib's default and what FFmpeg's PNG encoder uses
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.3f);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // JPEGs reuse the worker's reader, PNG readers are cheap to look up
+    private static ImageReader reader(ProcessingContext context, String format) throws IOException {
+        if ("jpg".equals(format)){
+            return context.jpegReader();
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+        if (!readers.hasNext()){
+            throw new IOException("No ImageIO reader for " + format);
+        }
+        return readers.next();
+    }
+
+    private static void release(ImageReader reader, String format){
+        if ("jpg".equals(format)){
+            reader.reset();
+        } else {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Bring ImageIO's many image types (gray, indexed, 16-bit, INT_RGB...) onto the two the pipeline works with
+     */
+    private static BufferedImage normalize(BufferedImage image, boolean keepAlpha){
+        int target = keepAlpha ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+        if (image.getType() == target){
+            return image;
+        }
+        if (keepAlpha || !image.getColorModel().hasAlpha()){
+            return redraw(image, target);
+        }
+        // FFmpeg drops the alpha channel rather than compositing it, do the same so both backends agree
+        BufferedImage abgr = image.getType() == BufferedImage.TYPE_4BYTE_ABGR
+                ? image
+                : redraw(image, BufferedImage.TYPE_4BYTE_ABGR);
+        BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        byte[] src = ((DataBufferByte) abgr.getRaster().getDataBuffer()).getData();
+        byte[] dst = ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+        for (int i = 0, j = 0; j < dst.length; i += 4, j += 3){
+            dst[j] = src[i + 1];
+            dst[j + 1] = src[i + 2];
+            dst[j + 2] = src[i + 3];
+        }
+        return bgr;
+    }
+
+    // Src composite copies the pixels (alpha included) instead of blending them onto the empty target
+    private static BufferedImage redraw(BufferedImage image, int type){
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+}
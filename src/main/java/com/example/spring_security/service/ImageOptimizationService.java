@@ -1,17 +1,31 @@
 package com.example.spring_security.service;
 
+import com.example.spring_security.config.ImageExecutorProperties;
+import com.example.spring_security.config.ImageFormatProperties;
 import com.example.spring_security.config.ImageProcessingProperties;
+import com.example.spring_security.config.ImageRenditionProperties;
+import com.example.spring_security.config.ImageWatchdogProperties;
+import com.example.spring_security.exception.ImageProcessingRejectedException;
+import com.example.spring_security.exception.ProcessingTimeoutException;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @RequiredArgsConstructor
@@ -20,11 +34,15 @@ public class ImageOptimizationService {
     private static final Logger logger = LoggerFactory.getLogger(ImageOptimizationService.class);
     private final ImageProcessingService imageProcessingService;
     private final ImageProcessingProperties properties;
+    private final DecodeAdmissionController admissionController;
+    private final ProcessingQuarantine quarantine;
+    private final ImageWatchdogProperties watchdogProperties;
+    private final ImageRenditionProperties renditionProperties;
+    private final ImageFormatProperties formatProperties;
+    private final ImageExecutorProperties executorProperties;
 
-    // Thread pool for handling parallel optimization tasks
-    private final ExecutorService optimizationExecutor = Executors.newFixedThreadPool(
-            Math.max(2, Runtime.getRuntime().availableProcessors() / 2)
-    );
+    // Bounded, lifecycle-managed pool (see ImageOptimizationExecutorConfig)
+    private final ThreadPoolTaskExecutor imageOptimizationExecutor;
 
     /**
      * Determines if an image should be optimized based on configured thresholds
@@ -49,38 +67,235 @@ public class ImageOptimizationService {
 
     /**
      * Synchronously optimize an image file
-     *
+     * The work still runs on the optimization pool so the number of concurrent decodes stays bounded,
+     * the calling thread just waits for the result
      *
      * @param originalFile the file to optimize
      * @return the optimized file, or the original if optimization wasn't needed/possible
      * @throws IOException if processing fails
+     * @throws com.example.spring_security.exception.ImageProcessingRejectedException if the pool is saturated
      */
     public File optimizeImage(File originalFile)throws IOException{
         if (!shouldOptimize(originalFile)){
             logger.debug("Skipping optimization for {}", originalFile.getName());
             return originalFile;
         }
+        return runOnPool(originalFile, imageProcessingService::process);
+    }
+
+    /**
+     * Synchronously optimize an image file with per-upload preferences
+     *
+     * @param originalFile the file to optimize
+     * @param options requested quality, and whether to optimize files below the threshold
+     * @return the optimized image (in memory, the caller stores or closes it) and its quality,
+     * or unchanged if optimization wasn't needed/possible
+     * @throws IOException if processing fails
+     * @throws com.example.spring_security.exception.ImageProcessingRejectedException if the pool is saturated
+     */
+    public ProcessingResult optimizeImage(File originalFile, ProcessingOptions options) throws IOException {
+        if (!options.force() && !shouldOptimize(originalFile)){
+            logger.debug("Skipping optimization for {}", originalFile.getName());
+            return ProcessingResult.unchanged();
+        }
+
+        return runOnPool(originalFile, file -> imageProcessingService.process(file, options));
+    }
+
+    /**
+     * Synchronously generate the configured renditions for an image, on the optimization pool
+     *
+     * @param originalFile the original upload
+     * @return the generated renditions, or an empty list if renditions are disabled
+     * @throws IOException if processing fails
+     * @throws com.example.spring_security.exception.ImageProcessingRejectedException if the pool is saturated
+     */
+    public List<RenditionResult> createRenditions(File originalFile) throws IOException {
+        if (!renditionProperties.isEnabled() || originalFile == null || !originalFile.exists()){
+            return List.of();
+        }
+        return runOnPool(originalFile,
+                file -> imageProcessingService.createRenditions(file, renditionProperties.getSizes(), alternateFormats()));
+    }
+
+    /**
+     * Synchronously encode the configured alternate formats (WebP, AVIF) of a stored image, on the optimization pool.
+     * Animated GIFs are transcoded frame by frame into animated WebP (and optionally MP4) instead
+     *
+     * @param sourceFile the image clients would otherwise be served (optimized file or original)
+     * @return format to temporary file, or an empty map if alternates are disabled
+     * @throws IOException if processing fails
+     * @throws com.example.spring_security.exception.ImageProcessingRejectedException if the pool is saturated
+     */
+    public Map<String, File> createAlternates(File sourceFile) throws IOException {
+        if (!formatProperties.isEnabled() || sourceFile == null || !sourceFile.exists()){
+            return Map.of();
+        }
+        return runOnPool(sourceFile, file -> imageProcessingService.isAnimated(file)
+                ? imageProcessingService.transcodeAnimation(file, formatProperties.getAnimatedFormats())
+                : imageProcessingService.encodeAlternates(file, formatProperties.getFormats()));
+    }
+
+    /**
+     * @return true if the file is an animated GIF; reads its block headers on the calling thread, nothing is decoded
+     */
+    public boolean isAnimated(File file) throws IOException {
+        return imageProcessingService.isAnimated(file);
+    }
+
+    private List<String> alternateFormats(){
+        return formatProperties.isEnabled() ? formatProperties.getFormats() : List.of();
+    }
+
+    /**
+     * Synchronously render an on-demand derivative, on the optimization pool
+     *
+     * @param sourceFile the image to render from
+     * @param maxWidth bounding box width, or 0 for no limit
+     * @param maxHeight bounding box height, or 0 for no limit
+     * @param format output format
+     * @param quality output quality
+     * @return a temporary file holding the derivative
+     * @throws IOException if processing fails
+     * @throws com.example.spring_security.exception.ImageProcessingRejectedException if the pool is saturated
+     */
+    public File renderDerivative(File sourceFile, int maxWidth, int maxHeight, String format, float quality) throws IOException {
+        return runOnPool(sourceFile,
+                file -> imageProcessingService.render(file, maxWidth, maxHeight, format, quality));
+    }
 
-        logger.info("Optimizing image: {}", originalFile.getName());
-        return imageProcessingService.process(originalFile);
+    /**
+     * Runs a processing task on the optimization pool and waits for it.
+     * The task timeout only starts once a worker has the task and its decode memory: a task that hasn't started by
+     * then is withdrawn and the upload rejected as if the pool were full, rather than its input taken for a poison one
+     *
+     * @throws ImageProcessingRejectedException if the task didn't start within the task timeout
+     */
+    private <T> T runOnPool(File originalFile, ProcessingTask<T> task) throws IOException {
+        long timeout = watchdogProperties.getTaskTimeout().toNanos();
+        TaskStart start = new TaskStart();
+        Future<T> result = imageOptimizationExecutor.submit(() -> runAdmitted(originalFile, task, start));
+        try{
+            if (!start.await(timeout) && start.withdraw()){
+                // Still queued or waiting for decode memory; interrupting the wait releases nothing it holds
+                result.cancel(true);
+                logger.warn("{} did not start within {} ms, rejecting", originalFile.getName(),
+                        watchdogProperties.getTaskTimeout().toMillis());
+                throw new ImageProcessingRejectedException("Image processing is at capacity, please retry later",
+                        HttpStatus.SERVICE_UNAVAILABLE, executorProperties.getRetryAfter());
+            }
+            long remaining = start.startedAt() + timeout - System.nanoTime();
+            return result.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        }catch (TimeoutException e){
+            // The worker is stuck past every stage deadline; stop waiting and let the caller use the original
+            result.cancel(true);
+            quarantine.quarantine(originalFile, "task exceeded " + watchdogProperties.getTaskTimeout().toMillis() + " ms");
+            throw new ProcessingTimeoutException("task", "Image optimization timed out for " + originalFile.getName(), e);
+        }catch (InterruptedException e){
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for image optimization", e);
+        }catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io){
+                throw io;
+            }
+            if (cause instanceof RuntimeException re){
+                throw re;
+            }
+            throw new IOException("Image optimization failed", cause);
+        }
     }
 
     /**
      * Asynchronously optimizes an image file
-     * @param originalFile
-     * @return
+     * @param originalFile the file to optimize
+     * @return a future completing with the optimized file, or the original if optimization fails
+     * @throws com.example.spring_security.exception.ImageProcessingRejectedException if the pool is saturated
      */
     public CompletableFuture<File> optimizeImageAsync(File originalFile){
         return CompletableFuture.supplyAsync(() -> {
             try{
-                return optimizeImage(originalFile);
+                return shouldOptimize(originalFile) ? runAdmitted(originalFile, imageProcessingService::process, null) : originalFile;
             }catch (IOException e){
                 logger.error("Async Image optimization failed for {}", originalFile.getName(), e);
                 // Return the original file if optimization fails
                 return originalFile;
             }
 
-        }, optimizationExecutor);
+        }, imageOptimizationExecutor);
+    }
+
+    // Runs on a pool worker; start is null when nobody waits with a timeout
+    private <T> T runAdmitted(File originalFile, ProcessingTask<T> task, TaskStart start) throws IOException {
+        try{
+            // Claim decode memory first so concurrent large uploads can't exhaust the heap together
+            try(DecodeAdmissionController.DecodePermit permit = admissionController.admit(originalFile)){
+                if (start != null && !start.begin()){
+                    throw new CancellationException("Withdrawn before it started: " + originalFile.getName());
+                }
+                logger.info("Processing image: {}", originalFile.getName());
+                return task.run(originalFile);
+            }catch (ProcessingTimeoutException e){
+                quarantine.quarantine(originalFile, e.getMessage());
+                throw e;
+            }
+        } finally {
+            if (start != null){
+                // Also when admission failed, so the caller stops waiting for a start and takes the failure
+                start.done();
+            }
+        }
+    }
+
+    /**
+     * When a task on the pool started processing. The worker and the waiting caller race to move it out of
+     * QUEUED: the worker to start it, the caller to withdraw it once it has waited the task timeout
+     */
+    private static final class TaskStart {
+
+        private static final int QUEUED = 0;
+        private static final int STARTED = 1;
+        private static final int WITHDRAWN = 2;
+
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CountDownLatch settled = new CountDownLatch(1);
+        private volatile long startedAt;
+
+        // Worker, holding its decode permit
+        boolean begin(){
+            startedAt = System.nanoTime();
+            if (!state.compareAndSet(QUEUED, STARTED)){
+                return false;
+            }
+            settled.countDown();
+            return true;
+        }
+
+        // Worker, when the task ends whether or not it started
+        void done(){
+            settled.countDown();
+        }
+
+        // Caller: true once the task started or ended, false if it was still waiting after the timeout
+        boolean await(long timeoutNanos) throws InterruptedException {
+            return settled.await(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // Caller: false if the worker started the task after all
+        boolean withdraw(){
+            return state.compareAndSet(QUEUED, WITHDRAWN);
+        }
+
+        // When the task started; now if it ended without starting, its result is then already there
+        long startedAt(){
+            return state.get() == STARTED ? startedAt : System.nanoTime();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ProcessingTask<T> {
+        T run(File file) throws IOException;
     }
 
 }
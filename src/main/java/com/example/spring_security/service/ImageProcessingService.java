@@ -1,7 +1,11 @@
 package com.example.spring_security.service;
 
+import com.example.spring_security.config.ImageRenditionProperties;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 // Defines image optimization operations
 public interface ImageProcessingService {
@@ -32,4 +36,71 @@ public interface ImageProcessingService {
      * @throws IOException on read/write errors
      */
     File process(File inputFile) throws IOException;
+
+    /**
+     * Apply both resize and compress with per-upload preferences
+     * @param inputFile the original upload
+     * @param options the requested quality and whether to skip the compression threshold
+     * @return the final optimized image and the JPEG quality it was encoded with, or unchanged;
+     * the image is held in memory (spilled to scratch when large), the caller moves it into storage or closes it
+     * @throws IOException on read/write errors
+     */
+    ProcessingResult process(File inputFile, ProcessingOptions options) throws IOException;
+
+    /**
+     * Generate downscaled renditions from a single decode of the input.
+     * Each rendition is scaled from the next larger one, so the full-size pixels are only touched once
+     *
+     * @param inputFile the original upload
+     * @param sizes the rendition sizes to produce; sizes the image is already smaller than are skipped
+     * @param alternateFormats alternate encodings (e.g. "webp") to write for every rendition
+     * @return the generated renditions in temporary files, largest first
+     * @throws IOException on read/write errors
+     */
+    List<RenditionResult> createRenditions(File inputFile, List<ImageRenditionProperties.Size> sizes,
+                                           List<String> alternateFormats) throws IOException;
+
+    /**
+     * Re-encode an image into alternate formats (WebP, AVIF) at the same dimensions
+     *
+     * @param inputFile the image to re-encode
+     * @param formats the formats to produce
+     * @return format to temporary file; formats without an available encoder are left out
+     * @throws IOException on read/write errors
+     */
+    Map<String, File> encodeAlternates(File inputFile, List<String> formats) throws IOException;
+
+    /**
+     * Check whether the file is an animated image (a GIF with more than one frame)
+     *
+     * @param inputFile the image on disk
+     * @return true if it has more than one frame
+     * @throws IOException on read errors
+     */
+    boolean isAnimated(File inputFile) throws IOException;
+
+    /**
+     * Transcode every frame of an animated image into animated alternates (WebP, MP4) in one streaming pass.
+     * Frames go straight from the grabber to the recorders, so memory doesn't grow with the frame count
+     *
+     * @param inputFile the animated image
+     * @param formats the formats to produce ("webp", "mp4")
+     * @return format to temporary file; formats without an available encoder, or that came out larger
+     *         than the input, are left out
+     * @throws IOException on read/write errors
+     */
+    Map<String, File> transcodeAnimation(File inputFile, List<String> formats) throws IOException;
+
+    /**
+     * Render a single derivative that fits inside the given box (never upscaled)
+     *
+     * @param inputFile the source image
+     * @param maxWidth bounding box width, or 0 for no limit
+     * @param maxHeight bounding box height, or 0 for no limit
+     * @param format output format ("jpg", "png", "webp" or "avif")
+     * @param quality JPEG or WebP quality (0.0 - 1.0), ignored for lossless formats and AVIF
+     * @return a new temporary file holding the derivative
+     * @throws IOException on read/write errors
+     */
+    File render(File inputFile, int maxWidth, int maxHeight, String format, float quality) throws IOException;
 }
@@ -0,0 +1,157 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageRenderProperties;
+import com.example.spring_security.entities.Image;
+import com.example.spring_security.exception.FileNotFoundException;
+import com.example.spring_security.exception.FileValidationException;
+import com.example.spring_security.repository.ImageRepository;
+import jakarta.persistence.EntityNotFoundException;
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * On-demand image transforms for the render endpoint.
+ * Parameters are snapped to a fixed grid, results are served from the derivative cache, and the number of distinct
+ * renders cached per image is capped. Animated GIFs are rendered as animated WebP, and served as they are when
+ * another format is asked for
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageRenderService {
+
+    private final ImageRepository imageRepository;
+    private final ImageVariantResolver variantResolver;
+    private final ImageOptimizationService imageOptimizationService;
+    private final DerivativeCache derivativeCache;
+    private final ImageRenderProperties properties;
+
+    /**
+     * Renders (or loads from cache) a derivative of an image
+     *
+     * @param id the image id
+     * @param width requested width, optional
+     * @param height requested height, optional
+     * @param format requested format, optional (defaults to jpg)
+     * @param quality requested quality, optional
+     * @return the rendered derivative
+     * @throws IOException if rendering fails
+     */
+    public RenderedImage render(UUID id, Integer width, Integer height, String format, Float quality) throws IOException {
+        Image image = imageRepository.findById(id)
+                .orElseThrow(() -> new EntityNotFoundException(" Image not found with id: " + id));
+
+        int w = snapDimension(width);
+        int h = snapDimension(height);
+        String fmt = snapFormat(format);
+        float q = snapQuality(quality);
+
+        String sourceFileName = sourceFileName(image);
+        File source = variantResolver.loadFile(sourceFileName).getFile();
+        if (!"webp".equals(fmt) && imageOptimizationService.isAnimated(source)){
+            // Only WebP renders keep the frames, and a still of the first one isn't the image: serve it as it is
+            return new RenderedImage(resource(source.toPath(), sourceFileName),
+                    StoredFile.contentTypeOf(sourceFileName));
+        }
+        // The stored source name changes whenever the image is replaced, so stale derivatives are never hit.
+        // The stored name, not the file's: a source fetched from a peer is cached under a prefixed one
+        String sourceName = stripExtension(sourceFileName);
+        // q is 0 for formats that don't use it, so they don't get one cache entry per quality step
+        long keyQuality = usesQuality(fmt) ? Math.round(q * 100) : 0;
+        String key = String.format(Locale.ROOT, "%s_w%d_h%d_q%02d.%s", sourceName, w, h, keyQuality, fmt);
+        if (!derivativeCache.contains(key)
+                && derivativeCache.count(sourceName + "_w") >= properties.getMaxVariantsPerImage()){
+            throw new FileValidationException("Too many renders of this image, use one of the sizes already in use");
+        }
+
+        Path derivative = derivativeCache.getOrCreate(key,
+                () -> imageOptimizationService.renderDerivative(source, w, h, fmt, q));
+        return new RenderedImage(resource(derivative, key), contentType(fmt));
+    }
+
+    private static Resource resource(Path file, String name){
+        try{
+            return new UrlResource(file.toUri());
+        } catch (MalformedURLException e){
+            throw new FileNotFoundException("File not found: " + name, e);
+        }
+    }
+
+    // 0 means "no constraint"; anything else snaps up to the next grid value (or the largest one)
+    int snapDimension(Integer requested){
+        if (requested == null || requested <= 0){
+            return 0;
+        }
+        List<Integer> grid = properties.getDimensionGrid().stream().sorted().toList();
+        for (Integer step : grid){
+            if (step >= requested){
+                return step;
+            }
+        }
+        return grid.get(grid.size() - 1);
+    }
+
+    float snapQuality(Float requested){
+        float target = requested != null ? requested : properties.getDefaultQuality();
+        float best = properties.getQualitySteps().get(0);
+        for (Float step : properties.getQualitySteps()){
+            if (Math.abs(step - target) < Math.abs(best - target)){
+                best = step;
+            }
+        }
+        return best;
+    }
+
+    String snapFormat(String requested){
+        String fmt = requested == null || requested.isBlank() ? "jpg" : requested.toLowerCase(Locale.ROOT);
+        if ("jpeg".equals(fmt)){
+            fmt = "jpg";
+        }
+        if (!properties.getFormats().contains(fmt)){
+            throw new FileValidationException("Unsupported render format: " + requested);
+        }
+        return fmt;
+    }
+
+    // JPEG and WebP renders take the requested quality; PNG is lossless, AVIF uses the alternate-format CRF
+    static boolean usesQuality(String format){
+        return "jpg".equals(format) || "webp".equals(format);
+    }
+
+    // Render from the original upload; fall back to the main file for rows without a usable original path
+    private static String sourceFileName(Image image){
+        String path = image.getOriginalFilePath() != null && image.getOriginalFilePath().contains("/")
+                ? image.getOriginalFilePath()
+                : image.getFilePath();
+        return Path.of(path).getFileName().toString();
+    }
+
+    private static String stripExtension(String name){
+        int index = name.lastIndexOf('.');
+        return index > 0 ? name.substring(0, index) : name;
+    }
+
+    private static String contentType(String format){
+        return switch (format) {
+            case "png" -> "image/png";
+            case "webp" -> "image/webp";
+            case "avif" -> "image/avif";
+            default -> "image/jpeg";
+        };
+    }
+
+    /**
+     * A rendered derivative and the content type it was encoded with
+     */
+    public record RenderedImage(Resource resource, String contentType) {
+    }
+}
@@ -6,6 +6,7 @@ import com.example.spring_security.dto.ImageUploadRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.UUID;
 
@@ -23,6 +24,21 @@ public interface ImageService {
      */
     ImageResponse createImage(UUID postId, MultipartFile file) throws IOException;
 
+    /**
+     * Creates a new image from a raw request body, streamed straight into storage without buffering the upload
+     * first. The format is sniffed from the first bytes and the size limit enforced while reading
+     *
+     * @param postId the id of the post this image belongs to
+     * @param content the request body, read to the end
+     * @param contentLength the declared length, -1 if unknown
+     * @param fileName the client's name for the file, may be null
+     * @param request Optional request containing optimization preferences
+     * @return the created image as DTO
+     * @throws IOException if reading the body fails
+     */
+    ImageResponse createImage(UUID postId, InputStream content, long contentLength, String fileName,
+                              ImageUploadRequest request) throws IOException;
+
     // Get image by Id
     ImageResponse getImageById(UUID id);
 
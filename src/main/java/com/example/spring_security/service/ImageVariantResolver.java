@@ -0,0 +1,168 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.exception.FileNotFoundException;
+import com.example.spring_security.exception.PeerUnavailableException;
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks which stored encoding of an image to serve.
+ * Alternate encodings live next to the primary file under the same base name (abc.jpg, abc.webp, abc.avif,
+ * abc.mp4 for animated GIFs), and are only served to clients that explicitly list them in their Accept header.
+ * In cluster mode a file this node doesn't have is read through from the node owning it
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageVariantResolver {
+
+    // Most compact first. MP4 only stands in for GIFs, for clients that explicitly ask for video
+    private static final List<Variant> VARIANTS = List.of(
+            new Variant("mp4", MediaType.parseMediaType("video/mp4"), true),
+            new Variant("avif", MediaType.parseMediaType("image/avif"), false),
+            new Variant("webp", MediaType.parseMediaType("image/webp"), false)
+    );
+
+    private final FileStorageService fileStorageService;
+    private final PeerCluster peerCluster;
+
+    /**
+     * Loads the best encoding of a file for the given Accept header
+     *
+     * @param fileName the requested (primary) file name
+     * @param accept the request's Accept header, may be null
+     * @return the file to serve and its content type
+     * @throws FileNotFoundException if neither an alternate nor the primary file exists
+     * @throws PeerUnavailableException in cluster mode, if the file is on a node that can't be reached
+     */
+    public ServedFile resolve(String fileName, String accept){
+        return resolve(fileName, accept, true);
+    }
+
+    /**
+     * As above
+     *
+     * @param readThrough false to only look at this node's storage, as when a peer is asking
+     */
+    public ServedFile resolve(String fileName, String accept, boolean readThrough){
+        boolean negotiable = isNegotiable(fileName);
+        if (negotiable){
+            List<MediaType> accepted = parseAccept(accept);
+            boolean gif = fileName.toLowerCase(Locale.ROOT).endsWith(".gif");
+            for (Variant variant : VARIANTS){
+                if ((variant.gifOnly && !gif) || !accepts(accepted, variant.mediaType)){
+                    continue;
+                }
+                try{
+                    return describe(alternateName(fileName, variant.format), variant.mediaType.toString(), true,
+                            readThrough);
+                }catch (FileNotFoundException e){
+                    // Not generated for this file (older upload, encoder missing), try the next one
+                }
+            }
+        }
+
+        return describe(fileName, StoredFile.contentTypeOf(fileName), negotiable, readThrough);
+    }
+
+    // Alternates hash like their primary file (the extension is ignored), so they come from the same owner.
+    // Asked for even when this node owns the name: a content-addressed original may be on any node
+    private ServedFile describe(String fileName, String contentType, boolean negotiated, boolean readThrough){
+        try{
+            return new ServedFile(fileStorageService.describeFile(fileName), contentType, negotiated);
+        }catch (FileNotFoundException e){
+            if (!readThrough || !peerCluster.isEnabled()){
+                throw e;
+            }
+            PeerCluster.Fetched fetched = peerCluster.fetch(fileName);
+            return new ServedFile(fetched.file(), contentType, negotiated, fetched.body());
+        }
+    }
+
+    /**
+     * Loads a file as it is stored, no negotiation, for callers that need it on disk: in cluster mode a file this
+     * node doesn't have is fetched from its owner into the render cache
+     *
+     * @throws FileNotFoundException if no node has the file
+     * @throws PeerUnavailableException in cluster mode, if the file is on a node that can't be reached
+     */
+    public Resource loadFile(String fileName){
+        try{
+            return fileStorageService.loadFile(fileName);
+        }catch (FileNotFoundException e){
+            if (!peerCluster.isEnabled()){
+                throw e;
+            }
+            return new FileSystemResource(peerCluster.fetchToDisk(fileName).path());
+        }
+    }
+
+    /**
+     * @return names of every alternate encoding a primary file may have, whether or not they exist
+     */
+    public List<String> alternateNames(String fileName){
+        return VARIANTS.stream()
+                .map(variant -> alternateName(fileName, variant.format))
+                .filter(name -> !name.equals(fileName))
+                .toList();
+    }
+
+    /**
+     * @return the name an alternate encoding of the file is stored under
+     */
+    public static String alternateName(String fileName, String format){
+        int index = fileName.lastIndexOf('.');
+        String base = index > 0 ? fileName.substring(0, index) : fileName;
+        return base + "." + format;
+    }
+
+    // Only the formats we generate alternates for; a request for abc.webp is served as is
+    private static boolean isNegotiable(String fileName){
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") || name.endsWith(".gif");
+    }
+
+    private static List<MediaType> parseAccept(String accept){
+        if (accept == null || accept.isBlank()){
+            return List.of();
+        }
+        try{
+            return MediaType.parseMediaTypes(accept);
+        }catch (InvalidMediaTypeException e){
+            return List.of();
+        }
+    }
+
+    // Wildcards don't count: plenty of clients send */* without being able to decode WebP or AVIF
+    private static boolean accepts(List<MediaType> accepted, MediaType mediaType){
+        return accepted.stream().anyMatch(type -> type.getType().equalsIgnoreCase(mediaType.getType())
+                && type.getSubtype().equalsIgnoreCase(mediaType.getSubtype())
+                && type.getQualityValue() > 0);
+    }
+
+    private record Variant(String format, MediaType mediaType, boolean gifOnly) {
+    }
+
+    /**
+     * A resolved file
+     *
+     * @param file the stored file
+     * @param contentType content type of the chosen encoding
+     * @param negotiated true if the response depends on the Accept header (callers should send Vary: Accept)
+     * @param body the content as it streams in from a peer, for a file with neither path nor content; null otherwise.
+     *             StoredFileServer reads and closes it
+     */
+    public record ServedFile(StoredFile file, String contentType, boolean negotiated, InputStream body) {
+
+        public ServedFile(StoredFile file, String contentType, boolean negotiated){
+            this(file, contentType, negotiated, null);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageJpegProperties;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.CMMException;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Final stage for every JPEG the service writes.
+ * Outputs are progressive with optimized Huffman tables and carry no source metadata (EXIF, ICC, XMP):
+ * the orientation is baked into the pixels instead, pixels of a source with another color profile are converted
+ * to sRGB, and sRGB is optionally declared with a minimal EXIF tag
+ */
+@Service
+@RequiredArgsConstructor
+public class JpegOutputStage {
+
+    private static final Logger logger = LoggerFactory.getLogger(JpegOutputStage.class);
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int APP1 = 0xFFE1;
+    private static final int APP2 = 0xFFE2;
+    // APP2 identifier of an ICC profile chunk, followed by the chunk's sequence number and the chunk count
+    private static final byte[] ICC_IDENTIFIER = "ICC_PROFILE\0".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * APP1 payload declaring sRGB: IFD0 points to an Exif IFD holding only ColorSpace = 1
+     */
+    private static final byte[] SRGB_EXIF = {
+            'E', 'x', 'i', 'f', 0, 0,
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            // IFD0: one entry, ExifIFD pointer (LONG) -> offset 26
+            0, 1, (byte) 0x87, 0x69, 0, 4, 0, 0, 0, 1, 0, 0, 0, 26, 0, 0, 0, 0,
+            // Exif IFD: one entry, ColorSpace (SHORT) = 1 (sRGB)
+            0, 1, (byte) 0xA0, 0x01, 0, 3, 0, 0, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0
+    };
+
+    private final ImageJpegProperties properties;
+    private final ProcessingContexts contexts;
+
+    /**
+     * Write an image as JPEG
+     *
+     * @param image the pixels, already oriented
+     * @param out the file to write
+     * @param quality 0.0 - 1.0
+     * @throws IOException if the image can't be encoded
+     */
+    public void write(BufferedImage image, File out, float quality) throws IOException {
+        try(ImageOutputStream stream = ImageIO.createImageOutputStream(out)){
+            write(image, stream, quality);
+        }
+    }
+
+    /**
+     * Write an image as JPEG to a stream (e.g. an ImageBuffer), without ImageIO's temp-file cache
+     *
+     * @param image the pixels, already oriented
+     * @param out the sink; left open
+     * @param quality 0.0 - 1.0
+     * @throws IOException if the image can't be encoded
+     */
+    public void write(BufferedImage image, OutputStream out, float quality) throws IOException {
+        try(ImageOutputStream stream = new MemoryCacheImageOutputStream(out)){
+            write(image, stream, quality);
+        }
+    }
+
+    private void write(BufferedImage image, ImageOutputStream stream, float quality) throws IOException {
+        image = opaque(image);
+        try(ProcessingContext context = contexts.acquire()){
+            // The worker's writer is reused across tasks, reset() hands it back without the stream
+            ImageWriter writer = context.jpegWriter();
+            try{
+                JPEGImageWriteParam param = (JPEGImageWriteParam) writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                if (properties.isProgressive()){
+                    param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+                }
+                param.setOptimizeHuffmanTables(properties.isOptimizeHuffman());
+
+                // Fresh metadata: only JFIF, nothing from the source survives
+                IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+                if (properties.isSrgbTag()){
+                    addSrgbTag(metadata);
+                }
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, metadata), param);
+            } finally {
+                writer.reset();
+            }
+        }
+    }
+
+    /**
+     * Apply the EXIF orientation of a JPEG source to its decoded pixels (FFmpeg decodes them as stored)
+     *
+     * @param image the decoded pixels
+     * @param source the file they were decoded from
+     * @return the upright image, or the same image if there is nothing to apply
+     */
+    public BufferedImage orient(BufferedImage image, File source) throws IOException {
+        if (!properties.isApplyOrientation()){
+            return image;
+        }
+        return applyOrientation(image, readOrientation(source));
+    }
+
+    /**
+     * Convert decoded pixels to sRGB when the JPEG they come from embeds another color profile (Display P3,
+     * Adobe RGB...). Decoders hand out the stored values, and outputs carry no ICC profile, so without this
+     * they would be shown as sRGB with shifted colors
+     *
+     * @param image the decoded pixels, TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR
+     * @param source the file they were decoded from
+     * @return the sRGB image, or the same image if it already is (or the profile can't be applied)
+     */
+    public BufferedImage toSrgb(BufferedImage image, File source) throws IOException {
+        byte[] data = readIccProfile(source);
+        if (data == null){
+            return image;
+        }
+        try{
+            ICC_Profile profile = ICC_Profile.getInstance(data);
+            if (isSrgb(profile)){
+                return image;
+            }
+            return convert(image, new ICC_ColorSpace(profile));
+        } catch (IllegalArgumentException | CMMException e){
+            // A profile Java's color management can't use can't be embedded either; the values are kept as stored
+            logger.warn("Ignoring unusable ICC profile of {}: {}", source.getName(), e.getMessage());
+            return image;
+        }
+    }
+
+    /**
+     * @return the orientation a decoded image of this file will have once oriented (1-8),
+     * for callers that need the upright dimensions before decoding
+     */
+    public int orientationOf(File source) throws IOException {
+        return properties.isApplyOrientation() ? readOrientation(source) : 1;
+    }
+
+    /**
+     * @return true if the orientation swaps width and height
+     */
+    public static boolean isTransposed(int orientation){
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * Rotate/flip pixels into upright position
+     *
+     * @param orientation EXIF orientation, 1 (upright) to 8
+     */
+    public static BufferedImage applyOrientation(BufferedImage image, int orientation){
+        int w = image.getWidth();
+        int h = image.getHeight();
+        // Maps source pixel areas onto the destination; nearest neighbour keeps the pixels exact
+        AffineTransform transform = switch (orientation){
+            case 2 -> new AffineTransform(-1, 0, 0, 1, w, 0);   // mirror horizontal
+            case 3 -> new AffineTransform(-1, 0, 0, -1, w, h);  // rotate 180
+            case 4 -> new AffineTransform(1, 0, 0, -1, 0, h);   // mirror vertical
+            case 5 -> new AffineTransform(0, 1, 1, 0, 0, 0);    // transpose
+            case 6 -> new AffineTransform(0, 1, -1, 0, h, 0);   // rotate 90 clockwise
+            case 7 -> new AffineTransform(0, -1, -1, 0, h, w);  // transverse
+            case 8 -> new AffineTransform(0, -1, 1, 0, 0, w);   // rotate 90 counter-clockwise
+            default -> null;
+        };
+        if (transform == null){
+            return image;
+        }
+        int outW = isTransposed(orientation) ? h : w;
+        int outH = isTransposed(orientation) ? w : h;
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_ARGB : image.getType();
+        BufferedImage upright = new BufferedImage(outW, outH, type);
+        new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(image, upright);
+        return upright;
+    }
+
+    /**
+     * Reads the orientation tag from a JPEG's EXIF segment without decoding the image
+     *
+     * @return 1 to 8, or 1 if the file has no (valid) orientation
+     */
+    public static int readOrientation(File file) throws IOException {
+        for (byte[] segment : readSegments(file, APP1)){
+            int orientation = orientationFromExif(segment);
+            if (orientation != 0){
+                return orientation;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Reads the ICC profile embedded in a JPEG's APP2 segments, reassembled from its chunks
+     *
+     * @return the profile data, or null if there is none (or its chunks don't add up)
+     */
+    static byte[] readIccProfile(File file) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        for (byte[] segment : readSegments(file, APP2)){
+            if (segment.length > ICC_IDENTIFIER.length + 2
+                    && Arrays.equals(segment, 0, ICC_IDENTIFIER.length, ICC_IDENTIFIER, 0, ICC_IDENTIFIER.length)){
+                chunks.add(segment);
+            }
+        }
+        if (chunks.isEmpty()){
+            return null;
+        }
+        // Chunks are numbered from 1, and may be stored in any order
+        int count = chunks.get(0)[ICC_IDENTIFIER.length + 1] & 0xFF;
+        byte[][] ordered = new byte[count][];
+        for (byte[] chunk : chunks){
+            int sequence = chunk[ICC_IDENTIFIER.length] & 0xFF;
+            if (sequence < 1 || sequence > count || (chunk[ICC_IDENTIFIER.length + 1] & 0xFF) != count){
+                return null;
+            }
+            ordered[sequence - 1] = chunk;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] chunk : ordered){
+            if (chunk == null){
+                return null;
+            }
+            data.write(chunk, ICC_IDENTIFIER.length + 2, chunk.length - ICC_IDENTIFIER.length - 2);
+        }
+        return data.toByteArray();
+    }
+
+    // Payloads of the given marker's segments, up to the image data where metadata segments end
+    private static List<byte[]> readSegments(File file, int wanted) throws IOException {
+        List<byte[]> segments = new ArrayList<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if (in.readUnsignedShort() != 0xFFD8){
+                return segments;
+            }
+            while (true){
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9){
+                    // Start of scan (or garbage): EXIF and ICC always come before the image data
+                    return segments;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0){
+                    return segments;
+                }
+                if (marker == wanted){
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    segments.add(segment);
+                } else {
+                    in.skipNBytes(length);
+                }
+            }
+        } catch (EOFException e){
+            return segments;
+        }
+    }
+
+    // Cameras and editors embed their own copy of sRGB rather than Java's; they are recognized by description
+    private static boolean isSrgb(ICC_Profile profile){
+        if (profile.getColorSpaceType() != ColorSpace.TYPE_RGB){
+            return false;
+        }
+        String description = profileDescription(profile);
+        return description != null && description.toLowerCase(Locale.ROOT).startsWith("srgb");
+    }
+
+    // The 'desc' tag, as ICC v2 ('desc', ASCII) or v4 ('mluc', first record in UTF-16) stores it
+    private static String profileDescription(ICC_Profile profile){
+        byte[] tag = profile.getData(ICC_Profile.icSigProfileDescriptionTag);
+        if (tag == null || tag.length < 12){
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(tag);
+        String type = new String(tag, 0, 4, StandardCharsets.ISO_8859_1);
+        if (type.equals("desc")){
+            int length = buffer.getInt(8);
+            if (length < 1 || 12 + length > tag.length){
+                return null;
+            }
+            // Counted with the terminating NUL
+            return new String(tag, 12, length - 1, StandardCharsets.ISO_8859_1);
+        }
+        if (type.equals("mluc") && tag.length >= 28 && buffer.getInt(8) > 0){
+            int length = buffer.getInt(20);
+            int offset = buffer.getInt(24);
+            if (offset < 0 || length < 0 || offset + length > tag.length){
+                return null;
+            }
+            return new String(tag, offset, length, StandardCharsets.UTF_16BE);
+        }
+        return null;
+    }
+
+    // The color channels read in the profile's color space, written into a new sRGB image of the same type
+    private static BufferedImage convert(BufferedImage image, ColorSpace colorSpace){
+        int type = image.getType();
+        int components = colorSpace.getNumComponents();
+        if ((type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_4BYTE_ABGR)
+                || (components != 3 && components != 1)){
+            throw new IllegalArgumentException("a " + components + " component profile doesn't describe these pixels");
+        }
+        // Bands are R, G, B (and A) whatever the byte order; a grayscale JPEG decodes with the gray in all three
+        int[] bands = components == 3 ? new int[]{0, 1, 2} : new int[]{0};
+        WritableRaster raster = image.getRaster()
+                .createWritableChild(0, 0, image.getWidth(), image.getHeight(), 0, 0, bands);
+        ComponentColorModel model = new ComponentColorModel(colorSpace, false, false, Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE);
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        new ColorConvertOp(null).filter(new BufferedImage(model, raster, false, null), converted);
+        return converted;
+    }
+
+    // 0 if the segment isn't EXIF or has no orientation tag
+    private static int orientationFromExif(byte[] segment){
+        if (segment.length < 14 || !new String(segment, 0, 6, StandardCharsets.ISO_8859_1).equals("Exif\0\0")){
+            return 0;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        if (tiff.getShort(0) == 0x4949){
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.getShort(0) != 0x4D4D){
+            return 0;
+        }
+        int ifd = tiff.getInt(4);
+        if (ifd < 8 || ifd + 2 > tiff.limit()){
+            return 0;
+        }
+        int entries = tiff.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < entries; i++){
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > tiff.limit()){
+                return 0;
+            }
+            if ((tiff.getShort(entry) & 0xFFFF) == TAG_ORIENTATION){
+                int value = tiff.getShort(entry + 8) & 0xFFFF;
+                return value >= 1 && value <= 8 ? value : 0;
+            }
+        }
+        return 0;
+    }
+
+    // JPEG has no alpha channel, the ImageIO writer would otherwise store it as a fourth color component
+    private static BufferedImage opaque(BufferedImage image){
+        if (!image.getColorModel().hasAlpha()){
+            return image;
+        }
+        BufferedImage flat = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = flat.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return flat;
+    }
+
+    private static void addSrgbTag(IIOMetadata metadata) throws IOException {
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        IIOMetadataNode markerSequence = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+        IIOMetadataNode app1 = new IIOMetadataNode("unknown");
+        app1.setAttribute("MarkerTag", String.valueOf(0xE1));
+        app1.setUserObject(SRGB_EXIF.clone());
+        markerSequence.insertBefore(app1, markerSequence.getFirstChild());
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+    }
+}
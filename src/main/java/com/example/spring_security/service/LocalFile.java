@@ -0,0 +1,31 @@
+package com.example.spring_security.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A stored file as a file of its own on disk, for decoders and encoders that need a path.
+ * A packed file is copied out to a temporary file, deleted on close; a file of its own is just handed over
+ *
+ * @param file the file to read
+ * @param temporary true if closing deletes it
+ */
+public record LocalFile(File file, boolean temporary) implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalFile.class);
+
+    @Override
+    public void close(){
+        if (temporary){
+            try{
+                Files.deleteIfExists(file.toPath());
+            }catch (IOException e){
+                logger.warn("Failed to delete temporary copy {}: {}", file, e.getMessage());
+            }
+        }
+    }
+}
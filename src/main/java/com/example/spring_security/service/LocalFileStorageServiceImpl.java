@@ -1,23 +1,42 @@
 package com.example.spring_security.service;
 
 import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.dto.SignedUrlResponse;
 import com.example.spring_security.exception.FileNotFoundException;
 import com.example.spring_security.exception.FileStorageException;
+import com.example.spring_security.exception.FileValidationException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 @Service
 public class LocalFileStorageServiceImpl implements FileStorageService {
@@ -25,29 +44,114 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
     private final Path rootLocation;
     // Url under which files will be served
     private static final String URL_PREFIX = "/api/v1/images/files";
-    private final Path originalLocation;
-    private final Path optimizedLocation;
     private static final String ORIGINAL_URL_PREFIX = "/api/v1/images/files/original";
     private static final String OPTIMIZED_URL_PREFIX = "/api/v1/images/files/optimized";
+    // Per read from an upload stream
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // Optimized first, the order loadFile looks in
+    private final StoredFileIndex index;
+    private final ShardLayout layout;
+    // Where each name belongs; a single disk unless image.disks lists several
+    private final StorageDisks disks;
+    // Re-reads free space and health of the disks; only with several of them
+    private final ScheduledExecutorService diskMonitor;
+    // Shard directories known to exist, so a store doesn't stat its way down the tree every time
+    private final Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+    /**
+     * True while files may exist outside their place in the current layout (found by the startup scan,
+     * until a migration completes). Deletes then check every layout, so a leftover copy can't be migrated
+     * back to life later
+     */
+    private volatile boolean mixedLayout;
+    // Files were found off their owner disk at startup: a disk was added, or one was full when they were stored
+    private final boolean offOwner;
+    private final HotImageCache hotCache;
+    private final FileUrlSigner urlSigner;
+    private final PeerCluster peerCluster;
 
     /**
      * The constructor
      * @param properties
+     * @param hotCache in-memory copies of popular files, dropped when the file is deleted
+     * @param urlSigner signs expiring file URLs
+     * @param peerCluster names new files so this node owns them in cluster mode
+     * @param meterRegistry free space and health per disk
      */
     @Autowired
-    public LocalFileStorageServiceImpl(FileStorageProperties properties){
+    public LocalFileStorageServiceImpl(FileStorageProperties properties, HotImageCache hotCache,
+                                       FileUrlSigner urlSigner, PeerCluster peerCluster,
+                                       MeterRegistry meterRegistry){
+        this.hotCache = hotCache;
+        this.urlSigner = urlSigner;
+        this.peerCluster = peerCluster;
         this.rootLocation = properties.getFullStoragepath();
-        this.originalLocation = properties.getOriginalStoragePath();
-        this.optimizedLocation = properties.getOptimizedStoragePath();
+        this.layout = new ShardLayout(properties.getShardDepth());
+        this.disks = new StorageDisks(disksOf(properties), layout, properties.getDiskMinFreeSpace().toBytes());
 
+        // Every disk must be there at startup; one that fails later is skipped for new files
         try{
             Files.createDirectories(rootLocation);
-            Files.createDirectories(originalLocation);
-            Files.createDirectories(optimizedLocation);
+            for (StorageDisks.Disk disk : disks.disks()){
+                Files.createDirectories(disk.root);
+            }
+            for (Path location : disks.locations()){
+                Files.createDirectories(location);
+            }
 
         } catch (IOException ex){
             throw new FileStorageException("Could not initialize storage directory", ex);
         }
+        disks.refresh();
+
+        this.index = new StoredFileIndex(disks);
+        try{
+            index.scan(properties.getEffectiveIndexScanParallelism());
+        } catch (IOException ex){
+            throw new FileStorageException("Could not index storage directory", ex);
+        }
+        this.mixedLayout = index.sawMisplaced();
+        this.offOwner = index.sawOffOwner();
+
+        for (StorageDisks.Disk disk : disks.disks()){
+            Gauge.builder("image.storage.disk.free", disk, StorageDisks.Disk::usableSpace)
+                    .tag("disk", disk.root.toString())
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            Gauge.builder("image.storage.disk.accepting", disk, d -> disks.accepts(d) ? 1 : 0)
+                    .tag("disk", disk.root.toString())
+                    .register(meterRegistry);
+        }
+        if (disks.disks().size() > 1){
+            this.diskMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "storage-disk-monitor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = properties.getDiskCheckInterval().toMillis();
+            diskMonitor.scheduleWithFixedDelay(disks::refresh, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.diskMonitor = null;
+        }
+    }
+
+    // Each configured disk holds original/ and optimized/; without any, the storage path is the one disk
+    private static List<StorageDisks.Disk> disksOf(FileStorageProperties properties){
+        List<Path> roots = properties.getDiskPaths();
+        if (roots.isEmpty()){
+            return List.of(new StorageDisks.Disk(0, properties.getFullStoragepath(),
+                    properties.getOptimizedStoragePath(), properties.getOriginalStoragePath()));
+        }
+        return IntStream.range(0, roots.size())
+                .mapToObj(i -> new StorageDisks.Disk(i, roots.get(i), roots.get(i).resolve("optimized"),
+                        roots.get(i).resolve("original")))
+                .toList();
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        if (diskMonitor != null){
+            diskMonitor.shutdownNow();
+        }
     }
 
 
@@ -71,8 +175,8 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
             extension = original.substring(index);
         }
 
-        // Generate unique filename using UUID
-        String fileName = UUID.randomUUID().toString() + extension;
+        // Generate unique filename, one this node owns in cluster mode
+        String fileName = newFileName(extension);
 
         try{
 
@@ -93,49 +197,78 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
 
     /**
      * @param filename accepts a fileName as parameter
-     * @return a spring Resource (URLResource), which we can stream via a controller
+     * @return a spring Resource (FileSystemResource), which we can stream via a controller
      */
     @Override
     public Resource loadFile(String filename) {
-       try{
-           // first try to load from optimized path
-           Path optimizedFile = optimizedLocation.resolve(filename).normalize();
-           if (Files.exists(optimizedFile)){
-               UrlResource resource = new UrlResource(optimizedFile.toUri());
-               if (resource.exists() && resource.isReadable()){
-                   return resource;
-               }
-           }
-
-           // If not found, try original path
-           Path originalFile = originalLocation.resolve(filename).normalize();
-           if (Files.exists(originalFile)){
-               UrlResource resource = new UrlResource(originalFile.toUri());
-               if (resource.exists() && resource.isReadable()){
-                   return resource;
-               }
-           }
-           // if not found in either location
-           throw new FileNotFoundException("File not found: " + filename);
-       }catch (MalformedURLException ex){
-           throw new FileNotFoundException("File not found: " + filename, ex);
-       }
+        return new FileSystemResource(describeFile(filename).path());
+    }
+
+    /**
+     * Looks the file up in the index; names it doesn't know are checked on disk (optimized first, then original;
+     * the owner disk in the current layout first, then the places a migration may not have reached yet)
+     * and indexed if found
+     * @param filename the stored file name
+     * @return where the file is, its size, modification time and content type
+     */
+    @Override
+    public StoredFile describeFile(String filename) {
+        StoredFile indexed = index.find(filename);
+        if (indexed != null){
+            return indexed;
+        }
+        // Prevent path traversal
+        if (!ShardLayout.isPlainName(filename)){
+            throw new FileNotFoundException("File not found: " + filename);
+        }
+        for (int kind : new int[]{StorageDisks.OPTIMIZED, StorageDisks.ORIGINAL}){
+            for (Path file : disks.candidates(kind, filename)){
+                try{
+                    StoredFile found = index.add(file);
+                    if (found != null){
+                        return found;
+                    }
+                }catch (NoSuchFileException ex){
+                    // Not here, try the next place
+                }catch (IOException ex){
+                    throw new FileStorageException("Could not read file: " + filename, ex);
+                }
+            }
+        }
+        // if not found in either location
+        throw new FileNotFoundException("File not found: " + filename);
+    }
+
+    /**
+     * Every file here is a file of its own
+     * @param filename the stored file name
+     * @return the stored file, not deleted on close
+     */
+    @Override
+    public LocalFile localFile(String filename) {
+        return new LocalFile(describeFile(filename).path().toFile(), false);
     }
 
     @Override
     public boolean deleteFile(String fileName) {
+        if (!ShardLayout.isPlainName(fileName)){
+            return false;
+        }
         try{
             boolean deleted = false;
 
-            // Try to delete from optimized path
-            Path optimizedFile = optimizedLocation.resolve(fileName).normalize();
-            if (Files.exists(optimizedFile)){
-                deleted = Files.deleteIfExists(optimizedFile);
-            }
-            // Try to delete from original path
-            Path originalFile = originalLocation.resolve(fileName).normalize();
-            if (Files.exists(originalFile)){
-                deleted = Files.deleteIfExists(originalFile) || deleted;
+            // Only where the index has it, unless it doesn't know the name or layouts are mixed
+            List<StoredFile> indexed = index.findAll(fileName);
+            List<Path> candidates = indexed.isEmpty() || mixedLayout
+                    ? IntStream.of(StorageDisks.OPTIMIZED, StorageDisks.ORIGINAL)
+                            .mapToObj(kind -> disks.candidates(kind, fileName))
+                            .flatMap(List::stream)
+                            .toList()
+                    : indexed.stream().map(StoredFile::path).toList();
+            for (Path file : candidates){
+                deleted = Files.deleteIfExists(file) || deleted;
+                index.remove(file);
+                hotCache.invalidate(file);
             }
             return deleted;
         }catch (IOException ex){
@@ -149,30 +282,214 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
      * @return generated filename
      */
     public String storeOriginalFile(MultipartFile file){
-        return storeFileInLocation(file, originalLocation);
+        return storeFileInLocation(file, StorageDisks.ORIGINAL);
     }
 
-    public String storeOptimizedFile(File file){
+    /**
+     * Copies the upload to a temporary file in the storage root, hashing it on the way, so the content-addressed
+     * name is known before anything lands in the original location. The root is on the same file system as the
+     * locations by default, which makes storing the file a rename
+     * @param file MultipartFile to stage
+     * @return the staged file; close it once stored or rejected
+     */
+    @Override
+    public StagedFile stageOriginalFile(MultipartFile file){
+        // Sanitize original file name
+        String original = StringUtils.cleanPath(Objects.requireNonNull(file.getOriginalFilename()));
+
+        if (original.contains("..")){
+            throw new FileStorageException("Filename contains invalid path sequence: " + original);
+        }
+
+        // Extract extension, lower case so the same content uploaded as .JPG and .jpg gets one name
+        String extension = "";
+        int index = original.lastIndexOf('.');
+        if (index >= 0){
+            extension = original.substring(index).toLowerCase(Locale.ROOT);
+        }
+
+        try(InputStream in = file.getInputStream()){
+            return stageOriginalFile(in, extension, Long.MAX_VALUE);
+        }catch (IOException ex){
+            throw new FileStorageException("Failed to store file " + original, ex);
+        }
+    }
+
+    /**
+     * As above, from a stream, failing as soon as more than maxSize bytes have arrived
+     * @param content read to the end, not closed
+     * @param extension lower case with the dot, or empty
+     * @return the staged file; close it once stored or rejected
+     * @throws FileValidationException if the content is larger than maxSize
+     */
+    @Override
+    public StagedFile stageOriginalFile(InputStream content, String extension, long maxSize){
+        Path staged = null;
         try{
-            // extract extension from original file name
-            String original = file.getName();
-            String extension = "";
-            int index = original.lastIndexOf('.');
-            if (index >= 0){
-                extension = original.substring(index);
+            staged = Files.createTempFile(rootLocation, "upload-", ".tmp");
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = copyLimited(new DigestInputStream(content, digest), staged, maxSize);
+            return new StagedFile(staged, HexFormat.of().formatHex(digest.digest()), size, extension);
+        }catch (IOException ex){
+            deleteQuietly(staged);
+            throw new FileStorageException("Failed to stage upload", ex);
+        }catch (NoSuchAlgorithmException ex){
+            deleteQuietly(staged);
+            throw new IllegalStateException("SHA-256 unavailable", ex);
+        }catch (RuntimeException ex){
+            deleteQuietly(staged);
+            throw ex;
+        }
+    }
+
+    /**
+     * Streams content into the original location under a new name. It is written once, to a temporary file on the
+     * disk it is stored on (outside the indexed locations, so a half-written upload is never served or indexed),
+     * and renamed into place when complete
+     * @param content read to the end, not closed
+     * @param extension lower case with the dot, or empty
+     * @return generated filename
+     * @throws FileValidationException if the content is larger than maxSize
+     */
+    @Override
+    public String storeOriginalFile(InputStream content, String extension, long maxSize){
+        String fileName = newFileName(extension);
+        Path target = null;
+        Path temporary = null;
+        try{
+            target = prepareTarget(StorageDisks.ORIGINAL, fileName);
+            temporary = Files.createTempFile(disks.diskOf(target).root, "upload-", ".tmp");
+            copyLimited(content, temporary, maxSize);
+            try{
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+            }catch (AtomicMoveNotSupportedException ex){
+                // Configured original location on another file system than the storage root
+                Files.move(temporary, target);
+            }
+            index.add(target);
+            return fileName;
+        }catch (IOException ex){
+            deleteQuietly(temporary);
+            checkDisk(target);
+            throw new FileStorageException("Failed to store file " + fileName, ex);
+        }catch (RuntimeException ex){
+            deleteQuietly(temporary);
+            throw ex;
+        }
+    }
+
+    // Copies to the end of the stream, giving up once it is longer than maxSize rather than after reading it all
+    private static long copyLimited(InputStream in, Path target, long maxSize) throws IOException {
+        try(OutputStream out = Files.newOutputStream(target)){
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long size = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0){
+                size += read;
+                if (size > maxSize){
+                    throw new FileValidationException("File size exceeds max allowed: " + maxSize + " bytes");
+                }
+                out.write(buffer, 0, read);
             }
+            return size;
+        }
+    }
 
-            // Generating unique filename
-            String fileName = UUID.randomUUID().toString() + extension;
-            Path target = optimizedLocation.resolve(fileName).normalize();
+    /**
+     * Stores a staged upload in the original location. The name is derived from the content, so a file already
+     * stored under it (on whichever disk) holds the same bytes and the staged copy is left to be discarded
+     * @param staged the staged upload
+     * @param fileName the content-addressed name
+     * @return the file name
+     */
+    @Override
+    public String storeOriginalFile(StagedFile staged, String fileName){
+        Path target = null;
+        try{
+            if (index.find(fileName) != null){
+                return fileName;
+            }
+            // Throws on anything but a plain file name, which prevents path traversal
+            target = prepareTarget(StorageDisks.ORIGINAL, fileName);
+            if (!Files.exists(target)){
+                try{
+                    Files.move(staged.path(), target, StandardCopyOption.ATOMIC_MOVE);
+                }catch (AtomicMoveNotSupportedException ex){
+                    // Original location on another file system
+                    Files.move(staged.path(), target);
+                }
+            }
+            index.add(target);
+            return fileName;
+        }catch (IOException ex){
+            checkDisk(target);
+            throw new FileStorageException("Failed to store file " + fileName, ex);
+        }
+    }
 
-            // Prevent path traversal
-            if (!target.getParent().equals(optimizedLocation)){
-                throw new FileStorageException("Cannot store file outside current directory.");
+    private static void deleteQuietly(Path file){
+        if (file != null){
+            try{
+                Files.deleteIfExists(file);
+            }catch (IOException ignored){
+                // Only a stray temporary file in the storage root
             }
+        }
+    }
+
+    public String storeOptimizedFile(File file){
+        // extract extension from original file name
+        String original = file.getName();
+        String extension = "";
+        int index = original.lastIndexOf('.');
+        if (index >= 0){
+            extension = original.substring(index);
+        }
+
+        // Generating unique filename
+        String fileName = newFileName(extension);
+        return storeOptimizedFile(file, fileName);
+    }
+
+    /**
+     * Stores a processed image in the optimized location.
+     * Heap content is written once, a buffer that spilled to scratch is moved (a rename on the same file system)
+     * @param buffer the processed image; released afterwards
+     * @return generated filename
+     */
+    @Override
+    public String storeOptimizedFile(ImageBuffer buffer){
+        String fileName = newFileName(buffer.suffix());
+        Path target = null;
+        try{
+            // Throws on anything but a plain file name, which prevents path traversal
+            target = prepareTarget(StorageDisks.OPTIMIZED, fileName);
+            buffer.moveTo(target);
+            index.add(target);
+            return fileName;
+        }catch (IOException ex){
+            checkDisk(target);
+            throw new FileStorageException("Failed to store optimized file", ex);
+        }
+    }
+
+    /**
+     * Stores a file in the optimized location under a caller-chosen name
+     * @param file the file to copy
+     * @param fileName the plain file name to store it under
+     * @return the file name
+     */
+    @Override
+    public String storeOptimizedFile(File file, String fileName){
+        Path target = null;
+        try{
+            // Throws on anything but a plain file name, which prevents path traversal
+            target = prepareTarget(StorageDisks.OPTIMIZED, fileName);
             Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            index.add(target);
             return fileName;
         }catch (IOException ex){
+            checkDisk(target);
             throw new FileStorageException("Failed to store optimized file", ex);
         }
     }
@@ -189,7 +506,7 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
     }
 
     // Helper methods for common file storage logic:
-    private String storeFileInLocation(MultipartFile file, Path location){
+    private String storeFileInLocation(MultipartFile file, int kind){
         // Sanitize original file name
         String original = StringUtils.cleanPath(Objects.requireNonNull(file.getOriginalFilename()));
 
@@ -205,24 +522,133 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
         }
 
         // Generate unique filename
-        String filename = UUID.randomUUID().toString() + extension;
+        String filename = newFileName(extension);
 
+        Path target = null;
         try{
-            Path target = location.resolve(filename).normalize();
-
-            // prevent path traversal
-            if (!target.getParent().equals(location)){
-                throw new FileStorageException("Cannot store file outside current directory");
-            }
+            target = prepareTarget(kind, filename);
 
             // copy file
             Files.copy(file.getInputStream(), target, StandardCopyOption.REPLACE_EXISTING);
+            this.index.add(target);
             return filename;
         }catch (IOException ex){
+            checkDisk(target);
             throw new FileStorageException("Failed to store file " + filename, ex);
         }
     }
 
+    // The file's place in the current layout on the disk taking it, with its shard directories created
+    private Path prepareTarget(int kind, String fileName) throws IOException {
+        return createParent(layout.resolve(disks.target(fileName).location(kind), fileName));
+    }
+
+    private Path createParent(Path target) throws IOException {
+        Path directory = target.getParent();
+        if (!createdDirectories.contains(directory)){
+            Files.createDirectories(directory);
+            createdDirectories.add(directory);
+        }
+        return target;
+    }
+
+    // A write failing may mean its disk is: check it now rather than at the next round
+    private void checkDisk(Path target){
+        StorageDisks.Disk disk = target != null ? disks.diskOf(target) : null;
+        if (disk != null){
+            disks.check(disk);
+        }
+    }
+
+    /**
+     * A new random name with the extension; also used by PackFileStorageServiceImpl
+     */
+    String newFileName(String extension){
+        return peerCluster.newFileName(extension);
+    }
+
+    // Used by ShardMigrationService and PackMigrationService
+
+    ShardLayout layout(){
+        return layout;
+    }
+
+    int diskCount(){
+        return disks.disks().size();
+    }
+
+    List<Path> locations(){
+        return index.locations();
+    }
+
+    List<Path> optimizedLocations(){
+        return disks.disks().stream().map(disk -> disk.location(StorageDisks.OPTIMIZED)).toList();
+    }
+
+    /**
+     * @return true if the startup scan found files off their owner disk
+     */
+    boolean filesOffOwner(){
+        return offOwner;
+    }
+
+    /**
+     * @return true if the file is on its owner disk at its place in the current layout
+     */
+    boolean isPlaced(Path file){
+        return disks.isCanonical(file);
+    }
+
+    /**
+     * Creates the shard directories for a file moving into the current layout on its owner disk
+     * @return the file's place there, or null while the owner is full or failing
+     */
+    Path prepareMigrationTarget(Path file) throws IOException {
+        String fileName = file.getFileName().toString();
+        StorageDisks.Disk owner = disks.owner(fileName);
+        if (!disks.accepts(owner)){
+            return null;
+        }
+        return createParent(layout.resolve(owner.location(disks.kindOf(file)), fileName));
+    }
+
+    /**
+     * @return true if a hard link or rename can get from one path to the other
+     */
+    boolean sameDisk(Path file, Path other){
+        return disks.diskOf(file) == disks.diskOf(other);
+    }
+
+    /**
+     * A temporary file on the target's disk, outside the indexed locations, to copy into before renaming into place
+     */
+    Path createMigrationTemporary(Path target) throws IOException {
+        return Files.createTempFile(disks.diskOf(target).root, "migrating-", ".tmp");
+    }
+
+    /**
+     * Points the index at a file's new path. The old path may still exist until the migration unlinks it
+     */
+    void relocated(Path from, Path to) throws IOException {
+        index.add(to);
+        hotCache.invalidate(from);
+    }
+
+    /**
+     * Forgets a path the migration has unlinked
+     */
+    void unlinked(Path file){
+        index.remove(file);
+        hotCache.invalidate(file);
+    }
+
+    /**
+     * Called when a migration has left no file outside the current layout
+     */
+    void layoutConsistent(){
+        mixedLayout = false;
+    }
+
     // Methods to get URLs for both original and optimized files
 
     /**
@@ -243,4 +669,14 @@ public class LocalFileStorageServiceImpl implements FileStorageService {
     public  String getOptimizedFileUrl(String fileName){
         return OPTIMIZED_URL_PREFIX + "/" + fileName;
     }
+
+    /**
+     * Gets a signed, expiring URL for the file, served without authentication
+     * @param fileName the stored filename
+     * @return the URL (relative, like the others) and when it stops working
+     */
+    @Override
+    public SignedUrlResponse getSignedFileUrl(String fileName){
+        return urlSigner.sign(fileName);
+    }
 }
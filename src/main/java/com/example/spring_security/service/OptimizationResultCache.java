@@ -0,0 +1,240 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageCodecProperties;
+import com.example.spring_security.config.ImageFormatProperties;
+import com.example.spring_security.config.ImageJpegProperties;
+import com.example.spring_security.config.ImagePngProperties;
+import com.example.spring_security.config.ImageProcessingProperties;
+import com.example.spring_security.config.ImageQualityProperties;
+import com.example.spring_security.config.ImageRenditionProperties;
+import com.example.spring_security.config.ImageResampleProperties;
+import com.example.spring_security.entities.CachedRendition;
+import com.example.spring_security.entities.ImageRendition;
+import com.example.spring_security.entities.OptimizationResult;
+import com.example.spring_security.repository.OptimizationResultRepository;
+import jakarta.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Processing results keyed by (content hash, settings), so an upload of content that was processed before
+ * with the same settings reuses the optimized file and renditions instead of decoding and encoding again.
+ * Results are reference counted like the blobs they're made from; their files go with the last image using them.
+ * <p>
+ * Acquiring locks the row; for a new result that lasts until the uploading transaction has filled it in and
+ * committed, so concurrent identical uploads run the pipeline once and the others wait for its result
+ */
+@Service
+public class OptimizationResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(OptimizationResultCache.class);
+
+    private final OptimizationResultRepository repository;
+    private final FileStorageService fileStorageService;
+    private final ImageVariantResolver variantResolver;
+    private final TransactionTemplate reclaimTransaction;
+    // Everything the pipeline's output depends on
+    private final ImageProcessingProperties processingProperties;
+    private final ImageQualityProperties qualityProperties;
+    private final ImageJpegProperties jpegProperties;
+    private final ImagePngProperties pngProperties;
+    private final ImageResampleProperties resampleProperties;
+    private final ImageFormatProperties formatProperties;
+    private final ImageRenditionProperties renditionProperties;
+    private final ImageCodecProperties codecProperties;
+
+    public OptimizationResultCache(OptimizationResultRepository repository, FileStorageService fileStorageService,
+                                   ImageVariantResolver variantResolver, PlatformTransactionManager transactionManager,
+                                   ImageProcessingProperties processingProperties,
+                                   ImageQualityProperties qualityProperties, ImageJpegProperties jpegProperties,
+                                   ImagePngProperties pngProperties, ImageResampleProperties resampleProperties,
+                                   ImageFormatProperties formatProperties,
+                                   ImageRenditionProperties renditionProperties,
+                                   ImageCodecProperties codecProperties){
+        this.repository = repository;
+        this.fileStorageService = fileStorageService;
+        this.variantResolver = variantResolver;
+        this.reclaimTransaction = new TransactionTemplate(transactionManager);
+        this.reclaimTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.processingProperties = processingProperties;
+        this.qualityProperties = qualityProperties;
+        this.jpegProperties = jpegProperties;
+        this.pngProperties = pngProperties;
+        this.resampleProperties = resampleProperties;
+        this.formatProperties = formatProperties;
+        this.renditionProperties = renditionProperties;
+        this.codecProperties = codecProperties;
+    }
+
+    /**
+     * Identifies the upload's options together with the current processing configuration, the settings that
+     * change the output named one by one: a toString() of the properties would change with every field added to
+     * them, logging switches included. A setting that doesn't change the output but is part of the key only costs
+     * a cache miss after it changes; one that does and is missing here serves stale results, so add new ones
+     *
+     * @return SHA-256 of the options and settings, hex
+     */
+    public String settingsKey(ProcessingOptions options){
+        StringBuilder description = new StringBuilder();
+        setting(description, "options.quality", options.quality());
+        setting(description, "options.force", options.force());
+
+        setting(description, "processing.max-width", processingProperties.getMaxWidth());
+        setting(description, "processing.max-height", processingProperties.getMaxHeight());
+        setting(description, "processing.compression-threshold", bytes(processingProperties.getCompressionThreshold()));
+        setting(description, "processing.compression-quality", processingProperties.getCompressionQuality());
+
+        setting(description, "quality.adaptive", qualityProperties.isAdaptive());
+        setting(description, "quality.target", qualityProperties.getTarget());
+        setting(description, "quality.max-bytes", bytes(qualityProperties.getMaxBytes()));
+        setting(description, "quality.min-ssim", qualityProperties.getMinSsim());
+        setting(description, "quality.min-quality", qualityProperties.getMinQuality());
+        setting(description, "quality.max-quality", qualityProperties.getMaxQuality());
+        setting(description, "quality.max-iterations", qualityProperties.getMaxIterations());
+        setting(description, "quality.tolerance", qualityProperties.getTolerance());
+        setting(description, "quality.ssim-max-dimension", qualityProperties.getSsimMaxDimension());
+
+        setting(description, "jpeg.progressive", jpegProperties.isProgressive());
+        setting(description, "jpeg.optimize-huffman", jpegProperties.isOptimizeHuffman());
+        setting(description, "jpeg.apply-orientation", jpegProperties.isApplyOrientation());
+        setting(description, "jpeg.srgb-tag", jpegProperties.isSrgbTag());
+        // Not a setting: JPEGs with another color profile are converted to sRGB, which results stored before weren't
+        setting(description, "jpeg.color-profile", "srgb");
+
+        setting(description, "png.enabled", pngProperties.isEnabled());
+        setting(description, "png.palette", pngProperties.isPalette());
+        setting(description, "png.deflate-level", pngProperties.getDeflateLevel());
+        // Bands are deflated separately, so where they are cut shows in the output
+        setting(description, "png.parallel-threshold", bytes(pngProperties.getParallelThreshold()));
+        setting(description, "png.band-size", bytes(pngProperties.getBandSize()));
+
+        setting(description, "resample.filter", resampleProperties.getFilter());
+
+        setting(description, "alternate-formats.enabled", formatProperties.isEnabled());
+        setting(description, "alternate-formats.formats", formatProperties.getFormats());
+        setting(description, "alternate-formats.animated-formats", formatProperties.getAnimatedFormats());
+        setting(description, "alternate-formats.webp-quality", formatProperties.getWebpQuality());
+        setting(description, "alternate-formats.avif-crf", formatProperties.getAvifCrf());
+        setting(description, "alternate-formats.avif-speed", formatProperties.getAvifSpeed());
+        setting(description, "alternate-formats.mp4-bits-per-pixel", formatProperties.getMp4BitsPerPixel());
+
+        setting(description, "renditions.enabled", renditionProperties.isEnabled());
+        for (ImageRenditionProperties.Size size : renditionProperties.getSizes()){
+            setting(description, "renditions.size." + size.getName(), size.getMaxDimension());
+        }
+
+        // Which codec encodes a format changes its bytes
+        setting(description, "codecs.auto-select", codecProperties.isAutoSelect());
+        setting(description, "codecs.imageio-decode-max-pixels", new TreeMap<>(codecProperties.getImageioDecodeMaxPixels()));
+        setting(description, "codecs.imageio-encode-max-pixels", new TreeMap<>(codecProperties.getImageioEncodeMaxPixels()));
+        try{
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(description.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    private static void setting(StringBuilder description, String name, Object value){
+        description.append(name).append('=').append(value).append('\n');
+    }
+
+    private static Long bytes(DataSize size){
+        return size == null ? null : size.toBytes();
+    }
+
+    /**
+     * Takes a reference to the result for the content and settings, creating an empty one if there is none.
+     * An empty result must be filled in with {@link #complete} before the caller's transaction commits
+     *
+     * @return the result; {@link OptimizationResult#isComplete()} tells whether the pipeline can be skipped
+     */
+    @Transactional
+    public OptimizationResult acquire(String contentHash, String settingsKey){
+        repository.acquire(contentHash, settingsKey);
+        return repository.findByContentHashAndSettingsKey(contentHash, settingsKey).orElseThrow();
+    }
+
+    /**
+     * Records what the pipeline produced for an empty result. Only for a run where every step succeeded: an
+     * identical upload never runs the pipeline again once it's there
+     */
+    @Transactional
+    public void complete(OptimizationResult result, String filePath, long fileSize, boolean optimized,
+                         Float compressionQuality, List<ImageRendition> renditions){
+        result.setFilePath(filePath);
+        result.setFileSize(fileSize);
+        result.setOptimized(optimized);
+        result.setCompressionQuality(compressionQuality);
+        for (ImageRendition rendition : renditions){
+            result.getRenditions().add(CachedRendition.builder()
+                    .name(rendition.getName())
+                    .width(rendition.getWidth())
+                    .height(rendition.getHeight())
+                    .fileSize(rendition.getFileSize())
+                    .filePath(rendition.getFilePath())
+                    .build());
+        }
+        repository.save(result);
+    }
+
+    /**
+     * Drops a reference; the result's files are deleted after the caller's transaction commits if no image
+     * uses them by then
+     */
+    @Transactional
+    public void release(String contentHash, String settingsKey){
+        repository.release(contentHash, settingsKey);
+        TransactionHooks.afterCompletion(() -> reclaim(contentHash, settingsKey));
+    }
+
+    private void reclaim(String contentHash, String settingsKey){
+        try{
+            reclaimTransaction.executeWithoutResult(status -> repository.findForUpdate(contentHash, settingsKey)
+                    .filter(result -> result.getRefCount() == 0)
+                    .ifPresent(result -> {
+                        deleteFiles(result);
+                        repository.delete(result);
+                    }));
+        }catch (RuntimeException e){
+            logger.warn("Failed to reclaim optimization result for {}: {}", contentHash, e.getMessage());
+        }
+    }
+
+    // An unoptimized result serves a copy of the original; older ones serve the original, which (with its alternates)
+    // belongs to the blob. A result never completed, as when the upload making it was degraded, has no files
+    private void deleteFiles(OptimizationResult result){
+        if (!result.isComplete()){
+            return;
+        }
+        String fileName = fileName(result.getFilePath());
+        if (result.isOptimized() || !fileName.startsWith(result.getContentHash() + ".")){
+            deleteWithAlternates(fileName);
+        }
+        for (CachedRendition rendition : result.getRenditions()){
+            deleteWithAlternates(fileName(rendition.getFilePath()));
+        }
+    }
+
+    private void deleteWithAlternates(String fileName){
+        fileStorageService.deleteFile(fileName);
+        variantResolver.alternateNames(fileName).forEach(fileStorageService::deleteFile);
+    }
+
+    private static String fileName(String filePath){
+        return Path.of(filePath).getFileName().toString();
+    }
+}
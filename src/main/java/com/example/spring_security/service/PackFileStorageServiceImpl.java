@@ -0,0 +1,372 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.config.ImagePackProperties;
+import com.example.spring_security.dto.SignedUrlResponse;
+import com.example.spring_security.exception.FileStorageException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage backend that appends small optimized files to pack segments (see PackStore) instead of giving each
+ * its own file: no inode, directory entry or open per image, and a lookup is a map hit.
+ * Originals, large optimized files and everything stored by URL stay with the local backend, which this one
+ * delegates to, since FFmpeg and the render endpoint decode from real files.
+ * Selected with image.storage-backend: pack; the local backend stays in place for the delegated files
+ */
+@Service
+@Primary
+@ConditionalOnProperty(prefix = "image", name = "storage-backend", havingValue = "pack")
+public class PackFileStorageServiceImpl implements FileStorageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackFileStorageServiceImpl.class);
+
+    private final LocalFileStorageServiceImpl local;
+    private final ImagePackProperties properties;
+    private final PackStore store;
+    // Temporary copies of packed files for localFile
+    private final Path temporaryLocation;
+
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pack-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PackFileStorageServiceImpl(LocalFileStorageServiceImpl local, FileStorageProperties storageProperties,
+                                      ImagePackProperties properties, MeterRegistry meterRegistry){
+        this.local = local;
+        this.properties = properties;
+        this.temporaryLocation = storageProperties.getFullStoragepath();
+        try{
+            this.store = new PackStore(storageProperties.getPackStoragePath(), properties.getSegmentSize().toBytes());
+        } catch (IOException ex){
+            throw new FileStorageException("Could not open pack store", ex);
+        }
+
+        Gauge.builder("image.pack.files", store, PackStore::fileCount)
+                .register(meterRegistry);
+        Gauge.builder("image.pack.segments", store, PackStore::segmentCount)
+                .register(meterRegistry);
+        Gauge.builder("image.pack.bytes", store, PackStore::liveBytes)
+                .tag("state", "live")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("image.pack.bytes", store, PackStore::deadBytes)
+                .tag("state", "dead")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        long interval = properties.getCompactionInterval().toMillis();
+        compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String storeFile(MultipartFile file) {
+        return local.storeFile(file);
+    }
+
+    /**
+     * @param filename the stored file name
+     * @return the packed content, or the local file
+     */
+    @Override
+    public Resource loadFile(String filename) {
+        StoredFile packed = store.find(filename);
+        return packed != null ? new PackedResource(packed) : local.loadFile(filename);
+    }
+
+    /**
+     * The pack index first, then the local backend
+     * @param filename the stored file name
+     * @return where the file is; for a packed file its segment, offset and mapped content
+     */
+    @Override
+    public StoredFile describeFile(String filename) {
+        StoredFile packed = store.find(filename);
+        return packed != null ? packed : local.describeFile(filename);
+    }
+
+    /**
+     * Copies a packed file out to a temporary file in the storage root
+     * @param filename the stored file name
+     * @return a file of its own, deleted on close if it is a copy
+     */
+    @Override
+    public LocalFile localFile(String filename) {
+        StoredFile packed = store.find(filename);
+        if (packed == null){
+            return local.localFile(filename);
+        }
+        Path copy = null;
+        try{
+            copy = Files.createTempFile(temporaryLocation, "packed-", "-" + filename);
+            try(WritableByteChannel out = FileChannel.open(copy, StandardOpenOption.WRITE)){
+                ByteBuffer content = packed.content();
+                while (content.hasRemaining()){
+                    out.write(content);
+                }
+            }
+            return new LocalFile(copy.toFile(), true);
+        }catch (IOException ex){
+            if (copy != null){
+                new LocalFile(copy.toFile(), true).close();
+            }
+            throw new FileStorageException("Could not copy packed file: " + filename, ex);
+        }
+    }
+
+    /**
+     * Deletes the local copy before tombstoning the packed one: a pack migration packs a file before checking
+     * that its local copy still exists, so one of the two always sees the other's work
+     */
+    @Override
+    public boolean deleteFile(String fileName) {
+        boolean deleted = local.deleteFile(fileName);
+        try{
+            return store.delete(fileName) || deleted;
+        }catch (IOException ex){
+            throw new FileStorageException("Error deleting file: " + fileName, ex);
+        }
+    }
+
+    @Override
+    public String getFileUrl(String fileName) {
+        return local.getFileUrl(fileName);
+    }
+
+    @Override
+    public String storeOriginalFile(MultipartFile file) {
+        return local.storeOriginalFile(file);
+    }
+
+    @Override
+    public StagedFile stageOriginalFile(MultipartFile file) {
+        return local.stageOriginalFile(file);
+    }
+
+    @Override
+    public String storeOriginalFile(InputStream content, String extension, long maxSize) {
+        return local.storeOriginalFile(content, extension, maxSize);
+    }
+
+    @Override
+    public StagedFile stageOriginalFile(InputStream content, String extension, long maxSize) {
+        return local.stageOriginalFile(content, extension, maxSize);
+    }
+
+    @Override
+    public String storeOriginalFile(StagedFile staged, String fileName) {
+        return local.storeOriginalFile(staged, fileName);
+    }
+
+    @Override
+    public String storeOptimizedFile(File file) {
+        String original = file.getName();
+        int index = original.lastIndexOf('.');
+        String extension = index >= 0 ? original.substring(index) : "";
+        return storeOptimizedFile(file, local.newFileName(extension));
+    }
+
+    /**
+     * Packs the buffer's content if it is small enough, straight from the heap or the mapped spill file
+     * @param buffer the processed image; released afterwards
+     * @return generated filename
+     */
+    @Override
+    public String storeOptimizedFile(ImageBuffer buffer) {
+        if (buffer.size() > maxFileSize()){
+            return local.storeOptimizedFile(buffer);
+        }
+        String fileName = local.newFileName(buffer.suffix());
+        try(buffer){
+            store.put(fileName, buffer.byteBuffer(), System.currentTimeMillis());
+            return fileName;
+        }catch (IOException ex){
+            throw new FileStorageException("Failed to store optimized file", ex);
+        }
+    }
+
+    /**
+     * Packs the file if it is small enough. Whichever backend doesn't get it drops an older file of the same name,
+     * so the two never disagree about its content
+     */
+    @Override
+    public String storeOptimizedFile(File file, String fileName) {
+        if (!ShardLayout.isPlainName(fileName)){
+            throw new FileStorageException("Invalid file name: " + fileName);
+        }
+        try{
+            if (file.length() > maxFileSize()){
+                store.delete(fileName);
+                return local.storeOptimizedFile(file, fileName);
+            }
+            store.put(fileName, file.toPath(), System.currentTimeMillis());
+            local.deleteFile(fileName);
+            return fileName;
+        }catch (IOException ex){
+            throw new FileStorageException("Failed to store optimized file", ex);
+        }
+    }
+
+    @Override
+    public String getOriginalFileUrl(String fileName) {
+        return local.getOriginalFileUrl(fileName);
+    }
+
+    @Override
+    public String getOptimizedFileUrl(String fileName) {
+        return local.getOptimizedFileUrl(fileName);
+    }
+
+    @Override
+    public SignedUrlResponse getSignedFileUrl(String fileName) {
+        return local.getSignedFileUrl(fileName);
+    }
+
+    // Used by PackMigrationService
+
+    long maxFileSize(){
+        return properties.getMaxFileSize().toBytes();
+    }
+
+    boolean isPacked(String fileName){
+        return store.contains(fileName);
+    }
+
+    /**
+     * Packs a file from the local optimized location under its own name, keeping its modification time
+     * so ETags and Last-Modified don't change
+     */
+    void importFile(String fileName, Path file, long lastModified) throws IOException {
+        store.put(fileName, file, lastModified);
+    }
+
+    void forget(String fileName) throws IOException {
+        store.delete(fileName);
+    }
+
+    // Copies live files out of mostly dead segments; the segments go once responses sending from them are done
+    private void compact(){
+        try{
+            List<PackStore.Segment> compacted = store.compact(properties.getCompactionThreshold());
+            long grace = properties.getSegmentDeleteGrace().toMillis();
+            for (PackStore.Segment segment : compacted){
+                compactor.schedule(() -> deleteSegment(segment), grace, TimeUnit.MILLISECONDS);
+            }
+        }catch (IOException | RuntimeException e){
+            logger.warn("Pack compaction failed: {}", e.toString());
+        }
+    }
+
+    private void deleteSegment(PackStore.Segment segment){
+        try{
+            store.deleteSegment(segment);
+        }catch (IOException e){
+            logger.warn("Failed to delete compacted pack segment {}: {}", segment.path, e.toString());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        compactor.shutdownNow();
+        try{
+            store.close();
+        }catch (IOException e){
+            logger.warn("Failed to close pack store: {}", e.toString());
+        }
+    }
+
+    // A packed file as a Resource, read from its mapped segment
+    private static final class PackedResource extends AbstractResource {
+
+        private final StoredFile file;
+
+        private PackedResource(StoredFile file){
+            this.file = file;
+        }
+
+        @Override
+        public String getDescription() {
+            return "packed file [" + file.name() + "] in " + file.path();
+        }
+
+        @Override
+        public String getFilename() {
+            return file.name();
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return file.size();
+        }
+
+        @Override
+        public long lastModified() {
+            return file.lastModified();
+        }
+
+        @Override
+        public File getFile() throws IOException {
+            throw new FileNotFoundException(getDescription() + " is not a file of its own");
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer content = file.content().duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return content.hasRemaining() ? content.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0){
+                        return 0;
+                    }
+                    if (!content.hasRemaining()){
+                        return -1;
+                    }
+                    int count = Math.min(len, content.remaining());
+                    content.get(b, off, count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return content.remaining();
+                }
+            };
+        }
+    }
+}
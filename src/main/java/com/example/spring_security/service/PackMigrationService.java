@@ -0,0 +1,184 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.dto.PackMigrationStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the small files of the local optimized location into the pack store while the application keeps serving
+ * them. A file is packed under its own name with its modification time, from then on lookups find the packed copy
+ * first, and the local copy is only unlinked after a grace period, for requests that opened it a moment earlier.
+ * Originals stay where they are. Idempotent: a run skips packed files and removes their leftover local copies.
+ * Runs on one thread, since appends to the pack are serialized anyway
+ */
+@Service
+@ConditionalOnProperty(prefix = "image", name = "storage-backend", havingValue = "pack")
+public class PackMigrationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackMigrationService.class);
+
+    private final LocalFileStorageServiceImpl local;
+    private final PackFileStorageServiceImpl pack;
+    private final FileStorageProperties properties;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong packed = new AtomicLong();
+    private final AtomicLong alreadyPacked = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Only touched by the migration thread
+    private final Queue<PendingUnlink> pendingUnlinks = new ArrayDeque<>();
+    private volatile String state = "IDLE";
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+
+    public PackMigrationService(LocalFileStorageServiceImpl local, PackFileStorageServiceImpl pack,
+                                FileStorageProperties properties){
+        this.local = local;
+        this.pack = pack;
+        this.properties = properties;
+    }
+
+    /**
+     * Start a migration in the background, unless one is running
+     * @return the status right after starting (or of the run in progress)
+     */
+    public synchronized PackMigrationStatus start(){
+        if ("RUNNING".equals(state)){
+            return status();
+        }
+        scanned.set(0);
+        packed.set(0);
+        alreadyPacked.set(0);
+        tooLarge.set(0);
+        failed.set(0);
+        startedAt = Instant.now();
+        finishedAt = null;
+        state = "RUNNING";
+        Thread.ofPlatform().name("pack-migration").daemon().start(this::run);
+        return status();
+    }
+
+    public PackMigrationStatus status(){
+        return new PackMigrationStatus(state, scanned.get(), packed.get(), alreadyPacked.get(), tooLarge.get(),
+                failed.get(), startedAt, finishedAt);
+    }
+
+    private void run(){
+        logger.info("Packing optimized files up to {} bytes", pack.maxFileSize());
+        try{
+            for (Path location : local.optimizedLocations()){
+                walk(location);
+            }
+            unlinkDue(true);
+            finishedAt = Instant.now();
+            state = "COMPLETED";
+            logger.info("Pack migration done: {}", status());
+        }catch (Exception e){
+            finishedAt = Instant.now();
+            state = "FAILED";
+            logger.error("Pack migration failed: {}", status(), e);
+        }
+    }
+
+    private void walk(Path location) throws IOException {
+        Files.walkFileTree(location, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes){
+                scanned.incrementAndGet();
+                if (attributes.isRegularFile()){
+                    migrate(file, attributes);
+                    unlinkDue(false);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException){
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+    }
+
+    private void migrate(Path file, BasicFileAttributes attributes){
+        String fileName = file.getFileName().toString();
+        try{
+            if (!ShardLayout.isPlainName(fileName) || attributes.size() > pack.maxFileSize()){
+                tooLarge.incrementAndGet();
+                return;
+            }
+            if (pack.isPacked(fileName)){
+                alreadyPacked.incrementAndGet();
+                scheduleUnlink(file);
+                return;
+            }
+            pack.importFile(fileName, file, attributes.lastModifiedTime().toMillis());
+            if (!Files.exists(file)){
+                // Deleted while being packed: the delete may have missed the packed copy
+                pack.forget(fileName);
+                return;
+            }
+            scheduleUnlink(file);
+            packed.incrementAndGet();
+        }catch (NoSuchFileException e){
+            // Deleted while we were getting to it
+        }catch (Exception e){
+            failed.incrementAndGet();
+            logger.warn("Failed to pack {}: {}", file, e.toString());
+        }
+    }
+
+    private void scheduleUnlink(Path file){
+        pendingUnlinks.add(new PendingUnlink(file,
+                System.nanoTime() + properties.getMigrationUnlinkGrace().toNanos()));
+    }
+
+    // Remove local copies whose grace period is over; with wait, sleep until all of them are
+    private void unlinkDue(boolean wait){
+        PendingUnlink pending;
+        while ((pending = pendingUnlinks.peek()) != null){
+            long remaining = pending.dueNanos - System.nanoTime();
+            if (remaining > 0){
+                if (!wait){
+                    return;
+                }
+                try{
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            pendingUnlinks.poll();
+            try{
+                Files.deleteIfExists(pending.path);
+                local.unlinked(pending.path);
+            }catch (IOException e){
+                failed.incrementAndGet();
+                logger.warn("Failed to remove {} after packing it: {}", pending.path, e.toString());
+            }
+        }
+    }
+
+    private record PendingUnlink(Path path, long dueNanos) {
+    }
+}
@@ -0,0 +1,599 @@
+package com.example.spring_security.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Haystack-style store for many small files: each file is appended as a needle (a short header, then the bytes)
+ * to the active segment, a large file preallocated and mapped into memory, so storing is a copy into the page cache
+ * and reading is a slice of the mapping. A full segment is sealed with a footer listing its needles, which is all
+ * the startup has to read to rebuild the in-memory index; only the one unsealed segment is scanned.
+ * <p>
+ * Segments are never rewritten. Deleting or replacing a file appends its needle to a tombstone journal, and
+ * a segment whose bytes are mostly dead is compacted: its live needles are appended again and the segment deleted.
+ * When the index is rebuilt, tombstoned needles are skipped and a later needle for a name wins over an earlier one.
+ * <p>
+ * A put or delete is on disk when it returns (the needle's pages, or the journal, are forced), so a name the
+ * database commits can't lose its bytes or come back after an OS crash
+ */
+final class PackStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackStore.class);
+
+    // "IMGPACK1", then the segment id
+    private static final long SEGMENT_MAGIC = 0x494d475041434b31L;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    // "NEDL"; a needle is magic, name length, name, last modified, size, CRC32 of the content, content
+    private static final int NEEDLE_MAGIC = 0x4e45444c;
+    private static final int NEEDLE_HEADER_SIZE = 4 + 2 + 8 + 4 + 4;
+    // A footer entry is name length, name, content offset, size, last modified
+    private static final int FOOTER_ENTRY_SIZE = 2 + 4 + 4 + 8;
+    // Ends a sealed segment: entry count, footer start, "IMGFOOT1"
+    private static final long FOOTER_MAGIC = 0x494d47464f4f5431L;
+    private static final int TRAILER_SIZE = 4 + 4 + 8;
+    // Offsets are ints and a segment is one mapping
+    static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final int MAX_NAME_LENGTH = 1024;
+    private static final String JOURNAL = "tombstones.log";
+    // Segment id, content offset
+    private static final int TOMBSTONE_SIZE = 8 + 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Map<String, Needle> index = new ConcurrentHashMap<>();
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Serializes appends; readers never take it
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // Compacted segments whose file is still there: their tombstones stay in the journal until it is deleted
+    private final Set<Long> retired = ConcurrentHashMap.newKeySet();
+    private final Object journalLock = new Object();
+    private FileChannel journal;
+    private Segment active;
+
+    /**
+     * Where a file's current content is
+     */
+    record Needle(Segment segment, int offset, int size, long lastModified) {
+    }
+
+    private record FooterEntry(String name, int offset, int size, long lastModified) {
+    }
+
+    static final class Segment {
+        final long id;
+        final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        // Needles appended so far, for the footer; dropped once sealed. Guarded by appendLock, like writePosition
+        private List<FooterEntry> entries;
+        private int writePosition;
+        private int footerSize;
+        // File size once sealed; the mapping of a segment sealed since startup reaches past it
+        private volatile int sealedSize;
+        private volatile boolean sealed;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        private Segment(long id, Path path, FileChannel channel, MappedByteBuffer map){
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        ByteBuffer slice(int offset, int size){
+            return map.slice(offset, size).asReadOnlyBuffer();
+        }
+
+        // Share of the content bytes that belong to deleted or replaced files
+        double deadRatio(){
+            long dead = deadBytes.get();
+            long total = dead + liveBytes.get();
+            return total == 0 ? 0 : (double) dead / total;
+        }
+    }
+
+    /**
+     * Opens the store, rebuilding the index from the segment footers and the journal
+     *
+     * @param segmentSize bytes per segment, at most {@link #MAX_SEGMENT_SIZE}
+     */
+    PackStore(Path directory, long segmentSize) throws IOException {
+        if (segmentSize < 1 << 20 || segmentSize > MAX_SEGMENT_SIZE){
+            throw new IllegalArgumentException("Segment size must be between 1MB and 1GB: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = (int) segmentSize;
+        Files.createDirectories(directory);
+
+        long started = System.nanoTime();
+        Map<Long, Set<Integer>> tombstones = readJournal();
+        List<Segment> unsealed = new ArrayList<>();
+        for (Map.Entry<Long, Path> file : listSegments().entrySet()){
+            Segment segment = open(file.getKey(), file.getValue());
+            if (segment == null){
+                continue;
+            }
+            List<FooterEntry> entries = segment.sealed ? readFooter(segment) : scan(segment);
+            Set<Integer> dead = tombstones.getOrDefault(segment.id, Set.of());
+            for (FooterEntry entry : entries){
+                if (dead.contains(entry.offset())){
+                    segment.deadBytes.addAndGet(entry.size());
+                } else {
+                    publish(entry.name(), new Needle(segment, entry.offset(), entry.size(), entry.lastModified()));
+                }
+            }
+            if (!segment.sealed){
+                segment.entries = new ArrayList<>(entries);
+                segment.footerSize = entries.stream().mapToInt(entry -> footerEntrySize(entry.name())).sum();
+                unsealed.add(segment);
+            }
+            segments.put(segment.id, segment);
+        }
+        // Only the last segment takes appends; any other left unsealed by a crash is sealed now
+        for (int i = 0; i < unsealed.size() - 1; i++){
+            seal(unsealed.get(i));
+        }
+        active = unsealed.isEmpty() || unsealed.get(unsealed.size() - 1) != segments.lastEntry().getValue()
+                ? create(segments.isEmpty() ? 1 : segments.lastKey() + 1)
+                : unsealed.get(unsealed.size() - 1);
+        journal = FileChannel.open(directory.resolve(JOURNAL), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        logger.info("Opened pack store {}: {} files in {} segments in {} ms", directory, index.size(), segments.size(),
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * @return the file's content and where it is, or null if it isn't packed
+     */
+    StoredFile find(String name){
+        Needle needle = index.get(name);
+        if (needle == null){
+            return null;
+        }
+        return new StoredFile(name, needle.segment().path, needle.offset(), needle.size(), needle.lastModified(),
+                StoredFile.contentTypeOf(name), needle.segment().slice(needle.offset(), needle.size()));
+    }
+
+    boolean contains(String name){
+        return index.containsKey(name);
+    }
+
+    /**
+     * Appends the content as the file's current version; a previous version becomes dead
+     */
+    void put(String name, ByteBuffer content, long lastModified) throws IOException {
+        Needle needle;
+        appendLock.lock();
+        try{
+            needle = append(name, content, lastModified, true);
+        }finally {
+            appendLock.unlock();
+        }
+        Needle previous = index.put(name, needle);
+        if (previous != null){
+            markDead(previous);
+        }
+    }
+
+    /**
+     * Appends a file from disk, mapped rather than read onto the heap
+     */
+    void put(String name, Path file, long lastModified) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = channel.size();
+            if (size > segmentSize){
+                throw new IOException("File too large for a pack segment: " + file);
+            }
+            put(name, channel.map(FileChannel.MapMode.READ_ONLY, 0, size), lastModified);
+        }
+    }
+
+    /**
+     * Tombstones the file
+     * @return true if it was packed
+     */
+    boolean delete(String name) throws IOException {
+        Needle needle = index.remove(name);
+        if (needle == null){
+            return false;
+        }
+        markDead(needle);
+        return true;
+    }
+
+    /**
+     * Copies the live needles out of sealed segments with at least the given share of dead bytes.
+     * The segments are no longer read from afterwards, but stay on disk until {@link #deleteSegment}
+     *
+     * @return the compacted segments
+     */
+    List<Segment> compact(double threshold) throws IOException {
+        List<Segment> compacted = new ArrayList<>();
+        for (Segment segment : segments.values()){
+            if (!segment.sealed || segment.deadRatio() < threshold){
+                continue;
+            }
+            List<Needle> moved = new ArrayList<>();
+            for (FooterEntry entry : readFooter(segment)){
+                Needle current = index.get(entry.name());
+                if (current != null && current.segment() == segment && current.offset() == entry.offset()
+                        && relocate(entry.name(), current)){
+                    moved.add(current);
+                }
+            }
+            // The copies are on disk before the originals are tombstoned: a crash leaves one or the other live.
+            // Tombstoning them keeps a copy deleted later from coming back out of this segment after a crash
+            forceActive();
+            markDead(moved);
+            retired.add(segment.id);
+            segments.remove(segment.id);
+            compacted.add(segment);
+            logger.info("Compacted pack segment {}: {} live files copied, {} KB reclaimable", segment.path.getFileName(),
+                    moved.size(), segment.deadBytes.get() >> 10);
+        }
+        return compacted;
+    }
+
+    /**
+     * Deletes a compacted segment and drops its tombstones from the journal, in that order: while the file
+     * exists its dead needles must stay tombstoned
+     */
+    void deleteSegment(Segment segment) throws IOException {
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+        retired.remove(segment.id);
+        rewriteJournal();
+    }
+
+    int fileCount(){
+        return index.size();
+    }
+
+    int segmentCount(){
+        return segments.size();
+    }
+
+    long liveBytes(){
+        return segments.values().stream().mapToLong(segment -> segment.liveBytes.get()).sum();
+    }
+
+    long deadBytes(){
+        return segments.values().stream().mapToLong(segment -> segment.deadBytes.get()).sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try{
+            active.map.force();
+            for (Segment segment : segments.values()){
+                segment.channel.close();
+            }
+            synchronized (journalLock){
+                journal.close();
+            }
+        }finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Copies a live needle to the active segment, unless the file is deleted or replaced meanwhile.
+     * The copy isn't forced: the caller forces once for all of a segment's copies, then tombstones the originals
+     * @return true if the copy replaced the original
+     */
+    private boolean relocate(String name, Needle from) throws IOException {
+        Needle to;
+        appendLock.lock();
+        try{
+            to = append(name, from.segment().slice(from.offset(), from.size()), from.lastModified(), false);
+        }finally {
+            appendLock.unlock();
+        }
+        if (index.replace(name, from, to)){
+            return true;
+        }
+        markDead(to);
+        return false;
+    }
+
+    // Segments sealed meanwhile were forced by seal
+    private void forceActive(){
+        appendLock.lock();
+        try{
+            active.map.force();
+        }finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Durable: the needle's pages are forced before it is returned
+    private Needle append(String name, ByteBuffer content, long lastModified, boolean durable) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_LENGTH){
+            throw new IOException("File name too long to pack: " + name);
+        }
+        int size = content.remaining();
+        int needleSize = NEEDLE_HEADER_SIZE + nameBytes.length + size;
+        int footerGrowth = footerEntrySize(name);
+        if ((long) SEGMENT_HEADER_SIZE + needleSize + footerGrowth + TRAILER_SIZE > segmentSize){
+            throw new IOException("File too large for a pack segment: " + name);
+        }
+        if ((long) active.writePosition + needleSize + active.footerSize + footerGrowth + TRAILER_SIZE > segmentSize){
+            seal(active);
+            active = create(active.id + 1);
+        }
+
+        Segment segment = active;
+        MappedByteBuffer map = segment.map;
+        int position = segment.writePosition;
+        int nameEnd = position + 6 + nameBytes.length;
+        int offset = nameEnd + 16;
+        map.put(offset, content, content.position(), size);
+        CRC32 crc = new CRC32();
+        crc.update(map.slice(offset, size));
+        map.putShort(position + 4, (short) nameBytes.length);
+        map.put(position + 6, nameBytes);
+        map.putLong(nameEnd, lastModified);
+        map.putInt(nameEnd + 8, size);
+        map.putInt(nameEnd + 12, (int) crc.getValue());
+        // Magic last, so a needle cut short by a crash isn't taken for a whole one
+        map.putInt(position, NEEDLE_MAGIC);
+        if (durable){
+            map.force(position, offset + size - position);
+        }
+
+        segment.writePosition = offset + size;
+        segment.footerSize += footerGrowth;
+        segment.entries.add(new FooterEntry(name, offset, size, lastModified));
+        segment.liveBytes.addAndGet(size);
+        return new Needle(segment, offset, size, lastModified);
+    }
+
+    // Writes the footer after the last needle and cuts the preallocated file down to what is used
+    private void seal(Segment segment) throws IOException {
+        MappedByteBuffer map = segment.map;
+        int footerStart = segment.writePosition;
+        int position = footerStart;
+        for (FooterEntry entry : segment.entries){
+            byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+            map.putShort(position, (short) name.length);
+            map.put(position + 2, name);
+            position += 2 + name.length;
+            map.putInt(position, entry.offset());
+            map.putInt(position + 4, entry.size());
+            map.putLong(position + 8, entry.lastModified());
+            position += 16;
+        }
+        map.putInt(position, segment.entries.size());
+        map.putInt(position + 4, footerStart);
+        map.putLong(position + 8, FOOTER_MAGIC);
+        map.force();
+        // Nothing reads past the footer, so the mapping can outlive the bytes cut off here
+        segment.channel.truncate(position + TRAILER_SIZE);
+        segment.sealedSize = position + TRAILER_SIZE;
+        segment.entries = null;
+        segment.sealed = true;
+    }
+
+    private Segment create(long id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%08d.pack", id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Extends the file to the full size; sparse, so blocks are only taken as needles are written
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        map.putLong(0, SEGMENT_MAGIC);
+        map.putLong(8, id);
+        // A segment without its header is ignored at startup, with every needle in it
+        map.force(0, SEGMENT_HEADER_SIZE);
+        Segment segment = new Segment(id, path, channel, map);
+        segment.entries = new ArrayList<>();
+        segment.writePosition = SEGMENT_HEADER_SIZE;
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // Sealed segments are mapped as they are, an unsealed one at full size for appends. Null for a foreign file
+    private Segment open(long id, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        channel.read(header, 0);
+        if (fileSize < SEGMENT_HEADER_SIZE || header.getLong(0) != SEGMENT_MAGIC || header.getLong(8) != id){
+            logger.warn("Ignoring {}: not a pack segment", path);
+            channel.close();
+            return null;
+        }
+        boolean sealed = false;
+        if (fileSize >= SEGMENT_HEADER_SIZE + TRAILER_SIZE){
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            channel.read(trailer, fileSize - TRAILER_SIZE);
+            sealed = trailer.getLong(8) == FOOTER_MAGIC;
+        }
+        MappedByteBuffer map = sealed
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+                : channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        Segment segment = new Segment(id, path, channel, map);
+        segment.sealed = sealed;
+        segment.sealedSize = sealed ? (int) fileSize : 0;
+        return segment;
+    }
+
+    private List<FooterEntry> readFooter(Segment segment){
+        MappedByteBuffer map = segment.map;
+        int trailer = segment.sealedSize - TRAILER_SIZE;
+        int count = map.getInt(trailer);
+        int position = map.getInt(trailer + 4);
+        List<FooterEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            int nameLength = Short.toUnsignedInt(map.getShort(position));
+            String name = decode(map, position + 2, nameLength);
+            position += 2 + nameLength;
+            entries.add(new FooterEntry(name, map.getInt(position), map.getInt(position + 4), map.getLong(position + 8)));
+            position += 16;
+        }
+        return entries;
+    }
+
+    // Walks the needles of an unsealed segment up to the first one that is missing, cut short or corrupt
+    private List<FooterEntry> scan(Segment segment){
+        MappedByteBuffer map = segment.map;
+        int limit = segmentSize - TRAILER_SIZE;
+        int position = SEGMENT_HEADER_SIZE;
+        List<FooterEntry> entries = new ArrayList<>();
+        while (position + NEEDLE_HEADER_SIZE <= limit && map.getInt(position) == NEEDLE_MAGIC){
+            int nameLength = Short.toUnsignedInt(map.getShort(position + 4));
+            int nameEnd = position + 6 + nameLength;
+            if (nameLength > MAX_NAME_LENGTH || nameEnd + 16 > limit){
+                break;
+            }
+            int size = map.getInt(nameEnd + 8);
+            int offset = nameEnd + 16;
+            if (size < 0 || offset > limit - size){
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(map.slice(offset, size));
+            if ((int) crc.getValue() != map.getInt(nameEnd + 12)){
+                break;
+            }
+            entries.add(new FooterEntry(decode(map, position + 6, nameLength), offset, size, map.getLong(nameEnd)));
+            position = offset + size;
+        }
+        if (position + 4 <= limit && map.getInt(position) != 0){
+            logger.warn("Pack segment {} ends in a partial needle at {}, appending over it", segment.path, position);
+        }
+        segment.writePosition = position;
+        return entries;
+    }
+
+    // Later needles replace earlier ones for the same name, as when they were written
+    private void publish(String name, Needle needle){
+        needle.segment().liveBytes.addAndGet(needle.size());
+        Needle previous = index.put(name, needle);
+        if (previous != null){
+            previous.segment().liveBytes.addAndGet(-previous.size());
+            previous.segment().deadBytes.addAndGet(previous.size());
+        }
+    }
+
+    private void markDead(Needle needle) throws IOException {
+        markDead(List.of(needle));
+    }
+
+    // Journals the tombstones and forces them, once for the lot
+    private void markDead(List<Needle> needles) throws IOException {
+        if (needles.isEmpty()){
+            return;
+        }
+        ByteBuffer tombstones = ByteBuffer.allocate(TOMBSTONE_SIZE * needles.size());
+        for (Needle needle : needles){
+            tombstones.putLong(needle.segment().id).putInt(needle.offset());
+        }
+        tombstones.flip();
+        synchronized (journalLock){
+            while (tombstones.hasRemaining()){
+                journal.write(tombstones);
+            }
+            journal.force(false);
+        }
+        for (Needle needle : needles){
+            needle.segment().liveBytes.addAndGet(-needle.size());
+            needle.segment().deadBytes.addAndGet(needle.size());
+        }
+    }
+
+    private Map<Long, Set<Integer>> readJournal() throws IOException {
+        Map<Long, Set<Integer>> tombstones = new HashMap<>();
+        ByteBuffer content;
+        try{
+            content = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(JOURNAL)));
+        }catch (NoSuchFileException e){
+            return tombstones;
+        }
+        // A record cut short by a crash is ignored
+        while (content.remaining() >= TOMBSTONE_SIZE){
+            tombstones.computeIfAbsent(content.getLong(), id -> new HashSet<>()).add(content.getInt());
+        }
+        return tombstones;
+    }
+
+    // Keeps the tombstones of segments whose file still exists, replacing the journal atomically
+    private void rewriteJournal() throws IOException {
+        synchronized (journalLock){
+            Path path = directory.resolve(JOURNAL);
+            Path rewritten = directory.resolve(JOURNAL + ".tmp");
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(path));
+            ByteBuffer kept = ByteBuffer.allocate(content.remaining());
+            while (content.remaining() >= TOMBSTONE_SIZE){
+                long id = content.getLong();
+                int offset = content.getInt();
+                if (segments.containsKey(id) || retired.contains(id)){
+                    kept.putLong(id).putInt(offset);
+                }
+            }
+            try(FileChannel channel = FileChannel.open(rewritten, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+                kept.flip();
+                while (kept.hasRemaining()){
+                    channel.write(kept);
+                }
+                channel.force(true);
+            }
+            journal.close();
+            Files.move(rewritten, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            journal = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private NavigableMap<Long, Path> listSegments() throws IOException {
+        NavigableMap<Long, Path> files = new java.util.TreeMap<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.pack")){
+            for (Path file : stream){
+                String name = file.getFileName().toString();
+                try{
+                    files.put(Long.parseLong(name.substring("segment-".length(), name.length() - ".pack".length())), file);
+                }catch (NumberFormatException e){
+                    logger.warn("Ignoring {}: not a pack segment", file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static int footerEntrySize(String name){
+        return FOOTER_ENTRY_SIZE + name.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String decode(MappedByteBuffer map, int position, int length){
+        byte[] bytes = new byte[length];
+        map.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.config.ImageClusterProperties;
+import com.example.spring_security.config.ImageSignedUrlProperties;
+import com.example.spring_security.exception.FileNotFoundException;
+import com.example.spring_security.exception.PeerUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Cluster mode: nodes with disks of their own, each name owned by one node on a consistent-hash ring over the
+ * configured peers. A node names what it stores so that it owns it, and a node that doesn't have a requested file
+ * fetches it through the other nodes' signed URL servlets (the signing key is shared), owner first, either into the
+ * render cache or streamed straight into the response. Requests from peers carry a header and are never passed on,
+ * so nodes that disagree about the ring can't bounce a request between them.
+ * Files stored before cluster mode was enabled, and content-addressed originals, whose name is their hash, may be
+ * on any node; they are found by asking the rest once the owner answers 404
+ */
+@Service
+public class PeerCluster {
+
+    private static final Logger logger = LoggerFactory.getLogger(PeerCluster.class);
+
+    // Set on requests between nodes, to the asking node's URL
+    public static final String PEER_HEADER = "X-Image-Peer";
+    // Modification time in epoch milliseconds, so a fetched copy keeps the owner's ETag and Last-Modified
+    public static final String LAST_MODIFIED_HEADER = "X-Image-Last-Modified";
+
+    private static final int VIRTUAL_NODES = 160;
+    private static final String CACHE_PREFIX = "peer-";
+    // Bounds the remembered misses, e.g. when someone requests random names
+    private static final int MAX_MISSES = 100_000;
+
+    private final ImageClusterProperties properties;
+    private final FileUrlSigner signer;
+    private final DerivativeCache cache;
+    // Fetched files are written here before they move into the cache, on the same file system by default
+    private final Path temporaryLocation;
+    private final List<String> peers;
+    private final HashRing ring;
+    private final int self;
+    private final HttpClient client;
+    // Name -> System.nanoTime() until which the owner is taken not to have it
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();
+
+    private final Counter fetched;
+    private final Counter notFound;
+    private final Counter failed;
+
+    public PeerCluster(ImageClusterProperties properties, ImageSignedUrlProperties signedUrlProperties,
+                       FileStorageProperties storageProperties, FileUrlSigner signer, DerivativeCache cache,
+                       MeterRegistry meterRegistry){
+        this.properties = properties;
+        this.signer = signer;
+        this.cache = cache;
+        this.temporaryLocation = storageProperties.getFullStoragepath();
+        this.fetched = Counter.builder("image.cluster.fetches").tag("result", "fetched").register(meterRegistry);
+        this.notFound = Counter.builder("image.cluster.fetches").tag("result", "not_found").register(meterRegistry);
+        this.failed = Counter.builder("image.cluster.fetches").tag("result", "failed").register(meterRegistry);
+        if (!properties.isEnabled()){
+            this.peers = List.of();
+            this.ring = null;
+            this.self = -1;
+            this.client = null;
+            return;
+        }
+
+        this.peers = properties.getPeers().stream().map(PeerCluster::normalize).distinct().toList();
+        String selfUrl = properties.getSelfUrl() == null ? "" : normalize(properties.getSelfUrl());
+        this.self = peers.indexOf(selfUrl);
+        if (self < 0){
+            throw new IllegalStateException("image.cluster.self-url " + selfUrl + " is not in image.cluster.peers");
+        }
+        if (signedUrlProperties.getSecretKey() == null || signedUrlProperties.getSecretKey().isBlank()){
+            throw new IllegalStateException("Cluster mode needs image.serving.signed-urls.secret-key, the same on every node");
+        }
+        this.ring = new HashRing(peers, VIRTUAL_NODES);
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(properties.getConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        logger.info("Cluster mode: this node is {} of {}", selfUrl, peers);
+    }
+
+    public boolean isEnabled(){
+        return ring != null;
+    }
+
+    /**
+     * @return true if the name is this node's to store and serve; always, outside cluster mode
+     */
+    public boolean ownsLocally(String fileName){
+        return ring == null || ring.owner(fileName) == self;
+    }
+
+    /**
+     * A new unique name for a stored file, one this node owns: random names are drawn until one lands on this
+     * node's part of the ring, about as many draws as there are nodes
+     *
+     * @param extension including the dot, may be empty
+     */
+    public String newFileName(String extension){
+        String fileName = UUID.randomUUID() + extension;
+        // Each draw lands here with probability ~1/nodes; the bound only guards against a degenerate ring
+        for (int attempt = 0; !ownsLocally(fileName) && attempt < 64 * peers.size(); attempt++){
+            fileName = UUID.randomUUID() + extension;
+        }
+        return fileName;
+    }
+
+    /**
+     * Gets a file this node doesn't have from the other nodes: its owner first, then the rest, since a
+     * content-addressed original is named by its hash and stays on whichever node received the upload
+     *
+     * @return the fetched file, cached on disk; or, if fetched files aren't cached, described with its body still
+     * to be read from the peer
+     * @throws FileNotFoundException if no other node has it
+     * @throws PeerUnavailableException if none has it and some could not be reached
+     */
+    public Fetched fetch(String fileName){
+        return attempt(fileName, () -> properties.isCacheFetched() ? fetchCached(fileName) : fetchStreamed(fileName));
+    }
+
+    /**
+     * As fetch, for callers that need the file on this node's disk (renders, downloads): it is fetched into the
+     * render cache whether or not image.cluster.cache-fetched is set
+     *
+     * @return the cached copy
+     * @throws FileNotFoundException if no other node has it
+     * @throws PeerUnavailableException if none has it and some could not be reached
+     */
+    public StoredFile fetchToDisk(String fileName){
+        return attempt(fileName, () -> fetchCached(fileName)).file();
+    }
+
+    /**
+     * @return the base URL of the node owning the name; empty outside cluster mode
+     */
+    public String ownerUrl(String fileName){
+        return ring == null ? "" : peers.get(ring.owner(fileName));
+    }
+
+    private Fetched attempt(String fileName, FetchAttempt attempt){
+        if (ring == null || !ShardLayout.isPlainName(fileName)){
+            throw new FileNotFoundException("File not found: " + fileName);
+        }
+        Long missedUntil = misses.get(fileName);
+        if (missedUntil != null){
+            if (missedUntil - System.nanoTime() > 0){
+                throw new FileNotFoundException("File not found: " + fileName);
+            }
+            misses.remove(fileName, missedUntil);
+        }
+        try{
+            return attempt.run();
+        }catch (FileNotFoundException e){
+            notFound.increment();
+            rememberMiss(fileName);
+            throw e;
+        }catch (IOException e){
+            failed.increment();
+            throw new PeerUnavailableException("Could not fetch " + fileName + " from the other nodes", e);
+        }
+    }
+
+    // Concurrent requests for the same file share one fetch; later ones are cache hits
+    private Fetched fetchCached(String fileName) throws IOException {
+        Path cached = cache.getOrCreate(CACHE_PREFIX + fileName, () -> download(fileName));
+        StoredFile file = new StoredFile(fileName, cached, Files.size(cached),
+                Files.getLastModifiedTime(cached).toMillis(), StoredFile.contentTypeOf(fileName));
+        return new Fetched(file, null);
+    }
+
+    private File download(String fileName) throws IOException {
+        Path temporary = Files.createTempFile(temporaryLocation, "peer-", ".tmp");
+        try{
+            // Truncated for each peer tried, in case one fails part way through the body
+            HttpResponse<Path> response = send(fileName, () -> HttpResponse.BodySubscribers.ofFile(temporary,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            Files.setLastModifiedTime(temporary, FileTime.fromMillis(lastModified(response)));
+            fetched.increment();
+            return temporary.toFile();
+        }catch (IOException | RuntimeException e){
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    // Only the headers have arrived when this returns, the body goes from the peer's socket to the client's
+    private Fetched fetchStreamed(String fileName) throws IOException {
+        HttpResponse<InputStream> response = send(fileName, HttpResponse.BodySubscribers::ofInputStream);
+        fetched.increment();
+        StoredFile file = new StoredFile(fileName, null, 0, contentLength(response), lastModified(response),
+                StoredFile.contentTypeOf(fileName), null);
+        return new Fetched(file, response.body());
+    }
+
+    /**
+     * GETs the file from the other nodes' signed URL servlets until one has it, starting with its owner and going
+     * round the list from there, so the extra requests for content-addressed names are spread over the nodes
+     *
+     * @throws FileNotFoundException if every node answered 404
+     * @throws IOException the first failure, if no node had the file and some failed
+     */
+    private <T> HttpResponse<T> send(String fileName, Supplier<HttpResponse.BodySubscriber<T>> body)
+            throws IOException {
+        IOException failure = null;
+        int owner = ring.owner(fileName);
+        for (int i = 0; i < peers.size(); i++){
+            int peer = (owner + i) % peers.size();
+            if (peer == self){
+                continue;
+            }
+            try{
+                return send(peers.get(peer), fileName, body.get());
+            }catch (FileNotFoundException e){
+                // Try the next node
+            }catch (IOException e){
+                logger.warn("Could not fetch {} from {}: {}", fileName, peers.get(peer), e.toString());
+                if (failure == null){
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null){
+            throw failure;
+        }
+        throw new FileNotFoundException("File not found: " + fileName);
+    }
+
+    /**
+     * GETs the file from one node; the body is only read on a 200 with a Content-Length within the size limit
+     * @throws FileNotFoundException on a 404
+     */
+    private <T> HttpResponse<T> send(String peer, String fileName, HttpResponse.BodySubscriber<T> body)
+            throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(peer + signer.sign(fileName).url()))
+                .timeout(properties.getRequestTimeout())
+                .header(PEER_HEADER, peers.get(self))
+                .GET()
+                .build();
+        long maxSize = properties.getMaxFetchSize().toBytes();
+        HttpResponse<T> response;
+        try{
+            response = client.send(request, info -> info.statusCode() == 200
+                    && info.headers().firstValueAsLong("Content-Length").orElse(Long.MAX_VALUE) <= maxSize
+                    ? body
+                    : HttpResponse.BodySubscribers.replacing(null));
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + fileName, e);
+        }
+        if (response.statusCode() == 404){
+            throw new FileNotFoundException("File not found: " + fileName);
+        }
+        if (response.statusCode() != 200){
+            throw new IOException("Peer answered " + response.statusCode());
+        }
+        if (response.body() == null){
+            throw new IOException("No Content-Length, or larger than image.cluster.max-fetch-size");
+        }
+        return response;
+    }
+
+    private void rememberMiss(String fileName){
+        long now = System.nanoTime();
+        if (misses.size() >= MAX_MISSES){
+            misses.values().removeIf(until -> until - now <= 0);
+            if (misses.size() >= MAX_MISSES){
+                misses.clear();
+            }
+        }
+        misses.put(fileName, now + properties.getMissTtl().toNanos());
+    }
+
+    private static long contentLength(HttpResponse<?> response){
+        return response.headers().firstValueAsLong("Content-Length").orElseThrow();
+    }
+
+    private static long lastModified(HttpResponse<?> response){
+        return response.headers().firstValueAsLong(LAST_MODIFIED_HEADER).orElse(System.currentTimeMillis());
+    }
+
+    private static String normalize(String url){
+        String trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    @FunctionalInterface
+    private interface FetchAttempt {
+        Fetched run() throws IOException;
+    }
+
+    /**
+     * A file fetched from another node
+     *
+     * @param file where the fetched copy is cached; without a path if it's being streamed
+     * @param body the content still to be read from the peer, or null if cached; must be closed
+     */
+    public record Fetched(StoredFile file, InputStream body) {
+    }
+}
@@ -0,0 +1,620 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImagePngProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Lossless PNG encoder that picks the smallest representation of the pixels.
+ * It uses a palette (with tRNS) when there are at most 256 colors, and drops the alpha channel when
+ * everything is opaque and the color channels when everything is gray. Each row gets the filter with
+ * the lowest sum of absolute differences. Only critical chunks are written, so ancillary chunks
+ * (text, EXIF, timestamps, color profiles) are stripped. Large images are filtered and deflated in
+ * parallel bands, on the image tile pool, whose streams are joined with SYNC_FLUSH
+ */
+@Service
+public class PngOptimizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(PngOptimizer.class);
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+    private static final int MAX_IDAT_LENGTH = 1 << 20;
+
+    private final ImagePngProperties properties;
+    private final DistributionSummary bytesSaved;
+    private final Counter unchanged;
+    private final ProcessingContexts contexts;
+    private final ScratchSpace scratch;
+    // Bands are deflated here rather than on the common pool, which other parallel streams in the JVM share
+    private final ForkJoinPool tilePool;
+
+    public PngOptimizer(ImagePngProperties properties, MeterRegistry meterRegistry, ProcessingContexts contexts,
+                        ScratchSpace scratch, ForkJoinPool imageTilePool){
+        this.properties = properties;
+        this.contexts = contexts;
+        this.scratch = scratch;
+        this.tilePool = imageTilePool;
+        this.bytesSaved = DistributionSummary.builder("image.png.bytes.saved")
+                .description("Bytes saved per PNG by lossless re-encoding")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.unchanged = Counter.builder("image.png.unchanged")
+                .description("PNGs the optimizer could not make smaller")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Re-encodes the image losslessly and keeps the result only if it is smaller than the source
+     *
+     * @param image the decoded pixels of the source
+     * @param name the source's name, for logs
+     * @param sourceSize the size the re-encode has to beat
+     * @return the optimized PNG in memory, or null if nothing was saved
+     * @throws IOException on write errors
+     */
+    public ImageBuffer optimize(BufferedImage image, String name, long sourceSize) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage abgr = toAbgr(image);
+        Layout layout = analyze(abgr);
+
+        ImageBuffer out = scratch.newBuffer(".png");
+        try(OutputStream sink = out.output()){
+            write(abgr, layout, sink);
+        }catch (IOException | RuntimeException e){
+            out.close();
+            throw e;
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        long saved = sourceSize - out.size();
+        if (saved <= 0){
+            unchanged.increment();
+            logger.info("PNG {} is already compact ({} bytes, re-encoded {} bytes), keeping it", name,
+                    sourceSize, out.size());
+            out.close();
+            return null;
+        }
+
+        bytesSaved.record(saved);
+        logger.info("PNG optimized in {} ms: {} -> {} bytes, saved {} bytes ({}%) as {}", elapsed,
+                sourceSize, out.size(), saved,
+                String.format("%.1f", saved * 100.0 / sourceSize), layout.describe());
+        return out;
+    }
+
+    /**
+     * Reads the bit depth from the IHDR chunk, which always comes first
+     *
+     * @return bit depth per sample, or -1 if the file is too short to be a PNG
+     */
+    public static int readBitDepth(File file) throws IOException {
+        try(InputStream in = new FileInputStream(file)){
+            // signature(8) + length(4) + "IHDR"(4) + width(4) + height(4) + bit depth(1)
+            byte[] header = in.readNBytes(25);
+            return header.length < 25 ? -1 : header[24] & 0xFF;
+        }
+    }
+
+    /**
+     * Reduces a 16 bit per sample image to 8 bits, which is lossless only if every sample is v * 257
+     * (the low byte repeats the high byte, as exported by most tools for 8-bit content)
+     *
+     * @param image a 16-bit image as read by ImageIO
+     * @return the image as TYPE_4BYTE_ABGR, or null if reducing it would lose precision
+     */
+    public BufferedImage reduceSixteenBit(BufferedImage image){
+        Raster raster = image.getRaster();
+        int bands = raster.getNumBands();
+        int w = image.getWidth();
+        BufferedImage reduced = new BufferedImage(w, image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        byte[] target = ((DataBufferByte) reduced.getRaster().getDataBuffer()).getData();
+        int[] row = new int[w * bands];
+        int[] s = new int[4];
+        int p = 0;
+        for (int y = 0; y < image.getHeight(); y++){
+            raster.getPixels(0, y, w, 1, row);
+            for (int x = 0; x < w; x++){
+                for (int b = 0; b < bands; b++){
+                    int sample = row[x * bands + b];
+                    if ((sample >>> 8) != (sample & 0xFF)){
+                        return null;
+                    }
+                    s[b] = sample >>> 8;
+                }
+                boolean gray = bands <= 2;
+                int r = s[0];
+                int g = gray ? s[0] : s[1];
+                int bl = gray ? s[0] : s[2];
+                int a = bands == 2 ? s[1] : bands == 4 ? s[3] : 255;
+                target[p++] = (byte) a;
+                target[p++] = (byte) bl;
+                target[p++] = (byte) g;
+                target[p++] = (byte) r;
+            }
+        }
+        return reduced;
+    }
+
+    private static BufferedImage toAbgr(BufferedImage image){
+        if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR){
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    /**
+     * One pass over the pixels to find the smallest lossless color type and bit depth
+     */
+    private Layout analyze(BufferedImage image){
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        boolean opaque = true;
+        boolean gray = true;
+        ColorTable colors = properties.isPalette() ? new ColorTable() : null;
+        for (int i = 0; i < data.length; i += 4){
+            int a = data[i] & 0xFF;
+            int b = data[i + 1] & 0xFF;
+            int g = data[i + 2] & 0xFF;
+            int r = data[i + 3] & 0xFF;
+            opaque &= a == 0xFF;
+            gray &= r == g && g == b;
+            if (colors != null && !colors.add(a << 24 | r << 16 | g << 8 | b)){
+                // More than 256 colors, no palette
+                colors = null;
+            }
+        }
+
+        // Opaque grayscale with many levels compresses better as plain gray (no lookup, smoother filtering)
+        if (colors != null && !(gray && opaque && colors.size() > 16)){
+            int count = colors.size();
+            int depth = count <= 2 ? 1 : count <= 4 ? 2 : count <= 16 ? 4 : 8;
+            return new Layout(image.getWidth(), COLOR_PALETTE, depth, colors.sortedForTrns());
+        }
+        if (gray){
+            return new Layout(image.getWidth(), opaque ? COLOR_GRAY : COLOR_GRAY_ALPHA, 8, null);
+        }
+        return new Layout(image.getWidth(), opaque ? COLOR_RGB : COLOR_RGBA, 8, null);
+    }
+
+    private void write(BufferedImage image, Layout layout, OutputStream out) throws IOException {
+        byte[] zlib = compress(image, layout);
+
+        try(DataOutputStream png = new DataOutputStream(new BufferedOutputStream(out))){
+            png.write(SIGNATURE);
+
+            ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+            DataOutputStream header = new DataOutputStream(ihdr);
+            header.writeInt(image.getWidth());
+            header.writeInt(image.getHeight());
+            header.writeByte(layout.bitDepth);
+            header.writeByte(layout.colorType);
+            header.writeByte(0); // deflate
+            header.writeByte(0); // adaptive filtering
+            header.writeByte(0); // no interlace
+            writeChunk(png, "IHDR", ihdr.toByteArray(), 0, ihdr.size());
+
+            if (layout.palette != null){
+                int[] palette = layout.palette.entries;
+                byte[] plte = new byte[palette.length * 3];
+                int transparent = 0;
+                for (int i = 0; i < palette.length; i++){
+                    plte[i * 3] = (byte) (palette[i] >>> 16);
+                    plte[i * 3 + 1] = (byte) (palette[i] >>> 8);
+                    plte[i * 3 + 2] = (byte) palette[i];
+                    if ((palette[i] >>> 24) != 0xFF){
+                        transparent = i + 1;
+                    }
+                }
+                writeChunk(png, "PLTE", plte, 0, plte.length);
+                if (transparent > 0){
+                    // Translucent entries are sorted first, so tRNS only lists those
+                    byte[] trns = new byte[transparent];
+                    for (int i = 0; i < transparent; i++){
+                        trns[i] = (byte) (palette[i] >>> 24);
+                    }
+                    writeChunk(png, "tRNS", trns, 0, trns.length);
+                }
+            }
+
+            for (int offset = 0; offset < zlib.length; offset += MAX_IDAT_LENGTH){
+                writeChunk(png, "IDAT", zlib, offset, Math.min(MAX_IDAT_LENGTH, zlib.length - offset));
+            }
+            writeChunk(png, "IEND", new byte[0], 0, 0);
+        }
+    }
+
+    /**
+     * Filters and deflates the image into a zlib stream.
+     * Above the parallel threshold every band gets its own deflater; all but the last end with a
+     * SYNC_FLUSH so the raw streams can simply be concatenated, and the Adler-32 checksums are combined
+     */
+    private byte[] compress(BufferedImage image, Layout layout){
+        int height = image.getHeight();
+        long rawSize = (long) (layout.rowBytes + 1) * height;
+        int rowsPerBand = (int) Math.max(1, Math.min(height, properties.getBandSize().toBytes() / (layout.rowBytes + 1)));
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, rawSize / 2 + 64));
+        zlib.write(0x78);
+        zlib.write(properties.getDeflateLevel() >= 7 ? 0xDA : properties.getDeflateLevel() >= 6 ? 0x9C : 0x5E);
+
+        long adler;
+        if (rawSize > properties.getParallelThreshold().toBytes() && bandCount > 1){
+            // A parallel stream started from inside a ForkJoinPool task runs in that pool
+            List<Band> bands = tilePool.submit(() -> IntStream.range(0, bandCount)
+                    .parallel()
+                    .mapToObj(i -> {
+                        int from = i * rowsPerBand;
+                        int to = Math.min(height, from + rowsPerBand);
+                        Deflater deflater = newDeflater(layout);
+                        try{
+                            byte[] filtered = filterRows(image, layout, from, to);
+                            ByteArrayOutputStream out = new ByteArrayOutputStream(filtered.length / 2 + 64);
+                            if (i == bandCount - 1){
+                                deflater.setInput(filtered);
+                                deflater.finish();
+                                drain(deflater, out);
+                            } else {
+                                // Ends on a byte boundary without the final-block bit, so the next band can follow
+                                deflate(deflater, filtered, Deflater.SYNC_FLUSH, out);
+                            }
+                            Adler32 checksum = new Adler32();
+                            checksum.update(filtered);
+                            return new Band(out.toByteArray(), checksum.getValue(), filtered.length);
+                        } finally {
+                            deflater.end();
+                        }
+                    })
+                    .toList())
+                    .join();
+
+            adler = 1;
+            for (Band band : bands){
+                zlib.writeBytes(band.compressed);
+                adler = combineAdler32(adler, band.adler, band.length);
+            }
+        } else {
+            // One deflate window over the whole image; bands only bound the scratch memory.
+            // The deflater (and its native zlib state) belongs to the worker's context and is reset, not ended
+            Adler32 checksum = new Adler32();
+            try(ProcessingContext context = contexts.acquire()){
+                Deflater deflater = context.deflater(properties.getDeflateLevel(), strategyOf(layout));
+                for (int from = 0; from < height; from += rowsPerBand){
+                    byte[] filtered = filterRows(image, layout, from, Math.min(height, from + rowsPerBand));
+                    checksum.update(filtered);
+                    deflate(deflater, filtered, Deflater.NO_FLUSH, zlib);
+                }
+                deflater.finish();
+                drain(deflater, zlib);
+            }
+            adler = checksum.getValue();
+        }
+
+        zlib.write((int) (adler >>> 24));
+        zlib.write((int) (adler >>> 16));
+        zlib.write((int) (adler >>> 8));
+        zlib.write((int) adler);
+        return zlib.toByteArray();
+    }
+
+    private Deflater newDeflater(Layout layout){
+        Deflater deflater = new Deflater(properties.getDeflateLevel(), true);
+        deflater.setStrategy(strategyOf(layout));
+        return deflater;
+    }
+
+    // Filtered truecolor rows are mostly small residuals, which the FILTERED strategy is tuned for
+    private static int strategyOf(Layout layout){
+        return layout.colorType == COLOR_PALETTE ? Deflater.DEFAULT_STRATEGY : Deflater.FILTERED;
+    }
+
+    private static void deflate(Deflater deflater, byte[] input, int flush, ByteArrayOutputStream out){
+        deflater.setInput(input);
+        byte[] buffer = new byte[64 * 1024];
+        int written;
+        do{
+            written = deflater.deflate(buffer, 0, buffer.length, flush);
+            out.write(buffer, 0, written);
+        } while (written == buffer.length || !deflater.needsInput());
+    }
+
+    private static void drain(Deflater deflater, ByteArrayOutputStream out){
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()){
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+    }
+
+    /**
+     * Encodes and filters rows [from, to) into PNG scanlines (filter byte + row)
+     */
+    private static byte[] filterRows(BufferedImage image, Layout layout, int from, int to){
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int rowBytes = layout.rowBytes;
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        if (from > 0){
+            layout.encodeRow(pixels, from - 1, previous);
+        }
+
+        byte[] filtered = new byte[(to - from) * (rowBytes + 1)];
+        int offset = 0;
+        for (int y = from; y < to; y++){
+            layout.encodeRow(pixels, y, current);
+            // Sub-byte and palette rows don't benefit from filtering (indices aren't numerically related)
+            int filter = layout.colorType == COLOR_PALETTE ? 0 : chooseFilter(current, previous, layout.filterBpp);
+            filtered[offset] = (byte) filter;
+            applyFilter(filter, current, previous, layout.filterBpp, filtered, offset + 1);
+            offset += rowBytes + 1;
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return filtered;
+    }
+
+    // Minimum sum of absolute differences, the heuristic libpng uses
+    private static int chooseFilter(byte[] row, byte[] previous, int bpp){
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int filter = 0; filter <= 4; filter++){
+            long sum = 0;
+            for (int i = 0; i < row.length && sum < bestSum; i++){
+                sum += Math.abs((byte) filtered(filter, row, previous, bpp, i));
+            }
+            if (sum < bestSum){
+                bestSum = sum;
+                best = filter;
+            }
+        }
+        return best;
+    }
+
+    private static void applyFilter(int filter, byte[] row, byte[] previous, int bpp, byte[] out, int offset){
+        for (int i = 0; i < row.length; i++){
+            out[offset + i] = (byte) filtered(filter, row, previous, bpp, i);
+        }
+    }
+
+    private static int filtered(int filter, byte[] row, byte[] previous, int bpp, int i){
+        int x = row[i] & 0xFF;
+        int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+        int b = previous[i] & 0xFF;
+        return switch (filter) {
+            case 1 -> x - a;
+            case 2 -> x - b;
+            case 3 -> x - ((a + b) >>> 1);
+            case 4 -> x - paeth(a, b, i >= bpp ? previous[i - bpp] & 0xFF : 0);
+            default -> x;
+        };
+    }
+
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc){
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    // zlib's adler32_combine: checksum of A followed by B from the checksums of A and B and the length of B
+    private static long combineAdler32(long adler1, long adler2, long length2){
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private record Band(byte[] compressed, long adler, long length) {
+    }
+
+    /**
+     * The chosen color type and bit depth, and how to turn a row of ABGR pixels into it
+     */
+    private static final class Layout {
+        private final int width;
+        private final int colorType;
+        private final int bitDepth;
+        private final ColorTable palette;
+        private final int rowBytes;
+        private final int filterBpp;
+
+        private Layout(int width, int colorType, int bitDepth, ColorTable palette){
+            this.width = width;
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.palette = palette;
+            int channels = switch (colorType) {
+                case COLOR_RGBA -> 4;
+                case COLOR_RGB -> 3;
+                case COLOR_GRAY_ALPHA -> 2;
+                default -> 1;
+            };
+            this.rowBytes = (width * channels * bitDepth + 7) / 8;
+            this.filterBpp = Math.max(1, channels * bitDepth / 8);
+        }
+
+        private void encodeRow(byte[] pixels, int y, byte[] row){
+            int p = y * width * 4;
+            switch (colorType){
+                case COLOR_RGBA -> {
+                    for (int x = 0, o = 0; x < width; x++, p += 4){
+                        row[o++] = pixels[p + 3];
+                        row[o++] = pixels[p + 2];
+                        row[o++] = pixels[p + 1];
+                        row[o++] = pixels[p];
+                    }
+                }
+                case COLOR_RGB -> {
+                    for (int x = 0, o = 0; x < width; x++, p += 4){
+                        row[o++] = pixels[p + 3];
+                        row[o++] = pixels[p + 2];
+                        row[o++] = pixels[p + 1];
+                    }
+                }
+                case COLOR_GRAY_ALPHA -> {
+                    for (int x = 0, o = 0; x < width; x++, p += 4){
+                        row[o++] = pixels[p + 3];
+                        row[o++] = pixels[p];
+                    }
+                }
+                case COLOR_GRAY -> {
+                    for (int x = 0; x < width; x++, p += 4){
+                        row[x] = pixels[p + 3];
+                    }
+                }
+                default -> {
+                    Arrays.fill(row, (byte) 0);
+                    int perByte = 8 / bitDepth;
+                    for (int x = 0; x < width; x++, p += 4){
+                        int argb = (pixels[p] & 0xFF) << 24 | (pixels[p + 3] & 0xFF) << 16
+                                | (pixels[p + 2] & 0xFF) << 8 | (pixels[p + 1] & 0xFF);
+                        int index = palette.indexOf(argb);
+                        int shift = 8 - bitDepth * (x % perByte + 1);
+                        row[x / perByte] |= (byte) (index << shift);
+                    }
+                }
+            }
+        }
+
+        private String describe(){
+            String type = switch (colorType) {
+                case COLOR_PALETTE -> "palette(" + palette.size() + ")";
+                case COLOR_GRAY -> "gray";
+                case COLOR_GRAY_ALPHA -> "gray+alpha";
+                case COLOR_RGB -> "rgb";
+                default -> "rgba";
+            };
+            return type + " " + bitDepth + "-bit";
+        }
+    }
+
+    /**
+     * Open-addressing set of up to 256 ARGB colors, later reused as the color -> palette index lookup
+     */
+    private static final class ColorTable {
+        private static final int CAPACITY = 1024;
+        private final int[] keys = new int[CAPACITY];
+        private final int[] indexes = new int[CAPACITY];
+        private final boolean[] used = new boolean[CAPACITY];
+        private int size;
+        private int lastColor;
+        private int lastIndex = -1;
+        private int[] entries;
+
+        // false once a 257th color shows up
+        private boolean add(int argb){
+            if (lastIndex >= 0 && lastColor == argb){
+                return true;
+            }
+            int slot = slot(argb);
+            if (!used[slot]){
+                if (size == 256){
+                    return false;
+                }
+                used[slot] = true;
+                keys[slot] = argb;
+                size++;
+            }
+            lastColor = argb;
+            lastIndex = slot;
+            return true;
+        }
+
+        private int slot(int argb){
+            int slot = (argb * 0x9E3779B9) >>> 22;
+            while (used[slot] && keys[slot] != argb){
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            return slot;
+        }
+
+        private int size(){
+            return size;
+        }
+
+        // Translucent colors first so the tRNS chunk can stop early, then by value for a stable order
+        private ColorTable sortedForTrns(){
+            entries = new int[size];
+            int n = 0;
+            for (int i = 0; i < CAPACITY; i++){
+                if (used[i]){
+                    entries[n++] = keys[i];
+                }
+            }
+            Integer[] boxed = Arrays.stream(entries).boxed().toArray(Integer[]::new);
+            Arrays.sort(boxed, (x, y) -> {
+                boolean xOpaque = (x >>> 24) == 0xFF;
+                boolean yOpaque = (y >>> 24) == 0xFF;
+                if (xOpaque != yOpaque){
+                    return xOpaque ? 1 : -1;
+                }
+                return Integer.compareUnsigned(x, y);
+            });
+            for (int i = 0; i < size; i++){
+                entries[i] = boxed[i];
+                indexes[slot(entries[i])] = i;
+            }
+            return this;
+        }
+
+        private int indexOf(int argb){
+            return indexes[slot(argb)];
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.spring_security.service;
+
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Codec objects and scratch buffers of one thread, kept between tasks so small images don't pay
+ * for setting them up every time.
+ * Obtained from ProcessingContexts.acquire() in a try-with-resources block and never shared between threads.
+ * A worker's own context survives close() and is released when the worker exits; a temporary one
+ * (other threads, nested use, reuse disabled) is released by close()
+ */
+public final class ProcessingContext implements AutoCloseable {
+
+    private final boolean retained;
+    private final long maxRetainedScratch;
+    // Set while a caller holds the worker's context, a nested acquire gets a temporary one instead
+    boolean inUse;
+
+    private ImageWriter jpegWriter;
+    private ImageReader jpegReader;
+    private Java2DFrameConverter frameConverter;
+    private Deflater deflater;
+    private int deflateLevel;
+    private int deflateStrategy;
+    private final Map<String, float[][]> scratch = new HashMap<>();
+
+    ProcessingContext(boolean retained, long maxRetainedScratch){
+        this.retained = retained;
+        this.maxRetainedScratch = maxRetainedScratch;
+    }
+
+    /**
+     * @return the JPEG writer; callers reset() it when done so the next task starts clean
+     */
+    public ImageWriter jpegWriter(){
+        if (jpegWriter == null){
+            jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        }
+        return jpegWriter;
+    }
+
+    /**
+     * @return the JPEG reader; callers reset() it when done
+     */
+    public ImageReader jpegReader(){
+        if (jpegReader == null){
+            jpegReader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        }
+        return jpegReader;
+    }
+
+    /**
+     * Converter for turning BufferedImages into frames that are recorded straight away.
+     * It reuses its native frame while the size doesn't change, so the frame is overwritten by the next
+     * conversion; decoded BufferedImages that outlive the call must come from a converter of their own
+     */
+    public Java2DFrameConverter frameConverter(){
+        if (frameConverter == null){
+            frameConverter = new Java2DFrameConverter();
+        }
+        return frameConverter;
+    }
+
+    /**
+     * @return a raw (nowrap) deflater in its initial state with the given parameters; don't end() it
+     */
+    public Deflater deflater(int level, int strategy){
+        if (deflater == null){
+            deflater = new Deflater(level, true);
+            deflater.setStrategy(strategy);
+        } else {
+            deflater.reset();
+            if (level != deflateLevel){
+                deflater.setLevel(level);
+            }
+            if (strategy != deflateStrategy){
+                deflater.setStrategy(strategy);
+            }
+        }
+        deflateLevel = level;
+        deflateStrategy = strategy;
+        return deflater;
+    }
+
+    /**
+     * Float rows for scratch use. They hold whatever the previous user left in them
+     *
+     * @param name which buffer; the same name hands out the same arrays as long as they are large enough
+     * @param count number of rows needed (there may be more)
+     * @param width elements needed per row (rows may be longer)
+     */
+    public float[][] floatRows(String name, int count, int width){
+        float[][] rows = scratch.get(name);
+        if (rows != null && rows.length >= count && rows[0].length >= width){
+            return rows;
+        }
+        rows = new float[count][width];
+        if (retained && (long) count * width * Float.BYTES <= maxRetainedScratch){
+            scratch.put(name, rows);
+        }
+        return rows;
+    }
+
+    @Override
+    public void close(){
+        if (retained){
+            inUse = false;
+        } else {
+            release();
+        }
+    }
+
+    void release(){
+        if (jpegWriter != null){
+            jpegWriter.dispose();
+            jpegWriter = null;
+        }
+        if (jpegReader != null){
+            jpegReader.dispose();
+            jpegReader = null;
+        }
+        if (frameConverter != null){
+            frameConverter.close();
+            frameConverter = null;
+        }
+        if (deflater != null){
+            deflater.end();
+            deflater = null;
+        }
+        scratch.clear();
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageContextProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out thread-confined ProcessingContexts.
+ * Worker threads of the optimization and tile pools are bound to a context for their whole life
+ * (see ImageOptimizationExecutorConfig); it is created when the worker starts and released when it exits,
+ * including when the pool shrinks or shuts down. Any other thread gets a temporary context per acquire,
+ * which behaves exactly like building everything from scratch
+ */
+@Service
+public class ProcessingContexts {
+
+    private final ImageContextProperties properties;
+    private final ThreadLocal<ProcessingContext> workerContext = new ThreadLocal<>();
+    private final AtomicInteger live = new AtomicInteger();
+    private final Counter temporary;
+
+    public ProcessingContexts(ImageContextProperties properties, MeterRegistry meterRegistry){
+        this.properties = properties;
+        Gauge.builder("image.processing.contexts.live", live, AtomicInteger::get)
+                .description("Worker threads currently holding a reusable processing context")
+                .register(meterRegistry);
+        this.temporary = Counter.builder("image.processing.contexts.temporary")
+                .description("Acquires served with a throwaway context (unbound thread, nested use or reuse disabled)")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the calling worker's context, or a temporary one; close it when done
+     */
+    public ProcessingContext acquire(){
+        ProcessingContext context = workerContext.get();
+        if (context != null && !context.inUse){
+            context.inUse = true;
+            return context;
+        }
+        temporary.increment();
+        return new ProcessingContext(false, 0);
+    }
+
+    /**
+     * Wraps a worker thread's body so the thread owns a context until it exits
+     */
+    public Runnable bind(Runnable body){
+        return () -> {
+            attach();
+            try{
+                body.run();
+            } finally {
+                detach();
+            }
+        };
+    }
+
+    /**
+     * Give the calling thread its own context (no-op if reuse is disabled or it already has one)
+     */
+    public void attach(){
+        if (properties.isEnabled() && workerContext.get() == null){
+            workerContext.set(new ProcessingContext(true, properties.getMaxRetainedScratch().toBytes()));
+            live.incrementAndGet();
+        }
+    }
+
+    /**
+     * Release the calling thread's context, if it has one
+     */
+    public void detach(){
+        ProcessingContext context = workerContext.get();
+        if (context != null){
+            workerContext.remove();
+            context.release();
+            live.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.dto.ImageUploadRequest;
+import com.example.spring_security.exception.FileValidationException;
+
+/**
+ * Per-upload processing preferences
+ *
+ * @param quality fixed JPEG quality (0.0 - 1.0), or null to let the adaptive search choose
+ * @param force optimize even if the file is below the compression threshold
+ */
+public record ProcessingOptions(Float quality, boolean force) {
+
+    private static final ProcessingOptions DEFAULTS = new ProcessingOptions(null, false);
+
+    public static ProcessingOptions defaults(){
+        return DEFAULTS;
+    }
+
+    // Maps the upload request, validating the requested quality
+    public static ProcessingOptions fromRequest(ImageUploadRequest request){
+        if (request == null){
+            return DEFAULTS;
+        }
+        Float quality = request.compressionQuality();
+        if (quality != null && (quality <= 0f || quality > 1f)){
+            throw new FileValidationException("compressionQuality must be between 0.0 and 1.0, got " + quality);
+        }
+        return new ProcessingOptions(quality, request.forceOptimization());
+    }
+}
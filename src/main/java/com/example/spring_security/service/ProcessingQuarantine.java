@@ -0,0 +1,61 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.exception.FileStorageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+
+/**
+ * Keeps a copy of inputs that made processing time out, so they can be inspected offline.
+ * The original upload stays in place because it is served as the fallback
+ */
+@Service
+public class ProcessingQuarantine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessingQuarantine.class);
+
+    private final Path quarantineLocation;
+
+    public ProcessingQuarantine(FileStorageProperties properties){
+        this.quarantineLocation = properties.getQuarantineStoragePath();
+        try{
+            Files.createDirectories(quarantineLocation);
+        } catch (IOException ex){
+            throw new FileStorageException("Could not initialize quarantine directory", ex);
+        }
+    }
+
+    /**
+     * Copies the input into the quarantine directory together with a short note on why it was quarantined
+     *
+     * @param inputFile the file that caused the timeout
+     * @param reason description of the failure
+     */
+    public void quarantine(File inputFile, String reason){
+        if (inputFile == null || !inputFile.isFile()){
+            return;
+        }
+        try{
+            Path target = quarantineLocation.resolve(inputFile.getName()).normalize();
+            if (!target.getParent().equals(quarantineLocation)){
+                throw new FileStorageException("Cannot quarantine file outside quarantine directory");
+            }
+            Files.copy(inputFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            Files.writeString(quarantineLocation.resolve(inputFile.getName() + ".reason.txt"),
+                    Instant.now() + " " + reason + System.lineSeparator(), StandardCharsets.UTF_8);
+            logger.warn("Quarantined {} ({})", inputFile.getName(), reason);
+        } catch (IOException ex){
+            // Quarantine is best effort, the upload itself already fell back to the original
+            logger.error("Failed to quarantine {}", inputFile.getName(), ex);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.spring_security.service;
+
+/**
+ * Outcome of processing one image
+ *
+ * @param output the encoded result in memory (or spilled to scratch), or null if the input was left unchanged;
+ *               the caller moves it into storage or closes it
+ * @param quality the JPEG quality the output was encoded with, or null if no lossy encode happened
+ */
+public record ProcessingResult(ImageBuffer output, Float quality) implements AutoCloseable {
+
+    public static ProcessingResult unchanged(){
+        return new ProcessingResult(null, null);
+    }
+
+    public boolean isChanged(){
+        return output != null;
+    }
+
+    @Override
+    public void close(){
+        if (output != null){
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.exception.ProcessingTimeoutException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enforces per-stage deadlines on image processing.
+ * When a stage overruns, the watchdog interrupts the worker and makes every guarded input stream fail,
+ * which aborts FFmpeg's native read callback instead of letting it spin on a corrupt file.
+ * Native encoders don't read a stream or look at the interrupt: stages that encode check their deadline
+ * between encodes and frames, so an encode call already running finishes before the stage fails
+ */
+@Service
+public class ProcessingWatchdog {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessingWatchdog.class);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "image-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final MeterRegistry meterRegistry;
+
+    public ProcessingWatchdog(MeterRegistry meterRegistry){
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Starts a deadline for the calling thread
+     *
+     * @param stage name of the stage (probe, decode, encode), used for logs and metrics
+     * @param subject what is being processed, used for logs
+     * @param timeout how long the stage may take
+     * @return the running deadline; close it when the stage is finished
+     */
+    public Deadline start(String stage, String subject, Duration timeout){
+        Deadline deadline = new Deadline(stage, subject, timeout, Thread.currentThread());
+        deadline.timer = scheduler.schedule(deadline::expire, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        scheduler.shutdownNow();
+    }
+
+    public final class Deadline implements AutoCloseable {
+        private static final int RUNNING = 0;
+        // The watchdog won the race and is about to interrupt the owner
+        private static final int EXPIRING = 1;
+        // The interrupt is delivered
+        private static final int EXPIRED = 2;
+        private static final int FINISHED = 3;
+
+        private final String stage;
+        private final String subject;
+        private final Duration timeout;
+        private final Thread owner;
+        // Whichever of expire and close moves it out of RUNNING first decides whether the owner is interrupted
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private volatile boolean expired;
+        private volatile ScheduledFuture<?> timer;
+
+        private Deadline(String stage, String subject, Duration timeout, Thread owner){
+            this.stage = stage;
+            this.subject = subject;
+            this.timeout = timeout;
+            this.owner = owner;
+        }
+
+        private void expire(){
+            if (!state.compareAndSet(RUNNING, EXPIRING)){
+                return;
+            }
+            expired = true;
+            Counter.builder("image.processing.timeouts")
+                    .tag("stage", stage)
+                    .register(meterRegistry)
+                    .increment();
+            logger.warn("Image processing stage '{}' exceeded {} ms for {}, aborting",
+                    stage, timeout.toMillis(), subject);
+            owner.interrupt();
+            state.set(EXPIRED);
+        }
+
+        public boolean isExpired(){
+            return expired;
+        }
+
+        /**
+         * @throws ProcessingTimeoutException if the deadline has passed
+         */
+        public void check() throws ProcessingTimeoutException {
+            if (expired){
+                throw timeoutException(null);
+            }
+        }
+
+        /**
+         * Converts a failure that happened after the deadline into a timeout, anything else is returned unchanged
+         */
+        public IOException translate(IOException failure){
+            return expired ? timeoutException(failure) : failure;
+        }
+
+        /**
+         * Wraps a stream so reads fail once the deadline has passed
+         */
+        public InputStream guard(InputStream in){
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    check();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    check();
+                    return super.read(b, off, len);
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    check();
+                    return super.skip(n);
+                }
+            };
+        }
+
+        private ProcessingTimeoutException timeoutException(Throwable cause){
+            return new ProcessingTimeoutException(stage,
+                    "Stage '" + stage + "' exceeded " + timeout.toMillis() + " ms for " + subject, cause);
+        }
+
+        @Override
+        public void close(){
+            if (timer != null){
+                timer.cancel(false);
+            }
+            while (true){
+                int previous = state.get();
+                if (previous == FINISHED){
+                    return;
+                }
+                if (previous == EXPIRING){
+                    // The interrupt is on its way; clearing it before it lands would leave it for the next task
+                    Thread.onSpinWait();
+                } else if (state.compareAndSet(previous, FINISHED)){
+                    if (previous == EXPIRED && owner == Thread.currentThread()){
+                        // Clear the interrupt we delivered so it doesn't leak into the next task on this worker
+                        Thread.interrupted();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
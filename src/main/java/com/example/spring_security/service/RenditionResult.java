@@ -0,0 +1,22 @@
+package com.example.spring_security.service;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * One generated rendition, written to a temporary file that still has to be stored
+ *
+ * @param name the configured rendition name
+ * @param file the encoded rendition
+ * @param width width in pixels
+ * @param height height in pixels
+ * @param alternates alternate encodings of the same rendition, keyed by format (e.g. "webp")
+ */
+public record RenditionResult(String name, File file, int width, int height, Map<String, File> alternates) {
+
+    // Removes the temporary files of this rendition
+    public void deleteFiles(){
+        file.delete();
+        alternates.values().forEach(File::delete);
+    }
+}
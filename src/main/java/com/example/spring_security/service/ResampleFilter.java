@@ -0,0 +1,59 @@
+package com.example.spring_security.service;
+
+/**
+ * Reconstruction filters for the separable resampler
+ */
+public enum ResampleFilter {
+
+    // Windowed sinc, three lobes: keeps the most detail, slight ringing at hard edges
+    LANCZOS3(3.0) {
+        @Override
+        public double weight(double x){
+            x = Math.abs(x);
+            if (x < 1e-8){
+                return 1.0;
+            }
+            if (x >= 3.0){
+                return 0.0;
+            }
+            double px = Math.PI * x;
+            return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+        }
+    },
+
+    // Mitchell-Netravali cubic (B = C = 1/3): a compromise between blur and ringing
+    MITCHELL(2.0) {
+        private static final double B = 1.0 / 3.0;
+        private static final double C = 1.0 / 3.0;
+
+        @Override
+        public double weight(double x){
+            x = Math.abs(x);
+            if (x < 1.0){
+                return ((12 - 9 * B - 6 * C) * x * x * x + (-18 + 12 * B + 6 * C) * x * x + (6 - 2 * B)) / 6.0;
+            }
+            if (x < 2.0){
+                return ((-B - 6 * C) * x * x * x + (6 * B + 30 * C) * x * x + (-12 * B - 48 * C) * x + (8 * B + 24 * C)) / 6.0;
+            }
+            return 0.0;
+        }
+    };
+
+    private final double radius;
+
+    ResampleFilter(double radius){
+        this.radius = radius;
+    }
+
+    /**
+     * @return support of the kernel in source pixels at scale 1
+     */
+    public double radius(){
+        return radius;
+    }
+
+    /**
+     * @return the kernel value at distance x (in filter units)
+     */
+    public abstract double weight(double x);
+}
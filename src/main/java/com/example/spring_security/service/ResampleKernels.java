@@ -0,0 +1,32 @@
+package com.example.spring_security.service;
+
+/**
+ * The two inner loops of the separable resampler, over one channel at a time
+ */
+interface ResampleKernels {
+
+    /**
+     * @return what horizontal windows should be padded to a multiple of
+     */
+    int lanes();
+
+    /**
+     * Filter one source row into one target row
+     *
+     * @param src source row, readable up to the end of the last (padded) window
+     * @param dst target row, weights.size() long
+     * @param weights horizontal weights
+     */
+    void horizontal(float[] src, float[] dst, Resampler.Weights weights);
+
+    /**
+     * Blend source rows into one target row
+     *
+     * @param rows the weights.stride() source rows the target row's window covers, top to bottom
+     * @param weights vertical weights
+     * @param index the target row
+     * @param dst target row
+     * @param width number of pixels per row
+     */
+    void vertical(float[][] rows, Resampler.Weights weights, int index, float[] dst, int width);
+}
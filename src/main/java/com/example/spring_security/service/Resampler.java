@@ -0,0 +1,389 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageResampleProperties;
+import com.example.spring_security.config.ImageTilingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separable Lanczos3/Mitchell downscaler over byte planes.
+ * Source rows are deinterleaved into a ring buffer that holds just the rows the current target row needs,
+ * blended vertically, then filtered horizontally; memory stays at a few rows instead of a float copy
+ * of the whole image. The inner loops run on SIMD kernels when the Vector API module is available.
+ * Very large sources are split into bands of target rows that run in parallel on the tile pool
+ */
+@Service
+public class Resampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(Resampler.class);
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private final ImageResampleProperties properties;
+    private final ImageTilingProperties tilingProperties;
+    private final ForkJoinPool tilePool;
+    private final DecodeAdmissionController admissionController;
+    private final ProcessingContexts contexts;
+    private final ResampleKernels kernels;
+    // Weights only depend on (filter, source size, target size), and renditions reuse the same pairs a lot
+    private final Map<WeightsKey, Weights> weightCache;
+
+    public Resampler(ImageResampleProperties properties, ImageTilingProperties tilingProperties,
+                     ForkJoinPool imageTilePool, DecodeAdmissionController admissionController,
+                     ProcessingContexts contexts){
+        this.properties = properties;
+        this.tilingProperties = tilingProperties;
+        this.tilePool = imageTilePool;
+        this.admissionController = admissionController;
+        this.contexts = contexts;
+        boolean vector = properties.isVectorize() && ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+        // Resolved only when the module is there, see VectorResampleKernels
+        this.kernels = vector ? VectorResampleKernels.create() : new ScalarResampleKernels();
+        this.weightCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<WeightsKey, Weights> eldest){
+                return size() > properties.getWeightCacheSize();
+            }
+        });
+        logger.info("Resampling with {} using {} kernels", properties.getFilter(), vector ? "vector" : "scalar");
+        if (properties.isVectorize() && !vector){
+            logger.info("Start the JVM with --add-modules {} to enable the SIMD resampling kernels", VECTOR_MODULE);
+        }
+    }
+
+    /**
+     * @return true if the SIMD kernels are in use
+     */
+    public boolean isVectorized(){
+        return kernels instanceof VectorResampleKernels;
+    }
+
+    /**
+     * Scale an image to exactly the given size with the configured filter
+     *
+     * @param src the image; 3BYTE_BGR, 4BYTE_ABGR and BYTE_GRAY are read directly, other types are converted first
+     * @param targetW target width
+     * @param targetH target height
+     * @return a new image of the same type as the (converted) source
+     */
+    public BufferedImage resize(BufferedImage src, int targetW, int targetH){
+        // Horizontal windows are padded to whole vectors, so the dot products need no scalar tail
+        Weights wx = weights(src.getWidth(), targetW, kernels.lanes());
+        Weights wy = weights(src.getHeight(), targetH, 1);
+
+        int tiles = tileCount(src, targetH);
+        DecodeAdmissionController.DecodePermit scratch = null;
+        while (tiles > 1){
+            // Every tile has its own row buffers; they come out of the same budget as the decodes
+            scratch = admissionController.tryReserve(tiles * tileScratchBytes(src, wx, wy), "resample tiles");
+            if (scratch != null){
+                break;
+            }
+            tiles /= 2;
+        }
+
+        try{
+            BufferedImage source = toPlanar(src, tiles);
+            BufferedImage target = new BufferedImage(targetW, targetH, source.getType());
+            Job job = new Job(source, target, wx, wy);
+            if (tiles <= 1){
+                resampleRows(job, 0, targetH);
+            } else {
+                long start = System.nanoTime();
+                runTiles(tiles, targetH, (from, to) -> resampleRows(job, from, to));
+                logger.debug("Resampled {}x{} -> {}x{} in {} tiles in {} ms", source.getWidth(), source.getHeight(),
+                        targetW, targetH, tiles, (System.nanoTime() - start) / 1_000_000);
+            }
+            return target;
+        } finally {
+            if (scratch != null){
+                scratch.close();
+            }
+        }
+    }
+
+    /**
+     * Computes target rows [fromY, toY).
+     * Adjacent bands read overlapping source rows (the vertical kernel reaches across the boundary), but every
+     * target row only depends on its own window, so bands stitch together without seams
+     */
+    private void resampleRows(Job job, int fromY, int toY){
+        int channels = job.channels();
+        boolean alpha = job.alpha();
+        int srcW = job.source().getWidth();
+        int targetW = job.target().getWidth();
+        byte[] in = ((DataBufferByte) job.source().getRaster().getDataBuffer()).getData();
+        byte[] out = ((DataBufferByte) job.target().getRaster().getDataBuffer()).getData();
+        Weights wx = job.wx();
+        Weights wy = job.wy();
+
+        // Row buffers come from the worker's context, so repeated small resizes don't allocate them every time
+        try(ProcessingContext context = contexts.acquire()){
+            // ring[channel][slot] holds source row r in slot r % stride
+            int ringSize = wy.stride();
+            float[][] ringRows = context.floatRows("resample.ring", channels * ringSize, srcW);
+            float[][][] ring = new float[channels][][];
+            for (int c = 0; c < channels; c++){
+                ring[c] = Arrays.copyOfRange(ringRows, c * ringSize, (c + 1) * ringSize);
+            }
+            int[] ringRow = new int[ringSize];
+            Arrays.fill(ringRow, -1);
+            // Vertically blended row, with zeroed room for the padded windows past the right edge
+            float[][] blended = context.floatRows("resample.blended", channels, srcW + kernels.lanes());
+            for (int c = 0; c < channels; c++){
+                Arrays.fill(blended[c], srcW, srcW + kernels.lanes(), 0f);
+            }
+            float[][] rowOut = context.floatRows("resample.out", channels, targetW);
+            float[][] window = new float[ringSize][];
+
+            for (int y = fromY; y < toY; y++){
+                int first = wy.start()[y];
+                for (int r = first; r < first + ringSize; r++){
+                    int slot = r % ringSize;
+                    if (ringRow[slot] != r){
+                        loadRow(in, r, srcW, channels, alpha, ring, slot);
+                        ringRow[slot] = r;
+                    }
+                }
+                // Vertical first: it runs along full rows, which is where the vector lanes pay off most
+                for (int c = 0; c < channels; c++){
+                    for (int k = 0; k < ringSize; k++){
+                        window[k] = ring[c][(first + k) % ringSize];
+                    }
+                    kernels.vertical(window, wy, y, blended[c], srcW);
+                    kernels.horizontal(blended[c], rowOut[c], wx);
+                }
+                storeRow(rowOut, out, y, targetW, channels, alpha);
+            }
+        }
+    }
+
+    // 1 unless the source is large enough to be worth splitting into bands of target rows
+    private int tileCount(BufferedImage src, int targetH){
+        if (!tilingProperties.isEnabled() || (long) src.getWidth() * src.getHeight() < tilingProperties.getPixelThreshold()){
+            return 1;
+        }
+        int byRows = targetH / Math.max(1, tilingProperties.getMinRowsPerTile());
+        return Math.max(1, Math.min(tilePool.getParallelism(), byRows));
+    }
+
+    // Row buffers of one band, see resampleRows
+    private long tileScratchBytes(BufferedImage src, Weights wx, Weights wy){
+        long channels = src.getColorModel().getNumComponents();
+        long floats = (long) wy.stride() * src.getWidth() + src.getWidth() + kernels.lanes() + wx.size();
+        return Float.BYTES * channels * floats;
+    }
+
+    // Splits [0, rows) into equal bands and runs them on the tile pool, the caller waits for all of them
+    private void runTiles(int tiles, int rows, RowRange work){
+        List<RecursiveAction> bands = new ArrayList<>(tiles);
+        for (int i = 0; i < tiles; i++){
+            int from = (int) ((long) rows * i / tiles);
+            int to = (int) ((long) rows * (i + 1) / tiles);
+            bands.add(new RecursiveAction(){
+                @Override
+                protected void compute(){
+                    work.run(from, to);
+                }
+            });
+        }
+        tilePool.submit(() -> ForkJoinTask.invokeAll(bands)).join();
+    }
+
+    Weights weights(int in, int out, int align){
+        return weightCache.computeIfAbsent(new WeightsKey(properties.getFilter(), in, out, align),
+                key -> computeWeights(key.filter(), in, out, align));
+    }
+
+    // Deinterleave one source row into float planes; color is premultiplied so transparent pixels don't bleed
+    private static void loadRow(byte[] in, int row, int width, int channels, boolean alpha, float[][][] ring, int slot){
+        int base = row * width * channels;
+        if (alpha){
+            float[] a = ring[0][slot];
+            float[] b = ring[1][slot];
+            float[] g = ring[2][slot];
+            float[] r = ring[3][slot];
+            for (int x = 0, p = base; x < width; x++, p += 4){
+                float value = in[p] & 0xFF;
+                float f = value / 255f;
+                a[x] = value;
+                b[x] = (in[p + 1] & 0xFF) * f;
+                g[x] = (in[p + 2] & 0xFF) * f;
+                r[x] = (in[p + 3] & 0xFF) * f;
+            }
+            return;
+        }
+        for (int c = 0; c < channels; c++){
+            float[] plane = ring[c][slot];
+            for (int x = 0, p = base + c; x < width; x++, p += channels){
+                plane[x] = in[p] & 0xFF;
+            }
+        }
+    }
+
+    private static void storeRow(float[][] rowOut, byte[] out, int row, int width, int channels, boolean alpha){
+        int base = row * width * channels;
+        if (alpha){
+            for (int x = 0, p = base; x < width; x++, p += 4){
+                float a = clamp(rowOut[0][x]);
+                out[p] = toByte(a);
+                float scale = a > 0f ? 255f / a : 0f;
+                out[p + 1] = toByte(clamp(rowOut[1][x] * scale));
+                out[p + 2] = toByte(clamp(rowOut[2][x] * scale));
+                out[p + 3] = toByte(clamp(rowOut[3][x] * scale));
+            }
+            return;
+        }
+        for (int c = 0; c < channels; c++){
+            float[] plane = rowOut[c];
+            for (int x = 0, p = base + c; x < width; x++, p += channels){
+                out[p] = toByte(clamp(plane[x]));
+            }
+        }
+    }
+
+    // Rounds a value already clamped to 0-255
+    private static byte toByte(float v){
+        return (byte) (int) (v + 0.5f);
+    }
+
+    // Lanczos lobes overshoot, clamp back into the byte range
+    private static float clamp(float v){
+        return v < 0f ? 0f : Math.min(v, 255f);
+    }
+
+    // Byte-interleaved, tightly packed images only; anything else is redrawn once (in bands when tiled)
+    private BufferedImage toPlanar(BufferedImage src, int tiles){
+        int type = src.getType();
+        boolean supported = type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+                || type == BufferedImage.TYPE_BYTE_GRAY;
+        if (supported && src.getRaster().getDataBuffer() instanceof DataBufferByte buffer
+                && buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                && buffer.getData().length == src.getWidth() * src.getHeight() * src.getRaster().getNumBands()
+                && src.getRaster().getSampleModelTranslateX() == 0 && src.getRaster().getSampleModelTranslateY() == 0){
+            return src;
+        }
+        BufferedImage converted = new BufferedImage(src.getWidth(), src.getHeight(),
+                src.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        RowRange convert = (from, to) -> {
+            // Subimages share the pixel buffers, so bands write straight into the converted image
+            Graphics2D g = converted.getSubimage(0, from, src.getWidth(), to - from).createGraphics();
+            g.drawImage(src.getSubimage(0, from, src.getWidth(), to - from), 0, 0, null);
+            g.dispose();
+        };
+        if (tiles <= 1){
+            convert.run(0, src.getHeight());
+        } else {
+            runTiles(tiles, src.getHeight(), convert);
+        }
+        return converted;
+    }
+
+    /**
+     * Builds the contribution table for one axis.
+     * Every target pixel gets a window of the same width (stride) starting inside the source, so the kernels
+     * can run over whole windows without bounds checks; taps past the edges are folded onto the edge pixel.
+     * The stride is rounded up to a multiple of align with zero weights, windows may then reach up to
+     * align - 1 elements past the end of the source
+     */
+    static Weights computeWeights(ResampleFilter filter, int in, int out, int align){
+        if (in == out){
+            int[] start = new int[out];
+            float[] weights = new float[out];
+            for (int i = 0; i < out; i++){
+                start[i] = i;
+                weights[i] = 1f;
+            }
+            return new Weights(out, 1, start, weights);
+        }
+
+        double scale = in / (double) out;
+        // Downscaling stretches the kernel over the source so it also acts as the low-pass filter
+        double filterScale = Math.max(scale, 1.0);
+        double support = filter.radius() * filterScale;
+
+        int stride = 1;
+        for (int i = 0; i < out; i++){
+            double center = (i + 0.5) * scale;
+            int lo = Math.max(0, (int) Math.floor(center - support));
+            int hi = Math.min(in - 1, (int) Math.ceil(center + support));
+            stride = Math.max(stride, hi - lo + 1);
+        }
+        int taps = Math.min(stride, in);
+        stride = (taps + align - 1) / align * align;
+
+        int[] start = new int[out];
+        float[] weights = new float[out * stride];
+        double[] window = new double[taps];
+        for (int i = 0; i < out; i++){
+            double center = (i + 0.5) * scale;
+            int left = (int) Math.floor(center - support);
+            int right = (int) Math.ceil(center + support);
+            int first = Math.min(Math.max(0, left), in - taps);
+            Arrays.fill(window, 0.0);
+            double sum = 0;
+            for (int j = left; j <= right; j++){
+                double weight = filter.weight((j + 0.5 - center) / filterScale);
+                if (weight == 0.0){
+                    continue;
+                }
+                int index = Math.min(Math.max(j, 0), in - 1);
+                window[index - first] += weight;
+                sum += weight;
+            }
+            start[i] = first;
+            if (sum == 0.0){
+                // Can't happen with these filters, fall back to the nearest pixel
+                int nearest = Math.min(Math.max((int) center, first), first + taps - 1);
+                weights[i * stride + nearest - first] = 1f;
+                continue;
+            }
+            for (int k = 0; k < taps; k++){
+                weights[i * stride + k] = (float) (window[k] / sum);
+            }
+        }
+        return new Weights(out, stride, start, weights);
+    }
+
+    @FunctionalInterface
+    private interface RowRange {
+        void run(int from, int to);
+    }
+
+    private record Job(BufferedImage source, BufferedImage target, Weights wx, Weights wy) {
+        int channels(){
+            return source.getRaster().getNumBands();
+        }
+
+        boolean alpha(){
+            return source.getType() == BufferedImage.TYPE_4BYTE_ABGR;
+        }
+    }
+
+    private record WeightsKey(ResampleFilter filter, int in, int out, int align) {
+    }
+
+    /**
+     * Precomputed contributions for one axis
+     *
+     * @param size number of target pixels
+     * @param stride taps per target pixel, including zero padding
+     * @param start first source pixel of each target pixel's window
+     * @param weights size * stride weights, normalized per target pixel
+     */
+    record Weights(int size, int stride, int[] start, float[] weights) {
+    }
+}
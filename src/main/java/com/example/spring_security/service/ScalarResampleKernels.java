@@ -0,0 +1,48 @@
+package com.example.spring_security.service;
+
+/**
+ * Plain loops, used when the Vector API isn't available to the JVM
+ */
+final class ScalarResampleKernels implements ResampleKernels {
+
+    @Override
+    public int lanes(){
+        return 1;
+    }
+
+    @Override
+    public void horizontal(float[] src, float[] dst, Resampler.Weights weights){
+        int stride = weights.stride();
+        float[] w = weights.weights();
+        int[] start = weights.start();
+        for (int x = 0; x < weights.size(); x++){
+            int s = start[x];
+            int o = x * stride;
+            float sum = 0f;
+            for (int k = 0; k < stride; k++){
+                sum += src[s + k] * w[o + k];
+            }
+            dst[x] = sum;
+        }
+    }
+
+    // Row by row multiply-add; simple enough for the JIT to auto-vectorize
+    @Override
+    public void vertical(float[][] rows, Resampler.Weights weights, int index, float[] dst, int width){
+        int stride = weights.stride();
+        float[] w = weights.weights();
+        int o = index * stride;
+        float[] row = rows[0];
+        float weight = w[o];
+        for (int x = 0; x < width; x++){
+            dst[x] = row[x] * weight;
+        }
+        for (int k = 1; k < stride; k++){
+            row = rows[k];
+            weight = w[o + k];
+            for (int x = 0; x < width; x++){
+                dst[x] += row[x] * weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageScratchProperties;
+import com.example.spring_security.exception.FileStorageException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Managed home for everything the pipeline can't keep in memory.
+ * Processing output goes into ImageBuffers, which live on the heap and only spill here when large;
+ * encoders that need a seekable file (AVIF, MP4) and the per-rendition outputs get scratch files.
+ * The directory is capped, leaked files are swept after maxAge, and it is emptied on shutdown, so nothing accumulates
+ * in /tmp. Only the final outputs are written to storage.
+ * Each instance works in a subdirectory of the configured one, holding a lock on it while it runs; at startup the
+ * subdirectories nobody holds are left over from instances that are gone, and are removed
+ */
+@Service
+public class ScratchSpace {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScratchSpace.class);
+
+    private static final String INSTANCE_PREFIX = "instance-";
+    private static final String LOCK_FILE = ".lock";
+
+    private final ImageScratchProperties properties;
+    private final Path directory;
+    // Held until shutdown, so other instances sharing the parent directory leave this one alone
+    private final FileChannel lockChannel;
+    /**
+     * Bytes reserved for each scratch file, up front since encoders fill them without saying how much. A file
+     * counts as the larger of its reservation and its size. Callers delete scratch files or move them into storage
+     * without saying so either: a sweep drops the reservations of files that are gone
+     */
+    private final Map<Path, Long> reservations = new ConcurrentHashMap<>();
+    /**
+     * Bytes in the directory as far as this class can tell: files measured by the last sweep, plus reservations.
+     * Changed under this object's lock
+     */
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final Counter spills;
+    private final Counter swept;
+    private final Counter exhausted;
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "scratch-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ScratchSpace(ImageScratchProperties properties, MeterRegistry meterRegistry){
+        this.properties = properties;
+        Path parent = properties.getScratchPath();
+        this.directory = parent.resolve(INSTANCE_PREFIX + ProcessHandle.current().pid() + "-"
+                + UUID.randomUUID().toString().substring(0, 8));
+        try{
+            Files.createDirectories(directory);
+            this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (lockChannel.tryLock() == null){
+                throw new IOException("Could not lock " + directory);
+            }
+        } catch (IOException ex){
+            throw new FileStorageException("Could not initialize scratch directory", ex);
+        }
+        removeAbandoned(parent);
+
+        Gauge.builder("image.scratch.size", this, ScratchSpace::usedBytes)
+                .description("Bytes currently in the scratch directory")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.spills = Counter.builder("image.scratch.spills")
+                .description("Buffers that outgrew the in-memory threshold")
+                .register(meterRegistry);
+        this.swept = Counter.builder("image.scratch.swept")
+                .description("Leaked scratch files removed by the background sweep")
+                .register(meterRegistry);
+        this.exhausted = Counter.builder("image.scratch.exhausted")
+                .description("Scratch requests refused because the directory was full")
+                .register(meterRegistry);
+
+        long interval = properties.getSweepInterval().toMillis();
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param suffix file extension of the content, e.g. ".jpg"
+     * @return an empty buffer that spills to this directory past the in-memory threshold
+     */
+    public ImageBuffer newBuffer(String suffix){
+        return new ImageBuffer(this, suffix, properties.getInMemoryThreshold().toBytes());
+    }
+
+    /**
+     * Create a scratch file. The caller deletes it when done; if it doesn't, the sweep will
+     *
+     * @param expectedBytes how much the caller expects to write, reserved against the cap until the file is gone
+     * @throws IOException if the directory is at its size cap
+     */
+    public File newFile(String prefix, String suffix, long expectedBytes) throws IOException {
+        Path file = Files.createTempFile(directory, prefix, suffix);
+        try{
+            reserve(file, expectedBytes);
+        } catch (IOException e){
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file.toFile();
+    }
+
+    // A buffer outgrew the heap
+    File spill(String suffix, long size) throws IOException {
+        File file = newFile("spill-", suffix, size);
+        spills.increment();
+        return file;
+    }
+
+    /**
+     * Reserves more bytes for a scratch file, failing if that would take the directory past its cap
+     */
+    void reserve(Path file, long bytes) throws IOException {
+        if (tryReserve(file, bytes)){
+            return;
+        }
+        // Files deleted since the last measurement, or leaked ones, may be what's filling it up
+        sweep();
+        if (!tryReserve(file, bytes)){
+            exhausted.increment();
+            throw new IOException("Scratch space is full (" + properties.getMaxSize() + " in " + directory + ")");
+        }
+    }
+
+    private synchronized boolean tryReserve(Path file, long bytes){
+        if (usedBytes.get() + bytes > properties.getMaxSize().toBytes()){
+            return false;
+        }
+        reservations.merge(file, bytes, Long::sum);
+        usedBytes.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * Gives back the bytes reserved for a scratch file once it has been deleted or moved away
+     */
+    synchronized void release(Path file){
+        Long bytes = reservations.remove(file);
+        if (bytes != null){
+            usedBytes.updateAndGet(used -> Math.max(0, used - bytes));
+        }
+    }
+
+    /**
+     * @return bytes held by files in the scratch directory, as of the last sweep plus reservations since
+     */
+    public long usedBytes(){
+        return usedBytes.get();
+    }
+
+    // Removes files older than maxAge, anything in use is much younger than that, and measures what is left.
+    // Reservations of files that are gone are dropped; the others stand, as what is being written may not be on
+    // disk yet
+    private synchronized void sweep(){
+        int removed = deleteFiles(directory, Instant.now().minus(properties.getMaxAge()));
+        if (removed > 0){
+            swept.increment(removed);
+            logger.warn("Swept {} leaked scratch files from {}", removed, directory);
+        }
+        reservations.keySet().removeIf(file -> !Files.exists(file));
+        long reserved = reservations.values().stream().mapToLong(Long::longValue).sum();
+        try(Stream<Path> files = Files.list(directory)){
+            // Past its reservation, a file counts for its size
+            long unreserved = files.filter(file -> !file.getFileName().toString().equals(LOCK_FILE))
+                    .mapToLong(file -> Math.max(0, sizeOf(file) - reservations.getOrDefault(file, 0L)))
+                    .sum();
+            usedBytes.set(unreserved + reserved);
+        } catch (IOException e){
+            logger.warn("Could not measure scratch directory {}: {}", directory, e.getMessage());
+            usedBytes.set(Math.max(usedBytes.get(), reserved));
+        }
+    }
+
+    // Removes the subdirectories of instances that are gone: their lock can be taken
+    private void removeAbandoned(Path parent){
+        int removed = 0;
+        try(Stream<Path> entries = Files.list(parent)){
+            for (Path entry : (Iterable<Path>) entries::iterator){
+                if (!entry.equals(directory) && Files.isDirectory(entry)
+                        && entry.getFileName().toString().startsWith(INSTANCE_PREFIX) && isAbandoned(entry)){
+                    removed += deleteFiles(entry, Instant.MAX);
+                    Files.deleteIfExists(entry.resolve(LOCK_FILE));
+                    Files.deleteIfExists(entry);
+                }
+            }
+        } catch (IOException e){
+            logger.warn("Could not clean up scratch directory {}: {}", parent, e.getMessage());
+        }
+        if (removed > 0){
+            logger.info("Removed {} leftover scratch files from {}", removed, parent);
+        }
+    }
+
+    private static boolean isAbandoned(Path instance){
+        Path lockFile = instance.resolve(LOCK_FILE);
+        if (!Files.exists(lockFile)){
+            // Being set up by an instance starting right now
+            return false;
+        }
+        try(FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)){
+            FileLock lock = channel.tryLock();
+            if (lock == null){
+                return false;
+            }
+            lock.release();
+            return true;
+        } catch (OverlappingFileLockException e){
+            // Held by another ScratchSpace in this JVM
+            return false;
+        } catch (IOException e){
+            logger.warn("Could not check scratch directory {}: {}", instance, e.getMessage());
+            return false;
+        }
+    }
+
+    private int deleteFiles(Path location, Instant olderThan){
+        int removed = 0;
+        try(Stream<Path> files = Files.list(location)){
+            for (Path file : (Iterable<Path>) files::iterator){
+                if (file.getFileName().toString().equals(LOCK_FILE)){
+                    continue;
+                }
+                try{
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().toInstant().isBefore(olderThan)
+                            && Files.deleteIfExists(file)){
+                        removed++;
+                    }
+                } catch (NoSuchFileException e){
+                    // Deleted by its owner meanwhile
+                } catch (IOException e){
+                    logger.warn("Could not remove scratch file {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException e){
+            logger.warn("Could not list scratch directory {}: {}", location, e.getMessage());
+        }
+        return removed;
+    }
+
+    private static long sizeOf(Path file){
+        try{
+            return Files.size(file);
+        } catch (IOException e){
+            return 0;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        sweeper.shutdownNow();
+        deleteFiles(directory, Instant.MAX);
+        try{
+            lockChannel.close();
+            Files.deleteIfExists(directory.resolve(LOCK_FILE));
+            Files.deleteIfExists(directory);
+        } catch (IOException e){
+            logger.warn("Could not remove scratch directory {}: {}", directory, e.getMessage());
+        }
+    }
+}
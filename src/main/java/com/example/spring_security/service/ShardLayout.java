@@ -0,0 +1,110 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.exception.FileStorageException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Where a stored file lives inside a storage location: {@code depth} levels of two hex digits taken from a hash of
+ * the name, e.g. {@code ab/cd/<uuid>.jpg} at depth 2. Depth 0 is the old flat layout.
+ * The hash ignores the extension, so a file's WebP/AVIF alternates land in the same directory.
+ * URLs keep using the plain name; the directories are derived from it on every lookup
+ */
+final class ShardLayout {
+
+    // 3 levels are 16M leaf directories, enough for billions of files
+    static final int MAX_DEPTH = 3;
+
+    private final int depth;
+
+    ShardLayout(int depth){
+        if (depth < 0 || depth > MAX_DEPTH){
+            throw new IllegalArgumentException("Shard depth must be between 0 and " + MAX_DEPTH + ": " + depth);
+        }
+        this.depth = depth;
+    }
+
+    int depth(){
+        return depth;
+    }
+
+    /**
+     * @return the file's path in the current layout
+     * @throws FileStorageException if the name isn't a plain file name
+     */
+    Path resolve(Path location, String fileName){
+        return resolve(location, fileName, depth);
+    }
+
+    /**
+     * Every place the file may be while a migration between layouts is under way, current layout first
+     */
+    List<Path> candidates(Path location, String fileName){
+        List<Path> candidates = new ArrayList<>(MAX_DEPTH + 1);
+        candidates.add(resolve(location, fileName, depth));
+        for (int d = 0; d <= MAX_DEPTH; d++){
+            if (d != depth){
+                candidates.add(resolve(location, fileName, d));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return true if the file is where the current layout puts it
+     */
+    boolean isCanonical(Path location, Path file){
+        String fileName = file.getFileName().toString();
+        return isPlainName(fileName) && file.equals(resolve(location, fileName, depth));
+    }
+
+    private static Path resolve(Path location, String fileName, int depth){
+        if (!isPlainName(fileName)){
+            throw new FileStorageException("Invalid file name: " + fileName);
+        }
+        Path directory = location;
+        if (depth > 0){
+            String hex = HexFormat.of().formatHex(nameDigest(fileName), 0, depth);
+            for (int level = 0; level < depth; level++){
+                directory = directory.resolve(hex.substring(level * 2, level * 2 + 2));
+            }
+        }
+        return directory.resolve(fileName);
+    }
+
+    /**
+     * @return true if the name can't reach outside its directory
+     */
+    static boolean isPlainName(String fileName){
+        return !fileName.isEmpty() && !fileName.equals(".") && !fileName.equals("..")
+                && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0 && fileName.indexOf('\0') < 0;
+    }
+
+    /**
+     * SHA-256 of the name without its extension; the first bytes pick the shard directories, StorageDisks
+     * places files by later ones
+     */
+    static byte[] nameDigest(String fileName){
+        return digest(baseName(fileName));
+    }
+
+    private static String baseName(String fileName){
+        int index = fileName.lastIndexOf('.');
+        return index > 0 ? fileName.substring(0, index) : fileName;
+    }
+
+    // UUIDs are random already, hashing spreads any other names just as evenly
+    private static byte[] digest(String name){
+        try{
+            return MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.FileStorageProperties;
+import com.example.spring_security.dto.ShardMigrationStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves stored files into the current shard layout, on their owner disk, while the application keeps serving them.
+ * This is also the rebalancer when a disk is added: it takes over part of every other disk's names.
+ * Each file is hard-linked into place first (across disks: copied next to its place and renamed into it), then
+ * the index is pointed at the new path, and the old path is only unlinked after a grace period, so a request that
+ * looked the file up a moment earlier can still open it. Files whose owner disk is full or failing are left for
+ * a later run. Idempotent: a run skips files already in place and finishes what an interrupted run started.
+ * URLs and Image.filePath hold plain file names and never change
+ */
+@Service
+public class ShardMigrationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardMigrationService.class);
+    private static final int BATCH_SIZE = 256;
+
+    private final LocalFileStorageServiceImpl storage;
+    private final FileStorageProperties properties;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong alreadyMigrated = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Queue<PendingUnlink> pendingUnlinks = new ConcurrentLinkedQueue<>();
+    private volatile String state = "IDLE";
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+
+    public ShardMigrationService(LocalFileStorageServiceImpl storage, FileStorageProperties properties){
+        this.storage = storage;
+        this.properties = properties;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateOnStartup(){
+        if (properties.isMigrateOnStartup()){
+            start();
+        } else if (storage.filesOffOwner()){
+            logger.info("Stored files found off their owner disk, rebalancing");
+            start();
+        }
+    }
+
+    /**
+     * Start a migration in the background, unless one is running
+     * @return the status right after starting (or of the run in progress)
+     */
+    public synchronized ShardMigrationStatus start(){
+        if ("RUNNING".equals(state)){
+            return status();
+        }
+        scanned.set(0);
+        moved.set(0);
+        alreadyMigrated.set(0);
+        conflicts.set(0);
+        deferred.set(0);
+        failed.set(0);
+        startedAt = Instant.now();
+        finishedAt = null;
+        state = "RUNNING";
+        Thread.ofPlatform().name("shard-migration").daemon().start(this::run);
+        return status();
+    }
+
+    public ShardMigrationStatus status(){
+        return new ShardMigrationStatus(state, storage.layout().depth(), storage.diskCount(), scanned.get(),
+                moved.get(), alreadyMigrated.get(), conflicts.get(), deferred.get(), failed.get(), startedAt,
+                finishedAt);
+    }
+
+    private void run(){
+        int parallelism = properties.getEffectiveMigrationParallelism();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        // Bounds the batches waiting for a worker, so a flat directory of millions isn't all held in memory
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        logger.info("Migrating stored files to shard depth {} on {} disks with {} threads", storage.layout().depth(),
+                storage.diskCount(), parallelism);
+        try{
+            for (Path location : storage.locations()){
+                walk(location, workers, inFlight);
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)){
+                unlinkDue(false);
+            }
+            unlinkDue(true);
+            boolean clean = conflicts.get() == 0 && deferred.get() == 0 && failed.get() == 0;
+            if (clean){
+                storage.layoutConsistent();
+            }
+            finishedAt = Instant.now();
+            state = "COMPLETED";
+            logger.info("Shard migration done: {}", status());
+        }catch (Exception e){
+            workers.shutdownNow();
+            finishedAt = Instant.now();
+            state = "FAILED";
+            logger.error("Shard migration failed: {}", status(), e);
+        }
+    }
+
+    // Listing is sequential, moving is done by the workers a batch at a time
+    private void walk(Path location, ExecutorService workers, Semaphore inFlight) throws IOException {
+        List<Path> batch = new ArrayList<>(BATCH_SIZE);
+        Files.walkFileTree(location, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                scanned.incrementAndGet();
+                if (attributes.isRegularFile() && !storage.isPlaced(file)){
+                    batch.add(file);
+                    if (batch.size() == BATCH_SIZE){
+                        submit(location, List.copyOf(batch), workers, inFlight);
+                        batch.clear();
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException){
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+        if (!batch.isEmpty()){
+            submit(location, List.copyOf(batch), workers, inFlight);
+        }
+    }
+
+    private void submit(Path location, List<Path> files, ExecutorService workers, Semaphore inFlight)
+            throws IOException {
+        try{
+            inFlight.acquire();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        workers.execute(() -> {
+            try{
+                for (Path file : files){
+                    migrate(file);
+                }
+                unlinkDue(false);
+            }finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void migrate(Path source){
+        try{
+            Path target = storage.prepareMigrationTarget(source);
+            if (target == null){
+                deferred.incrementAndGet();
+                return;
+            }
+            if (!storage.sameDisk(source, target)){
+                copyAcross(source, target);
+                return;
+            }
+            try{
+                Files.createLink(target, source);
+            }catch (FileAlreadyExistsException e){
+                alreadyThere(source, target);
+                return;
+            }catch (UnsupportedOperationException e){
+                // No hard links on this file system: a rename is atomic too, only the grace period is lost
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                storage.relocated(source, target);
+                storage.unlinked(source);
+                moved.incrementAndGet();
+                return;
+            }
+            storage.relocated(source, target);
+            scheduleUnlink(source);
+            moved.incrementAndGet();
+        }catch (NoSuchFileException e){
+            // Deleted while we were getting to it
+        }catch (Exception e){
+            failed.incrementAndGet();
+            logger.warn("Failed to migrate {}: {}", source, e.toString());
+        }
+    }
+
+    // Hard links don't cross disks: copy to a temporary file next to the target, then rename it into place
+    private void copyAcross(Path source, Path target) throws IOException {
+        if (Files.exists(target)){
+            alreadyThere(source, target);
+            return;
+        }
+        Path temporary = storage.createMigrationTemporary(target);
+        try{
+            // Keeps the modification time, so ETags and Last-Modified don't change
+            Files.copy(source, temporary, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        storage.relocated(source, target);
+        scheduleUnlink(source);
+        moved.incrementAndGet();
+    }
+
+    private void alreadyThere(Path source, Path target) throws IOException {
+        if (Files.size(target) == Files.size(source)){
+            // Linked or copied by an interrupted run, only the old path is left to go
+            alreadyMigrated.incrementAndGet();
+            storage.relocated(source, target);
+            scheduleUnlink(source);
+        } else {
+            conflicts.incrementAndGet();
+            logger.warn("Not migrating {}: {} already exists with different content", source, target);
+        }
+    }
+
+    private void scheduleUnlink(Path source){
+        pendingUnlinks.add(new PendingUnlink(source,
+                System.nanoTime() + properties.getMigrationUnlinkGrace().toNanos()));
+    }
+
+    // Remove old paths whose grace period is over; with wait, sleep until all of them are
+    private void unlinkDue(boolean wait){
+        PendingUnlink pending;
+        while ((pending = pendingUnlinks.peek()) != null){
+            long remaining = pending.dueNanos - System.nanoTime();
+            if (remaining > 0){
+                if (!wait){
+                    return;
+                }
+                try{
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            // Another worker may have taken it meanwhile
+            if (pendingUnlinks.remove(pending)){
+                try{
+                    Files.deleteIfExists(pending.path);
+                    storage.unlinked(pending.path);
+                }catch (IOException e){
+                    failed.incrementAndGet();
+                    logger.warn("Failed to remove {} after migrating it: {}", pending.path, e.toString());
+                }
+            }
+        }
+    }
+
+    private record PendingUnlink(Path path, long dueNanos) {
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.spring_security.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An upload streamed to a temporary file in the storage directory, with the SHA-256 of its content.
+ * Closing it deletes the temporary file unless it was moved into place
+ *
+ * @param path the temporary file
+ * @param contentHash SHA-256 of the content, hex
+ * @param size content length in bytes
+ * @param extension the upload's file extension, lower case with the dot, or empty
+ */
+public record StagedFile(Path path, String contentHash, long size, String extension) implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StagedFile.class);
+
+    /**
+     * @return the content-addressed name: the hash plus the extension
+     */
+    public String fileName(){
+        return contentHash + extension;
+    }
+
+    @Override
+    public void close(){
+        try{
+            Files.deleteIfExists(path);
+        }catch (IOException e){
+            logger.warn("Failed to delete staged upload {}: {}", path, e.getMessage());
+        }
+    }
+}
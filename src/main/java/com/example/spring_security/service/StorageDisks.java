@@ -0,0 +1,229 @@
+package com.example.spring_security.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The data disks stored files are striped across, each with its own optimized and original tree in the shard layout.
+ * A file belongs on the disk its name hashes to on a consistent-hash ring (virtual nodes keyed by mount path), so
+ * adding a disk only moves the files the new disk takes over, and finding a name's owner is one array read.
+ * A disk that is full or failing takes no new files; they go to the next disk round the ring, and the rebalancer
+ * (ShardMigrationService) moves them to their owner once it has room again.
+ * Without image.disks there is a single disk: the storage path, with the configured original and optimized paths
+ */
+final class StorageDisks {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageDisks.class);
+
+    static final int OPTIMIZED = 0;
+    static final int ORIGINAL = 1;
+    // Enough for an even spread over a handful of disks: each gets within a few percent of its share
+    private static final int VIRTUAL_NODES = 160;
+    private static final String PROBE = ".disk-probe";
+
+    static final class Disk {
+        final int id;
+        final Path root;
+        // Indexed by kind
+        private final Path[] locations;
+        private volatile long usableSpace = Long.MAX_VALUE;
+        private volatile String failure;
+
+        Disk(int id, Path root, Path optimized, Path original){
+            this.id = id;
+            this.root = root;
+            this.locations = new Path[]{optimized, original};
+        }
+
+        Path location(int kind){
+            return locations[kind];
+        }
+
+        long usableSpace(){
+            return usableSpace;
+        }
+
+        // Why the last check failed, null while healthy
+        String failure(){
+            return failure;
+        }
+    }
+
+    private final List<Disk> disks;
+    private final ShardLayout layout;
+    private final long minFreeSpace;
+    // Keyed by mount path
+    private final HashRing ring;
+
+    /**
+     * @param disks in configuration order; a disk keeps its place on the ring wherever it is listed
+     * @param minFreeSpace bytes a disk must keep free to take new files
+     */
+    StorageDisks(List<Disk> disks, ShardLayout layout, long minFreeSpace){
+        this.disks = List.copyOf(disks);
+        this.layout = layout;
+        this.minFreeSpace = minFreeSpace;
+        this.ring = new HashRing(disks.stream().map(disk -> disk.root.toString()).toList(), VIRTUAL_NODES);
+    }
+
+    List<Disk> disks(){
+        return disks;
+    }
+
+    ShardLayout layout(){
+        return layout;
+    }
+
+    /**
+     * @return the disk the name belongs on, whatever its state
+     */
+    Disk owner(String fileName){
+        return disks.get(ring.owner(fileName));
+    }
+
+    /**
+     * @return the disk a new file goes to: its owner, or the next disk round the ring that can take it.
+     * The owner if none can, so the write fails with the disk's own error
+     */
+    Disk target(String fileName){
+        Disk owner = owner(fileName);
+        if (disks.size() == 1 || accepts(owner)){
+            return owner;
+        }
+        for (Disk disk : preference(fileName)){
+            if (accepts(disk)){
+                return disk;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * @return true if the disk is healthy and above the free space floor
+     */
+    boolean accepts(Disk disk){
+        return disk.failure == null && disk.usableSpace >= minFreeSpace;
+    }
+
+    /**
+     * Every place a file of the kind may be, its place on its owner first
+     */
+    List<Path> candidates(int kind, String fileName){
+        List<Path> candidates = new ArrayList<>(disks.size() * (ShardLayout.MAX_DEPTH + 1));
+        for (Disk disk : preference(fileName)){
+            candidates.addAll(layout.candidates(disk.location(kind), fileName));
+        }
+        return candidates;
+    }
+
+    /**
+     * @return every location, the optimized ones first: the order names are looked up in
+     */
+    List<Path> locations(){
+        List<Path> locations = new ArrayList<>(disks.size() * 2);
+        for (int kind : new int[]{OPTIMIZED, ORIGINAL}){
+            for (Disk disk : disks){
+                locations.add(disk.location(kind));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return the disk holding the path, or null if it isn't inside a location
+     */
+    Disk diskOf(Path file){
+        for (Disk disk : disks){
+            if (inside(file, disk.location(OPTIMIZED)) || inside(file, disk.location(ORIGINAL))){
+                return disk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return OPTIMIZED or ORIGINAL for a path inside a location, -1 otherwise
+     */
+    int kindOf(Path file){
+        for (Disk disk : disks){
+            for (int kind : new int[]{OPTIMIZED, ORIGINAL}){
+                if (inside(file, disk.location(kind))){
+                    return kind;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the file is on its owner, at its place in the current layout
+     */
+    boolean isCanonical(Path file){
+        int kind = kindOf(file);
+        if (kind < 0){
+            return false;
+        }
+        String fileName = file.getFileName().toString();
+        if (!ShardLayout.isPlainName(fileName)){
+            return false;
+        }
+        Path location = owner(fileName).location(kind);
+        return inside(file, location) && layout.isCanonical(location, file);
+    }
+
+    /**
+     * @return true if the file is on the disk its name belongs on, in whatever layout
+     */
+    boolean isOnOwner(Path file){
+        String fileName = file.getFileName().toString();
+        return ShardLayout.isPlainName(fileName) && owner(fileName) == diskOf(file);
+    }
+
+    /**
+     * Re-reads every disk's free space and checks it still takes writes
+     */
+    void refresh(){
+        for (Disk disk : disks){
+            check(disk);
+        }
+    }
+
+    /**
+     * Checks the disk now, after a write to it failed: a failing disk stops taking new files right away
+     */
+    void check(Disk disk){
+        String previous = disk.failure;
+        try{
+            disk.usableSpace = Files.getFileStore(disk.root).getUsableSpace();
+            // statvfs keeps answering on many failed disks, a write doesn't
+            Path probe = disk.root.resolve(PROBE);
+            Files.deleteIfExists(probe);
+            Files.createFile(probe);
+            Files.delete(probe);
+            disk.failure = null;
+            if (previous != null){
+                logger.info("Disk {} is back", disk.root);
+            }
+        }catch (IOException | RuntimeException e){
+            disk.failure = e.toString();
+            if (previous == null){
+                logger.error("Disk {} failed, no new files go to it: {}", disk.root, e.toString());
+            }
+        }
+    }
+
+    // Distinct disks in ring order from the name's slot, its owner first
+    private List<Disk> preference(String fileName){
+        return ring.preference(fileName).stream().map(disks::get).toList();
+    }
+
+    private static boolean inside(Path file, Path location){
+        return file.startsWith(location) && !file.equals(location);
+    }
+}
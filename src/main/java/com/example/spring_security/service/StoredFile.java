@@ -0,0 +1,59 @@
+package com.example.spring_security.service;
+
+import org.springframework.http.MediaType;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where a stored file lives and what it is, as kept by the file index
+ *
+ * @param name the stored (public) file name
+ * @param path absolute location on disk: the file itself, or the pack segment holding it; null for a file being
+ *             streamed from a peer
+ * @param offset where the content starts in the file at path; 0 unless packed
+ * @param size length in bytes
+ * @param lastModified modification time in epoch milliseconds
+ * @param contentType derived from the extension
+ * @param content the content in a memory-mapped pack segment, read-only; null for a file of its own or one
+ *                being streamed
+ */
+public record StoredFile(String name, Path path, long offset, long size, long lastModified, String contentType,
+                         ByteBuffer content) {
+
+    /**
+     * A file of its own on disk
+     */
+    public StoredFile(String name, Path path, long size, long lastModified, String contentType){
+        this(name, path, 0, size, lastModified, contentType, null);
+    }
+
+    /**
+     * @return true if only content holds exactly the file's bytes: it shares path with others in a pack segment
+     */
+    public boolean packed(){
+        return content != null;
+    }
+
+    // Everything we store, so the content type is a map lookup instead of URLConnection's guess per request
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            "jpg", MediaType.IMAGE_JPEG_VALUE,
+            "jpeg", MediaType.IMAGE_JPEG_VALUE,
+            "png", MediaType.IMAGE_PNG_VALUE,
+            "gif", MediaType.IMAGE_GIF_VALUE,
+            "webp", "image/webp",
+            "avif", "image/avif",
+            "mp4", "video/mp4"
+    );
+
+    /**
+     * @return the content type for a stored file's extension, application/octet-stream for anything unknown
+     */
+    public static String contentTypeOf(String fileName){
+        int index = fileName.lastIndexOf('.');
+        String extension = index >= 0 ? fileName.substring(index + 1).toLowerCase(Locale.ROOT) : "";
+        return CONTENT_TYPES.getOrDefault(extension, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.spring_security.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * In-memory index of the files in the storage directories, so a lookup is a map hit instead of several syscalls.
+ * Built by a parallel scan at startup and kept current by the storage service on every store and delete.
+ * There is one map per kind (optimized, original) whatever the number of disks, and files are found on any disk
+ * at any shard depth; if a name exists twice (mid-migration), the copy on its owner disk at its place in the
+ * current layout wins. Only the service writes to these directories; a file that appears behind its back
+ * is picked up by the disk fallback on the first miss
+ */
+class StoredFileIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(StoredFileIndex.class);
+
+    private final StorageDisks disks;
+    // Optimized first, then original: the first kind holding a name wins
+    private final List<Path> locations;
+    private final List<Map<String, StoredFile>> entries = List.of(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    private volatile boolean sawMisplaced;
+    private volatile boolean sawOffOwner;
+
+    StoredFileIndex(StorageDisks disks){
+        this.disks = disks;
+        this.locations = disks.locations();
+    }
+
+    /**
+     * Index every regular file in the locations, at any depth. Each top-level shard directory is walked
+     * as its own task, files lying directly in a location (the flat layout) are read one stat per task;
+     * the calls block on I/O, which is what makes the parallelism pay off on large stores and network disks
+     *
+     * @param parallelism threads for the walk
+     */
+    void scan(int parallelism) throws IOException {
+        long started = System.nanoTime();
+        List<Path> files = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        for (Path location : locations){
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(location)){
+                for (Path child : stream){
+                    (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS) ? directories : files).add(child);
+                }
+            }
+        }
+        try(ForkJoinPool pool = new ForkJoinPool(parallelism)){
+            pool.submit(() -> {
+                files.parallelStream().forEach(file -> {
+                    try{
+                        if (add(file) != null){
+                            noteLayout(file);
+                        }
+                    }catch (NoSuchFileException e){
+                        // Deleted since the listing
+                    }catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                directories.parallelStream().forEach(directory -> {
+                    try{
+                        walk(directory);
+                    }catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }).get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing stored files", e);
+        }catch (ExecutionException e){
+            throw e.getCause() instanceof UncheckedIOException unchecked
+                    ? unchecked.getCause()
+                    : new IOException("Failed to index stored files", e.getCause());
+        }
+        logger.info("Indexed {} stored files in {} ms", size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    // The walk hands over the attributes it read anyway, no second stat per file
+    private void walk(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes){
+                if (attributes.isRegularFile()){
+                    put(file, attributes);
+                    noteLayout(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException){
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * @return true if the last scan found files outside their place in the current layout or off their owner disk
+     */
+    boolean sawMisplaced(){
+        return sawMisplaced;
+    }
+
+    /**
+     * @return true if the last scan found files on a disk other than their owner, e.g. after a disk was added
+     */
+    boolean sawOffOwner(){
+        return sawOffOwner;
+    }
+
+    private void noteLayout(Path file){
+        if (!sawMisplaced && !disks.isCanonical(file)){
+            sawMisplaced = true;
+        }
+        if (!sawOffOwner && !disks.isOnOwner(file)){
+            sawOffOwner = true;
+        }
+    }
+
+    /**
+     * @return the optimized entry for the name, else the original one, or null if neither exists
+     */
+    StoredFile find(String name){
+        for (Map<String, StoredFile> location : entries){
+            StoredFile file = location.get(name);
+            if (file != null){
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the entries for the name of every kind
+     */
+    List<StoredFile> findAll(String name){
+        List<StoredFile> found = new ArrayList<>(entries.size());
+        for (Map<String, StoredFile> location : entries){
+            StoredFile file = location.get(name);
+            if (file != null){
+                found.add(file);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Read a file's attributes and index it, replacing any previous entry unless that one is at the file's place
+     * on its owner disk in the current layout and this one isn't.
+     * Directories and files outside the indexed locations are ignored
+     *
+     * @return the entry now indexed for the name, or null if the path isn't an indexed file
+     * @throws NoSuchFileException if the file doesn't exist
+     */
+    StoredFile add(Path file) throws IOException {
+        if (disks.kindOf(file) < 0){
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()){
+            return null;
+        }
+        return put(file, attributes);
+    }
+
+    /**
+     * Forget the file, if the index points at this copy of it
+     */
+    void remove(Path file){
+        int kind = disks.kindOf(file);
+        if (kind >= 0){
+            entries.get(kind).computeIfPresent(file.getFileName().toString(),
+                    (name, entry) -> entry.path().equals(file) ? null : entry);
+        }
+    }
+
+    /**
+     * @return the indexed locations of every disk, optimized ones first
+     */
+    List<Path> locations(){
+        return locations;
+    }
+
+    int size(){
+        return entries.stream().mapToInt(Map::size).sum();
+    }
+
+    private StoredFile put(Path file, BasicFileAttributes attributes){
+        int kind = disks.kindOf(file);
+        if (kind < 0){
+            return null;
+        }
+        String name = file.getFileName().toString();
+        StoredFile entry = new StoredFile(name, file, attributes.size(), attributes.lastModifiedTime().toMillis(),
+                StoredFile.contentTypeOf(name));
+        return entries.get(kind).merge(name, entry, (current, candidate) ->
+                !current.path().equals(candidate.path()) && disks.isCanonical(current.path())
+                        && !disks.isCanonical(candidate.path()) ? current : candidate);
+    }
+}
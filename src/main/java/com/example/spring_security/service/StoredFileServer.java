@@ -0,0 +1,315 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageServingProperties;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes stored files to the response with conditional requests, byte ranges and long-lived caching.
+ * Stored names are random and a file is never rewritten in place, so every response is immutable.
+ * The bytes don't go through the heap: small popular files come from the off-heap HotImageCache, other bodies
+ * are handed to Tomcat's sendfile after the handler returns, or copied with FileChannel.transferTo when the
+ * connector can't do that. A file streamed from a peer in cluster mode is copied through as it arrives
+ */
+@Service
+@RequiredArgsConstructor
+public class StoredFileServer {
+
+    // Tomcat's sendfile contract (what its DefaultServlet uses): the connector writes the file once the request ends
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final ImageServingProperties properties;
+    private final HotImageCache hotCache;
+
+    /**
+     * Answer a GET or HEAD for the file: 304 if the client's copy is current, 206 (multipart/byteranges for
+     * several ranges) or 416 for Range requests, the whole file otherwise
+     *
+     * @param served the file and its content type, as resolved by ImageVariantResolver
+     * @throws IOException if writing to the client fails
+     */
+    public void serve(ImageVariantResolver.ServedFile served, HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+        serve(served, properties.getMaxAge(), request, response);
+    }
+
+    /**
+     * As above, with a shorter lifetime for the cached copies, e.g. until a signed URL expires
+     *
+     * @param maxAge how long clients and shared caches may keep the response
+     */
+    public void serve(ImageVariantResolver.ServedFile served, Duration maxAge, HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+        // A body streaming in from a peer is released whatever is sent, a 304 or a HEAD response included
+        try(InputStream body = served.body()){
+            write(served, maxAge, request, response);
+        }
+    }
+
+    private void write(ImageVariantResolver.ServedFile served, Duration maxAge, HttpServletRequest request,
+                       HttpServletResponse response) throws IOException {
+        // Size and modification time come from the storage index, no stat on the request path
+        StoredFile file = served.file();
+        long length = file.size();
+        long lastModified = file.lastModified();
+        String etag = etag(file.name(), length, lastModified);
+
+        // Sent with 304s and 416s too, so caches can refresh what they hold
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL,
+                CacheControl.maxAge(maxAge).cachePublic().immutable().getHeaderValue());
+        if (served.negotiated()){
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
+
+        if (notModified(request, etag, lastModified)){
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        boolean head = "HEAD".equals(request.getMethod());
+        if (served.body() != null){
+            // Streamed from a peer: Range is ignored, which a server may do (RFC 9110, 14.2), rather than read and
+            // drop the bytes before it
+            response.setContentType(served.contentType());
+            response.setContentLengthLong(length);
+            if (!head && served.body().transferTo(response.getOutputStream()) != length){
+                throw new EOFException("Peer sent a body of the wrong length for " + file.name());
+            }
+            return;
+        }
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        List<Region> regions = requestedRegions(request, etag, lastModified, length);
+        if (regions != null && regions.isEmpty()){
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        if (regions == null || regions.size() == 1){
+            Region region = regions == null ? new Region(0, length) : regions.get(0);
+            if (regions != null){
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, region.contentRange(length));
+            }
+            response.setContentType(served.contentType());
+            response.setContentLengthLong(region.count);
+            if (!head){
+                try(HotImageCache.CachedFile cached = hotCache.acquire(served.file())){
+                    if (cached != null){
+                        cached.writeTo(Channels.newChannel(response.getOutputStream()), region.start, region.count);
+                    } else {
+                        sendRegion(file, region, request, response);
+                    }
+                }
+            }
+            return;
+        }
+
+        // Several ranges: one part per range, each with its own headers
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>(regions.size());
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = end.length;
+        for (Region region : regions){
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + served.contentType() + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + region.contentRange(length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + region.count;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head){
+            return;
+        }
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        try(HotImageCache.CachedFile cached = hotCache.acquire(file);
+            FileChannel channel = cached == null && !file.packed()
+                    ? FileChannel.open(file.path(), StandardOpenOption.READ) : null){
+            for (int i = 0; i < regions.size(); i++){
+                response.getOutputStream().write(partHeaders.get(i));
+                Region region = regions.get(i);
+                if (cached != null){
+                    cached.writeTo(out, region.start, region.count);
+                } else if (file.packed()){
+                    writeMapped(file, region, out);
+                } else {
+                    transfer(channel, 0, region, out);
+                }
+            }
+        }
+        response.getOutputStream().write(end);
+    }
+
+    /**
+     * Sendfile when the connector offers it, otherwise transferTo into the response, or for a packed file a write
+     * straight from its mapped segment (no open per request). Packed files are sent from their offset in the segment
+     */
+    private void sendRegion(StoredFile file, Region region, HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        if (region.count >= properties.getSendfileMinSize().toBytes()
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))){
+            request.setAttribute(SENDFILE_FILENAME, file.path().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, file.offset() + region.start);
+            request.setAttribute(SENDFILE_END, file.offset() + region.start + region.count);
+            return;
+        }
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        if (file.packed()){
+            writeMapped(file, region, out);
+            return;
+        }
+        try(FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ)){
+            transfer(channel, file.offset(), region, out);
+        }
+    }
+
+    private static void writeMapped(StoredFile file, Region region, WritableByteChannel out) throws IOException {
+        ByteBuffer content = file.content().slice((int) region.start, (int) region.count);
+        while (content.hasRemaining()){
+            out.write(content);
+        }
+    }
+
+    private static void transfer(FileChannel channel, long offset, Region region, WritableByteChannel out)
+            throws IOException {
+        long position = offset + region.start;
+        long remaining = region.count;
+        while (remaining > 0){
+            long written = channel.transferTo(position, remaining, out);
+            if (written <= 0){
+                // Content-Length is already out, a short body must fail rather than look complete
+                throw new EOFException("File ended " + remaining + " bytes early");
+            }
+            position += written;
+            remaining -= written;
+        }
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since when both are present (RFC 9110, 13.2.2).
+     * If-None-Match compares weakly: a cache revalidating with W/"x" still gets its 304
+     */
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified){
+        List<String> noneMatch = Collections.list(request.getHeaders(HttpHeaders.IF_NONE_MATCH));
+        if (!noneMatch.isEmpty()){
+            for (String header : noneMatch){
+                for (String candidate : header.split(",")){
+                    String tag = candidate.trim();
+                    if (tag.startsWith("W/")){
+                        tag = tag.substring(2);
+                    }
+                    if (tag.equals("*") || tag.equals(etag)){
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        long modifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        // HTTP dates have second precision
+        return modifiedSince >= 0 && lastModified / 1000 <= modifiedSince / 1000;
+    }
+
+    /**
+     * @return null to send the whole file (no Range, a stale If-Range, or a Range we choose to ignore),
+     * an empty list if no range is satisfiable, the regions to send otherwise
+     */
+    private List<Region> requestedRegions(HttpServletRequest request, String etag, long lastModified, long length){
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !ifRangeMatches(request, etag, lastModified)){
+            return null;
+        }
+        List<HttpRange> ranges;
+        try{
+            ranges = HttpRange.parseRanges(rangeHeader);
+        }catch (IllegalArgumentException e){
+            // Malformed, or a unit other than bytes: a server may ignore Range (RFC 9110, 14.2)
+            return null;
+        }
+        // "bytes=" parses to no ranges at all, which is malformed too rather than unsatisfiable
+        if (ranges.isEmpty() || ranges.size() > properties.getMaxRanges()){
+            return null;
+        }
+        List<Region> regions = new ArrayList<>(ranges.size());
+        long total = 0;
+        for (HttpRange range : ranges){
+            long start = range.getRangeStart(length);
+            long last = range.getRangeEnd(length);
+            if (start >= length || last < start){
+                continue;
+            }
+            Region region = new Region(start, last - start + 1);
+            regions.add(region);
+            total += region.count;
+        }
+        // Overlapping ranges that add up to more than the file only serve to amplify the response
+        return total > length ? null : regions;
+    }
+
+    // A Range only applies to the representation the client already has part of; If-Range compares strongly
+    private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified){
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null){
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+            return ifRange.equals(etag);
+        }
+        long date = dateHeader(request, HttpHeaders.IF_RANGE);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name){
+        try{
+            return request.getDateHeader(name);
+        }catch (IllegalArgumentException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Strong validator from the file's identity rather than its contents, so nothing has to be read to compute it.
+     * The name is part of it because WebP/AVIF alternates are served under the primary file's URL
+     */
+    private static String etag(String name, long length, long lastModified){
+        return "\"" + Integer.toHexString(name.hashCode())
+                + "-" + Long.toHexString(length)
+                + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private record Region(long start, long count) {
+
+        String contentRange(long length){
+            return "bytes " + start + "-" + (start + count - 1) + "/" + length;
+        }
+    }
+}
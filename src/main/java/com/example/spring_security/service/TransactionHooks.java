@@ -0,0 +1,47 @@
+package com.example.spring_security.service;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Work that must wait until the current transaction has ended, e.g. deleting files the transaction stopped
+ * referencing. Tasks run on the same thread; anything transactional in them has to start a new transaction
+ */
+final class TransactionHooks {
+
+    private TransactionHooks(){
+    }
+
+    /**
+     * Runs the task once the current transaction has committed or rolled back, or right away outside one
+     */
+    static void afterCompletion(Runnable task){
+        if (!TransactionSynchronizationManager.isSynchronizationActive()){
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status){
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Runs the task if the current transaction rolls back; never outside one
+     */
+    static void afterRollback(Runnable task){
+        if (!TransactionSynchronizationManager.isSynchronizationActive()){
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status){
+                if (status == STATUS_ROLLED_BACK){
+                    task.run();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.spring_security.service;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels on jdk.incubator.vector.
+ * Only loaded through create(), after checking the module is present: referencing it on a JVM started
+ * without --add-modules jdk.incubator.vector would fail with NoClassDefFoundError
+ */
+final class VectorResampleKernels implements ResampleKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorResampleKernels(){
+    }
+
+    static ResampleKernels create(){
+        return new VectorResampleKernels();
+    }
+
+    @Override
+    public int lanes(){
+        return SPECIES.length();
+    }
+
+    // One dot product per target pixel, across the taps
+    @Override
+    public void horizontal(float[] src, float[] dst, Resampler.Weights weights){
+        int stride = weights.stride();
+        float[] w = weights.weights();
+        int[] start = weights.start();
+        int bound = SPECIES.loopBound(stride);
+        for (int x = 0; x < weights.size(); x++){
+            int s = start[x];
+            int o = x * stride;
+            float sum = 0f;
+            int k = 0;
+            if (bound > 0){
+                FloatVector acc = FloatVector.zero(SPECIES);
+                for (; k < bound; k += SPECIES.length()){
+                    acc = FloatVector.fromArray(SPECIES, src, s + k)
+                            .fma(FloatVector.fromArray(SPECIES, w, o + k), acc);
+                }
+                sum = acc.reduceLanes(VectorOperators.ADD);
+            }
+            for (; k < stride; k++){
+                sum += src[s + k] * w[o + k];
+            }
+            dst[x] = sum;
+        }
+    }
+
+    // Lanes run along the row, each tap is a broadcast multiply-add, so the accumulator stays in a register
+    @Override
+    public void vertical(float[][] rows, Resampler.Weights weights, int index, float[] dst, int width){
+        int stride = weights.stride();
+        float[] w = weights.weights();
+        int o = index * stride;
+        int bound = SPECIES.loopBound(width);
+        int x = 0;
+        for (; x < bound; x += SPECIES.length()){
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (int k = 0; k < stride; k++){
+                acc = FloatVector.fromArray(SPECIES, rows[k], x).fma(FloatVector.broadcast(SPECIES, w[o + k]), acc);
+            }
+            acc.intoArray(dst, x);
+        }
+        for (; x < width; x++){
+            float sum = 0f;
+            for (int k = 0; k < stride; k++){
+                sum += rows[k][x] * w[o + k];
+            }
+            dst[x] = sum;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+CREATE TABLE IF NOT EXISTS image_renditions (
+    id UUID PRIMARY KEY,
+    image_id UUID NOT NULL REFERENCES images(id) ON DELETE CASCADE,
+    name VARCHAR NOT NULL,
+    width INTEGER NOT NULL,
+    height INTEGER NOT NULL,
+    file_size BIGINT NOT NULL,
+    file_path VARCHAR NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_image_renditions_image_id ON image_renditions(image_id);
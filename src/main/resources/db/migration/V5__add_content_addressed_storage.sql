@@ -0,0 +1,29 @@
+CREATE TABLE IF NOT EXISTS content_blobs (
+    content_hash VARCHAR(64) PRIMARY KEY,
+    file_name VARCHAR NOT NULL,
+    file_size BIGINT NOT NULL,
+    ref_count INTEGER NOT NULL,
+    created_at TIMESTAMP NOT NULL
+);
+CREATE TABLE IF NOT EXISTS optimization_results (
+    id UUID PRIMARY KEY,
+    content_hash VARCHAR(64) NOT NULL,
+    settings_key VARCHAR(64) NOT NULL,
+    file_path VARCHAR,
+    file_size BIGINT,
+    optimized BOOLEAN NOT NULL DEFAULT FALSE,
+    compression_quality REAL,
+    ref_count INTEGER NOT NULL,
+    UNIQUE (content_hash, settings_key)
+);
+CREATE TABLE IF NOT EXISTS optimization_result_renditions (
+    result_id UUID NOT NULL REFERENCES optimization_results(id) ON DELETE CASCADE,
+    name VARCHAR NOT NULL,
+    width INTEGER NOT NULL,
+    height INTEGER NOT NULL,
+    file_size BIGINT NOT NULL,
+    file_path VARCHAR NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_optimization_result_renditions_result_id ON optimization_result_renditions(result_id);
+ALTER TABLE images ADD COLUMN IF NOT EXISTS content_hash VARCHAR(64);
+ALTER TABLE images ADD COLUMN IF NOT EXISTS settings_key VARCHAR(64);
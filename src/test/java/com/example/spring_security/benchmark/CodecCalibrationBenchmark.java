@@ -0,0 +1,193 @@
+package com.example.spring_security.benchmark;
+
+import com.example.spring_security.config.ImageContextProperties;
+import com.example.spring_security.service.CodecBackend;
+import com.example.spring_security.service.FFmpegCodecBackend;
+import com.example.spring_security.service.ImageIOCodecBackend;
+import com.example.spring_security.service.ProcessingContexts;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FFmpeg against ImageIO per format and image size, then writes the crossover points CodecSelector
+ * routes by to config/codec-calibration.yaml (picked up by application.yaml's spring.config.import).
+ * Run on the machine that will serve the traffic, with:
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ *     -Dexec.args="-cp %classpath com.example.spring_security.benchmark.CodecCalibrationBenchmark"
+ * -Dcalibration.output=path/to/file.yaml writes elsewhere; JMH options (-wi, -i, -f ...) are passed through
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecCalibrationBenchmark {
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    @Param({"160x120", "320x240", "640x480", "1024x768", "1600x1200", "2400x1800"})
+    public String size;
+
+    @Param({"ffmpeg", "imageio"})
+    public String backend;
+
+    private CodecBackend codec;
+    private byte[] encoded;
+    private BufferedImage pixels;
+
+    @Setup
+    public void setUp() throws IOException {
+        ProcessingContexts contexts = new ProcessingContexts(new ImageContextProperties(), new SimpleMeterRegistry());
+        codec = "ffmpeg".equals(backend) ? new FFmpegCodecBackend(contexts) : new ImageIOCodecBackend(contexts);
+        String[] parts = size.split("x");
+        BufferedImage photo = photo(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(photo, format, out);
+        encoded = out.toByteArray();
+        // What resized PNGs and renditions hand to the lossless encoder
+        pixels = new BufferedImage(photo.getWidth(), photo.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = pixels.createGraphics();
+        g.drawImage(photo, 0, 0, null);
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return codec.decode(new ByteArrayInputStream(encoded), format, "png".equals(format));
+    }
+
+    // Lossless only, JPEGs always go through the JPEG output stage
+    @Benchmark
+    public void encode() throws IOException {
+        codec.encode(pixels, "png", OutputStream.nullOutputStream());
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        List<RunResult> results = new ArrayList<>();
+        results.addAll(new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .include(CodecCalibrationBenchmark.class.getSimpleName() + ".decode")
+                .build()).run());
+        results.addAll(new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .include(CodecCalibrationBenchmark.class.getSimpleName() + ".encode")
+                .param("format", "png")
+                .build()).run());
+
+        StringBuilder yaml = new StringBuilder()
+                .append("# Written by CodecCalibrationBenchmark on ").append(LocalDate.now())
+                .append(", ").append(Runtime.getRuntime().availableProcessors()).append(" cores\n")
+                .append("image:\n  processing:\n    codecs:\n");
+        appendThresholds(yaml, "imageio-decode-max-pixels", results, "decode", List.of("jpg", "png"));
+        appendThresholds(yaml, "imageio-encode-max-pixels", results, "encode", List.of("png"));
+
+        Path output = Path.of(System.getProperty("calibration.output", "config/codec-calibration.yaml"));
+        if (output.getParent() != null){
+            Files.createDirectories(output.getParent());
+        }
+        Files.writeString(output, yaml);
+        System.out.println("\nWrote " + output.toAbsolutePath() + ":\n" + yaml);
+    }
+
+    private static void appendThresholds(StringBuilder yaml, String key, Collection<RunResult> results,
+                                         String operation, List<String> formats){
+        yaml.append("      ").append(key).append(":\n");
+        for (String format : formats){
+            // pixels -> [ffmpeg, imageio] average time
+            Map<Long, double[]> times = new TreeMap<>();
+            for (RunResult result : results){
+                if (!result.getParams().getBenchmark().endsWith("." + operation)
+                        || !format.equals(result.getParams().getParam("format"))){
+                    continue;
+                }
+                String[] parts = result.getParams().getParam("size").split("x");
+                long pixels = Long.parseLong(parts[0]) * Long.parseLong(parts[1]);
+                int slot = "ffmpeg".equals(result.getParams().getParam("backend")) ? 0 : 1;
+                times.computeIfAbsent(pixels, p -> new double[2])[slot] = result.getPrimaryResult().getScore();
+            }
+            long threshold = crossover(times);
+            System.out.printf(Locale.ROOT, "%s %s: ImageIO up to %,d pixels%n", operation, format, threshold);
+            yaml.append("        ").append(format).append(": ").append(threshold).append('\n');
+        }
+    }
+
+    /**
+     * Where ImageIO stops being faster: interpolated between the last size it wins and the first it loses.
+     * 0 if it loses at the smallest size; the largest measured size if it never loses
+     */
+    static long crossover(Map<Long, double[]> times){
+        long lastWin = 0;
+        double lastMargin = 0;
+        for (Map.Entry<Long, double[]> entry : times.entrySet()){
+            double margin = entry.getValue()[0] - entry.getValue()[1];
+            if (margin <= 0){
+                if (lastWin == 0){
+                    return 0;
+                }
+                double t = lastMargin / (lastMargin - margin);
+                return Math.round(lastWin + t * (entry.getKey() - lastWin));
+            }
+            lastWin = entry.getKey();
+            lastMargin = margin;
+        }
+        return lastWin;
+    }
+
+    // Smooth content with edges and some texture, so both encoders do realistic work
+    private static BufferedImage photo(int w, int h){
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), w, h, new Color(240, 200, 120)));
+        g.fillRect(0, 0, w, h);
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++){
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillOval(random.nextInt(w), random.nextInt(h), w / 12 + 1, h / 12 + 1);
+        }
+        g.dispose();
+        for (int i = 0; i < w * h / 8; i++){
+            int x = random.nextInt(w);
+            int y = random.nextInt(h);
+            image.setRGB(x, y, image.getRGB(x, y) ^ random.nextInt(0x0F0F0F));
+        }
+        return image;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.spring_security.benchmark;
+
+import com.example.spring_security.config.ImageAdmissionProperties;
+import com.example.spring_security.config.ImageContextProperties;
+import com.example.spring_security.config.ImageResampleProperties;
+import com.example.spring_security.config.ImageTilingProperties;
+import com.example.spring_security.service.DecodeAdmissionController;
+import com.example.spring_security.service.ProcessingContexts;
+import com.example.spring_security.service.ResampleFilter;
+import com.example.spring_security.service.Resampler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java2D bilinear (what resize used to do) against the separable resampler, scalar and vector kernels.
+ * Run with (exec:exec, not exec:java: the forked benchmark JVMs need the test classpath):
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ *     -Dexec.args="-cp %classpath com.example.spring_security.benchmark.ResampleBenchmark"
+ * Prints an aliasing/sharpness comparison on a zone plate first, then the JMH throughput results
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ResampleBenchmark {
+
+    @Param({"4000x3000:2000x1500", "4000x3000:480x360"})
+    public String sizes;
+
+    @Param({"LANCZOS3", "MITCHELL"})
+    public ResampleFilter filter;
+
+    private BufferedImage source;
+    private int targetW;
+    private int targetH;
+    private Resampler scalar;
+    private Resampler vector;
+
+    @Setup
+    public void setUp(){
+        String[] parts = sizes.split("[:x]");
+        source = noise(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        targetW = Integer.parseInt(parts[2]);
+        targetH = Integer.parseInt(parts[3]);
+        scalar = resampler(filter, false);
+        vector = resampler(filter, true);
+        if (!vector.isVectorized()){
+            throw new IllegalStateException("jdk.incubator.vector is not available in the benchmark JVM");
+        }
+    }
+
+    @Benchmark
+    public BufferedImage java2dBilinear(){
+        return bilinear(source, targetW, targetH);
+    }
+
+    @Benchmark
+    public BufferedImage scalarKernels(){
+        return scalar.resize(source, targetW, targetH);
+    }
+
+    @Benchmark
+    public BufferedImage vectorKernels(){
+        return vector.resize(source, targetW, targetH);
+    }
+
+    public static void main(String[] args) throws Exception {
+        printQuality();
+        // JMH command line options (-f, -wi, -i, -p ...) override the annotations
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ResampleBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    /**
+     * Downscales a zone plate 8x and reports, per method:
+     * alias = RMS deviation from flat gray where the source frequency is above the target's Nyquist (lower is better),
+     * pass = RMS error against the ideal pattern where it's well below it (lower is sharper/more faithful)
+     */
+    private static void printQuality(){
+        int size = 2048;
+        int scale = 8;
+        int out = size / scale;
+        double k = Math.PI * 0.5 / (size * Math.sqrt(2));
+        BufferedImage plate = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < size; y++){
+            for (int x = 0; x < size; x++){
+                int v = (int) Math.round(127.5 + 127.5 * Math.cos(k * (x * (double) x + y * (double) y)));
+                plate.setRGB(x, y, v << 16 | v << 8 | v);
+            }
+        }
+
+        System.out.printf("%-16s %8s %8s%n", "method", "alias", "pass");
+        report("java2d bilinear", bilinear(plate, out, out), k, scale);
+        for (ResampleFilter filter : ResampleFilter.values()){
+            report(filter.name().toLowerCase(), resampler(filter, false).resize(plate, out, out), k, scale);
+        }
+    }
+
+    private static void report(String name, BufferedImage image, double k, int scale){
+        int n = image.getWidth();
+        double outNyquistRadius = 0.5 / scale * Math.PI / k;
+        double alias = 0;
+        double pass = 0;
+        int aliasCount = 0;
+        int passCount = 0;
+        for (int y = 0; y < n; y++){
+            for (int x = 0; x < n; x++){
+                double sx = (x + 0.5) * scale - 0.5;
+                double sy = (y + 0.5) * scale - 0.5;
+                double r = Math.sqrt(sx * sx + sy * sy);
+                double v = image.getRGB(x, y) & 0xFF;
+                if (r > 2 * outNyquistRadius){
+                    alias += (v - 127.5) * (v - 127.5);
+                    aliasCount++;
+                } else if (r < 0.5 * outNyquistRadius){
+                    double ideal = 127.5 + 127.5 * Math.cos(k * (sx * sx + sy * sy));
+                    pass += (v - ideal) * (v - ideal);
+                    passCount++;
+                }
+            }
+        }
+        System.out.printf("%-16s %8.2f %8.2f%n", name, Math.sqrt(alias / aliasCount), Math.sqrt(pass / passCount));
+    }
+
+    // Single-threaded: tiling is measured separately in TiledResampleBenchmark
+    private static Resampler resampler(ResampleFilter filter, boolean vectorize){
+        ImageResampleProperties properties = new ImageResampleProperties();
+        properties.setFilter(filter);
+        properties.setVectorize(vectorize);
+        ImageTilingProperties tiling = new ImageTilingProperties();
+        tiling.setEnabled(false);
+        return new Resampler(properties, tiling, ForkJoinPool.commonPool(),
+                new DecodeAdmissionController(new ImageAdmissionProperties(), new SimpleMeterRegistry()),
+                new ProcessingContexts(new ImageContextProperties(), new SimpleMeterRegistry()));
+    }
+
+    private static BufferedImage bilinear(BufferedImage src, int w, int h){
+        BufferedImage scaled = new BufferedImage(w, h, src.getType());
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, w, h, null);
+        g.dispose();
+        return scaled;
+    }
+
+    private static BufferedImage noise(int w, int h){
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        new Random(42).nextBytes(data);
+        return image;
+    }
+}
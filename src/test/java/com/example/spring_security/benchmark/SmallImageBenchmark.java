@@ -0,0 +1,189 @@
+package com.example.spring_security.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.example.spring_security.config.ImageAdmissionProperties;
+import com.example.spring_security.config.ImageCodecProperties;
+import com.example.spring_security.config.ImageContextProperties;
+import com.example.spring_security.config.ImageFormatProperties;
+import com.example.spring_security.config.ImageJpegProperties;
+import com.example.spring_security.config.ImagePngProperties;
+import com.example.spring_security.config.ImageProcessingProperties;
+import com.example.spring_security.config.ImageQualityProperties;
+import com.example.spring_security.config.ImageResampleProperties;
+import com.example.spring_security.config.ImageScratchProperties;
+import com.example.spring_security.config.ImageTilingProperties;
+import com.example.spring_security.config.ImageWatchdogProperties;
+import com.example.spring_security.service.AdaptiveQualityEncoder;
+import com.example.spring_security.service.CodecSelector;
+import com.example.spring_security.service.DecodeAdmissionController;
+import com.example.spring_security.service.FFmpegCodecBackend;
+import com.example.spring_security.service.FFmpegImageProcessingServiceImpl;
+import com.example.spring_security.service.ImageIOCodecBackend;
+import com.example.spring_security.service.JpegOutputStage;
+import com.example.spring_security.service.PngOptimizer;
+import com.example.spring_security.service.ProcessingContexts;
+import com.example.spring_security.service.ProcessingWatchdog;
+import com.example.spring_security.service.Resampler;
+import com.example.spring_security.service.ScratchSpace;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small-image throughput on one thread (= per core), with the per-thread processing contexts off (every call
+ * builds its converters, writers, deflaters and row buffers from scratch, as before) and on (the benchmark
+ * thread is bound like a pool worker).
+ * Run with:
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ *     -Dexec.args="-cp %classpath com.example.spring_security.benchmark.SmallImageBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class SmallImageBenchmark {
+
+    @Param({"false", "true"})
+    public boolean reuse;
+
+    @Param({"160x120", "640x480"})
+    public String size;
+
+    private File jpegSource;
+    private File pngSource;
+    private BufferedImage pixels;
+    private int box;
+    private File scratch;
+    private ProcessingContexts contexts;
+    private ProcessingWatchdog watchdog;
+    private ScratchSpace scratchSpace;
+    private JpegOutputStage jpegOutput;
+    private FFmpegImageProcessingServiceImpl service;
+
+    // Scope.Thread: setup and teardown run on the benchmark thread itself, which is what gets bound
+    @Setup
+    public void setUp() throws IOException {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        String[] parts = size.split("x");
+        pixels = gradient(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        box = Integer.parseInt(parts[0]) / 2;
+        jpegSource = File.createTempFile("bench-", ".jpg");
+        pngSource = File.createTempFile("bench-", ".png");
+        scratch = File.createTempFile("bench-out-", ".jpg");
+        ImageIO.write(pixels, "jpg", jpegSource);
+        ImageIO.write(pixels, "png", pngSource);
+
+        MeterRegistry registry = new SimpleMeterRegistry();
+        ImageContextProperties contextProperties = new ImageContextProperties();
+        contextProperties.setEnabled(reuse);
+        contexts = new ProcessingContexts(contextProperties, registry);
+        contexts.attach();
+
+        ImageTilingProperties tiling = new ImageTilingProperties();
+        tiling.setEnabled(false);
+        DecodeAdmissionController admission = new DecodeAdmissionController(new ImageAdmissionProperties(), registry);
+        Resampler resampler = new Resampler(new ImageResampleProperties(), tiling, ForkJoinPool.commonPool(),
+                admission, contexts);
+        jpegOutput = new JpegOutputStage(new ImageJpegProperties(), contexts);
+        watchdog = new ProcessingWatchdog(registry);
+        ImageScratchProperties scratchProperties = new ImageScratchProperties();
+        scratchProperties.setDirectory(Files.createTempDirectory("bench-scratch-").toString());
+        scratchSpace = new ScratchSpace(scratchProperties, registry);
+        FFmpegCodecBackend ffmpeg = new FFmpegCodecBackend(contexts);
+        CodecSelector codecs = new CodecSelector(new ImageCodecProperties(), ffmpeg, new ImageIOCodecBackend(contexts),
+                registry);
+        service = new FFmpegImageProcessingServiceImpl(new ImageProcessingProperties(), new ImageWatchdogProperties(),
+                watchdog, new ImageFormatProperties(), new ImagePngProperties(),
+                new PngOptimizer(new ImagePngProperties(), registry, contexts, scratchSpace,
+                        ForkJoinPool.commonPool()),
+                new AdaptiveQualityEncoder(new ImageQualityProperties(), registry, contexts, scratchSpace),
+                jpegOutput, resampler, contexts, scratchSpace, codecs, ffmpeg);
+    }
+
+    @TearDown
+    public void tearDown(){
+        contexts.detach();
+        watchdog.shutdown();
+        scratchSpace.shutdown();
+        jpegSource.delete();
+        pngSource.delete();
+        scratch.delete();
+    }
+
+    // Encode only: writer lookup and setup against the reused writer
+    @Benchmark
+    public long encodeJpeg() throws IOException {
+        jpegOutput.write(pixels, scratch, 0.8f);
+        return scratch.length();
+    }
+
+    // Decode, resample to half size and encode, the way on-demand derivatives are rendered
+    @Benchmark
+    public long renderJpeg() throws IOException {
+        return consume(service.render(jpegSource, box, box, "jpg", 0.8f));
+    }
+
+    // Same through the FFmpeg PNG recorder, which reuses the converter's native frame
+    @Benchmark
+    public long renderPng() throws IOException {
+        return consume(service.render(pngSource, box, box, "png", 0.8f));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(SmallImageBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private static long consume(File out){
+        long length = out.length();
+        out.delete();
+        return length;
+    }
+
+    // Smooth content with some edges, closer to a photo than noise (which no encoder compresses)
+    private static BufferedImage gradient(int w, int h){
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), w, h, new Color(240, 200, 120)));
+        g.fillRect(0, 0, w, h);
+        g.setColor(Color.DARK_GRAY);
+        for (int i = 0; i < 12; i++){
+            g.fillOval(i * w / 12, (i * 37) % h, w / 10, h / 8);
+        }
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.spring_security.benchmark;
+
+import com.example.spring_security.config.ImageAdmissionProperties;
+import com.example.spring_security.config.ImageContextProperties;
+import com.example.spring_security.config.ImageResampleProperties;
+import com.example.spring_security.config.ImageTilingProperties;
+import com.example.spring_security.service.DecodeAdmissionController;
+import com.example.spring_security.service.ProcessingContexts;
+import com.example.spring_security.service.Resampler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.unit.DataSize;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded against tiled resampling of 20 and 48 megapixel sources down to a 2000px long side.
+ * Run with (see ResampleBenchmark):
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ *     -Dexec.args="-cp %classpath com.example.spring_security.benchmark.TiledResampleBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+public class TiledResampleBenchmark {
+
+    // 20 MP (5472x3648) and 48 MP (8000x6000)
+    @Param({"5472x3648", "8000x6000"})
+    public String source;
+
+    private BufferedImage image;
+    private int targetW;
+    private int targetH;
+    private ForkJoinPool pool;
+    private Resampler single;
+    private Resampler tiled;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        String[] parts = source.split("x");
+        int w = Integer.parseInt(parts[0]);
+        int h = Integer.parseInt(parts[1]);
+        image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        new Random(42).nextBytes(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        double ratio = 2000.0 / Math.max(w, h);
+        targetW = (int) (w * ratio);
+        targetH = (int) (h * ratio);
+
+        ImageAdmissionProperties admission = new ImageAdmissionProperties();
+        admission.setMemoryBudget(DataSize.ofGigabytes(1));
+        DecodeAdmissionController controller = new DecodeAdmissionController(admission, new SimpleMeterRegistry());
+        ImageTilingProperties tiling = new ImageTilingProperties();
+        pool = new ForkJoinPool(tiling.resolveParallelism());
+        ImageTilingProperties off = new ImageTilingProperties();
+        off.setEnabled(false);
+        ProcessingContexts contexts = new ProcessingContexts(new ImageContextProperties(), new SimpleMeterRegistry());
+        single = new Resampler(new ImageResampleProperties(), off, pool, controller, contexts);
+        tiled = new Resampler(new ImageResampleProperties(), tiling, pool, controller, contexts);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public BufferedImage singleThreaded(){
+        return single.resize(image, targetW, targetH);
+    }
+
+    @Benchmark
+    public BufferedImage tiled(){
+        return tiled.resize(image, targetW, targetH);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(TiledResampleBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.spring_security.controller;
+
+import com.example.spring_security.config.ImageHotCacheProperties;
+import com.example.spring_security.config.ImageServingProperties;
+import com.example.spring_security.config.ImageSignedUrlProperties;
+import com.example.spring_security.exception.FileNotFoundException;
+import com.example.spring_security.service.FileUrlSigner;
+import com.example.spring_security.service.HotImageCache;
+import com.example.spring_security.service.ImageVariantResolver;
+import com.example.spring_security.service.StoredFile;
+import com.example.spring_security.service.StoredFileServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SignedFileServletTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    private static final String FILE = "image.png";
+
+    @TempDir
+    Path directory;
+
+    private final byte[] content = new byte[1000];
+    private final FileUrlSigner signer = new FileUrlSigner(properties(Duration.ofHours(1)));
+    private SignedFileServlet servlet;
+
+    @BeforeEach
+    void storeFile() throws IOException {
+        new Random(1).nextBytes(content);
+        Path path = directory.resolve(FILE);
+        Files.write(path, content);
+        ImageVariantResolver.ServedFile served = new ImageVariantResolver.ServedFile(
+                new StoredFile(FILE, path, content.length, 1_700_000_000_000L, "image/png"), "image/png", false);
+        // Storage holds the one file
+        ImageVariantResolver resolver = new ImageVariantResolver(null, null){
+            @Override
+            public ServedFile resolve(String fileName, String accept, boolean readThrough){
+                if (!fileName.equals(FILE)){
+                    throw new FileNotFoundException("File not found: " + fileName);
+                }
+                return served;
+            }
+        };
+        StoredFileServer fileServer = new StoredFileServer(new ImageServingProperties(),
+                new HotImageCache(new ImageHotCacheProperties(), new SimpleMeterRegistry()));
+        servlet = new SignedFileServlet(signer, resolver, fileServer);
+    }
+
+    @Test
+    void servesASignedUrl() throws Exception {
+        MockHttpServletResponse response = get(pathOf(signer.sign(FILE).url()));
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void rejectsATamperedFileName() throws Exception {
+        String[] parts = parts(signer.sign(FILE).url());
+
+        assertThat(get("/" + parts[0] + "/" + parts[1] + "/other.png").getStatus())
+                .isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+        assertThat(get("/" + parts[0] + "/" + parts[1] + "/image.jpg").getStatus())
+                .isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+    }
+
+    @Test
+    void rejectsATamperedOrTruncatedSignature() throws Exception {
+        String[] parts = parts(signer.sign(FILE).url());
+        String signature = parts[1];
+        String tampered = (signature.charAt(0) == 'A' ? "B" : "A") + signature.substring(1);
+
+        assertThat(get("/" + parts[0] + "/" + tampered + "/" + FILE).getStatus())
+                .isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+        assertThat(get("/" + parts[0] + "/" + signature.substring(0, 10) + "/" + FILE).getStatus())
+                .isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+        assertThat(get("/" + parts[0] + "//" + FILE).getStatus()).isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+    }
+
+    @Test
+    void rejectsAMovedExpiry() throws Exception {
+        String[] parts = parts(signer.sign(FILE).url());
+        long later = Long.parseLong(parts[0]) + 3600;
+
+        assertThat(get("/" + later + "/" + parts[1] + "/" + FILE).getStatus())
+                .isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+    }
+
+    @Test
+    void rejectsAnExpiredUrl() throws Exception {
+        // Signed with the same key, but its expiry has passed
+        ImageSignedUrlProperties properties = properties(Duration.ofHours(-1));
+        properties.setExpiryGranularity(Duration.ofSeconds(1));
+        String url = new FileUrlSigner(properties).sign(FILE).url();
+
+        MockHttpServletResponse response = get(pathOf(url));
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_FORBIDDEN);
+        assertThat(response.getErrorMessage()).isEqualTo("URL expired");
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void rejectsANonNumericExpiry() throws Exception {
+        String[] parts = parts(signer.sign(FILE).url());
+
+        assertThat(get("/soon/" + parts[1] + "/" + FILE).getStatus()).isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(get("/" + parts[0] + "x/" + parts[1] + "/" + FILE).getStatus())
+                .isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(get("/99999999999999999999/" + parts[1] + "/" + FILE).getStatus())
+                .isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    @Test
+    void rejectsExtraAndMissingPathSegments() throws Exception {
+        String[] parts = parts(signer.sign(FILE).url());
+
+        assertThat(get("/" + parts[0] + "/" + parts[1] + "/" + FILE + "/more").getStatus())
+                .isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(get("/" + parts[0] + "/" + parts[1] + "/nested/" + FILE).getStatus())
+                .isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(get("/" + parts[0] + "/" + parts[1] + "/").getStatus()).isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(get("/" + parts[0] + "/" + parts[1]).getStatus()).isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(get(null).getStatus()).isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    @Test
+    void aValidUrlForAMissingFileIsNotFound() throws Exception {
+        assertThat(get(pathOf(signer.sign("missing.png").url())).getStatus())
+                .isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    private MockHttpServletResponse get(String pathInfo) throws ServletException, IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET",
+                new ImageSignedUrlProperties().getPathPrefix() + (pathInfo == null ? "" : pathInfo));
+        request.setPathInfo(pathInfo);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.service(request, response);
+        return response;
+    }
+
+    private static ImageSignedUrlProperties properties(Duration ttl){
+        ImageSignedUrlProperties properties = new ImageSignedUrlProperties();
+        properties.setSecretKey(KEY);
+        properties.setTtl(ttl);
+        return properties;
+    }
+
+    // What the servlet sees as its path info: the URL without the prefix it is mapped to
+    private static String pathOf(String url){
+        String prefix = new ImageSignedUrlProperties().getPathPrefix();
+        assertThat(url).startsWith(prefix + "/");
+        return url.substring(prefix.length());
+    }
+
+    // expires, signature, fileName
+    private static String[] parts(String url){
+        return pathOf(url).substring(1).split("/", 3);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageSignedUrlProperties;
+import com.example.spring_security.dto.SignedUrlResponse;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileUrlSignerTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    private static final String FILE = "3f2c9a1e-7b4d-4c8e-9f00-1a2b3c4d5e6f.jpg";
+
+    private final FileUrlSigner signer = new FileUrlSigner(properties(KEY));
+
+    @Test
+    void signedUrlsCheckOut(){
+        SignedUrl url = parse(signer.sign(FILE));
+
+        assertThat(url.fileName()).isEqualTo(FILE);
+        assertThat(signer.isValid(url.fileName(), url.expires(), url.signature())).isTrue();
+    }
+
+    @Test
+    void rejectsAnotherFileName(){
+        SignedUrl url = parse(signer.sign(FILE));
+        String otherExtension = FILE.replace(".jpg", ".png");
+
+        assertThat(signer.isValid(otherExtension, url.expires(), url.signature())).isFalse();
+        assertThat(signer.isValid("other.jpg", url.expires(), url.signature())).isFalse();
+        assertThat(signer.isValid(FILE + "x", url.expires(), url.signature())).isFalse();
+    }
+
+    @Test
+    void rejectsAnotherExpiry(){
+        SignedUrl url = parse(signer.sign(FILE));
+
+        assertThat(signer.isValid(FILE, url.expires() + 1, url.signature())).isFalse();
+        assertThat(signer.isValid(FILE, url.expires() * 10, url.signature())).isFalse();
+    }
+
+    @Test
+    void rejectsTamperedAndTruncatedSignatures(){
+        SignedUrl url = parse(signer.sign(FILE));
+        String signature = url.signature();
+        char last = signature.charAt(signature.length() - 1);
+        String tampered = signature.substring(0, signature.length() - 1) + (last == 'A' ? 'B' : 'A');
+
+        assertThat(signer.isValid(FILE, url.expires(), tampered)).isFalse();
+        assertThat(signer.isValid(FILE, url.expires(), signature.substring(0, signature.length() - 1))).isFalse();
+        assertThat(signer.isValid(FILE, url.expires(), signature.substring(0, 8))).isFalse();
+        assertThat(signer.isValid(FILE, url.expires(), signature + "A")).isFalse();
+        assertThat(signer.isValid(FILE, url.expires(), "")).isFalse();
+    }
+
+    @Test
+    void expiryIsRoundedUpToTheGranularity(){
+        ImageSignedUrlProperties properties = properties(KEY);
+        properties.setTtl(Duration.ofMinutes(10));
+        properties.setExpiryGranularity(Duration.ofMinutes(5));
+        FileUrlSigner rounding = new FileUrlSigner(properties);
+
+        long before = Instant.now().getEpochSecond();
+        SignedUrlResponse response = rounding.sign(FILE);
+        long after = Instant.now().getEpochSecond();
+        long expires = parse(response).expires();
+
+        assertThat(expires % 300).isZero();
+        assertThat(expires).isBetween(before + 600, after + 600 + 299);
+        assertThat(response.expiresAt()).isEqualTo(Instant.ofEpochSecond(expires));
+    }
+
+    @Test
+    void signersSharingAKeyAcceptEachOthersUrls(){
+        SignedUrl url = parse(signer.sign(FILE));
+        FileUrlSigner other = new FileUrlSigner(properties(KEY));
+        byte[] key = new byte[32];
+        key[0] = 1;
+        FileUrlSigner stranger = new FileUrlSigner(properties(Base64.getEncoder().encodeToString(key)));
+        // No key configured: a random one
+        FileUrlSigner random = new FileUrlSigner(properties(null));
+
+        assertThat(other.isValid(FILE, url.expires(), url.signature())).isTrue();
+        assertThat(stranger.isValid(FILE, url.expires(), url.signature())).isFalse();
+        assertThat(random.isValid(FILE, url.expires(), url.signature())).isFalse();
+    }
+
+    @Test
+    void refusesShortKeys(){
+        String shortKey = Base64.getEncoder().encodeToString(new byte[31]);
+
+        assertThatThrownBy(() -> new FileUrlSigner(properties(shortKey))).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static ImageSignedUrlProperties properties(String key){
+        ImageSignedUrlProperties properties = new ImageSignedUrlProperties();
+        properties.setSecretKey(key);
+        return properties;
+    }
+
+    // {prefix}/{expires}/{signature}/{fileName}
+    private static SignedUrl parse(SignedUrlResponse response){
+        String prefix = new ImageSignedUrlProperties().getPathPrefix() + "/";
+        assertThat(response.url()).startsWith(prefix);
+        String[] parts = response.url().substring(prefix.length()).split("/", 3);
+        assertThat(parts).hasSize(3);
+        return new SignedUrl(Long.parseLong(parts[0]), parts[1], parts[2]);
+    }
+
+    private record SignedUrl(long expires, String signature, String fileName) {
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.spring_security.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GifFramesTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void countsMoreThanOneImageAsAnimated() throws IOException {
+        assertThat(GifFrames.isAnimated(gif("two.gif", 2))).isTrue();
+        assertThat(GifFrames.isAnimated(gif("five.gif", 5))).isTrue();
+    }
+
+    @Test
+    void singleImageIsNotAnimated() throws IOException {
+        assertThat(GifFrames.isAnimated(gif("one.gif", 1))).isFalse();
+    }
+
+    @Test
+    void otherFormatsAreNotAnimated() throws IOException {
+        Path png = directory.resolve("image.png");
+        ImageIO.write(frame(0), "png", png.toFile());
+        Path empty = Files.createFile(directory.resolve("empty.gif"));
+
+        assertThat(GifFrames.isAnimated(png)).isFalse();
+        assertThat(GifFrames.isAnimated(empty)).isFalse();
+    }
+
+    @Test
+    void truncatedGifIsNotAnimated() throws IOException {
+        byte[] bytes = Files.readAllBytes(gif("two.gif", 2));
+        // Cut inside the first image's data, before the second descriptor
+        Path truncated = directory.resolve("truncated.gif");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 3));
+
+        assertThat(GifFrames.isAnimated(truncated)).isFalse();
+    }
+
+    private Path gif(String name, int frames) throws IOException {
+        Path file = directory.resolve(name);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        try(ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())){
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++){
+                writer.writeToSequence(new IIOImage(frame(i), null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+
+    private static BufferedImage frame(int i){
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.getHSBColor(i / 5f, 0.8f, 0.9f));
+        g.fillRect(0, 0, 64, 48);
+        g.setColor(Color.BLACK);
+        g.fillRect(i * 8, 10, 8, 8);
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.spring_security.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HashRingTest {
+
+    // As StorageDisks and PeerCluster use
+    private static final int VIRTUAL_NODES = 160;
+    private static final int NAMES = 50_000;
+
+    private static final List<String> DISKS = List.of("/mnt/disk1", "/mnt/disk2", "/mnt/disk3", "/mnt/disk4");
+
+    @Test
+    void spreadsNamesEvenly(){
+        Map<String, Integer> counts = new HashMap<>();
+        for (String owner : owners(DISKS).values()){
+            counts.merge(owner, 1, Integer::sum);
+        }
+
+        assertThat(counts).containsOnlyKeys(DISKS);
+        for (int count : counts.values()){
+            assertThat(count).isBetween(NAMES / DISKS.size() * 3 / 4, NAMES / DISKS.size() * 5 / 4);
+        }
+    }
+
+    @Test
+    void addingADiskOnlyMovesNamesOntoIt(){
+        List<String> grown = new ArrayList<>(DISKS);
+        grown.add("/mnt/disk5");
+        Map<String, String> before = owners(DISKS);
+        Map<String, String> after = owners(grown);
+
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()){
+            String owner = after.get(entry.getKey());
+            if (!owner.equals(entry.getValue())){
+                assertThat(owner).isEqualTo("/mnt/disk5");
+                moved++;
+            }
+        }
+        // About its fair share, 1/5 of the names
+        assertThat(moved).isBetween(NAMES / 5 * 3 / 4, NAMES / 5 * 5 / 4);
+    }
+
+    @Test
+    void removingADiskOnlyMovesTheNamesItOwned(){
+        List<String> shrunk = new ArrayList<>(DISKS);
+        shrunk.remove("/mnt/disk2");
+        Map<String, String> before = owners(DISKS);
+        Map<String, String> after = owners(shrunk);
+
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()){
+            if (entry.getValue().equals("/mnt/disk2")){
+                moved++;
+            } else {
+                assertThat(after.get(entry.getKey())).isEqualTo(entry.getValue());
+            }
+        }
+        assertThat(moved).isBetween(NAMES / 4 * 3 / 4, NAMES / 4 * 5 / 4);
+    }
+
+    @Test
+    void aRemovedOwnersNamesGoToTheNextMemberInTheirPreference(){
+        HashRing ring = new HashRing(DISKS, VIRTUAL_NODES);
+        List<String> shrunk = new ArrayList<>(DISKS);
+        shrunk.remove("/mnt/disk3");
+        HashRing without = new HashRing(shrunk, VIRTUAL_NODES);
+
+        for (String name : names(2_000)){
+            List<Integer> preference = ring.preference(name);
+            assertThat(preference).hasSize(DISKS.size()).doesNotHaveDuplicates().startsWith(ring.owner(name));
+            if (DISKS.get(preference.get(0)).equals("/mnt/disk3")){
+                assertThat(shrunk.get(without.owner(name))).isEqualTo(DISKS.get(preference.get(1)));
+            }
+        }
+    }
+
+    @Test
+    void ownersDoNotDependOnTheOrderMembersAreListedIn(){
+        List<String> reversed = new ArrayList<>(DISKS);
+        Collections.reverse(reversed);
+
+        assertThat(owners(reversed)).isEqualTo(owners(DISKS));
+    }
+
+    @Test
+    void alternatesHaveTheSameOwner(){
+        HashRing ring = new HashRing(DISKS, VIRTUAL_NODES);
+        for (String name : names(1_000)){
+            String base = name.substring(0, name.lastIndexOf('.'));
+            assertThat(ring.owner(base + ".webp")).isEqualTo(ring.owner(name));
+            assertThat(ring.owner(base + ".avif")).isEqualTo(ring.owner(name));
+        }
+    }
+
+    @Test
+    void aSingleMemberOwnsEverything(){
+        HashRing ring = new HashRing(List.of("/mnt/disk1"), VIRTUAL_NODES);
+        for (String name : names(100)){
+            assertThat(ring.owner(name)).isZero();
+            assertThat(ring.preference(name)).containsExactly(0);
+        }
+        assertThatThrownBy(() -> new HashRing(List.of(), VIRTUAL_NODES)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    // Name -> owning member's key
+    private static Map<String, String> owners(List<String> keys){
+        HashRing ring = new HashRing(keys, VIRTUAL_NODES);
+        Map<String, String> owners = new HashMap<>();
+        for (String name : names(NAMES)){
+            owners.put(name, keys.get(ring.owner(name)));
+        }
+        return owners;
+    }
+
+    // The same random names on every call
+    private static List<String> names(int count){
+        Random random = new Random(42);
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            names.add(new UUID(random.nextLong(), random.nextLong()) + ".jpg");
+        }
+        return names;
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.spring_security.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * A store that isn't closed stands in for a crash: reopening the directory then sees only what the store
+ * wrote to its files, as after a restart
+ */
+class PackStoreTest {
+
+    private static final long SEGMENT_SIZE = 1 << 20;
+    // Five to a segment
+    private static final int FILE_SIZE = 180 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void findsFilesAfterReopening() throws IOException {
+        PackStore store = new PackStore(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 12; i++){
+            store.put(name(i), content(i), 1000L + i);
+        }
+        store.put(name(3), content(100), 2000L);
+
+        PackStore reopened = new PackStore(directory, SEGMENT_SIZE);
+
+        assertThat(reopened.fileCount()).isEqualTo(12);
+        for (int i = 0; i < 12; i++){
+            StoredFile file = reopened.find(name(i));
+            assertThat(file).isNotNull();
+            assertThat(bytes(file)).isEqualTo(i == 3 ? bytes(content(100)) : bytes(content(i)));
+            assertThat(file.lastModified()).isEqualTo(i == 3 ? 2000L : 1000L + i);
+        }
+        reopened.close();
+    }
+
+    @Test
+    void deletesSurviveReopening() throws IOException {
+        PackStore store = new PackStore(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 7; i++){
+            store.put(name(i), content(i), 1000L);
+        }
+        assertThat(store.delete(name(2))).isTrue();
+        assertThat(store.delete(name(6))).isTrue();
+        assertThat(store.delete(name(6))).isFalse();
+
+        PackStore reopened = new PackStore(directory, SEGMENT_SIZE);
+
+        assertThat(reopened.contains(name(2))).isFalse();
+        assertThat(reopened.contains(name(6))).isFalse();
+        assertThat(reopened.fileCount()).isEqualTo(5);
+        reopened.close();
+    }
+
+    @Test
+    void ignoresANeedleCutShort() throws IOException {
+        PackStore store = new PackStore(directory, SEGMENT_SIZE);
+        store.put(name(0), content(0), 1000L);
+        store.put(name(1), content(1), 1000L);
+        store.close();
+        // Corrupt the last needle's content, as a write cut short by a crash would leave it
+        Path segment = directory.resolve("segment-00000001.pack");
+        try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)){
+            channel.write(ByteBuffer.wrap(new byte[64]), 16 + 2 * FILE_SIZE);
+        }
+
+        PackStore reopened = new PackStore(directory, SEGMENT_SIZE);
+
+        assertThat(reopened.contains(name(0))).isTrue();
+        assertThat(reopened.contains(name(1))).isFalse();
+        // Appends go over the partial needle
+        reopened.put(name(2), content(2), 1000L);
+        PackStore again = new PackStore(directory, SEGMENT_SIZE);
+        assertThat(bytes(again.find(name(2)))).isEqualTo(bytes(content(2)));
+        again.close();
+    }
+
+    @Test
+    void keepsDeletesOfRelocatedFilesWhenCrashingBeforeCompactedSegmentsAreDeleted() throws IOException {
+        PackStore store = new PackStore(directory, SEGMENT_SIZE);
+        // Segments 1 and 2 sealed with five files each, the last two in the active segment 3
+        for (int i = 0; i < 12; i++){
+            store.put(name(i), content(i), 1000L + i);
+        }
+        // Mostly dead: 1 and 3 live in segment 1, 5 and 8 in segment 2
+        for (int i : new int[]{0, 2, 4, 6, 7, 9}){
+            store.delete(name(i));
+        }
+
+        List<PackStore.Segment> compacted = store.compact(0.5);
+        assertThat(compacted).hasSize(2);
+        // Relocated copies are deleted before the old segments go
+        store.delete(name(1));
+        store.delete(name(8));
+        // One compacted segment is deleted when its grace period ends, then the process dies
+        store.deleteSegment(compacted.get(0));
+        assertThat(Files.exists(compacted.get(1).path)).isTrue();
+
+        PackStore reopened = new PackStore(directory, SEGMENT_SIZE);
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 12; i++){
+            if (reopened.contains(name(i))){
+                names.add(name(i));
+            }
+        }
+        assertThat(names).containsExactly(name(3), name(5), name(10), name(11));
+        assertThat(bytes(reopened.find(name(3)))).isEqualTo(bytes(content(3)));
+        assertThat(bytes(reopened.find(name(5)))).isEqualTo(bytes(content(5)));
+        reopened.close();
+    }
+
+    @Test
+    void crashDuringCompactionLosesNothing() throws IOException {
+        PackStore store = new PackStore(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 12; i++){
+            store.put(name(i), content(i), 1000L + i);
+        }
+        for (int i : new int[]{0, 1, 2, 5, 6, 7}){
+            store.delete(name(i));
+        }
+        // Compacted, but neither segment deleted yet
+        assertThat(store.compact(0.5)).hasSize(2);
+
+        PackStore reopened = new PackStore(directory, SEGMENT_SIZE);
+
+        assertThat(reopened.fileCount()).isEqualTo(6);
+        for (int i : new int[]{3, 4, 8, 9, 10, 11}){
+            assertThat(bytes(reopened.find(name(i)))).isEqualTo(bytes(content(i)));
+        }
+        // The old segments hold nothing live any more and are compacted again
+        for (PackStore.Segment segment : reopened.compact(0.5)){
+            reopened.deleteSegment(segment);
+        }
+        PackStore again = new PackStore(directory, SEGMENT_SIZE);
+        assertThat(again.fileCount()).isEqualTo(6);
+        again.close();
+    }
+
+    private static String name(int i){
+        return "file-" + i + ".webp";
+    }
+
+    private static ByteBuffer content(int seed){
+        byte[] bytes = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static byte[] bytes(StoredFile file){
+        return bytes(file.content());
+    }
+
+    private static byte[] bytes(ByteBuffer buffer){
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageAdmissionProperties;
+import com.example.spring_security.config.ImageContextProperties;
+import com.example.spring_security.config.ImageResampleProperties;
+import com.example.spring_security.config.ImageTilingProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ResamplerTest {
+
+    // Down, up, a non-integer ratio, and sources narrower than the kernel
+    private static final int[][] SIZES = {{1000, 160}, {160, 1000}, {333, 100}, {100, 333}, {7, 3}, {3, 7}, {2, 9}};
+    private static final int[] ALIGNS = {1, 8, 16};
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutdown(){
+        pool.shutdown();
+    }
+
+    @Test
+    void weightsOfEveryTargetPixelSumToOne(){
+        for (ResampleFilter filter : ResampleFilter.values()){
+            for (int[] size : SIZES){
+                for (int align : ALIGNS){
+                    Resampler.Weights weights = Resampler.computeWeights(filter, size[0], size[1], align);
+                    for (int i = 0; i < weights.size(); i++){
+                        double sum = 0;
+                        for (int k = 0; k < weights.stride(); k++){
+                            sum += weights.weights()[i * weights.stride() + k];
+                        }
+                        assertThat(sum).as("%s %s pixel %d", filter, Arrays.toString(size), i).isCloseTo(1.0, within(1e-5));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void windowsStartInsideTheSourceAndArePaddedWithZeros(){
+        for (ResampleFilter filter : ResampleFilter.values()){
+            for (int[] size : SIZES){
+                for (int align : ALIGNS){
+                    int in = size[0];
+                    Resampler.Weights weights = Resampler.computeWeights(filter, in, size[1], align);
+                    assertThat(weights.stride() % align).isZero();
+                    for (int i = 0; i < weights.size(); i++){
+                        int start = weights.start()[i];
+                        assertThat(start).isBetween(0, in - 1);
+                        // Taps past the last source pixel exist only for alignment and must not contribute
+                        for (int k = in - start; k < weights.stride(); k++){
+                            assertThat(weights.weights()[i * weights.stride() + k]).isZero();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void weightsAreMirroredAcrossTheCenter(){
+        for (ResampleFilter filter : ResampleFilter.values()){
+            for (int[] size : SIZES){
+                int in = size[0];
+                int out = size[1];
+                double[][] dense = dense(Resampler.computeWeights(filter, in, out, 1), in);
+                for (int i = 0; i < out; i++){
+                    for (int j = 0; j < in; j++){
+                        assertThat(dense[i][j]).as("%s %s pixel %d tap %d", filter, Arrays.toString(size), i, j)
+                                .isCloseTo(dense[out - 1 - i][in - 1 - j], within(1e-5));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void sameSizeIsTheIdentity(){
+        Resampler.Weights weights = Resampler.computeWeights(ResampleFilter.LANCZOS3, 50, 50, 8);
+        assertThat(weights.stride()).isEqualTo(1);
+        for (int i = 0; i < 50; i++){
+            assertThat(weights.start()[i]).isEqualTo(i);
+            assertThat(weights.weights()[i]).isEqualTo(1f);
+        }
+    }
+
+    @Test
+    void tapsPastTheEdgesFoldOntoTheEdgePixel(){
+        // A one pixel source: every tap of every window lands on it
+        Resampler.Weights single = Resampler.computeWeights(ResampleFilter.LANCZOS3, 1, 5, 1);
+        assertThat(single.stride()).isEqualTo(1);
+        for (int i = 0; i < 5; i++){
+            assertThat(single.start()[i]).isZero();
+            assertThat(single.weights()[i]).isCloseTo(1f, within(1e-6f));
+        }
+        // Upscaling: the first target pixel's window reaches left of the source, and the edge pixel takes that share
+        double[][] dense = dense(Resampler.computeWeights(ResampleFilter.MITCHELL, 10, 40, 1), 10);
+        assertThat(dense[0][0]).isGreaterThan(dense[0][1]).isGreaterThan(0.5);
+    }
+
+    @Test
+    void uniformImageStaysUniformUpToTheEdges(){
+        Resampler resampler = resampler(ResampleFilter.LANCZOS3, untiled());
+        for (int[] size : new int[][]{{300, 200, 64, 43}, {40, 30, 130, 97}, {5, 5, 2, 3}}){
+            BufferedImage source = new BufferedImage(size[0], size[1], BufferedImage.TYPE_3BYTE_BGR);
+            Arrays.fill(pixels(source), (byte) 200);
+
+            BufferedImage target = resampler.resize(source, size[2], size[3]);
+
+            assertThat(target.getWidth()).isEqualTo(size[2]);
+            assertThat(target.getHeight()).isEqualTo(size[3]);
+            for (byte value : pixels(target)){
+                assertThat(value & 0xFF).isBetween(199, 201);
+            }
+        }
+    }
+
+    @Test
+    void tilesStitchTogetherWithoutSeams(){
+        BufferedImage source = new BufferedImage(640, 480, BufferedImage.TYPE_3BYTE_BGR);
+        new Random(42).nextBytes(pixels(source));
+        ImageTilingProperties tiling = new ImageTilingProperties();
+        tiling.setPixelThreshold(1);
+        tiling.setMinRowsPerTile(8);
+
+        for (ResampleFilter filter : ResampleFilter.values()){
+            BufferedImage single = resampler(filter, untiled()).resize(source, 200, 150);
+            BufferedImage tiled = resampler(filter, tiling).resize(source, 200, 150);
+
+            assertThat(pixels(tiled)).isEqualTo(pixels(single));
+        }
+    }
+
+    @Test
+    void vectorKernelsMatchTheScalarOnes(){
+        BufferedImage source = new BufferedImage(333, 211, BufferedImage.TYPE_4BYTE_ABGR);
+        new Random(7).nextBytes(pixels(source));
+        Resampler vector = resampler(ResampleFilter.LANCZOS3, untiled(), true);
+        assumeTrue(vector.isVectorized(), "jdk.incubator.vector is not loaded");
+
+        byte[] expected = pixels(resampler(ResampleFilter.LANCZOS3, untiled()).resize(source, 120, 77));
+        byte[] actual = pixels(vector.resize(source, 120, 77));
+
+        // Same taps, summed in a different order
+        for (int i = 0; i < expected.length; i++){
+            assertThat(actual[i] & 0xFF).isCloseTo(expected[i] & 0xFF, within(1));
+        }
+    }
+
+    private Resampler resampler(ResampleFilter filter, ImageTilingProperties tiling){
+        return resampler(filter, tiling, false);
+    }
+
+    private Resampler resampler(ResampleFilter filter, ImageTilingProperties tiling, boolean vectorize){
+        ImageResampleProperties properties = new ImageResampleProperties();
+        properties.setFilter(filter);
+        properties.setVectorize(vectorize);
+        ImageAdmissionProperties admission = new ImageAdmissionProperties();
+        admission.setMemoryBudget(DataSize.ofMegabytes(256));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        return new Resampler(properties, tiling, pool, new DecodeAdmissionController(admission, registry),
+                new ProcessingContexts(new ImageContextProperties(), registry));
+    }
+
+    private static ImageTilingProperties untiled(){
+        ImageTilingProperties tiling = new ImageTilingProperties();
+        tiling.setEnabled(false);
+        return tiling;
+    }
+
+    // weights[target pixel][source pixel], with the padding dropped
+    private static double[][] dense(Resampler.Weights weights, int in){
+        double[][] dense = new double[weights.size()][in];
+        for (int i = 0; i < weights.size(); i++){
+            for (int k = 0; k < weights.stride(); k++){
+                int j = weights.start()[i] + k;
+                if (j < in){
+                    dense[i][j] += weights.weights()[i * weights.stride() + k];
+                }
+            }
+        }
+        return dense;
+    }
+
+    private static byte[] pixels(BufferedImage image){
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+}
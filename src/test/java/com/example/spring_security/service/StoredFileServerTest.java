@@ -0,0 +1,296 @@
+package com.example.spring_security.service;
+
+import com.example.spring_security.config.ImageHotCacheProperties;
+import com.example.spring_security.config.ImageServingProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StoredFileServerTest {
+
+    private static final int LENGTH = 1000;
+    // A whole second, so HTTP dates (second precision) round-trip exactly
+    private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private final byte[] content = new byte[LENGTH];
+    private final StoredFileServer server = new StoredFileServer(new ImageServingProperties(),
+            new HotImageCache(new ImageHotCacheProperties(), new SimpleMeterRegistry()));
+    private ImageVariantResolver.ServedFile served;
+
+    @BeforeEach
+    void storeFile() throws IOException {
+        new Random(1).nextBytes(content);
+        Path path = directory.resolve("image.png");
+        Files.write(path, content);
+        served = new ImageVariantResolver.ServedFile(
+                new StoredFile("image.png", path, LENGTH, LAST_MODIFIED, "image/png"), "image/png", false);
+    }
+
+    @Test
+    void sendsTheWholeFileWithoutRange() throws IOException {
+        MockHttpServletResponse response = serve(get());
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+        assertThat(response.getHeader(HttpHeaders.ACCEPT_RANGES)).isEqualTo("bytes");
+        assertThat(response.getHeader(HttpHeaders.ETAG)).startsWith("\"").endsWith("\"");
+        assertThat(response.getHeader(HttpHeaders.CACHE_CONTROL)).contains("immutable");
+        assertThat(response.getHeader(HttpHeaders.VARY)).isNull();
+    }
+
+    @Test
+    void sendsOneRange() throws IOException {
+        assertRange("bytes=0-99", 0, 99);
+        assertRange("bytes=500-500", 500, 500);
+        // Open-ended, and a last byte past the end, both run to the end of the file
+        assertRange("bytes=990-", 990, 999);
+        assertRange("bytes=900-5000", 900, 999);
+    }
+
+    @Test
+    void sendsSuffixRanges() throws IOException {
+        assertRange("bytes=-100", 900, 999);
+        assertRange("bytes=-1", 999, 999);
+        // A suffix longer than the file is the whole file
+        assertRange("bytes=-5000", 0, 999);
+    }
+
+    @Test
+    void ignoresMalformedRanges() throws IOException {
+        for (String range : new String[]{"bytes=", "bytes=abc", "bytes=5-1", "bytes=--5", "pages=0-10", "0-10"}){
+            MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, range));
+
+            assertThat(response.getStatus()).as(range).isEqualTo(HttpServletResponse.SC_OK);
+            assertThat(response.getContentAsByteArray()).as(range).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void answersUnsatisfiableRangesWith416() throws IOException {
+        for (String range : new String[]{"bytes=1000-", "bytes=1000-1100", "bytes=2000-3000,5000-"}){
+            MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, range));
+
+            assertThat(response.getStatus()).as(range).isEqualTo(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes */1000");
+            assertThat(response.getContentAsByteArray()).isEmpty();
+        }
+    }
+
+    @Test
+    void dropsUnsatisfiableRangesAmongSatisfiableOnes() throws IOException {
+        assertRange("bytes=1500-1600,10-19", 10, 19);
+    }
+
+    @Test
+    void sendsSeveralRangesAsMultipart() throws IOException {
+        MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, "bytes=0-9, 20-29,-5"));
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_PARTIAL_CONTENT);
+        String contentType = response.getContentType();
+        assertThat(contentType).startsWith("multipart/byteranges; boundary=");
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        byte[] body = response.getContentAsByteArray();
+        assertThat(response.getContentLengthLong()).isEqualTo(body.length);
+
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String[] parts = text.split("\r\n--" + boundary);
+        // Empty preamble, three parts, then the closing "--"
+        assertThat(parts).hasSize(5);
+        assertThat(parts[4]).isEqualTo("--\r\n");
+        assertPart(parts[1], "bytes 0-9/1000", 0, 10);
+        assertPart(parts[2], "bytes 20-29/1000", 20, 30);
+        assertPart(parts[3], "bytes 995-999/1000", 995, 1000);
+    }
+
+    @Test
+    void ignoresTooManyRanges() throws IOException {
+        StringBuilder range = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= new ImageServingProperties().getMaxRanges(); i++){
+            range.append(',').append(i * 10).append('-').append(i * 10);
+        }
+
+        MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, range.toString()));
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void ignoresRangesAddingUpToMoreThanTheFile() throws IOException {
+        MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, "bytes=0-999,0-999"));
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void headOfARangeHasHeadersButNoBody() throws IOException {
+        MockHttpServletRequest request = get(HttpHeaders.RANGE, "bytes=0-99");
+        request.setMethod("HEAD");
+
+        MockHttpServletResponse response = serve(request);
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_PARTIAL_CONTENT);
+        assertThat(response.getContentLengthLong()).isEqualTo(100);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void answersAMatchingIfNoneMatchWith304() throws IOException {
+        String etag = etag();
+        for (String ifNoneMatch : new String[]{etag, "W/" + etag, "*", "\"other\", " + etag, "\"other\",W/" + etag}){
+            MockHttpServletResponse response = serve(get(HttpHeaders.IF_NONE_MATCH, ifNoneMatch));
+
+            assertThat(response.getStatus()).as(ifNoneMatch).isEqualTo(HttpServletResponse.SC_NOT_MODIFIED);
+            assertThat(response.getContentAsByteArray()).isEmpty();
+            assertThat(response.getHeader(HttpHeaders.ETAG)).isEqualTo(etag);
+        }
+    }
+
+    @Test
+    void sendsTheFileWhenIfNoneMatchDiffers() throws IOException {
+        MockHttpServletRequest request = get(HttpHeaders.IF_NONE_MATCH, "\"other\", W/\"another\"");
+        // If-None-Match wins over If-Modified-Since
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED + 60_000);
+
+        MockHttpServletResponse response = serve(request);
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void comparesIfModifiedSinceToTheSecond() throws IOException {
+        assertThat(serve(get(HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED)).getStatus())
+                .isEqualTo(HttpServletResponse.SC_NOT_MODIFIED);
+        assertThat(serve(get(HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED - 1000)).getStatus())
+                .isEqualTo(HttpServletResponse.SC_OK);
+        // Unparseable dates are ignored
+        assertThat(serve(get(HttpHeaders.IF_MODIFIED_SINCE, "yesterday")).getStatus())
+                .isEqualTo(HttpServletResponse.SC_OK);
+    }
+
+    @Test
+    void honoursRangeWhenIfRangeMatches() throws IOException {
+        MockHttpServletRequest byTag = get(HttpHeaders.RANGE, "bytes=0-9");
+        byTag.addHeader(HttpHeaders.IF_RANGE, etag());
+        assertThat(serve(byTag).getStatus()).isEqualTo(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+        MockHttpServletRequest byDate = get(HttpHeaders.RANGE, "bytes=0-9");
+        byDate.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED);
+        assertThat(serve(byDate).getStatus()).isEqualTo(HttpServletResponse.SC_PARTIAL_CONTENT);
+    }
+
+    @Test
+    void sendsTheWholeFileWhenIfRangeDiffers() throws IOException {
+        // If-Range compares strongly, so a weak tag never matches
+        for (Object ifRange : new Object[]{"\"other\"", "W/" + etag(), LAST_MODIFIED - 1000, "garbage"}){
+            MockHttpServletRequest request = get(HttpHeaders.RANGE, "bytes=0-9");
+            request.addHeader(HttpHeaders.IF_RANGE, ifRange);
+
+            MockHttpServletResponse response = serve(request);
+
+            assertThat(response.getStatus()).as(ifRange.toString()).isEqualTo(HttpServletResponse.SC_OK);
+            assertThat(response.getContentAsByteArray()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void sendsRangesOfPackedFilesFromTheirContent() throws IOException {
+        // Packed: the bytes are at an offset in a segment, and only content holds exactly the file
+        byte[] segment = new byte[LENGTH + 300];
+        System.arraycopy(content, 0, segment, 200, LENGTH);
+        Path path = directory.resolve("segment.pack");
+        Files.write(path, segment);
+        StoredFile packed = new StoredFile("image.png", path, 200, LENGTH, LAST_MODIFIED, "image/png",
+                ByteBuffer.wrap(segment, 200, LENGTH).slice().asReadOnlyBuffer());
+        served = new ImageVariantResolver.ServedFile(packed, "image/png", false);
+
+        assertRange("bytes=-100", 900, 999);
+        MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, "bytes=0-9,990-999"));
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_PARTIAL_CONTENT);
+        String text = new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        assertThat(text).contains(new String(content, 0, 10, StandardCharsets.ISO_8859_1))
+                .contains(new String(content, 990, 10, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void streamsABodyFromAPeerWholeIgnoringRange() throws IOException {
+        StoredFile file = new StoredFile("image.png", null, 0, LENGTH, LAST_MODIFIED, "image/png", null);
+        served = new ImageVariantResolver.ServedFile(file, "image/png", false, new ByteArrayInputStream(content));
+
+        MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, "bytes=0-9"));
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+        assertThat(response.getHeader(HttpHeaders.ACCEPT_RANGES)).isNull();
+    }
+
+    @Test
+    void failsAStreamedBodyOfTheWrongLength(){
+        StoredFile file = new StoredFile("image.png", null, 0, LENGTH, LAST_MODIFIED, "image/png", null);
+        served = new ImageVariantResolver.ServedFile(file, "image/png", false,
+                new ByteArrayInputStream(content, 0, LENGTH - 1));
+
+        assertThatThrownBy(() -> serve(get())).isInstanceOf(EOFException.class);
+    }
+
+    private void assertRange(String range, int first, int last) throws IOException {
+        MockHttpServletResponse response = serve(get(HttpHeaders.RANGE, range));
+
+        assertThat(response.getStatus()).as(range).isEqualTo(HttpServletResponse.SC_PARTIAL_CONTENT);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).as(range)
+                .isEqualTo("bytes " + first + "-" + last + "/" + LENGTH);
+        assertThat(response.getContentLengthLong()).isEqualTo(last - first + 1);
+        assertThat(response.getContentAsByteArray()).as(range).isEqualTo(Arrays.copyOfRange(content, first, last + 1));
+    }
+
+    private void assertPart(String part, String contentRange, int from, int to){
+        String headers = part.substring(0, part.indexOf("\r\n\r\n"));
+        assertThat(headers).contains(HttpHeaders.CONTENT_TYPE + ": image/png")
+                .contains(HttpHeaders.CONTENT_RANGE + ": " + contentRange);
+        String body = part.substring(headers.length() + 4);
+        assertThat(body.getBytes(StandardCharsets.ISO_8859_1)).isEqualTo(Arrays.copyOfRange(content, from, to));
+    }
+
+    private String etag() throws IOException {
+        return serve(get()).getHeader(HttpHeaders.ETAG);
+    }
+
+    private MockHttpServletResponse serve(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        server.serve(served, request, response);
+        return response;
+    }
+
+    private static MockHttpServletRequest get(){
+        return new MockHttpServletRequest("GET", "/files/image.png");
+    }
+
+    private static MockHttpServletRequest get(String header, Object value){
+        MockHttpServletRequest request = get();
+        request.addHeader(header, value);
+        return request;
+    }
+}